@@ -0,0 +1,41 @@
+package com.keycloak.sync.benchmark;
+
+import com.keycloak.sync.ClientUserSyncConfig;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of turning a realm configuration map into a ClientUserSyncConfig, paid by every
+ * provider the factory creates
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ConfigParsingBenchmark {
+
+    private Map<String, String> configMap;
+
+    @Setup
+    public void setUp() {
+        configMap = Fixtures.configMap("http://127.0.0.1:8080/events");
+    }
+
+    @Benchmark
+    public ClientUserSyncConfig fromMap() {
+        return ClientUserSyncConfig.fromMap(configMap);
+    }
+}
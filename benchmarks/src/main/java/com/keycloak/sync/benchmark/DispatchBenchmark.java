@@ -0,0 +1,77 @@
+package com.keycloak.sync.benchmark;
+
+import com.keycloak.sync.ClientUserSyncConfig;
+import com.keycloak.sync.UserSyncData;
+import com.keycloak.sync.UserSyncService;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * End-to-end delivery: events are handed to UserSyncService and each invocation waits until
+ * the in-process stub API has received all of them. Scores are per event and include queueing,
+ * serialization and the HTTP exchange on both transports, with and without batching.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Dorg.jboss.logging.provider=jdk")
+@State(Scope.Benchmark)
+public class DispatchBenchmark {
+
+    private static final int EVENTS_PER_INVOCATION = 1000;
+    private static final long DELIVERY_TIMEOUT_MILLIS = 30_000;
+
+    @Param({"CLASSIC", "ASYNC"})
+    public String transportMode;
+
+    @Param({"false", "true"})
+    public String batchEnabled;
+
+    private StubApiServer server;
+    private UserSyncService syncService;
+    private UserSyncData syncData;
+    private long sent;
+
+    @Setup
+    public void setUp() throws IOException {
+        Fixtures.quietLogging();
+        server = new StubApiServer();
+        Map<String, String> configMap = Fixtures.configMap(server.endpoint());
+        configMap.put("transportMode", transportMode);
+        configMap.put("batchEnabled", batchEnabled);
+        syncService = new UserSyncService(ClientUserSyncConfig.fromMap(configMap), "benchmark");
+        syncData = Fixtures.syncData();
+    }
+
+    @TearDown
+    public void tearDown() {
+        syncService.close();
+        server.close();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(EVENTS_PER_INVOCATION)
+    public void deliver() {
+        for (int i = 0; i < EVENTS_PER_INVOCATION; i++) {
+            syncService.syncUserData(syncData);
+        }
+        sent += EVENTS_PER_INVOCATION;
+        server.awaitReceived(sent, DELIVERY_TIMEOUT_MILLIS);
+    }
+}
@@ -0,0 +1,91 @@
+package com.keycloak.sync.benchmark;
+
+import com.keycloak.sync.ClientUserSyncConfig;
+import com.keycloak.sync.ClientUserSyncEventListenerProvider;
+import com.keycloak.sync.UserSyncData;
+import com.keycloak.sync.UserSyncService;
+import org.keycloak.events.Event;
+import org.keycloak.events.EventType;
+import org.keycloak.models.KeycloakSession;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Work done on the Keycloak request thread per event: the filter for events that are skipped,
+ * and filtering plus user data extraction (against stubbed realm and user lookups) for events
+ * that are synced. The sync service only captures the extracted data, so nothing is sent.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Dorg.jboss.logging.provider=jdk")
+@State(Scope.Thread)
+public class EventListenerBenchmark {
+
+    private CapturingSyncService syncService;
+    private ClientUserSyncEventListenerProvider provider;
+    private Event ignoredType;
+    private Event ignoredClient;
+    private Event accepted;
+
+    @Setup
+    public void setUp() {
+        Fixtures.quietLogging();
+        syncService = new CapturingSyncService(ClientUserSyncConfig.fromMap(Fixtures.configMap("http://127.0.0.1:9/events")));
+        KeycloakSession session = Stubs.session(
+                Stubs.realm(Fixtures.REALM_ID, "My Realm"),
+                Stubs.user(Fixtures.USER_ID, Fixtures.userAttributes()));
+        provider = new ClientUserSyncEventListenerProvider(session, syncService);
+
+        ignoredType = Fixtures.event(EventType.CODE_TO_TOKEN, Fixtures.ALLOWED_CLIENT);
+        ignoredClient = Fixtures.event(EventType.LOGIN, "other-client");
+        accepted = Fixtures.event(EventType.LOGIN, Fixtures.ALLOWED_CLIENT);
+    }
+
+    @TearDown
+    public void tearDown() {
+        syncService.close();
+    }
+
+    @Benchmark
+    public void rejectEventType() {
+        provider.onEvent(ignoredType);
+    }
+
+    @Benchmark
+    public void rejectClient() {
+        provider.onEvent(ignoredClient);
+    }
+
+    @Benchmark
+    public UserSyncData acceptAndExtract() {
+        provider.onEvent(accepted);
+        return syncService.last;
+    }
+
+    private static final class CapturingSyncService extends UserSyncService {
+
+        private UserSyncData last;
+
+        private CapturingSyncService(ClientUserSyncConfig config) {
+            super(config, "benchmark");
+        }
+
+        @Override
+        public void syncUserData(UserSyncData syncData) {
+            last = syncData;
+        }
+    }
+}
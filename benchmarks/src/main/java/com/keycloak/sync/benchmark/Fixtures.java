@@ -0,0 +1,98 @@
+package com.keycloak.sync.benchmark;
+
+import com.keycloak.sync.UserSyncData;
+import org.keycloak.events.Event;
+import org.keycloak.events.EventType;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Shared inputs for the benchmarks: a realistic realm configuration, events and payloads
+ */
+final class Fixtures {
+
+    static final String REALM_ID = "realm-id";
+    static final String USER_ID = "5f1c4a2e-9d3b-4c6f-8a7e-1b2c3d4e5f60";
+    static final String ALLOWED_CLIENT = "portal";
+
+    private Fixtures() {
+    }
+
+    /**
+     * Keeps the listener's per-event info logging from dominating the measurements; the
+     * benchmarks fork with the JDK logging provider so this applies
+     */
+    static void quietLogging() {
+        Logger.getLogger("").setLevel(Level.WARNING);
+    }
+
+    /**
+     * Realm configuration as the factory builds it from globals and client-user-sync.* attributes
+     */
+    static Map<String, String> configMap(String apiEndpoint) {
+        Map<String, String> config = new HashMap<>();
+        config.put("apiEndpoint", apiEndpoint);
+        config.put("apiToken", "secret-token");
+        config.put("clientIds", ALLOWED_CLIENT + ",mobile-app,admin-console,partner-api");
+        config.put("eventTypes", "LOGIN,REGISTER,UPDATE_PROFILE,UPDATE_EMAIL");
+        config.put("clientEventTypes", "partner-api:LOGOUT|UPDATE_PASSWORD");
+        config.put("additionalAttributes", "department,employeeId,costCenter");
+        config.put("apiHeaders", "X-Source:keycloak,X-Tenant:benchmark");
+        config.put("connectionTimeout", "10");
+        config.put("readTimeout", "30");
+        config.put("threadPoolSize", "4");
+        config.put("retryEnabled", "false");
+        config.put("enableLogging", "false");
+        config.put("queueCapacity", "65536");
+        config.put("overflowPolicy", "BLOCK");
+        config.put("enqueueTimeoutMs", "1000");
+        config.put("batchSize", "100");
+        config.put("batchLingerMs", "5");
+        config.put("batchFormat", "NDJSON");
+        config.put("maxInFlight", "64");
+        return config;
+    }
+
+    static Map<String, String> userAttributes() {
+        Map<String, String> attributes = new HashMap<>();
+        attributes.put("department", "IT");
+        attributes.put("employeeId", "EMP001");
+        attributes.put("costCenter", "CC-42");
+        return attributes;
+    }
+
+    static Event event(EventType type, String clientId) {
+        Event event = new Event();
+        event.setId("0b7c6a5e-4d3c-2b1a-0f9e-8d7c6b5a4f3e");
+        event.setType(type);
+        event.setRealmId(REALM_ID);
+        event.setClientId(clientId);
+        event.setUserId(USER_ID);
+        event.setSessionId("a1b2c3d4-e5f6-4789-9abc-def012345678");
+        event.setIpAddress("192.168.1.1");
+        event.setTime(1700000000000L);
+        return event;
+    }
+
+    static UserSyncData syncData() {
+        UserSyncData syncData = new UserSyncData();
+        syncData.setEventId("0b7c6a5e-4d3c-2b1a-0f9e-8d7c6b5a4f3e");
+        syncData.setEventType("LOGIN");
+        syncData.setUserId(USER_ID);
+        syncData.setUsername("john.doe");
+        syncData.setEmail("john.doe@example.com");
+        syncData.setFirstName("John");
+        syncData.setLastName("Doe");
+        syncData.setRealmId(REALM_ID);
+        syncData.setRealmName("My Realm");
+        syncData.setClientId(ALLOWED_CLIENT);
+        syncData.setIpAddress("192.168.1.1");
+        syncData.setTimestamp(1700000000000L);
+        syncData.setSessionId("a1b2c3d4-e5f6-4789-9abc-def012345678");
+        userAttributes().forEach(syncData::addAttribute);
+        return syncData;
+    }
+}
@@ -0,0 +1,94 @@
+package com.keycloak.sync.benchmark;
+
+import com.keycloak.sync.BatchFormat;
+import com.keycloak.sync.PayloadBuffer;
+import com.keycloak.sync.PayloadBufferPool;
+import com.keycloak.sync.PayloadCompression;
+import com.keycloak.sync.PayloadCompressor;
+import com.keycloak.sync.PayloadEncoding;
+import com.keycloak.sync.UserSyncData;
+import com.keycloak.sync.UserSyncDataWriter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding and compression cost of a request body against its size on the wire. Each trial prints
+ * the body size of its combination once; the score is the time to encode and compress one body.
+ * The batch holds events of different users and clients, so it is not more repetitive than real traffic.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class PayloadEncodingBenchmark {
+
+    private static final String[] CLIENTS = {Fixtures.ALLOWED_CLIENT, "mobile-app", "partner-api"};
+
+    @Param({"JSON", "CBOR", "SMILE"})
+    public String encoding;
+
+    @Param({"NONE", "GZIP", "ZSTD"})
+    public String compression;
+
+    @Param({"1", "100"})
+    public int batchSize;
+
+    private final PayloadBufferPool pool = new PayloadBufferPool(4);
+    private UserSyncDataWriter writer;
+    private PayloadCompressor compressor;
+    private List<UserSyncData> batch;
+
+    @Setup
+    public void setUp() throws IOException {
+        writer = new UserSyncDataWriter(PayloadEncoding.valueOf(encoding));
+        compressor = new PayloadCompressor(PayloadCompression.valueOf(compression), 1);
+        batch = new ArrayList<>(batchSize);
+        for (int i = 0; i < batchSize; i++) {
+            UserSyncData syncData = Fixtures.syncData();
+            syncData.setEventId(String.format("0b7c6a5e-4d3c-2b1a-0f9e-%012d", i));
+            syncData.setUserId(String.format("5f1c4a2e-9d3b-4c6f-8a7e-%012d", i));
+            syncData.setUsername("user" + i);
+            syncData.setEmail("user" + i + "@example.com");
+            syncData.setClientId(CLIENTS[i % CLIENTS.length]);
+            syncData.setTimestamp(1700000000000L + i * 137L);
+            batch.add(syncData);
+        }
+        System.out.printf("%n%s/%s, %d events: %d bytes on the wire%n", encoding, compression, batchSize, encode());
+    }
+
+    @TearDown
+    public void tearDown() {
+        compressor.close();
+    }
+
+    @Benchmark
+    public int encode() throws IOException {
+        PayloadBuffer buffer = pool.acquire();
+        if (batchSize == 1) {
+            writer.write(batch.get(0), buffer);
+        } else {
+            writer.write(batch, BatchFormat.JSON_ARRAY, buffer);
+        }
+        buffer = compressor.compress(buffer, pool);
+        int size = buffer.size();
+        pool.release(buffer);
+        return size;
+    }
+}
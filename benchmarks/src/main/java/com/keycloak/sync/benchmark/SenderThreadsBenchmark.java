@@ -0,0 +1,88 @@
+package com.keycloak.sync.benchmark;
+
+import com.keycloak.sync.ClientUserSyncConfig;
+import com.keycloak.sync.UserSyncData;
+import com.keycloak.sync.UserSyncService;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Blocking delivery on platform threads against virtual threads, with a stub API that takes
+ * responseDelayMs to answer. CLASSIC runs one platform sender thread per unit of concurrency;
+ * VIRTUAL runs four sender threads that hand up to the same number of requests to virtual threads.
+ * Both send unbatched requests over a pool with one connection per unit of concurrency.
+ * Run on JDK 21 against a plugin built there. Heap allocation shows with -prof gc; the native
+ * memory of the thread stacks shows with -jvmArgsAppend -XX:NativeMemoryTracking=summary and
+ * jcmd VM.native_memory. The forks print a stack trace whenever a virtual thread gets pinned.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Dorg.jboss.logging.provider=jdk", "-Djdk.tracePinnedThreads=short"})
+@State(Scope.Benchmark)
+public class SenderThreadsBenchmark {
+
+    private static final int EVENTS_PER_INVOCATION = 1000;
+    private static final long DELIVERY_TIMEOUT_MILLIS = 60_000;
+
+    @Param({"CLASSIC", "VIRTUAL"})
+    public String transportMode;
+
+    @Param({"16", "256"})
+    public int concurrency;
+
+    @Param({"20"})
+    public long responseDelayMs;
+
+    private StubApiServer server;
+    private UserSyncService syncService;
+    private UserSyncData syncData;
+    private long sent;
+
+    @Setup
+    public void setUp() throws IOException {
+        Fixtures.quietLogging();
+        server = new StubApiServer(responseDelayMs);
+        Map<String, String> configMap = Fixtures.configMap(server.endpoint());
+        configMap.put("transportMode", transportMode);
+        configMap.put("batchEnabled", "false");
+        configMap.put("threadPoolSize", "CLASSIC".equals(transportMode) ? Integer.toString(concurrency) : "4");
+        configMap.put("maxInFlight", Integer.toString(concurrency));
+        configMap.put("maxConnectionsTotal", Integer.toString(concurrency));
+        configMap.put("maxConnectionsPerRoute", Integer.toString(concurrency));
+        syncService = new UserSyncService(ClientUserSyncConfig.fromMap(configMap), "benchmark");
+        syncData = Fixtures.syncData();
+    }
+
+    @TearDown
+    public void tearDown() {
+        syncService.close();
+        server.close();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(EVENTS_PER_INVOCATION)
+    public void deliver() {
+        for (int i = 0; i < EVENTS_PER_INVOCATION; i++) {
+            syncService.syncUserData(syncData);
+        }
+        sent += EVENTS_PER_INVOCATION;
+        server.awaitReceived(sent, DELIVERY_TIMEOUT_MILLIS);
+    }
+}
@@ -0,0 +1,80 @@
+package com.keycloak.sync.benchmark;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.keycloak.sync.BatchFormat;
+import com.keycloak.sync.PayloadBuffer;
+import com.keycloak.sync.PayloadBufferPool;
+import com.keycloak.sync.UserSyncData;
+import com.keycloak.sync.UserSyncDataWriter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Request body serialization: the reflective ObjectMapper path the service used before,
+ * against UserSyncDataWriter streaming into a pooled PayloadBuffer. Run with -prof gc to
+ * compare gc.alloc.rate.norm (bytes allocated per event).
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SerializationBenchmark {
+
+    private static final int BATCH_SIZE = 100;
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final UserSyncDataWriter writer = new UserSyncDataWriter();
+    private final PayloadBufferPool pool = new PayloadBufferPool(4);
+    private UserSyncData syncData;
+    private List<UserSyncData> batch;
+
+    @Setup
+    public void setUp() {
+        syncData = Fixtures.syncData();
+        batch = new ArrayList<>(Collections.nCopies(BATCH_SIZE, syncData));
+    }
+
+    @Benchmark
+    public byte[] objectMapperSingle() throws IOException {
+        return objectMapper.writeValueAsBytes(syncData);
+    }
+
+    @Benchmark
+    public int writerSingle() throws IOException {
+        PayloadBuffer buffer = pool.acquire();
+        writer.write(syncData, buffer);
+        int size = buffer.size();
+        pool.release(buffer);
+        return size;
+    }
+
+    @Benchmark
+    public byte[] objectMapperBatch() throws IOException {
+        return objectMapper.writeValueAsBytes(batch);
+    }
+
+    @Benchmark
+    public int writerBatch() throws IOException {
+        PayloadBuffer buffer = pool.acquire();
+        writer.write(batch, BatchFormat.JSON_ARRAY, buffer);
+        int size = buffer.size();
+        pool.release(buffer);
+        return size;
+    }
+}
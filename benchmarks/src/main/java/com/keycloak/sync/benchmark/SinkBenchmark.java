@@ -0,0 +1,108 @@
+package com.keycloak.sync.benchmark;
+
+import com.keycloak.sync.ClientUserSyncConfig;
+import com.keycloak.sync.FileSyncSink;
+import com.keycloak.sync.KafkaSyncSink;
+import com.keycloak.sync.SyncMetrics;
+import com.keycloak.sync.SyncResult;
+import com.keycloak.sync.SyncSink;
+import com.keycloak.sync.UserSyncData;
+import org.apache.kafka.clients.producer.MockProducer;
+import org.apache.kafka.common.serialization.ByteArraySerializer;
+import org.apache.kafka.common.serialization.StringSerializer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Cost per event of the non-HTTP sinks on their own, without queueing and retries: appending a batch
+ * to a rolling NDJSON file, and serializing and handing a batch to a Kafka producer. The producer is
+ * Kafka's MockProducer, which acknowledges at once, so the score excludes the network.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Dorg.jboss.logging.provider=jdk")
+@State(Scope.Benchmark)
+public class SinkBenchmark {
+
+    private static final int BATCH_SIZE = 100;
+
+    @Param({"FILE", "KAFKA"})
+    public String sinkType;
+
+    private Path directory;
+    private MockProducer<String, byte[]> producer;
+    private SyncSink sink;
+    private List<UserSyncData> batch;
+
+    @Setup
+    public void setUp() throws IOException {
+        Fixtures.quietLogging();
+        directory = Files.createTempDirectory("sink-benchmark");
+        Map<String, String> configMap = Fixtures.configMap("");
+        configMap.put("sinkType", sinkType);
+        configMap.put("fileDirectory", directory.toString());
+        configMap.put("fileMaxSizeMb", "16");
+        configMap.put("kafkaBootstrapServers", "localhost:9092");
+        ClientUserSyncConfig config = ClientUserSyncConfig.fromMap(configMap);
+        if ("KAFKA".equals(sinkType)) {
+            producer = new MockProducer<>(true, new StringSerializer(), new ByteArraySerializer());
+            sink = new KafkaSyncSink(config, "benchmark", SyncMetrics.NOOP, producer);
+        } else {
+            sink = new FileSyncSink(config, "benchmark", SyncMetrics.NOOP);
+        }
+        batch = new ArrayList<>(BATCH_SIZE);
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            batch.add(Fixtures.syncData());
+        }
+    }
+
+    /**
+     * Discards what was written so far: MockProducer keeps every record it was sent, and the files
+     * of one iteration can take gigabytes
+     */
+    @TearDown(Level.Iteration)
+    public void discardOutput() throws IOException {
+        if (producer != null) {
+            producer.clear();
+        }
+        try (Stream<Path> files = Files.list(directory)) {
+            files.forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        sink.close();
+        discardOutput();
+        Files.deleteIfExists(directory);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public SyncResult send() {
+        return sink.send(batch).join();
+    }
+}
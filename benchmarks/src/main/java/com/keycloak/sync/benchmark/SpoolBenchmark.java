@@ -0,0 +1,84 @@
+package com.keycloak.sync.benchmark;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.keycloak.sync.UserSyncData;
+import com.keycloak.sync.WriteAheadSpool;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Cost on the request thread of journaling an event in the write-ahead spool, with four threads
+ * appending at once. Each thread acknowledges the event it appended PENDING_PER_THREAD appends
+ * earlier, so most records are written and the log keeps rolling over and reclaiming segments; the
+ * mmap writes and fsyncs happen on the spool's flusher thread and are not part of the score.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Dorg.jboss.logging.provider=jdk")
+@Threads(4)
+@State(Scope.Benchmark)
+public class SpoolBenchmark {
+
+    private static final int PENDING_PER_THREAD = 1 << 16;
+
+    private Path directory;
+    private WriteAheadSpool spool;
+
+    @State(Scope.Thread)
+    public static class Events {
+
+        private final UserSyncData[] events = new UserSyncData[PENDING_PER_THREAD];
+        private int next;
+
+        @Setup
+        public void setUp() {
+            UserSyncData template = Fixtures.syncData();
+            for (int i = 0; i < events.length; i++) {
+                events[i] = new UserSyncData(template);
+            }
+        }
+    }
+
+    @Setup
+    public void setUp() throws IOException {
+        Fixtures.quietLogging();
+        directory = Files.createTempDirectory("spool-benchmark");
+        spool = new WriteAheadSpool(directory, 16 * 1024 * 1024, 10, new ObjectMapper());
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        spool.close();
+        try (Stream<Path> files = Files.list(directory)) {
+            files.forEach(path -> path.toFile().delete());
+        }
+        Files.deleteIfExists(directory);
+    }
+
+    @Benchmark
+    public void append(Events events) throws IOException {
+        UserSyncData syncData = events.events[events.next];
+        events.next = (events.next + 1) & (PENDING_PER_THREAD - 1);
+        // Same instance as PENDING_PER_THREAD appends ago; a no-op on the first pass
+        spool.acknowledge(syncData);
+        spool.append(syncData);
+    }
+}
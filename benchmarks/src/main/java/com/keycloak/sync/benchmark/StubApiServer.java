@@ -0,0 +1,97 @@
+package com.keycloak.sync.benchmark;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-process HTTP endpoint that accepts every POST with 200 and counts the events it received.
+ * A request body counts as one event per NDJSON line, or as a single event when it is not
+ * newline-terminated. A response delay simulates a remote API; every request then gets its own
+ * handler thread so the stub does not cap concurrency.
+ */
+final class StubApiServer implements AutoCloseable {
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final AtomicLong receivedEvents = new AtomicLong();
+    private final long responseDelayMillis;
+
+    StubApiServer() throws IOException {
+        this(0);
+    }
+
+    StubApiServer(long responseDelayMillis) throws IOException {
+        this.responseDelayMillis = responseDelayMillis;
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 1024);
+        this.executor = responseDelayMillis > 0 ? Executors.newCachedThreadPool() : Executors.newFixedThreadPool(8);
+        server.setExecutor(executor);
+        server.createContext("/events", this::handle);
+        server.start();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        long events = 0;
+        int last = -1;
+        byte[] chunk = new byte[8192];
+        try (InputStream body = exchange.getRequestBody()) {
+            int read;
+            while ((read = body.read(chunk)) > 0) {
+                for (int i = 0; i < read; i++) {
+                    if (chunk[i] == '\n') {
+                        events++;
+                    }
+                }
+                last = chunk[read - 1];
+            }
+        }
+        if (last != '\n' && last != -1) {
+            events++;
+        }
+        if (responseDelayMillis > 0) {
+            try {
+                Thread.sleep(responseDelayMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        receivedEvents.addAndGet(events);
+        exchange.sendResponseHeaders(200, -1);
+        exchange.close();
+    }
+
+    String endpoint() {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + "/events";
+    }
+
+    long receivedEvents() {
+        return receivedEvents.get();
+    }
+
+    /**
+     * Spins until at least the given number of events arrived, failing after the timeout
+     */
+    void awaitReceived(long events, long timeoutMillis) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        while (receivedEvents.get() < events) {
+            if (System.nanoTime() > deadline) {
+                throw new IllegalStateException("Stub API received " + receivedEvents.get() + " of " + events + " events");
+            }
+            Thread.onSpinWait();
+        }
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,101 @@
+package com.keycloak.sync.benchmark;
+
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.RealmProvider;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.UserProvider;
+
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * Minimal in-memory stand-ins for the Keycloak model interfaces the listener touches.
+ * Only the methods named in the answer map are implemented; everything else returns the
+ * type's default value.
+ */
+final class Stubs {
+
+    private Stubs() {
+    }
+
+    /**
+     * Session whose realm and user providers resolve exactly the given realm and user
+     */
+    static KeycloakSession session(RealmModel realm, UserModel user) {
+        RealmProvider realms = stub(RealmProvider.class, Map.of(
+                "getRealm", args -> realm.getId().equals(args[0]) ? realm : null));
+        UserProvider users = stub(UserProvider.class, Map.of(
+                "getUserById", args -> user.getId().equals(args[1]) ? user : null));
+        return stub(KeycloakSession.class, Map.of(
+                "realms", args -> realms,
+                "users", args -> users));
+    }
+
+    static RealmModel realm(String id, String name) {
+        return stub(RealmModel.class, Map.of(
+                "getId", args -> id,
+                "getName", args -> name));
+    }
+
+    static UserModel user(String id, Map<String, String> attributes) {
+        Map<String, Function<Object[], Object>> answers = new HashMap<>();
+        answers.put("getId", args -> id);
+        answers.put("getUsername", args -> "john.doe");
+        answers.put("getEmail", args -> "john.doe@example.com");
+        answers.put("getFirstName", args -> "John");
+        answers.put("getLastName", args -> "Doe");
+        answers.put("getFirstAttribute", args -> attributes.get((String) args[0]));
+        return stub(UserModel.class, answers);
+    }
+
+    @SuppressWarnings("unchecked")
+    static <T> T stub(Class<T> type, Map<String, Function<Object[], Object>> answers) {
+        return (T) Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type}, (proxy, method, args) -> {
+            Function<Object[], Object> answer = answers.get(method.getName());
+            if (answer != null) {
+                return answer.apply(args);
+            }
+            switch (method.getName()) {
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "equals":
+                    return proxy == args[0];
+                case "toString":
+                    return type.getSimpleName() + " stub";
+                default:
+                    return defaultValue(method.getReturnType());
+            }
+        });
+    }
+
+    private static Object defaultValue(Class<?> type) {
+        if (!type.isPrimitive() || type == void.class) {
+            return null;
+        }
+        if (type == boolean.class) {
+            return false;
+        }
+        if (type == char.class) {
+            return '\0';
+        }
+        if (type == long.class) {
+            return 0L;
+        }
+        if (type == float.class) {
+            return 0f;
+        }
+        if (type == double.class) {
+            return 0d;
+        }
+        if (type == byte.class) {
+            return (byte) 0;
+        }
+        if (type == short.class) {
+            return (short) 0;
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,101 @@
+package com.keycloak.sync;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * AIMD concurrency limit for requests to the external API. Each successful, fast call raises the
+ * limit by 1/limit (about one per round trip); a failed or slow call multiplies it by 0.9. Callers
+ * wait in acquire() while the number of outstanding requests is at the limit.
+ */
+public class AdaptiveConcurrencyLimiter {
+
+    private static final double BACKOFF_RATIO = 0.9;
+
+    private final boolean enabled;
+    private final int minLimit;
+    private final int maxLimit;
+    private final long slowCallDurationNanos;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition released = lock.newCondition();
+    private double limit;
+    private int inFlight;
+
+    public AdaptiveConcurrencyLimiter(ClientUserSyncConfig config) {
+        this.enabled = config.isAdaptiveConcurrency();
+        int upper;
+        if (config.getTransportMode() == TransportMode.VIRTUAL) {
+            upper = VirtualThreadHttpTransport.maxInFlight(config);
+        } else {
+            upper = config.getTransportMode().isBoundedByMaxInFlight() ? config.getMaxInFlight() : config.getThreadPoolSize();
+        }
+        this.maxLimit = Math.max(1, upper);
+        this.minLimit = Math.max(1, Math.min(maxLimit, config.getConcurrencyLimitMin()));
+        this.slowCallDurationNanos = TimeUnit.MILLISECONDS.toNanos(config.getSlowCallDurationMs());
+        this.limit = maxLimit;
+    }
+
+    /**
+     * Waits until a request may be started
+     */
+    public void acquire() throws InterruptedException {
+        if (!enabled) {
+            return;
+        }
+        lock.lock();
+        try {
+            while (inFlight >= (int) limit) {
+                released.await();
+            }
+            inFlight++;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Releases a request slot and adjusts the limit from its outcome
+     */
+    public void release(boolean failed, long durationNanos) {
+        if (!enabled) {
+            return;
+        }
+        lock.lock();
+        try {
+            inFlight--;
+            if (failed || durationNanos >= slowCallDurationNanos) {
+                limit = Math.max(minLimit, limit * BACKOFF_RATIO);
+            } else {
+                limit = Math.min(maxLimit, limit + 1.0 / limit);
+            }
+            released.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns a permit for a request that was not sent, leaving the limit as it is
+     */
+    public void cancel() {
+        if (!enabled) {
+            return;
+        }
+        lock.lock();
+        try {
+            inFlight--;
+            released.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getLimit() {
+        return (int) limit;
+    }
+
+    public int getInFlight() {
+        return inFlight;
+    }
+}
@@ -0,0 +1,185 @@
+package com.keycloak.sync;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.jboss.logging.Logger;
+import org.keycloak.events.admin.AdminEvent;
+import org.keycloak.events.admin.OperationType;
+import org.keycloak.events.admin.ResourceType;
+import org.keycloak.models.RealmModel;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * Turns admin events on users, group memberships and realm role mappings into delta records.
+ * A record carries the user ID, an eventType of ADMIN_{resourceType}_{operationType} and a changes
+ * map with only what changed:
+ * - USER create/update: the synced profile fields (username, email, firstName, lastName and the
+ *   configured additional attributes) from the representation that differ from the cached snapshot,
+ *   or all of them present in the representation when the user is not cached
+ * - GROUP_MEMBERSHIP: groupId and, with a representation, groupName and groupPath
+ * - REALM_ROLE_MAPPING: the names of the roles granted or revoked
+ * Without includeRepresentation the record only says which user changed.
+ */
+public class AdminEventMapper {
+
+    private static final Logger logger = Logger.getLogger(AdminEventMapper.class);
+    private static final Set<ResourceType> SUPPORTED_RESOURCE_TYPES = EnumSet.of(
+            ResourceType.USER, ResourceType.GROUP_MEMBERSHIP, ResourceType.REALM_ROLE_MAPPING);
+    private static final String USERS_PATH_PREFIX = "users/";
+    private static final String EVENT_TYPE_PREFIX = "ADMIN_";
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final List<String> additionalAttributes;
+
+    public AdminEventMapper(ClientUserSyncConfig config) {
+        this.additionalAttributes = config.getAdditionalAttributes();
+    }
+
+    /**
+     * Whether the event concerns a user and is turned into a delta record
+     */
+    public static boolean isSupported(AdminEvent adminEvent) {
+        if (adminEvent.getResourceType() == null || !SUPPORTED_RESOURCE_TYPES.contains(adminEvent.getResourceType())) {
+            return false;
+        }
+        if (adminEvent.getResourceType() == ResourceType.USER && adminEvent.getOperationType() == OperationType.ACTION) {
+            return false;
+        }
+        return userId(adminEvent) != null;
+    }
+
+    /**
+     * Extracts the user ID from an admin resource path such as users/{id} or users/{id}/groups/{groupId}
+     */
+    public static String userId(AdminEvent adminEvent) {
+        String resourcePath = adminEvent.getResourcePath();
+        if (resourcePath == null || !resourcePath.startsWith(USERS_PATH_PREFIX)) {
+            return null;
+        }
+        int end = resourcePath.indexOf('/', USERS_PATH_PREFIX.length());
+        String userId = end < 0 ? resourcePath.substring(USERS_PATH_PREFIX.length()) : resourcePath.substring(USERS_PATH_PREFIX.length(), end);
+        return userId.isEmpty() ? null : userId;
+    }
+
+    /**
+     * Builds the delta record of a supported admin event
+     *
+     * @param previous cached snapshot of the user before the change, or null
+     * @return the record, or null for a user update that changed none of the synced fields
+     */
+    public UserSyncData map(AdminEvent adminEvent, RealmModel realm, UserSnapshot previous, boolean includeRepresentation) {
+        UserSyncData syncData = new UserSyncData();
+        syncData.setEventId(adminEvent.getId());
+        syncData.setEventType(EVENT_TYPE_PREFIX + adminEvent.getResourceType().name() + "_" + adminEvent.getOperationType().name());
+        syncData.setUserId(userId(adminEvent));
+        syncData.setRealmId(adminEvent.getRealmId());
+        syncData.setRealmName(realm != null ? realm.getName() : null);
+        if (adminEvent.getAuthDetails() != null) {
+            syncData.setClientId(adminEvent.getAuthDetails().getClientId());
+            syncData.setIpAddress(adminEvent.getAuthDetails().getIpAddress());
+        }
+        syncData.setTimestamp(adminEvent.getTime());
+
+        JsonNode representation = includeRepresentation ? parse(adminEvent) : null;
+        Map<String, Object> changes = new LinkedHashMap<>();
+        switch (adminEvent.getResourceType()) {
+            case USER:
+                if (representation != null && adminEvent.getOperationType() != OperationType.DELETE) {
+                    diffUser(changes, representation, previous);
+                    if (changes.isEmpty() && adminEvent.getOperationType() == OperationType.UPDATE) {
+                        return null;
+                    }
+                }
+                break;
+            case GROUP_MEMBERSHIP:
+                String path = adminEvent.getResourcePath();
+                changes.put("groupId", path.substring(path.lastIndexOf('/') + 1));
+                if (representation != null) {
+                    putIfPresent(changes, "groupName", representation.get("name"));
+                    putIfPresent(changes, "groupPath", representation.get("path"));
+                }
+                break;
+            case REALM_ROLE_MAPPING:
+                if (representation != null && representation.isArray()) {
+                    List<String> roles = new ArrayList<>(representation.size());
+                    representation.forEach(role -> {
+                        if (role.hasNonNull("name")) {
+                            roles.add(role.get("name").asText());
+                        }
+                    });
+                    changes.put("roles", roles);
+                }
+                break;
+            default:
+                break;
+        }
+        syncData.setChanges(changes);
+        return syncData;
+    }
+
+    private void diffUser(Map<String, Object> changes, JsonNode representation, UserSnapshot previous) {
+        diffField(changes, representation, "username", previous != null ? previous.getUsername() : null, previous != null);
+        diffField(changes, representation, "email", previous != null ? previous.getEmail() : null, previous != null);
+        diffField(changes, representation, "firstName", previous != null ? previous.getFirstName() : null, previous != null);
+        diffField(changes, representation, "lastName", previous != null ? previous.getLastName() : null, previous != null);
+
+        JsonNode attributes = representation.get("attributes");
+        if (attributes == null || !attributes.isObject() || additionalAttributes == null) {
+            return;
+        }
+        Map<String, Object> changedAttributes = new LinkedHashMap<>();
+        for (String attribute : additionalAttributes) {
+            if (!attributes.has(attribute)) {
+                continue;
+            }
+            JsonNode values = attributes.get(attribute);
+            JsonNode first = values.isArray() ? values.get(0) : values;
+            String value = first != null && !first.isNull() ? first.asText() : null;
+            if (previous == null || !Objects.equals(value, previous.getAttributes().get(attribute))) {
+                changedAttributes.put(attribute, value);
+            }
+        }
+        if (!changedAttributes.isEmpty()) {
+            changes.put("additionalAttributes", changedAttributes);
+        }
+    }
+
+    private static void diffField(Map<String, Object> changes, JsonNode representation, String field,
+                                  String previousValue, boolean hasPrevious) {
+        if (!representation.has(field)) {
+            return;
+        }
+        JsonNode node = representation.get(field);
+        String value = node.isNull() ? null : node.asText();
+        if (!hasPrevious || !Objects.equals(value, previousValue)) {
+            changes.put(field, value);
+        }
+    }
+
+    private static void putIfPresent(Map<String, Object> changes, String key, JsonNode node) {
+        if (node != null && !node.isNull()) {
+            changes.put(key, node.asText());
+        }
+    }
+
+    private JsonNode parse(AdminEvent adminEvent) {
+        String representation = adminEvent.getRepresentation();
+        if (representation == null || representation.isEmpty()) {
+            return null;
+        }
+        try {
+            return objectMapper.readTree(representation);
+        } catch (IOException e) {
+            logger.debugf("[ClientUserSync] Admin event %s has an unreadable representation", adminEvent.getId());
+            return null;
+        }
+    }
+}
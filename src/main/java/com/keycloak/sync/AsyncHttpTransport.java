@@ -0,0 +1,244 @@
+package com.keycloak.sync;
+
+import org.apache.hc.client5.http.async.methods.SimpleHttpRequest;
+import org.apache.hc.client5.http.async.methods.SimpleHttpResponse;
+import org.apache.hc.client5.http.async.methods.SimpleRequestBuilder;
+import org.apache.hc.client5.http.async.methods.SimpleResponseConsumer;
+import org.apache.hc.client5.http.config.RequestConfig;
+import org.apache.hc.client5.http.config.TlsConfig;
+import org.apache.hc.client5.http.impl.async.CloseableHttpAsyncClient;
+import org.apache.hc.client5.http.impl.async.HttpAsyncClientBuilder;
+import org.apache.hc.client5.http.impl.async.HttpAsyncClients;
+import org.apache.hc.client5.http.impl.nio.PoolingAsyncClientConnectionManager;
+import org.apache.hc.client5.http.impl.nio.PoolingAsyncClientConnectionManagerBuilder;
+import org.apache.hc.core5.concurrent.FutureCallback;
+import org.apache.hc.core5.http.ContentType;
+import org.apache.hc.core5.http.Header;
+import org.apache.hc.core5.http.nio.AsyncEntityProducer;
+import org.apache.hc.core5.http.nio.DataStreamChannel;
+import org.apache.hc.core5.http.nio.support.BasicRequestProducer;
+import org.apache.hc.core5.io.CloseMode;
+import org.apache.hc.core5.pool.PoolStats;
+import org.apache.hc.core5.reactor.IOReactorConfig;
+import org.apache.hc.core5.util.TimeValue;
+import org.apache.hc.core5.util.Timeout;
+import org.jboss.logging.Logger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Non-blocking transport on the httpclient5 async client. A few I/O reactor threads multiplex all
+ * requests (over a single connection per route with HTTP/2), and at most maxInFlight requests are
+ * outstanding; callers wait for a free slot, which pushes back on the dispatch queue. A caller gives
+ * up after the connect and read timeout of one request, since every slot is free by then unless
+ * something went wrong. With HTTP/1.1 the pool's per-route connection limit also caps concurrency.
+ * Futures are completed on the given executor, so the work that depends on them never runs on, and
+ * never holds up, an I/O reactor thread.
+ */
+public class AsyncHttpTransport implements HttpTransport {
+
+    private static final Logger logger = Logger.getLogger(AsyncHttpTransport.class);
+
+    private final String endpoint;
+    private final List<Header> headers;
+    private final PoolingAsyncClientConnectionManager connectionManager;
+    private final CloseableHttpAsyncClient httpClient;
+    private final Semaphore inFlight;
+    private final int maxInFlight;
+    private final long acquireTimeoutMillis;
+    private final int shutdownTimeout;
+    private final Executor completionExecutor;
+
+    /**
+     * @param completionExecutor completes the futures returned by post(), e.g. the dispatcher's workers
+     */
+    public AsyncHttpTransport(ClientUserSyncConfig config, String name, Executor completionExecutor) {
+        this.endpoint = config.getApiEndpoint();
+        this.headers = HttpTransport.requestHeaders(config);
+        this.maxInFlight = Math.max(1, config.getMaxInFlight());
+        this.inFlight = new Semaphore(maxInFlight);
+        this.acquireTimeoutMillis = TimeUnit.SECONDS.toMillis(Math.max(1, config.getConnectionTimeout() + config.getReadTimeout()));
+        this.shutdownTimeout = config.getShutdownTimeout();
+        this.completionExecutor = completionExecutor;
+
+        this.connectionManager = PoolingAsyncClientConnectionManagerBuilder.create()
+                .setMaxConnTotal(config.getMaxConnectionsTotal())
+                .setMaxConnPerRoute(config.getMaxConnectionsPerRoute())
+                .setDefaultConnectionConfig(HttpTransport.connectionConfig(config))
+                .setDefaultTlsConfig(TlsConfig.custom()
+                        .setVersionPolicy(config.getHttpVersionPolicy())
+                        .build())
+                .build();
+
+        HttpAsyncClientBuilder builder = HttpAsyncClients.custom()
+                .setConnectionManager(connectionManager)
+                .setIOReactorConfig(IOReactorConfig.custom()
+                        .setIoThreadCount(Math.max(1, config.getIoThreads()))
+                        .build())
+                .setDefaultRequestConfig(RequestConfig.custom()
+                        .setResponseTimeout(Timeout.ofSeconds(config.getReadTimeout()))
+                        .setConnectionKeepAlive(TimeValue.ofSeconds(config.getKeepAlive()))
+                        .build())
+                .disableAutomaticRetries()
+                .setThreadFactory(runnable -> {
+                    Thread thread = new Thread(runnable, "client-user-sync-" + name + "-io");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        if (config.getIdleEvictionInterval() > 0) {
+            builder.evictExpiredConnections()
+                    .evictIdleConnections(TimeValue.ofSeconds(config.getIdleEvictionInterval()));
+        }
+        this.httpClient = builder.build();
+        this.httpClient.start();
+    }
+
+    @Override
+    public CompletableFuture<SyncResponse> post(PayloadBuffer body, ContentType contentType) {
+        try {
+            if (!inFlight.tryAcquire(acquireTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                return CompletableFuture.failedFuture(new IOException(
+                        "No request slot came free within " + acquireTimeoutMillis + " ms, " + maxInFlight + " requests in flight"));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return CompletableFuture.failedFuture(e);
+        }
+
+        CompletableFuture<SyncResponse> result = new CompletableFuture<>();
+        try {
+            SimpleRequestBuilder builder = SimpleRequestBuilder.post(endpoint);
+            headers.forEach(builder::setHeader);
+            SimpleHttpRequest request = builder.build();
+            BasicRequestProducer requestProducer = new BasicRequestProducer(request, new PayloadEntityProducer(body, contentType));
+            httpClient.execute(requestProducer, SimpleResponseConsumer.create(), new FutureCallback<SimpleHttpResponse>() {
+                @Override
+                public void completed(SimpleHttpResponse response) {
+                    inFlight.release();
+                    completionExecutor.execute(() -> {
+                        Header retryAfter = response.getFirstHeader("Retry-After");
+                        result.complete(new SyncResponse(response.getCode(), response.getBodyText(),
+                                SyncResponse.parseRetryAfter(retryAfter != null ? retryAfter.getValue() : null)));
+                    });
+                }
+
+                @Override
+                public void failed(Exception ex) {
+                    inFlight.release();
+                    completionExecutor.execute(() -> result.completeExceptionally(ex));
+                }
+
+                @Override
+                public void cancelled() {
+                    inFlight.release();
+                    completionExecutor.execute(() -> result.cancel(false));
+                }
+            });
+        } catch (RuntimeException e) {
+            // e.g. an invalid endpoint or a client that was closed; no callback will release the slot
+            inFlight.release();
+            return CompletableFuture.failedFuture(e);
+        }
+        return result;
+    }
+
+    @Override
+    public PoolStats getPoolStats() {
+        return connectionManager.getTotalStats();
+    }
+
+    public int getInFlightCount() {
+        return maxInFlight - inFlight.availablePermits();
+    }
+
+    /**
+     * Waits up to the shutdown timeout for outstanding requests before closing the client
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            if (!inFlight.tryAcquire(maxInFlight, shutdownTimeout, TimeUnit.SECONDS)) {
+                logger.warnf("[ClientUserSync] Closing async transport with %d requests in flight", getInFlightCount());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        httpClient.close(CloseMode.GRACEFUL);
+    }
+
+    /**
+     * Streams the written bytes of a PayloadBuffer as the request entity, reading the backing
+     * array in place instead of copying it the way SimpleRequestBuilder.setBody does
+     */
+    private static final class PayloadEntityProducer implements AsyncEntityProducer {
+
+        private final ByteBuffer content;
+        private final ContentType contentType;
+
+        private PayloadEntityProducer(PayloadBuffer body, ContentType contentType) {
+            this.content = ByteBuffer.wrap(body.array(), 0, body.size()).slice();
+            this.contentType = contentType;
+        }
+
+        @Override
+        public boolean isRepeatable() {
+            return true;
+        }
+
+        @Override
+        public long getContentLength() {
+            return content.capacity();
+        }
+
+        @Override
+        public String getContentType() {
+            return contentType.toString();
+        }
+
+        @Override
+        public String getContentEncoding() {
+            return null;
+        }
+
+        @Override
+        public boolean isChunked() {
+            return false;
+        }
+
+        @Override
+        public Set<String> getTrailerNames() {
+            return null;
+        }
+
+        @Override
+        public int available() {
+            return content.remaining();
+        }
+
+        @Override
+        public void produce(DataStreamChannel channel) throws IOException {
+            if (content.hasRemaining()) {
+                channel.write(content);
+            }
+            if (!content.hasRemaining()) {
+                channel.endStream();
+            }
+        }
+
+        @Override
+        public void failed(Exception cause) {
+        }
+
+        @Override
+        public void releaseResources() {
+            content.clear();
+        }
+    }
+}
@@ -0,0 +1,322 @@
+package com.keycloak.sync;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.jboss.logging.Logger;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * Reconciliation job that pushes every user of a realm through the sync pipeline as a BACKFILL
+ * record, e.g. when a new downstream system is onboarded or after an outage that outlasted the retry
+ * deadline.
+ * <p>
+ * Users are read page by page, backfillPageSize at a time, each page in a transaction of its own, so
+ * only a page or two is held in memory. Records are handed to the realm's current service at no more
+ * than backfillRate per second, and the job holds back while a queue of the realm or of one of its
+ * sinks is backlogged, so live events keep their room. After every page the offset and the ID of the
+ * last user read are written to a checkpoint file in spoolDirectory/backfill, from which a later job
+ * can resume. A page that was only partly queued when the job stopped is queued again on resume, so a
+ * user may be sent twice.
+ * <p>
+ * The user search can only page by offset, and users added or deleted before the offset move the
+ * users after it. The last user read anchors the next page: the page is read from one position before
+ * the offset, and when that position no longer holds the anchor, the anchor is looked up among the
+ * pages around it and the page continues right after it. Only when the anchor itself was deleted, or
+ * moved further than that, does the job fall back to the offset and may skip or repeat users.
+ */
+public class BackfillJob implements Runnable {
+
+    private static final Logger logger = Logger.getLogger(BackfillJob.class);
+
+    public static final String EVENT_TYPE = "BACKFILL";
+    private static final String CHECKPOINT_DIRECTORY = "backfill";
+    private static final Map<String, String> ALL_USERS = Collections.singletonMap(UserModel.INCLUDE_SERVICE_ACCOUNT, "false");
+    private static final long BACKLOG_POLL_MILLIS = 100;
+    private static final long PROGRESS_LOG_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(30);
+
+    private final KeycloakSessionFactory sessionFactory;
+    private final Function<RealmModel, UserSyncService> services;
+    private final Path checkpointFile;
+    private final ObjectMapper objectMapper;
+    private final BackfillStatus status;
+    private volatile boolean cancelled;
+    private long nextSendAt = System.nanoTime();
+    private long lastProgressLog = System.nanoTime();
+
+    /**
+     * @param services returns the service that currently handles a realm; looked up again for every page
+     * @param status   initial state: a new job at offset 0, or the checkpoint of the job to resume
+     */
+    public BackfillJob(KeycloakSessionFactory sessionFactory, Function<RealmModel, UserSyncService> services,
+                       Path checkpointFile, ObjectMapper objectMapper, BackfillStatus status) {
+        this.sessionFactory = sessionFactory;
+        this.services = services;
+        this.checkpointFile = checkpointFile;
+        this.objectMapper = objectMapper;
+        this.status = new BackfillStatus(status);
+        this.status.setState(BackfillStatus.State.RUNNING);
+        this.status.setFinishedAt(null);
+        this.status.setError(null);
+    }
+
+    public static Path checkpointFile(ClientUserSyncConfig config, String realmId) {
+        return Paths.get(config.getSpoolDirectory(), CHECKPOINT_DIRECTORY, realmId + ".json");
+    }
+
+    /**
+     * Reads the checkpoint a job left, or returns null when there is none or it cannot be read
+     */
+    public static BackfillStatus readCheckpoint(Path file, ObjectMapper objectMapper) {
+        try {
+            return objectMapper.readValue(Files.readAllBytes(file), BackfillStatus.class);
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException e) {
+            logger.warnf(e, "[ClientUserSync] Cannot read backfill checkpoint %s", file);
+            return null;
+        }
+    }
+
+    public synchronized BackfillStatus getStatus() {
+        return new BackfillStatus(status);
+    }
+
+    public boolean isRunning() {
+        return getStatus().getState() == BackfillStatus.State.RUNNING;
+    }
+
+    /**
+     * Stops the job before its next record; the checkpoint keeps the offset of the last complete page
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    @Override
+    public void run() {
+        String realmId = status.getRealmId();
+        logger.infof("[ClientUserSync] Backfill %s of realm %s started at offset %d", status.getJobId(), realmId, status.getOffset());
+        BackfillStatus.State result = BackfillStatus.State.COMPLETED;
+        String error = null;
+        try {
+            while (!cancelled) {
+                BackfillStatus current = getStatus();
+                Page page = loadPage(current.getOffset(), current.getLastUserId());
+                if (!queue(page)) {
+                    break;
+                }
+                synchronized (this) {
+                    status.setOffset(page.nextOffset);
+                    status.setLastUserId(page.lastUserId);
+                }
+                writeCheckpoint();
+                logProgress();
+                if (page.last) {
+                    break;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            cancelled = true;
+        } catch (RuntimeException e) {
+            logger.errorf(e, "[ClientUserSync] Backfill %s of realm %s failed", status.getJobId(), realmId);
+            result = BackfillStatus.State.FAILED;
+            error = e.toString();
+        }
+        if (cancelled && result == BackfillStatus.State.COMPLETED) {
+            result = BackfillStatus.State.CANCELLED;
+        }
+        finish(result, error);
+    }
+
+    /**
+     * Loads the users of the page after the given user and maps them to records, in a transaction of its own
+     */
+    private Page loadPage(int offset, String lastUserId) {
+        Page[] page = new Page[1];
+        KeycloakModelUtils.runJobInTransaction(sessionFactory, session -> {
+            RealmModel realm = session.realms().getRealm(status.getRealmId());
+            if (realm == null) {
+                throw new IllegalStateException("Realm " + status.getRealmId() + " no longer exists");
+            }
+            UserSyncService service = services.apply(realm);
+            if (service == null) {
+                throw new IllegalStateException("Realm " + status.getRealmId() + " no longer has a destination");
+            }
+            ClientUserSyncConfig config = service.getConfig();
+            int pageSize = Math.max(1, config.getBackfillPageSize());
+            List<UserModel> users = new ArrayList<>(pageSize + 1);
+            int start = findPage(session, realm, offset, lastUserId, pageSize, users);
+            // One user more than a page was read to tell whether this is the last page
+            boolean last = users.size() <= pageSize;
+            List<UserModel> pageUsers = last ? users : users.subList(0, pageSize);
+            List<UserSyncData> records = new ArrayList<>(pageUsers.size());
+            pageUsers.forEach(user -> records.add(toRecord(realm, user, config)));
+            String nextUserId = pageUsers.isEmpty() ? lastUserId : pageUsers.get(pageUsers.size() - 1).getId();
+            page[0] = new Page(service, records, start + pageUsers.size(), nextUserId, last);
+        });
+        return page[0];
+    }
+
+    /**
+     * Adds up to pageSize + 1 users that follow lastUserId, which the previous page left at offset - 1,
+     * and returns the offset of the first of them
+     */
+    private int findPage(KeycloakSession session, RealmModel realm, int offset, String lastUserId, int pageSize,
+                         List<UserModel> users) {
+        if (lastUserId == null || offset == 0) {
+            users.addAll(search(session, realm, offset, pageSize + 1));
+            return offset;
+        }
+        List<UserModel> found = search(session, realm, offset - 1, pageSize + 2);
+        if (!found.isEmpty() && lastUserId.equals(found.get(0).getId())) {
+            users.addAll(found.subList(1, found.size()));
+            return offset;
+        }
+
+        // Users before the anchor were added or deleted since it was read
+        int from = Math.max(0, offset - 1 - pageSize);
+        List<UserModel> around = search(session, realm, from, offset - from + 2 * pageSize);
+        for (int i = 0; i < around.size(); i++) {
+            if (lastUserId.equals(around.get(i).getId())) {
+                int start = from + i + 1;
+                logger.debugf("[ClientUserSync] Backfill %s: user %s moved from offset %d to %d",
+                        status.getJobId(), lastUserId, offset - 1, start - 1);
+                users.addAll(search(session, realm, start, pageSize + 1));
+                return start;
+            }
+        }
+        logger.warnf("[ClientUserSync] Backfill %s: user %s is gone, continuing at offset %d, users may be skipped or sent twice",
+                status.getJobId(), lastUserId, offset);
+        users.addAll(found.subList(Math.min(1, found.size()), found.size()));
+        return offset;
+    }
+
+    private static List<UserModel> search(KeycloakSession session, RealmModel realm, int first, int max) {
+        return session.users().searchForUserStream(realm, ALL_USERS, first, max).collect(Collectors.toList());
+    }
+
+    private static UserSyncData toRecord(RealmModel realm, UserModel user, ClientUserSyncConfig config) {
+        UserSyncData syncData = new UserSyncData();
+        syncData.setEventId(KeycloakModelUtils.generateId());
+        syncData.setEventType(EVENT_TYPE);
+        syncData.setRealmId(realm.getId());
+        syncData.setRealmName(realm.getName());
+        syncData.setTimestamp(System.currentTimeMillis());
+        UserSnapshot.of(user, config.getAdditionalAttributes()).applyTo(syncData);
+        return syncData;
+    }
+
+    /**
+     * Hands the records of a page to the service, paced; returns false when the job was cancelled
+     */
+    private boolean queue(Page page) throws InterruptedException {
+        int rate = page.service.getConfig().getBackfillRate();
+        long intervalNanos = rate > 0 ? TimeUnit.SECONDS.toNanos(1) / rate : 0;
+        for (UserSyncData record : page.records) {
+            if (!awaitTurn(page.service, intervalNanos)) {
+                return false;
+            }
+            page.service.syncBackfill(record);
+            synchronized (this) {
+                status.setQueued(status.getQueued() + 1);
+            }
+        }
+        return !cancelled;
+    }
+
+    /**
+     * Waits until the pipeline has room and the rate allows the next record
+     */
+    private boolean awaitTurn(UserSyncService service, long intervalNanos) throws InterruptedException {
+        while (service.isBacklogged()) {
+            if (cancelled) {
+                return false;
+            }
+            Thread.sleep(BACKLOG_POLL_MILLIS);
+        }
+        long now = System.nanoTime();
+        long wait = nextSendAt - now;
+        while (wait > 0) {
+            if (cancelled) {
+                return false;
+            }
+            TimeUnit.NANOSECONDS.sleep(Math.min(wait, TimeUnit.MILLISECONDS.toNanos(BACKLOG_POLL_MILLIS)));
+            wait = nextSendAt - System.nanoTime();
+        }
+        // A job that was held back does not make up for the lost time with a burst
+        nextSendAt = Math.max(nextSendAt, now) + intervalNanos;
+        return !cancelled;
+    }
+
+    private void logProgress() {
+        long now = System.nanoTime();
+        if (now - lastProgressLog < PROGRESS_LOG_INTERVAL_NANOS) {
+            return;
+        }
+        lastProgressLog = now;
+        BackfillStatus current = getStatus();
+        logger.infof("[ClientUserSync] Backfill %s of realm %s: %d of %d users read, %d queued",
+                current.getJobId(), current.getRealmId(), current.getOffset(), current.getTotal(), current.getQueued());
+    }
+
+    private void finish(BackfillStatus.State result, String error) {
+        synchronized (this) {
+            status.setState(result);
+            status.setFinishedAt(System.currentTimeMillis());
+            status.setError(error);
+        }
+        writeCheckpoint();
+        BackfillStatus current = getStatus();
+        logger.infof("[ClientUserSync] Backfill %s of realm %s %s: %d users read, %d queued",
+                current.getJobId(), current.getRealmId(), result.name().toLowerCase(Locale.ROOT), current.getOffset(), current.getQueued());
+    }
+
+    private void writeCheckpoint() {
+        Path temp = checkpointFile.resolveSibling(checkpointFile.getFileName() + ".tmp");
+        try {
+            Files.createDirectories(checkpointFile.getParent());
+            Files.write(temp, objectMapper.writeValueAsBytes(getStatus()));
+            Files.move(temp, checkpointFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            logger.warnf(e, "[ClientUserSync] Cannot write backfill checkpoint %s", checkpointFile);
+        }
+    }
+
+    /**
+     * Records of one page, with the service that was current when it was read and where the next page starts
+     */
+    private static final class Page {
+        private final UserSyncService service;
+        private final List<UserSyncData> records;
+        private final int nextOffset;
+        private final String lastUserId;
+        private final boolean last;
+
+        private Page(UserSyncService service, List<UserSyncData> records, int nextOffset, String lastUserId, boolean last) {
+            this.service = service;
+            this.records = records;
+            this.nextOffset = nextOffset;
+            this.lastUserId = lastUserId;
+            this.last = last;
+        }
+    }
+}
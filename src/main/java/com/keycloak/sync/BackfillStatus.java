@@ -0,0 +1,134 @@
+package com.keycloak.sync;
+
+/**
+ * Progress of a backfill job as reported by the backfill endpoint. The same record is written as the
+ * job's checkpoint, from which a later job resumes.
+ */
+public class BackfillStatus {
+
+    /**
+     * INTERRUPTED is a job whose checkpoint says RUNNING but that no longer runs, e.g. after a restart
+     */
+    public enum State {
+        RUNNING, COMPLETED, CANCELLED, FAILED, INTERRUPTED
+    }
+
+    private String jobId;
+    private String realmId;
+    private State state;
+    private long startedAt;
+    private Long finishedAt;
+    private int offset;
+    private String lastUserId;
+    private long queued;
+    private long total;
+    private String error;
+
+    public BackfillStatus() {
+    }
+
+    public BackfillStatus(BackfillStatus other) {
+        this.jobId = other.jobId;
+        this.realmId = other.realmId;
+        this.state = other.state;
+        this.startedAt = other.startedAt;
+        this.finishedAt = other.finishedAt;
+        this.offset = other.offset;
+        this.lastUserId = other.lastUserId;
+        this.queued = other.queued;
+        this.total = other.total;
+        this.error = other.error;
+    }
+
+    public String getJobId() {
+        return jobId;
+    }
+
+    public void setJobId(String jobId) {
+        this.jobId = jobId;
+    }
+
+    public String getRealmId() {
+        return realmId;
+    }
+
+    public void setRealmId(String realmId) {
+        this.realmId = realmId;
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    public void setState(State state) {
+        this.state = state;
+    }
+
+    public long getStartedAt() {
+        return startedAt;
+    }
+
+    public void setStartedAt(long startedAt) {
+        this.startedAt = startedAt;
+    }
+
+    public Long getFinishedAt() {
+        return finishedAt;
+    }
+
+    public void setFinishedAt(Long finishedAt) {
+        this.finishedAt = finishedAt;
+    }
+
+    /**
+     * Number of users read so far, in the order of the user search; the next page starts here
+     */
+    public int getOffset() {
+        return offset;
+    }
+
+    public void setOffset(int offset) {
+        this.offset = offset;
+    }
+
+    /**
+     * ID of the last user read, which the next page starts after even if users before it were added or deleted
+     */
+    public String getLastUserId() {
+        return lastUserId;
+    }
+
+    public void setLastUserId(String lastUserId) {
+        this.lastUserId = lastUserId;
+    }
+
+    /**
+     * Number of user records handed to the sync pipeline, including those of earlier runs resumed from
+     */
+    public long getQueued() {
+        return queued;
+    }
+
+    public void setQueued(long queued) {
+        this.queued = queued;
+    }
+
+    /**
+     * Number of users in the realm when the job started
+     */
+    public long getTotal() {
+        return total;
+    }
+
+    public void setTotal(long total) {
+        this.total = total;
+    }
+
+    public String getError() {
+        return error;
+    }
+
+    public void setError(String error) {
+        this.error = error;
+    }
+}
@@ -0,0 +1,34 @@
+package com.keycloak.sync;
+
+/**
+ * Request body layout used when several events are sent in one request
+ */
+public enum BatchFormat {
+
+    /** A single JSON array of event objects, sent as application/json */
+    JSON_ARRAY("application/json"),
+
+    /** One JSON object per line, sent as application/x-ndjson */
+    NDJSON("application/x-ndjson");
+
+    private final String contentType;
+
+    BatchFormat(String contentType) {
+        this.contentType = contentType;
+    }
+
+    public String getContentType() {
+        return contentType;
+    }
+
+    public static BatchFormat fromString(String value, BatchFormat defaultValue) {
+        if (value == null || value.trim().isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            return BatchFormat.valueOf(value.trim().toUpperCase().replace('-', '_'));
+        } catch (IllegalArgumentException e) {
+            return defaultValue;
+        }
+    }
+}
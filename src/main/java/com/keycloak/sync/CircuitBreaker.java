@@ -0,0 +1,151 @@
+package com.keycloak.sync;
+
+import org.jboss.logging.Logger;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Count-based circuit breaker in front of the external API.
+ * The circuit opens when, over the last circuitWindowSize calls, the failure rate or the slow-call
+ * rate reaches its threshold. After circuitOpenDuration seconds a few trial calls are let through
+ * (half-open); the circuit closes again if they succeed and re-opens otherwise.
+ */
+public class CircuitBreaker {
+
+    private static final Logger logger = Logger.getLogger(CircuitBreaker.class);
+
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private final String name;
+    private final boolean enabled;
+    private final int windowSize;
+    private final int minimumCalls;
+    private final int failureRateThreshold;
+    private final int slowCallRateThreshold;
+    private final long slowCallDurationNanos;
+    private final long openDurationNanos;
+    private final int halfOpenCalls;
+
+    private final boolean[] failures;
+    private final boolean[] slowCalls;
+    private int windowPosition;
+    private int recordedCalls;
+    private int failureCount;
+    private int slowCallCount;
+
+    private volatile State state = State.CLOSED;
+    private long openedAt;
+    private int halfOpenPermits;
+    private int halfOpenSuccesses;
+
+    public CircuitBreaker(ClientUserSyncConfig config, String name) {
+        this.name = name;
+        this.enabled = config.isCircuitBreakerEnabled();
+        this.windowSize = Math.max(1, config.getCircuitWindowSize());
+        this.minimumCalls = Math.max(1, Math.min(windowSize, config.getCircuitMinimumCalls()));
+        this.failureRateThreshold = config.getCircuitFailureRateThreshold();
+        this.slowCallRateThreshold = config.getCircuitSlowCallRateThreshold();
+        this.slowCallDurationNanos = TimeUnit.MILLISECONDS.toNanos(config.getSlowCallDurationMs());
+        this.openDurationNanos = TimeUnit.SECONDS.toNanos(config.getCircuitOpenDuration());
+        this.halfOpenCalls = Math.max(1, config.getCircuitHalfOpenCalls());
+        this.failures = new boolean[windowSize];
+        this.slowCalls = new boolean[windowSize];
+    }
+
+    /**
+     * Returns true when a call may go to the API; false means the caller must use the fallback
+     */
+    public synchronized boolean tryAcquirePermission() {
+        if (!enabled || state == State.CLOSED) {
+            return true;
+        }
+        if (state == State.OPEN) {
+            if (System.nanoTime() - openedAt < openDurationNanos) {
+                return false;
+            }
+            transitionTo(State.HALF_OPEN);
+        }
+        if (halfOpenPermits < halfOpenCalls) {
+            halfOpenPermits++;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Returns true unless the circuit is open and its open duration has not yet elapsed
+     */
+    public synchronized boolean isCallPermitted() {
+        return !enabled || state != State.OPEN || System.nanoTime() - openedAt >= openDurationNanos;
+    }
+
+    public synchronized void onResult(boolean failed, long durationNanos) {
+        if (!enabled) {
+            return;
+        }
+        boolean slow = durationNanos >= slowCallDurationNanos;
+
+        if (state == State.HALF_OPEN) {
+            if (failed || slow) {
+                transitionTo(State.OPEN);
+            } else if (++halfOpenSuccesses >= halfOpenCalls) {
+                transitionTo(State.CLOSED);
+            }
+            return;
+        }
+        if (state == State.OPEN) {
+            return;
+        }
+
+        if (recordedCalls == windowSize) {
+            if (failures[windowPosition]) {
+                failureCount--;
+            }
+            if (slowCalls[windowPosition]) {
+                slowCallCount--;
+            }
+        } else {
+            recordedCalls++;
+        }
+        failures[windowPosition] = failed;
+        slowCalls[windowPosition] = slow;
+        if (failed) {
+            failureCount++;
+        }
+        if (slow) {
+            slowCallCount++;
+        }
+        windowPosition = (windowPosition + 1) % windowSize;
+
+        if (recordedCalls >= minimumCalls
+                && (failureCount * 100 >= failureRateThreshold * recordedCalls
+                || slowCallCount * 100 >= slowCallRateThreshold * recordedCalls)) {
+            transitionTo(State.OPEN);
+        }
+    }
+
+    private void transitionTo(State newState) {
+        State previous = state;
+        state = newState;
+        halfOpenPermits = 0;
+        halfOpenSuccesses = 0;
+        if (newState == State.OPEN) {
+            openedAt = System.nanoTime();
+        }
+        if (newState == State.CLOSED) {
+            recordedCalls = 0;
+            windowPosition = 0;
+            failureCount = 0;
+            slowCallCount = 0;
+        }
+        if (newState == State.OPEN || previous == State.OPEN || newState == State.CLOSED) {
+            logger.infof("[ClientUserSync] Circuit for %s changed from %s to %s", name, previous, newState);
+        }
+    }
+
+    public State getState() {
+        return state;
+    }
+}
@@ -0,0 +1,24 @@
+package com.keycloak.sync;
+
+/**
+ * What happens to events that reach the sender while the circuit is open
+ */
+public enum CircuitFallback {
+
+    /** Append the events to the spill file; they are re-queued once the circuit closes */
+    SPILL,
+
+    /** Drop the events and count them */
+    DROP;
+
+    public static CircuitFallback fromString(String value, CircuitFallback defaultValue) {
+        if (value == null || value.trim().isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            return CircuitFallback.valueOf(value.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            return defaultValue;
+        }
+    }
+}
@@ -0,0 +1,11 @@
+package com.keycloak.sync;
+
+/**
+ * Raised instead of calling the external API while the circuit breaker is open
+ */
+public class CircuitOpenException extends RuntimeException {
+
+    public CircuitOpenException(String name) {
+        super("Circuit open for " + name + ", external API not called");
+    }
+}
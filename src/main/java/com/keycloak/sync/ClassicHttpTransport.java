@@ -0,0 +1,94 @@
+package com.keycloak.sync;
+
+import org.apache.hc.client5.http.classic.methods.HttpPost;
+import org.apache.hc.client5.http.config.RequestConfig;
+import org.apache.hc.client5.http.impl.classic.CloseableHttpClient;
+import org.apache.hc.client5.http.impl.classic.CloseableHttpResponse;
+import org.apache.hc.client5.http.impl.classic.HttpClientBuilder;
+import org.apache.hc.client5.http.impl.classic.HttpClients;
+import org.apache.hc.client5.http.impl.io.PoolingHttpClientConnectionManager;
+import org.apache.hc.client5.http.impl.io.PoolingHttpClientConnectionManagerBuilder;
+import org.apache.hc.core5.http.ContentType;
+import org.apache.hc.core5.http.Header;
+import org.apache.hc.core5.http.ParseException;
+import org.apache.hc.core5.http.io.entity.ByteArrayEntity;
+import org.apache.hc.core5.http.io.entity.EntityUtils;
+import org.apache.hc.core5.pool.PoolStats;
+import org.apache.hc.core5.util.TimeValue;
+import org.apache.hc.core5.util.Timeout;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Blocking transport on the httpclient5 classic client. Requests run on the calling thread and
+ * the returned future is already complete.
+ */
+public class ClassicHttpTransport implements HttpTransport {
+
+    private final String endpoint;
+    private final List<Header> headers;
+    private final PoolingHttpClientConnectionManager connectionManager;
+    private final CloseableHttpClient httpClient;
+
+    public ClassicHttpTransport(ClientUserSyncConfig config) {
+        this.endpoint = config.getApiEndpoint();
+        this.headers = HttpTransport.requestHeaders(config);
+
+        this.connectionManager = PoolingHttpClientConnectionManagerBuilder.create()
+                .setMaxConnTotal(config.getMaxConnectionsTotal())
+                .setMaxConnPerRoute(config.getMaxConnectionsPerRoute())
+                .setDefaultConnectionConfig(HttpTransport.connectionConfig(config))
+                .build();
+
+        RequestConfig requestConfig = RequestConfig.custom()
+                .setResponseTimeout(Timeout.ofSeconds(config.getReadTimeout()))
+                .setConnectionKeepAlive(TimeValue.ofSeconds(config.getKeepAlive()))
+                .build();
+
+        HttpClientBuilder builder = HttpClients.custom()
+                .setConnectionManager(connectionManager)
+                .setDefaultRequestConfig(requestConfig)
+                .disableAutomaticRetries();
+        if (config.getIdleEvictionInterval() > 0) {
+            builder.evictExpiredConnections()
+                    .evictIdleConnections(TimeValue.ofSeconds(config.getIdleEvictionInterval()));
+        }
+        this.httpClient = builder.build();
+    }
+
+    @Override
+    public CompletableFuture<SyncResponse> post(PayloadBuffer body, ContentType contentType) {
+        HttpPost httpPost = new HttpPost(endpoint);
+        headers.forEach(httpPost::setHeader);
+        httpPost.setHeader("Content-Type", contentType.toString());
+        httpPost.setEntity(new ByteArrayEntity(body.array(), 0, body.size(), contentType));
+
+        try {
+            @SuppressWarnings("deprecation")
+            CloseableHttpResponse response = httpClient.execute(httpPost);
+            try (response) {
+                String responseBody = response.getEntity() != null
+                        ? EntityUtils.toString(response.getEntity(), StandardCharsets.UTF_8)
+                        : null;
+                Header retryAfter = response.getFirstHeader("Retry-After");
+                return CompletableFuture.completedFuture(new SyncResponse(response.getCode(), responseBody,
+                        SyncResponse.parseRetryAfter(retryAfter != null ? retryAfter.getValue() : null)));
+            }
+        } catch (IOException | ParseException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    @Override
+    public PoolStats getPoolStats() {
+        return connectionManager.getTotalStats();
+    }
+
+    @Override
+    public void close() throws IOException {
+        httpClient.close();
+    }
+}
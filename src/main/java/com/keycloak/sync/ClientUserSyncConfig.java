@@ -1,5 +1,6 @@
 package com.keycloak.sync;
 
+import org.apache.hc.core5.http2.HttpVersionPolicy;
 import org.keycloak.events.EventType;
 
 import java.util.*;
@@ -9,12 +10,59 @@ import java.util.*;
  */
 public class ClientUserSyncConfig {
 
+    private static final String DEFAULT_SPILL_DIRECTORY = System.getProperty("java.io.tmpdir") + "/client-user-sync";
+    private static final String DEFAULT_SPOOL_DIRECTORY = DEFAULT_SPILL_DIRECTORY + "/spool";
+    private static final String DEFAULT_FILE_DIRECTORY = DEFAULT_SPILL_DIRECTORY + "/files";
+
+    /**
+     * Prefix of the per-sink keys in a configuration map: sink.name.key
+     */
+    public static final String SINK_PREFIX = "sink.";
+    /**
+     * Keys that can be set globally (spi-events-listener-client-user-sync-key) and per realm
+     * (client-user-sync.key); fromMap supplies the default of every key that is not set
+     */
+    public static final List<String> KEYS = List.of(
+            "apiEndpoint", "apiToken", "clientIds", "eventTypes", "clientEventTypes", "additionalAttributes",
+            "apiHeaders", "connectionTimeout", "readTimeout", "threadPoolSize", "retryEnabled", "maxRetries",
+            "retryDelay", "enableLogging", "shutdownTimeout", "queueCapacity", "overflowPolicy", "enqueueTimeoutMs",
+            "spillDirectory", "batchEnabled", "batchSize", "batchLingerMs", "batchFormat", "payloadEncoding",
+            "payloadCompression", "transportMode", "httpVersion", "maxInFlight", "ioThreads", "maxConnectionsTotal",
+            "maxConnectionsPerRoute", "connectionTtl", "validateAfterInactivityMs", "keepAlive",
+            "idleEvictionInterval", "retryMaxDelay", "retryDeadline", "circuitBreakerEnabled", "circuitWindowSize",
+            "circuitMinimumCalls", "circuitFailureRateThreshold", "circuitSlowCallRateThreshold",
+            "slowCallDurationMs", "circuitOpenDuration", "circuitHalfOpenCalls", "circuitFallback",
+            "adaptiveConcurrency", "concurrencyLimitMin", "spoolEnabled", "spoolDirectory", "spoolSegmentSizeMb",
+            "spoolFsyncIntervalMs", "userLookupMode", "userCacheSize", "userCacheTtl", "adminEventsEnabled",
+            "coalesceEnabled", "coalesceWindowMs", "coalesceByClient", "metricsEnabled", "logSampleRate",
+            "logRateLimit", "deliveryMode", "clusterOwners", "perUserOrdering", "sinkType", "fileDirectory",
+            "fileMaxSizeMb", "fileRolloverInterval", "kafkaBootstrapServers", "kafkaTopic", "kafkaAcks",
+            "kafkaLingerMs", "kafkaBatchSize", "kafkaCompression", "kafkaProperties", "backfillPageSize",
+            "backfillRate", "rateLimit", "rateLimitBurst", "rateLimitScope", "sinks");
+    /**
+     * Name of the realm's own apiEndpoint among its sinks
+     */
+    public static final String DEFAULT_SINK = "default";
+    public static final int MAX_SPOOL_SEGMENT_SIZE_MB = Integer.MAX_VALUE / (1024 * 1024);
+    private static final String SINK_NAME_PATTERN = "[A-Za-z0-9_-]+";
+    /**
+     * Keys a sink does not inherit from the realm configuration: credentials stay with their endpoint
+     */
+    private static final Set<String> SINK_OWN_KEYS = Set.of("apiEndpoint", "apiToken", "apiAuthType", "apiHeaders",
+            "kafkaBootstrapServers", "kafkaProperties");
+    /**
+     * Stages that run once per realm before the fan-out and therefore cannot be set per sink
+     */
+    private static final Set<String> REALM_LEVEL_KEYS = Set.of("additionalAttributes", "userLookupMode", "userCacheSize",
+            "userCacheTtl", "coalesceEnabled", "coalesceWindowMs", "coalesceByClient", "backfillPageSize", "backfillRate");
+
     private String apiEndpoint;
     private String apiToken;
     private String apiAuthType = "Bearer";
     private Map<String, String> apiHeaders;
     private Set<String> clientIds;
     private Set<EventType> eventTypes;
+    private Map<String, Set<EventType>> clientEventTypes;
     private List<String> additionalAttributes;
     private int connectionTimeout = 10;
     private int readTimeout = 30;
@@ -23,12 +71,83 @@ public class ClientUserSyncConfig {
     private int maxRetries = 3;
     private int retryDelay = 5;
     private boolean enableLogging = true;
+    private int shutdownTimeout = 10;
+    private int queueCapacity = 10000;
+    private OverflowPolicy overflowPolicy = OverflowPolicy.DROP_OLDEST;
+    private int enqueueTimeoutMs = 5;
+    private String spillDirectory = DEFAULT_SPILL_DIRECTORY;
+    private boolean batchEnabled = false;
+    private int batchSize = 100;
+    private int batchLingerMs = 200;
+    private BatchFormat batchFormat = BatchFormat.JSON_ARRAY;
+    private PayloadEncoding payloadEncoding = PayloadEncoding.JSON;
+    private PayloadCompression payloadCompression = PayloadCompression.NONE;
+    private TransportMode transportMode = TransportMode.CLASSIC;
+    private String httpVersion = "NEGOTIATE";
+    private int maxInFlight = 256;
+    private int ioThreads = 2;
+    private int maxConnectionsTotal = 50;
+    private int maxConnectionsPerRoute = 20;
+    private int connectionTtl = 300;
+    private int validateAfterInactivityMs = 2000;
+    private int keepAlive = 30;
+    private int idleEvictionInterval = 30;
+    private int retryMaxDelay = 60;
+    private int retryDeadline = 300;
+    private boolean circuitBreakerEnabled = false;
+    private int circuitWindowSize = 50;
+    private int circuitMinimumCalls = 20;
+    private int circuitFailureRateThreshold = 50;
+    private int circuitSlowCallRateThreshold = 80;
+    private int slowCallDurationMs = 5000;
+    private int circuitOpenDuration = 30;
+    private int circuitHalfOpenCalls = 5;
+    private CircuitFallback circuitFallback = CircuitFallback.DROP;
+    private boolean adaptiveConcurrency = false;
+    private int concurrencyLimitMin = 1;
+    private boolean spoolEnabled = false;
+    private String spoolDirectory = DEFAULT_SPOOL_DIRECTORY;
+    private int spoolSegmentSizeMb = 64;
+    private int spoolFsyncIntervalMs = 10;
+    private UserLookupMode userLookupMode = UserLookupMode.INLINE;
+    private int userCacheSize = 10000;
+    private int userCacheTtl = 60;
+    private boolean adminEventsEnabled = false;
+    private boolean coalesceEnabled = false;
+    private int coalesceWindowMs = 1000;
+    private boolean coalesceByClient = false;
+    private boolean metricsEnabled = true;
+    private double logSampleRate = 1.0;
+    private int logRateLimit = 10;
+    private DeliveryMode deliveryMode = DeliveryMode.LOCAL;
+    private int clusterOwners = 2;
+    private boolean perUserOrdering = false;
+    private List<String> sinks;
+    private SinkType sinkType = SinkType.HTTP;
+    private String fileDirectory = DEFAULT_FILE_DIRECTORY;
+    private int fileMaxSizeMb = 128;
+    private int fileRolloverInterval = 3600;
+    private String kafkaBootstrapServers;
+    private String kafkaTopic = "client-user-sync";
+    private String kafkaAcks = "all";
+    private int kafkaLingerMs = 5;
+    private int kafkaBatchSize = 65536;
+    private String kafkaCompression = "lz4";
+    private Map<String, String> kafkaProperties;
+    private int backfillPageSize = 500;
+    private int backfillRate = 500;
+    private double rateLimit = 0;
+    private int rateLimitBurst = 0;
+    private RateLimitScope rateLimitScope = RateLimitScope.DESTINATION;
 
     public ClientUserSyncConfig() {
         this.apiHeaders = new HashMap<>();
         this.clientIds = new HashSet<>();
         this.eventTypes = new HashSet<>();
+        this.clientEventTypes = new HashMap<>();
         this.additionalAttributes = new ArrayList<>();
+        this.sinks = new ArrayList<>();
+        this.kafkaProperties = new HashMap<>();
     }
 
     public static ClientUserSyncConfig fromMap(Map<String, String> config) {
@@ -59,6 +178,25 @@ public class ClientUserSyncConfig {
                     });
         }
         
+        String clientEventTypesStr = config.get("clientEventTypes");
+        if (clientEventTypesStr != null && !clientEventTypesStr.trim().isEmpty()) {
+            Arrays.stream(clientEventTypesStr.split(","))
+                    .map(String::trim)
+                    .filter(s -> !s.isEmpty())
+                    .forEach(rule -> {
+                        String[] parts = rule.split(":", 2);
+                        if (parts.length == 2) {
+                            Set<EventType> types = cfg.getClientEventTypes().computeIfAbsent(parts[0].trim(), k -> new HashSet<>());
+                            for (String type : parts[1].split("\\|")) {
+                                try {
+                                    types.add(EventType.valueOf(type.trim().toUpperCase()));
+                                } catch (IllegalArgumentException e) {
+                                }
+                            }
+                        }
+                    });
+        }
+        
         String attributesStr = config.get("additionalAttributes");
         if (attributesStr != null && !attributesStr.trim().isEmpty()) {
             Arrays.stream(attributesStr.split(","))
@@ -87,10 +225,125 @@ public class ClientUserSyncConfig {
         cfg.setRetryDelay(parseInt(config.get("retryDelay"), 5));
         cfg.setRetryEnabled(parseBoolean(config.get("retryEnabled"), true));
         cfg.setEnableLogging(parseBoolean(config.get("enableLogging"), true));
+        cfg.setShutdownTimeout(parseInt(config.get("shutdownTimeout"), 10));
+        cfg.setQueueCapacity(parseInt(config.get("queueCapacity"), 10000));
+        cfg.setOverflowPolicy(OverflowPolicy.fromString(config.get("overflowPolicy"), OverflowPolicy.DROP_OLDEST));
+        cfg.setEnqueueTimeoutMs(parseInt(config.get("enqueueTimeoutMs"), 5));
+        cfg.setSpillDirectory(parseString(config.get("spillDirectory"), DEFAULT_SPILL_DIRECTORY));
+        cfg.setBatchEnabled(parseBoolean(config.get("batchEnabled"), false));
+        cfg.setBatchSize(parseInt(config.get("batchSize"), 100));
+        cfg.setBatchLingerMs(parseInt(config.get("batchLingerMs"), 200));
+        cfg.setBatchFormat(BatchFormat.fromString(config.get("batchFormat"), BatchFormat.JSON_ARRAY));
+        cfg.setPayloadEncoding(PayloadEncoding.fromString(config.get("payloadEncoding"), PayloadEncoding.JSON));
+        cfg.setPayloadCompression(PayloadCompression.fromString(config.get("payloadCompression"), PayloadCompression.NONE));
+        cfg.setTransportMode(TransportMode.fromString(config.get("transportMode"), TransportMode.CLASSIC));
+        cfg.setHttpVersion(parseString(config.get("httpVersion"), "NEGOTIATE"));
+        cfg.setMaxInFlight(parseInt(config.get("maxInFlight"), 256));
+        cfg.setIoThreads(parseInt(config.get("ioThreads"), 2));
+        cfg.setMaxConnectionsTotal(parseInt(config.get("maxConnectionsTotal"), 50));
+        cfg.setMaxConnectionsPerRoute(parseInt(config.get("maxConnectionsPerRoute"), 20));
+        cfg.setConnectionTtl(parseInt(config.get("connectionTtl"), 300));
+        cfg.setValidateAfterInactivityMs(parseInt(config.get("validateAfterInactivityMs"), 2000));
+        cfg.setKeepAlive(parseInt(config.get("keepAlive"), 30));
+        cfg.setIdleEvictionInterval(parseInt(config.get("idleEvictionInterval"), 30));
+        cfg.setRetryMaxDelay(parseInt(config.get("retryMaxDelay"), 60));
+        cfg.setRetryDeadline(parseInt(config.get("retryDeadline"), 300));
+        cfg.setCircuitBreakerEnabled(parseBoolean(config.get("circuitBreakerEnabled"), false));
+        cfg.setCircuitWindowSize(parseInt(config.get("circuitWindowSize"), 50));
+        cfg.setCircuitMinimumCalls(parseInt(config.get("circuitMinimumCalls"), 20));
+        cfg.setCircuitFailureRateThreshold(parseInt(config.get("circuitFailureRateThreshold"), 50));
+        cfg.setCircuitSlowCallRateThreshold(parseInt(config.get("circuitSlowCallRateThreshold"), 80));
+        cfg.setSlowCallDurationMs(parseInt(config.get("slowCallDurationMs"), 5000));
+        cfg.setCircuitOpenDuration(parseInt(config.get("circuitOpenDuration"), 30));
+        cfg.setCircuitHalfOpenCalls(parseInt(config.get("circuitHalfOpenCalls"), 5));
+        cfg.setCircuitFallback(CircuitFallback.fromString(config.get("circuitFallback"), CircuitFallback.DROP));
+        cfg.setAdaptiveConcurrency(parseBoolean(config.get("adaptiveConcurrency"), false));
+        cfg.setConcurrencyLimitMin(parseInt(config.get("concurrencyLimitMin"), 1));
+        cfg.setSpoolEnabled(parseBoolean(config.get("spoolEnabled"), false));
+        cfg.setSpoolDirectory(parseString(config.get("spoolDirectory"), DEFAULT_SPOOL_DIRECTORY));
+        cfg.setSpoolSegmentSizeMb(parseInt(config.get("spoolSegmentSizeMb"), 64));
+        cfg.setSpoolFsyncIntervalMs(parseInt(config.get("spoolFsyncIntervalMs"), 10));
+        cfg.setUserLookupMode(UserLookupMode.fromString(config.get("userLookupMode"), UserLookupMode.INLINE));
+        cfg.setUserCacheSize(parseInt(config.get("userCacheSize"), 10000));
+        cfg.setUserCacheTtl(parseInt(config.get("userCacheTtl"), 60));
+        cfg.setAdminEventsEnabled(parseBoolean(config.get("adminEventsEnabled"), false));
+        cfg.setCoalesceEnabled(parseBoolean(config.get("coalesceEnabled"), false));
+        cfg.setCoalesceWindowMs(parseInt(config.get("coalesceWindowMs"), 1000));
+        cfg.setCoalesceByClient(parseBoolean(config.get("coalesceByClient"), false));
+        cfg.setMetricsEnabled(parseBoolean(config.get("metricsEnabled"), true));
+        cfg.setLogSampleRate(parseDouble(config.get("logSampleRate"), 1.0));
+        cfg.setLogRateLimit(parseInt(config.get("logRateLimit"), 10));
+        cfg.setDeliveryMode(DeliveryMode.fromString(config.get("deliveryMode"), DeliveryMode.LOCAL));
+        cfg.setClusterOwners(parseInt(config.get("clusterOwners"), 2));
+        cfg.setPerUserOrdering(parseBoolean(config.get("perUserOrdering"), false));
+        
+        String sinksStr = config.get("sinks");
+        if (sinksStr != null && !sinksStr.trim().isEmpty()) {
+            Arrays.stream(sinksStr.split(","))
+                    .map(String::trim)
+                    .filter(s -> s.matches(SINK_NAME_PATTERN) && !s.equals(DEFAULT_SINK))
+                    .distinct()
+                    .forEach(cfg.getSinks()::add);
+        }
+        
+        cfg.setSinkType(SinkType.fromString(config.get("sinkType"), SinkType.HTTP));
+        cfg.setFileDirectory(parseString(config.get("fileDirectory"), DEFAULT_FILE_DIRECTORY));
+        cfg.setFileMaxSizeMb(parseInt(config.get("fileMaxSizeMb"), 128));
+        cfg.setFileRolloverInterval(parseInt(config.get("fileRolloverInterval"), 3600));
+        cfg.setKafkaBootstrapServers(config.get("kafkaBootstrapServers"));
+        cfg.setKafkaTopic(parseString(config.get("kafkaTopic"), "client-user-sync"));
+        cfg.setKafkaAcks(parseString(config.get("kafkaAcks"), "all"));
+        cfg.setKafkaLingerMs(parseInt(config.get("kafkaLingerMs"), 5));
+        cfg.setKafkaBatchSize(parseInt(config.get("kafkaBatchSize"), 65536));
+        cfg.setKafkaCompression(parseString(config.get("kafkaCompression"), "lz4"));
+        
+        String kafkaPropertiesStr = config.get("kafkaProperties");
+        if (kafkaPropertiesStr != null && !kafkaPropertiesStr.trim().isEmpty()) {
+            Arrays.stream(kafkaPropertiesStr.split(","))
+                    .map(String::trim)
+                    .filter(s -> !s.isEmpty())
+                    .forEach(property -> {
+                        String[] parts = property.split("=", 2);
+                        if (parts.length == 2) {
+                            cfg.getKafkaProperties().put(parts[0].trim(), parts[1].trim());
+                        }
+                    });
+        }
+        
+        cfg.setBackfillPageSize(parseInt(config.get("backfillPageSize"), 500));
+        cfg.setBackfillRate(parseInt(config.get("backfillRate"), 500));
+        cfg.setRateLimit(parseDouble(config.get("rateLimit"), 0));
+        cfg.setRateLimitBurst(parseInt(config.get("rateLimitBurst"), 0));
+        cfg.setRateLimitScope(RateLimitScope.fromString(config.get("rateLimitScope"), RateLimitScope.DESTINATION));
         
         return cfg;
     }
 
+    /**
+     * Configuration map of one sink: the realm configuration without the endpoint and its credentials,
+     * overridden by the sink's own sink.name.* keys. Realm-level stages are disabled, they already
+     * ran before the event reached the sink.
+     */
+    public static Map<String, String> sinkConfigMap(Map<String, String> config, String sink) {
+        String prefix = SINK_PREFIX + sink + '.';
+        Map<String, String> sinkConfig = new HashMap<>();
+        config.forEach((key, value) -> {
+            if (!key.startsWith(SINK_PREFIX) && !key.equals("sinks") && !SINK_OWN_KEYS.contains(key)) {
+                sinkConfig.put(key, value);
+            }
+        });
+        config.forEach((key, value) -> {
+            if (key.startsWith(prefix) && value != null) {
+                String sinkKey = key.substring(prefix.length());
+                if (!REALM_LEVEL_KEYS.contains(sinkKey)) {
+                    sinkConfig.put(sinkKey, value);
+                }
+            }
+        });
+        sinkConfig.put("coalesceEnabled", "false");
+        return sinkConfig;
+    }
+
     private static int parseInt(String value, int defaultValue) {
         if (value == null || value.trim().isEmpty()) {
             return defaultValue;
@@ -102,6 +355,24 @@ public class ClientUserSyncConfig {
         }
     }
 
+    private static double parseDouble(String value, double defaultValue) {
+        if (value == null || value.trim().isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            return Double.parseDouble(value.trim());
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    private static String parseString(String value, String defaultValue) {
+        if (value == null || value.trim().isEmpty()) {
+            return defaultValue;
+        }
+        return value.trim();
+    }
+
     private static boolean parseBoolean(String value, boolean defaultValue) {
         if (value == null || value.trim().isEmpty()) {
             return defaultValue;
@@ -157,6 +428,17 @@ public class ClientUserSyncConfig {
         this.eventTypes = eventTypes;
     }
 
+    /**
+     * Event types synced for individual clients, in addition to eventTypes
+     */
+    public Map<String, Set<EventType>> getClientEventTypes() {
+        return clientEventTypes;
+    }
+
+    public void setClientEventTypes(Map<String, Set<EventType>> clientEventTypes) {
+        this.clientEventTypes = clientEventTypes;
+    }
+
     public List<String> getAdditionalAttributes() {
         return additionalAttributes;
     }
@@ -220,5 +502,607 @@ public class ClientUserSyncConfig {
     public void setEnableLogging(boolean enableLogging) {
         this.enableLogging = enableLogging;
     }
-}
 
+    public int getShutdownTimeout() {
+        return shutdownTimeout;
+    }
+
+    public void setShutdownTimeout(int shutdownTimeout) {
+        this.shutdownTimeout = shutdownTimeout;
+    }
+
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    public void setQueueCapacity(int queueCapacity) {
+        this.queueCapacity = queueCapacity;
+    }
+
+    public OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    public void setOverflowPolicy(OverflowPolicy overflowPolicy) {
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    public int getEnqueueTimeoutMs() {
+        return enqueueTimeoutMs;
+    }
+
+    public void setEnqueueTimeoutMs(int enqueueTimeoutMs) {
+        this.enqueueTimeoutMs = enqueueTimeoutMs;
+    }
+
+    public String getSpillDirectory() {
+        return spillDirectory;
+    }
+
+    public void setSpillDirectory(String spillDirectory) {
+        this.spillDirectory = spillDirectory;
+    }
+
+    public boolean isBatchEnabled() {
+        return batchEnabled;
+    }
+
+    public void setBatchEnabled(boolean batchEnabled) {
+        this.batchEnabled = batchEnabled;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    public int getBatchLingerMs() {
+        return batchLingerMs;
+    }
+
+    public void setBatchLingerMs(int batchLingerMs) {
+        this.batchLingerMs = batchLingerMs;
+    }
+
+    public BatchFormat getBatchFormat() {
+        return batchFormat;
+    }
+
+    public void setBatchFormat(BatchFormat batchFormat) {
+        this.batchFormat = batchFormat;
+    }
+
+    public PayloadEncoding getPayloadEncoding() {
+        return payloadEncoding;
+    }
+
+    public void setPayloadEncoding(PayloadEncoding payloadEncoding) {
+        this.payloadEncoding = payloadEncoding;
+    }
+
+    public PayloadCompression getPayloadCompression() {
+        return payloadCompression;
+    }
+
+    public void setPayloadCompression(PayloadCompression payloadCompression) {
+        this.payloadCompression = payloadCompression;
+    }
+
+    public TransportMode getTransportMode() {
+        return transportMode;
+    }
+
+    public void setTransportMode(TransportMode transportMode) {
+        this.transportMode = transportMode;
+    }
+
+    public String getHttpVersion() {
+        return httpVersion;
+    }
+
+    public void setHttpVersion(String httpVersion) {
+        this.httpVersion = httpVersion;
+    }
+
+    public HttpVersionPolicy getHttpVersionPolicy() {
+        switch (httpVersion.toUpperCase()) {
+            case "HTTP_1_1":
+            case "HTTP_1":
+                return HttpVersionPolicy.FORCE_HTTP_1;
+            case "HTTP_2":
+                return HttpVersionPolicy.FORCE_HTTP_2;
+            default:
+                return HttpVersionPolicy.NEGOTIATE;
+        }
+    }
+
+    public int getMaxInFlight() {
+        return maxInFlight;
+    }
+
+    public void setMaxInFlight(int maxInFlight) {
+        this.maxInFlight = maxInFlight;
+    }
+
+    public int getIoThreads() {
+        return ioThreads;
+    }
+
+    public void setIoThreads(int ioThreads) {
+        this.ioThreads = ioThreads;
+    }
+
+    public int getMaxConnectionsTotal() {
+        return maxConnectionsTotal;
+    }
+
+    public void setMaxConnectionsTotal(int maxConnectionsTotal) {
+        this.maxConnectionsTotal = maxConnectionsTotal;
+    }
+
+    public int getMaxConnectionsPerRoute() {
+        return maxConnectionsPerRoute;
+    }
+
+    public void setMaxConnectionsPerRoute(int maxConnectionsPerRoute) {
+        this.maxConnectionsPerRoute = maxConnectionsPerRoute;
+    }
+
+    public int getConnectionTtl() {
+        return connectionTtl;
+    }
+
+    public void setConnectionTtl(int connectionTtl) {
+        this.connectionTtl = connectionTtl;
+    }
+
+    public int getValidateAfterInactivityMs() {
+        return validateAfterInactivityMs;
+    }
+
+    public void setValidateAfterInactivityMs(int validateAfterInactivityMs) {
+        this.validateAfterInactivityMs = validateAfterInactivityMs;
+    }
+
+    public int getKeepAlive() {
+        return keepAlive;
+    }
+
+    public void setKeepAlive(int keepAlive) {
+        this.keepAlive = keepAlive;
+    }
+
+    public int getIdleEvictionInterval() {
+        return idleEvictionInterval;
+    }
+
+    public void setIdleEvictionInterval(int idleEvictionInterval) {
+        this.idleEvictionInterval = idleEvictionInterval;
+    }
+
+    public int getRetryMaxDelay() {
+        return retryMaxDelay;
+    }
+
+    public void setRetryMaxDelay(int retryMaxDelay) {
+        this.retryMaxDelay = retryMaxDelay;
+    }
+
+    public int getRetryDeadline() {
+        return retryDeadline;
+    }
+
+    public void setRetryDeadline(int retryDeadline) {
+        this.retryDeadline = retryDeadline;
+    }
+
+    public boolean isCircuitBreakerEnabled() {
+        return circuitBreakerEnabled;
+    }
+
+    public void setCircuitBreakerEnabled(boolean circuitBreakerEnabled) {
+        this.circuitBreakerEnabled = circuitBreakerEnabled;
+    }
+
+    public int getCircuitWindowSize() {
+        return circuitWindowSize;
+    }
+
+    public void setCircuitWindowSize(int circuitWindowSize) {
+        this.circuitWindowSize = circuitWindowSize;
+    }
+
+    public int getCircuitMinimumCalls() {
+        return circuitMinimumCalls;
+    }
+
+    public void setCircuitMinimumCalls(int circuitMinimumCalls) {
+        this.circuitMinimumCalls = circuitMinimumCalls;
+    }
+
+    public int getCircuitFailureRateThreshold() {
+        return circuitFailureRateThreshold;
+    }
+
+    public void setCircuitFailureRateThreshold(int circuitFailureRateThreshold) {
+        this.circuitFailureRateThreshold = circuitFailureRateThreshold;
+    }
+
+    public int getCircuitSlowCallRateThreshold() {
+        return circuitSlowCallRateThreshold;
+    }
+
+    public void setCircuitSlowCallRateThreshold(int circuitSlowCallRateThreshold) {
+        this.circuitSlowCallRateThreshold = circuitSlowCallRateThreshold;
+    }
+
+    public int getSlowCallDurationMs() {
+        return slowCallDurationMs;
+    }
+
+    public void setSlowCallDurationMs(int slowCallDurationMs) {
+        this.slowCallDurationMs = slowCallDurationMs;
+    }
+
+    public int getCircuitOpenDuration() {
+        return circuitOpenDuration;
+    }
+
+    public void setCircuitOpenDuration(int circuitOpenDuration) {
+        this.circuitOpenDuration = circuitOpenDuration;
+    }
+
+    public int getCircuitHalfOpenCalls() {
+        return circuitHalfOpenCalls;
+    }
+
+    public void setCircuitHalfOpenCalls(int circuitHalfOpenCalls) {
+        this.circuitHalfOpenCalls = circuitHalfOpenCalls;
+    }
+
+    public CircuitFallback getCircuitFallback() {
+        return circuitFallback;
+    }
+
+    public void setCircuitFallback(CircuitFallback circuitFallback) {
+        this.circuitFallback = circuitFallback;
+    }
+
+    public boolean isAdaptiveConcurrency() {
+        return adaptiveConcurrency;
+    }
+
+    public void setAdaptiveConcurrency(boolean adaptiveConcurrency) {
+        this.adaptiveConcurrency = adaptiveConcurrency;
+    }
+
+    public int getConcurrencyLimitMin() {
+        return concurrencyLimitMin;
+    }
+
+    public void setConcurrencyLimitMin(int concurrencyLimitMin) {
+        this.concurrencyLimitMin = concurrencyLimitMin;
+    }
+
+    public boolean isSpoolEnabled() {
+        return spoolEnabled;
+    }
+
+    public void setSpoolEnabled(boolean spoolEnabled) {
+        this.spoolEnabled = spoolEnabled;
+    }
+
+    public String getSpoolDirectory() {
+        return spoolDirectory;
+    }
+
+    public void setSpoolDirectory(String spoolDirectory) {
+        this.spoolDirectory = spoolDirectory;
+    }
+
+    public int getSpoolSegmentSizeMb() {
+        return spoolSegmentSizeMb;
+    }
+
+    /**
+     * Segment size in bytes; a mapped segment cannot exceed Integer.MAX_VALUE bytes
+     */
+    public int getSpoolSegmentSizeBytes() {
+        return (int) Math.min(Integer.MAX_VALUE, (long) spoolSegmentSizeMb * 1024 * 1024);
+    }
+
+    /**
+     * Clamped to 1 MB to MAX_SPOOL_SEGMENT_SIZE_MB, the largest size a mapped segment can have
+     */
+    public void setSpoolSegmentSizeMb(int spoolSegmentSizeMb) {
+        this.spoolSegmentSizeMb = Math.max(1, Math.min(MAX_SPOOL_SEGMENT_SIZE_MB, spoolSegmentSizeMb));
+    }
+
+    public int getSpoolFsyncIntervalMs() {
+        return spoolFsyncIntervalMs;
+    }
+
+    public void setSpoolFsyncIntervalMs(int spoolFsyncIntervalMs) {
+        this.spoolFsyncIntervalMs = spoolFsyncIntervalMs;
+    }
+
+    public UserLookupMode getUserLookupMode() {
+        return userLookupMode;
+    }
+
+    public void setUserLookupMode(UserLookupMode userLookupMode) {
+        this.userLookupMode = userLookupMode;
+    }
+
+    public int getUserCacheSize() {
+        return userCacheSize;
+    }
+
+    public void setUserCacheSize(int userCacheSize) {
+        this.userCacheSize = userCacheSize;
+    }
+
+    public int getUserCacheTtl() {
+        return userCacheTtl;
+    }
+
+    public void setUserCacheTtl(int userCacheTtl) {
+        this.userCacheTtl = userCacheTtl;
+    }
+
+    public boolean isAdminEventsEnabled() {
+        return adminEventsEnabled;
+    }
+
+    public void setAdminEventsEnabled(boolean adminEventsEnabled) {
+        this.adminEventsEnabled = adminEventsEnabled;
+    }
+
+    public boolean isCoalesceEnabled() {
+        return coalesceEnabled;
+    }
+
+    public void setCoalesceEnabled(boolean coalesceEnabled) {
+        this.coalesceEnabled = coalesceEnabled;
+    }
+
+    public int getCoalesceWindowMs() {
+        return coalesceWindowMs;
+    }
+
+    public void setCoalesceWindowMs(int coalesceWindowMs) {
+        this.coalesceWindowMs = coalesceWindowMs;
+    }
+
+    public boolean isCoalesceByClient() {
+        return coalesceByClient;
+    }
+
+    public void setCoalesceByClient(boolean coalesceByClient) {
+        this.coalesceByClient = coalesceByClient;
+    }
+
+    public boolean isMetricsEnabled() {
+        return metricsEnabled;
+    }
+
+    public void setMetricsEnabled(boolean metricsEnabled) {
+        this.metricsEnabled = metricsEnabled;
+    }
+
+    public double getLogSampleRate() {
+        return logSampleRate;
+    }
+
+    public void setLogSampleRate(double logSampleRate) {
+        this.logSampleRate = logSampleRate;
+    }
+
+    public int getLogRateLimit() {
+        return logRateLimit;
+    }
+
+    public void setLogRateLimit(int logRateLimit) {
+        this.logRateLimit = logRateLimit;
+    }
+
+    public DeliveryMode getDeliveryMode() {
+        return deliveryMode;
+    }
+
+    public void setDeliveryMode(DeliveryMode deliveryMode) {
+        this.deliveryMode = deliveryMode;
+    }
+
+    public int getClusterOwners() {
+        return clusterOwners;
+    }
+
+    public void setClusterOwners(int clusterOwners) {
+        this.clusterOwners = clusterOwners;
+    }
+
+    public boolean isPerUserOrdering() {
+        return perUserOrdering;
+    }
+
+    public void setPerUserOrdering(boolean perUserOrdering) {
+        this.perUserOrdering = perUserOrdering;
+    }
+
+    public List<String> getSinks() {
+        return sinks;
+    }
+
+    public void setSinks(List<String> sinks) {
+        this.sinks = sinks;
+    }
+
+    public boolean hasApiEndpoint() {
+        return apiEndpoint != null && !apiEndpoint.trim().isEmpty();
+    }
+
+    /**
+     * Whether the sink type has what it needs to deliver: an apiEndpoint for HTTP, bootstrap servers for KAFKA
+     */
+    public boolean hasDestination() {
+        switch (sinkType) {
+            case FILE:
+                return true;
+            case KAFKA:
+                return kafkaBootstrapServers != null && !kafkaBootstrapServers.trim().isEmpty();
+            default:
+                return hasApiEndpoint();
+        }
+    }
+
+    public SinkType getSinkType() {
+        return sinkType;
+    }
+
+    public void setSinkType(SinkType sinkType) {
+        this.sinkType = sinkType;
+    }
+
+    public String getFileDirectory() {
+        return fileDirectory;
+    }
+
+    public void setFileDirectory(String fileDirectory) {
+        this.fileDirectory = fileDirectory;
+    }
+
+    public int getFileMaxSizeMb() {
+        return fileMaxSizeMb;
+    }
+
+    public void setFileMaxSizeMb(int fileMaxSizeMb) {
+        this.fileMaxSizeMb = fileMaxSizeMb;
+    }
+
+    public int getFileRolloverInterval() {
+        return fileRolloverInterval;
+    }
+
+    public void setFileRolloverInterval(int fileRolloverInterval) {
+        this.fileRolloverInterval = fileRolloverInterval;
+    }
+
+    public String getKafkaBootstrapServers() {
+        return kafkaBootstrapServers;
+    }
+
+    public void setKafkaBootstrapServers(String kafkaBootstrapServers) {
+        this.kafkaBootstrapServers = kafkaBootstrapServers;
+    }
+
+    public String getKafkaTopic() {
+        return kafkaTopic;
+    }
+
+    public void setKafkaTopic(String kafkaTopic) {
+        this.kafkaTopic = kafkaTopic;
+    }
+
+    public String getKafkaAcks() {
+        return kafkaAcks;
+    }
+
+    public void setKafkaAcks(String kafkaAcks) {
+        this.kafkaAcks = kafkaAcks;
+    }
+
+    public int getKafkaLingerMs() {
+        return kafkaLingerMs;
+    }
+
+    public void setKafkaLingerMs(int kafkaLingerMs) {
+        this.kafkaLingerMs = kafkaLingerMs;
+    }
+
+    public int getKafkaBatchSize() {
+        return kafkaBatchSize;
+    }
+
+    public void setKafkaBatchSize(int kafkaBatchSize) {
+        this.kafkaBatchSize = kafkaBatchSize;
+    }
+
+    public String getKafkaCompression() {
+        return kafkaCompression;
+    }
+
+    public void setKafkaCompression(String kafkaCompression) {
+        this.kafkaCompression = kafkaCompression;
+    }
+
+    public Map<String, String> getKafkaProperties() {
+        return kafkaProperties;
+    }
+
+    public void setKafkaProperties(Map<String, String> kafkaProperties) {
+        this.kafkaProperties = kafkaProperties;
+    }
+
+    /**
+     * Number of users the backfill job loads per transaction
+     */
+    public int getBackfillPageSize() {
+        return backfillPageSize;
+    }
+
+    public void setBackfillPageSize(int backfillPageSize) {
+        this.backfillPageSize = backfillPageSize;
+    }
+
+    /**
+     * Maximum number of users per second the backfill job queues, 0 for no limit
+     */
+    public int getBackfillRate() {
+        return backfillRate;
+    }
+
+    public void setBackfillRate(int backfillRate) {
+        this.backfillRate = backfillRate;
+    }
+
+    /**
+     * Maximum requests per second to the destination, 0 for no limit
+     */
+    public double getRateLimit() {
+        return rateLimit;
+    }
+
+    public void setRateLimit(double rateLimit) {
+        this.rateLimit = rateLimit;
+    }
+
+    /**
+     * Requests that may be sent at once after a quiet period, 0 for one second's worth of rateLimit
+     */
+    public int getRateLimitBurst() {
+        return rateLimitBurst;
+    }
+
+    public void setRateLimitBurst(int rateLimitBurst) {
+        this.rateLimitBurst = rateLimitBurst;
+    }
+
+    public RateLimitScope getRateLimitScope() {
+        return rateLimitScope;
+    }
+
+    public void setRateLimitScope(RateLimitScope rateLimitScope) {
+        this.rateLimitScope = rateLimitScope;
+    }
+
+    /**
+     * Whether this destination shares its token bucket with others posting to the same apiEndpoint
+     */
+    public boolean isEndpointRateLimit() {
+        return rateLimitScope == RateLimitScope.ENDPOINT && sinkType == SinkType.HTTP && hasApiEndpoint();
+    }
+}
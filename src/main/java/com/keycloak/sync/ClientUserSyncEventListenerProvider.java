@@ -5,107 +5,185 @@ import org.keycloak.events.Event;
 import org.keycloak.events.EventListenerProvider;
 import org.keycloak.events.EventType;
 import org.keycloak.events.admin.AdminEvent;
+import org.keycloak.events.admin.OperationType;
+import org.keycloak.events.admin.ResourceType;
+import org.keycloak.models.AbstractKeycloakTransaction;
 import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakTransactionManager;
 import org.keycloak.models.RealmModel;
-import org.keycloak.models.UserModel;
 
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
 import java.util.Set;
 
 /**
  * Event Listener Provider for syncing user data to external systems.
  * Captures authentication events (registration, login) for specific clients
  * and sends data to external API endpoints.
+ * Events raised inside a Keycloak transaction are collected and handed to the sync service together
+ * once the transaction commits; they are discarded if it rolls back.
  */
 public class ClientUserSyncEventListenerProvider implements EventListenerProvider {
 
     private static final Logger logger = Logger.getLogger(ClientUserSyncEventListenerProvider.class);
+    private static final Set<EventType> PROFILE_CHANGE_EVENTS = EnumSet.of(
+            EventType.UPDATE_PROFILE, EventType.UPDATE_EMAIL, EventType.DELETE_ACCOUNT);
     
     private final KeycloakSession session;
     private final ClientUserSyncConfig config;
+    private final EventFilter eventFilter;
+    private final UserProfileResolver userResolver;
     private final UserSyncService syncService;
+    private final SyncMetrics metrics;
+    private final LogSampler eventLog;
+    private final LogSampler failureLog;
+    private List<UserSyncData> transactionEvents;
 
-    public ClientUserSyncEventListenerProvider(KeycloakSession session, ClientUserSyncConfig config) {
+    public ClientUserSyncEventListenerProvider(KeycloakSession session, UserSyncService syncService) {
         this.session = session;
-        this.config = config;
-        this.syncService = new UserSyncService(config);
-        logger.infof("[ClientUserSync] EventListenerProvider initialized with enableLogging=%s", config.isEnableLogging());
+        this.config = syncService.getConfig();
+        this.eventFilter = syncService.getListenerFilter();
+        this.userResolver = syncService.getUserResolver();
+        this.syncService = syncService;
+        this.metrics = syncService.getMetrics();
+        this.eventLog = syncService.getEventLog();
+        this.failureLog = syncService.getFailureLog();
     }
 
     @Override
     public void onEvent(Event event) {
         try {
-            logger.infof("[ClientUserSync] Event received: type=%s, eventId=%s, userId=%s, clientId=%s, realmId=%s, ipAddress=%s, enableLogging=%s",
-                    event.getType(), event.getId(), event.getUserId(), event.getClientId(), event.getRealmId(), event.getIpAddress(), config.isEnableLogging());
+            if (PROFILE_CHANGE_EVENTS.contains(event.getType())) {
+                userResolver.invalidate(event.getRealmId(), event.getUserId());
+            }
 
-            if (!shouldProcessEvent(event)) {
-                logger.debugf("[ClientUserSync] Event skipped (not in configured event types): type=%s, eventId=%s, enableLogging=%s",
-                        event.getType(), event.getId(), config.isEnableLogging());
+            // Every client of the realm reaches this point, only configured ones get a tag of their own
+            String metricsClient = eventFilter.isListed(event.getClientId()) ? event.getClientId() : SyncMetrics.OTHER_CLIENT;
+            metrics.count(SyncMetrics.Outcome.RECEIVED, event.getType().name(), metricsClient);
+            // Most events are filtered out; that path stays free of logging and allocation
+            if (!eventFilter.accepts(event.getType(), event.getClientId())) {
+                metrics.count(SyncMetrics.Outcome.FILTERED, event.getType().name(), metricsClient);
+                if (logger.isTraceEnabled()) {
+                    logger.tracef("[ClientUserSync] Event skipped: type=%s, eventId=%s, clientId=%s",
+                            event.getType(), event.getId(), event.getClientId());
+                }
                 return;
             }
 
-            if (config.isEnableLogging() && event.getType() == EventType.LOGIN) {
-                logger.infof("[ClientUserSync] Login event triggered: eventId=%s, userId=%s, clientId=%s, ipAddress=%s",
-                        event.getId(), event.getUserId(), event.getClientId(), event.getIpAddress());
+            // One sampling decision per event, so a sampled event is logged from start to end
+            boolean logEvent = config.isEnableLogging() && eventLog.sample();
+            if (logEvent && logger.isDebugEnabled()) {
+                logger.debugf("[ClientUserSync] Event received: type=%s, eventId=%s, userId=%s, clientId=%s, realmId=%s, ipAddress=%s",
+                        event.getType(), event.getId(), event.getUserId(), event.getClientId(), event.getRealmId(), event.getIpAddress());
             }
 
-            if (!shouldProcessClient(event.getClientId())) {
-                if (config.isEnableLogging()) {
-                    logger.debugf("[ClientUserSync] Event skipped for client: %s (not in configured client list)", event.getClientId());
-                }
-                return;
+            if (logEvent && event.getType() == EventType.LOGIN) {
+                logger.infof("[ClientUserSync] Login event triggered: eventId=%s, userId=%s, clientId=%s, ipAddress=%s",
+                        event.getId(), event.getUserId(), event.getClientId(), event.getIpAddress());
             }
 
             UserSyncData syncData = extractUserData(event);
             
             if (syncData == null) {
-                if (config.isEnableLogging()) {
+                if (logEvent) {
                     logger.warnf("[ClientUserSync] Failed to extract user data from event: %s", event.getId());
                 }
                 return;
             }
 
-            syncService.syncUserData(syncData);
+            enqueue(syncData);
             
-            if (config.isEnableLogging()) {
+            if (logEvent) {
                 logger.infof("[ClientUserSync] User sync event processed: eventId=%s, userId=%s, eventType=%s, clientId=%s",
                         event.getId(), syncData.getUserId(), event.getType(), event.getClientId());
             }
 
         } catch (Exception e) {
-            if (config.isEnableLogging()) {
+            if (config.isEnableLogging() && failureLog.sample()) {
                 logger.errorf(e, "[ClientUserSync] Error processing event: %s", event.getId());
             }
         }
     }
 
+    /**
+     * Invalidates cached profiles of changed users and, with adminEventsEnabled, syncs user, group
+     * membership and realm role mapping changes as delta records
+     */
     @Override
     public void onEvent(AdminEvent adminEvent, boolean includeRepresentation) {
+        try {
+            boolean userChanged = adminEvent.getResourceType() == ResourceType.USER
+                    && (adminEvent.getOperationType() == OperationType.UPDATE || adminEvent.getOperationType() == OperationType.DELETE);
+            boolean sync = syncService.isAdminEventsEnabled() && AdminEventMapper.isSupported(adminEvent);
+            if (!userChanged && !sync) {
+                return;
+            }
+
+            String userId = AdminEventMapper.userId(adminEvent);
+            // Read before invalidating, the cached snapshot is the "before" side of the diff
+            UserSnapshot previous = sync ? userResolver.getCached(adminEvent.getRealmId(), userId) : null;
+            if (userChanged) {
+                userResolver.invalidate(adminEvent.getRealmId(), userId);
+            }
+            if (!sync) {
+                return;
+            }
+
+            RealmModel realm = session.realms().getRealm(adminEvent.getRealmId());
+            UserSyncData syncData = syncService.getAdminEventMapper().map(adminEvent, realm, previous, includeRepresentation);
+            if (syncData == null) {
+                return;
+            }
+            enqueue(syncData);
+
+            if (config.isEnableLogging() && eventLog.sample()) {
+                logger.infof("[ClientUserSync] Admin change synced: eventType=%s, userId=%s, changes=%d",
+                        syncData.getEventType(), userId, syncData.getChanges().size());
+            }
+        } catch (Exception e) {
+            if (config.isEnableLogging() && failureLog.sample()) {
+                logger.errorf(e, "[ClientUserSync] Error processing admin event: %s", adminEvent.getResourcePath());
+            }
+        }
     }
 
     /**
-     * Checks if event should be processed based on configured event types
+     * Collects an event until the session's transaction commits, or hands it over right away when
+     * there is no active transaction
      */
-    private boolean shouldProcessEvent(Event event) {
-        Set<EventType> configuredEventTypes = config.getEventTypes();
-        
-        if (configuredEventTypes == null || configuredEventTypes.isEmpty()) {
-            return event.getType() == EventType.REGISTER || event.getType() == EventType.LOGIN;
+    private void enqueue(UserSyncData syncData) {
+        KeycloakTransactionManager transactionManager = session.getTransactionManager();
+        if (transactionManager == null || !transactionManager.isActive()) {
+            syncService.syncUserData(syncData);
+            return;
         }
-        
-        return configuredEventTypes.contains(event.getType());
+        if (transactionEvents == null) {
+            transactionEvents = new ArrayList<>(2);
+            transactionManager.enlistAfterCompletion(new AfterCompletionDispatch());
+        }
+        transactionEvents.add(syncData);
     }
 
     /**
-     * Checks if client ID should be processed based on configuration
+     * Hands the events collected during the transaction to the sync service after commit
      */
-    private boolean shouldProcessClient(String clientId) {
-        Set<String> configuredClients = config.getClientIds();
-        
-        if (configuredClients == null || configuredClients.isEmpty()) {
-            return true;
+    private final class AfterCompletionDispatch extends AbstractKeycloakTransaction {
+
+        @Override
+        protected void commitImpl() {
+            List<UserSyncData> events = transactionEvents;
+            transactionEvents = null;
+            syncService.syncUserData(events);
+        }
+
+        @Override
+        protected void rollbackImpl() {
+            List<UserSyncData> events = transactionEvents;
+            transactionEvents = null;
+            logger.debugf("[ClientUserSync] Transaction rolled back, discarding %d events", events.size());
+            metrics.count(SyncMetrics.Outcome.DROPPED, events);
         }
-        
-        return configuredClients.contains(clientId);
     }
 
     /**
@@ -115,28 +193,15 @@ public class ClientUserSyncEventListenerProvider implements EventListenerProvide
         try {
             RealmModel realm = session.realms().getRealm(event.getRealmId());
             if (realm == null) {
-                if (config.isEnableLogging()) {
+                if (config.isEnableLogging() && failureLog.sample()) {
                     logger.warnf("[ClientUserSync] Realm not found: %s", event.getRealmId());
                 }
                 return null;
             }
 
-            UserModel user = session.users().getUserById(realm, event.getUserId());
-            if (user == null) {
-                if (config.isEnableLogging()) {
-                    logger.warnf("[ClientUserSync] User not found: %s", event.getUserId());
-                }
-                return null;
-            }
-
             UserSyncData syncData = new UserSyncData();
             syncData.setEventId(event.getId());
             syncData.setEventType(event.getType().name());
-            syncData.setUserId(user.getId());
-            syncData.setUsername(user.getUsername());
-            syncData.setEmail(user.getEmail());
-            syncData.setFirstName(user.getFirstName());
-            syncData.setLastName(user.getLastName());
             syncData.setRealmId(event.getRealmId());
             syncData.setRealmName(realm.getName());
             syncData.setClientId(event.getClientId());
@@ -144,19 +209,26 @@ public class ClientUserSyncEventListenerProvider implements EventListenerProvide
             syncData.setTimestamp(event.getTime());
             syncData.setSessionId(event.getSessionId());
 
-            if (config.getAdditionalAttributes() != null && !config.getAdditionalAttributes().isEmpty()) {
-                config.getAdditionalAttributes().forEach(attr -> {
-                    String value = user.getFirstAttribute(attr);
-                    if (value != null) {
-                        syncData.addAttribute(attr, value);
-                    }
-                });
+            if (event.getUserId() != null && userResolver.isDeferred()) {
+                // The sender threads load the profile, keeping the user store off the request thread
+                syncData.setUserId(event.getUserId());
+                syncData.setProfilePending(true);
+                return syncData;
+            }
+
+            UserSnapshot user = event.getUserId() != null ? userResolver.resolve(session, realm, event.getUserId()) : null;
+            if (user == null) {
+                if (config.isEnableLogging() && failureLog.sample()) {
+                    logger.warnf("[ClientUserSync] User not found: %s", event.getUserId());
+                }
+                return null;
             }
+            user.applyTo(syncData);
 
             return syncData;
 
         } catch (Exception e) {
-            if (config.isEnableLogging()) {
+            if (config.isEnableLogging() && failureLog.sample()) {
                 logger.errorf(e, "[ClientUserSync] Error extracting user data from event: %s", event.getId());
             }
             return null;
@@ -165,7 +237,7 @@ public class ClientUserSyncEventListenerProvider implements EventListenerProvide
 
     @Override
     public void close() {
-        syncService.close();
+        // The sync service is shared and owned by the factory
     }
 }
 
@@ -1,104 +1,272 @@
 package com.keycloak.sync;
 
+import org.jboss.logging.Logger;
 import org.keycloak.Config;
+import org.keycloak.events.Event;
 import org.keycloak.events.EventListenerProvider;
 import org.keycloak.events.EventListenerProviderFactory;
+import org.keycloak.events.admin.AdminEvent;
+import org.keycloak.models.AbstractKeycloakTransaction;
 import org.keycloak.models.KeycloakSession;
 import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.KeycloakTransactionManager;
 import org.keycloak.models.RealmModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
+import org.keycloak.provider.ProviderEvent;
 
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Factory for creating ClientUserSyncEventListenerProvider instances
  */
 public class ClientUserSyncEventListenerProviderFactory implements EventListenerProviderFactory {
 
-    private static final String PROVIDER_ID = "client-user-sync";
+    private static final Logger logger = Logger.getLogger(ClientUserSyncEventListenerProviderFactory.class);
+    static final String PROVIDER_ID = "client-user-sync";
+    
+    private static final String GLOBAL_REALM_KEY = "";
+    private static final String REALM_ATTRIBUTE_PREFIX = "client-user-sync.";
+    private static final String SINK_ATTRIBUTE_PREFIX = REALM_ATTRIBUTE_PREFIX + ClientUserSyncConfig.SINK_PREFIX;
+
+    /**
+     * Handed out for realms without any destination, which have no sync service
+     */
+    private static final EventListenerProvider DISABLED_PROVIDER = new EventListenerProvider() {
+        @Override
+        public void onEvent(Event event) {
+        }
+
+        @Override
+        public void onEvent(AdminEvent event, boolean includeRepresentation) {
+        }
+
+        @Override
+        public void close() {
+        }
+    };
     
     private Map<String, String> globalConfig = new HashMap<>();
+    private UserSyncServiceRegistry serviceRegistry;
+    private final ConcurrentMap<String, CachedRealmService> realmServices = new ConcurrentHashMap<>();
+    private long configCacheTtlNanos;
 
+    /**
+     * Resolves the realm's service from the cache; realm attributes are only read again after the
+     * entry was invalidated by a realm update on this node or its TTL ran out (updates on other nodes)
+     */
     @Override
     public EventListenerProvider create(KeycloakSession session) {
+        UserSyncService service = getRealmService(session.getContext().getRealm());
+        return service != null ? new ClientUserSyncEventListenerProvider(session, service) : DISABLED_PROVIDER;
+    }
+
+    /**
+     * Returns the service that currently handles the realm, or the global one for a null realm;
+     * null when the realm has no destination
+     */
+    public UserSyncService getRealmService(RealmModel realm) {
+        return getCachedRealmService(realm).service;
+    }
+
+    /**
+     * Returns the realm's current configuration, which is also known for realms without a service
+     */
+    public ClientUserSyncConfig getRealmConfig(RealmModel realm) {
+        return getCachedRealmService(realm).config;
+    }
+
+    private CachedRealmService getCachedRealmService(RealmModel realm) {
+        String realmKey = realm != null ? realm.getId() : GLOBAL_REALM_KEY;
+
+        CachedRealmService cached = realmServices.get(realmKey);
+        if (cached == null || cached.isExpired(System.nanoTime())) {
+            cached = refreshRealmService(realmKey, realm);
+        }
+        return cached;
+    }
+
+    /**
+     * Rebuilds the realm configuration and looks up its service. Refreshes of the same realm are
+     * serialized so a slower refresh cannot put a service back that a newer configuration replaced.
+     */
+    private CachedRealmService refreshRealmService(String realmKey, RealmModel realm) {
+        return realmServices.compute(realmKey, (key, existing) -> {
+            long now = System.nanoTime();
+            if (existing != null && !existing.isExpired(now)) {
+                return existing;
+            }
+            Map<String, String> configMap = buildConfigMap(realm);
+            UserSyncService service = serviceRegistry.getService(key, configMap);
+            ClientUserSyncConfig config = service != null ? service.getConfig() : ClientUserSyncConfig.fromMap(configMap);
+            return new CachedRealmService(service, config, now + configCacheTtlNanos);
+        });
+    }
+
+    private void invalidateRealm(String realmKey) {
+        realmServices.remove(realmKey);
+    }
+
+    /**
+     * Drops the realm's cached configuration once the transaction that changed it has committed.
+     * Dropping it earlier would let a create() running before the commit cache the old attributes
+     * again until configCacheTtl passes.
+     */
+    private void invalidateRealmAfterCommit(KeycloakSession session, String realmKey) {
+        KeycloakTransactionManager transactionManager = session != null ? session.getTransactionManager() : null;
+        if (transactionManager == null || !transactionManager.isActive()) {
+            invalidateRealm(realmKey);
+            return;
+        }
+        transactionManager.enlistAfterCompletion(new AbstractKeycloakTransaction() {
+            @Override
+            protected void commitImpl() {
+                invalidateRealm(realmKey);
+            }
+
+            @Override
+            protected void rollbackImpl() {
+            }
+        });
+    }
+
+    /**
+     * Global configuration overridden by the realm's client-user-sync.* attributes, including the
+     * client-user-sync.sink.name.* attributes of its sinks
+     */
+    private Map<String, String> buildConfigMap(RealmModel realm) {
         Map<String, String> configMap = new HashMap<>(globalConfig);
-        
-        RealmModel realm = session.getContext().getRealm();
         if (realm != null) {
-            String apiEndpoint = realm.getAttribute("client-user-sync.apiEndpoint");
-            if (apiEndpoint != null) configMap.put("apiEndpoint", apiEndpoint);
-            
-            String apiToken = realm.getAttribute("client-user-sync.apiToken");
-            if (apiToken != null) configMap.put("apiToken", apiToken);
-            
-            String clientIds = realm.getAttribute("client-user-sync.clientIds");
-            if (clientIds != null) configMap.put("clientIds", clientIds);
-            
-            String eventTypes = realm.getAttribute("client-user-sync.eventTypes");
-            if (eventTypes != null) configMap.put("eventTypes", eventTypes);
-            
-            String additionalAttrs = realm.getAttribute("client-user-sync.additionalAttributes");
-            if (additionalAttrs != null) configMap.put("additionalAttributes", additionalAttrs);
-            
-            String apiHeaders = realm.getAttribute("client-user-sync.apiHeaders");
-            if (apiHeaders != null) configMap.put("apiHeaders", apiHeaders);
-            
-            String connectionTimeout = realm.getAttribute("client-user-sync.connectionTimeout");
-            if (connectionTimeout != null) configMap.put("connectionTimeout", connectionTimeout);
-            
-            String readTimeout = realm.getAttribute("client-user-sync.readTimeout");
-            if (readTimeout != null) configMap.put("readTimeout", readTimeout);
-            
-            String threadPoolSize = realm.getAttribute("client-user-sync.threadPoolSize");
-            if (threadPoolSize != null) configMap.put("threadPoolSize", threadPoolSize);
-            
-            String retryEnabled = realm.getAttribute("client-user-sync.retryEnabled");
-            if (retryEnabled != null) configMap.put("retryEnabled", retryEnabled);
-            
-            String maxRetries = realm.getAttribute("client-user-sync.maxRetries");
-            if (maxRetries != null) configMap.put("maxRetries", maxRetries);
-            
-            String retryDelay = realm.getAttribute("client-user-sync.retryDelay");
-            if (retryDelay != null) configMap.put("retryDelay", retryDelay);
-            
-            String enableLogging = realm.getAttribute("client-user-sync.enableLogging");
-            if (enableLogging != null) configMap.put("enableLogging", enableLogging);
+            realm.getAttributes().forEach((name, value) -> {
+                if (value == null || !name.startsWith(REALM_ATTRIBUTE_PREFIX)) {
+                    return;
+                }
+                String key = name.substring(REALM_ATTRIBUTE_PREFIX.length());
+                if (name.startsWith(SINK_ATTRIBUTE_PREFIX) || ClientUserSyncConfig.KEYS.contains(key)) {
+                    configMap.put(key, value);
+                }
+            });
         }
-        
-        ClientUserSyncConfig config = ClientUserSyncConfig.fromMap(configMap);
-        return new ClientUserSyncEventListenerProvider(session, config);
+        return configMap;
     }
 
     @Override
     public void init(Config.Scope config) {
         if (config != null) {
-            globalConfig.put("apiEndpoint", config.get("apiEndpoint"));
-            globalConfig.put("apiToken", config.get("apiToken"));
-            globalConfig.put("clientIds", config.get("clientIds"));
-            globalConfig.put("eventTypes", config.get("eventTypes"));
-            globalConfig.put("additionalAttributes", config.get("additionalAttributes"));
-            globalConfig.put("apiHeaders", config.get("apiHeaders"));
-            globalConfig.put("connectionTimeout", config.get("connectionTimeout", "10"));
-            globalConfig.put("readTimeout", config.get("readTimeout", "30"));
-            globalConfig.put("threadPoolSize", config.get("threadPoolSize", "5"));
-            globalConfig.put("retryEnabled", config.get("retryEnabled", "true"));
-            globalConfig.put("maxRetries", config.get("maxRetries", "3"));
-            globalConfig.put("retryDelay", config.get("retryDelay", "5"));
-            globalConfig.put("enableLogging", config.get("enableLogging", "true"));
+            // Only options that are set; fromMap supplies the defaults
+            for (String key : ClientUserSyncConfig.KEYS) {
+                String value = config.get(key);
+                if (value != null) {
+                    globalConfig.put(key, value);
+                }
+            }
+            putGlobalSinkConfig(config);
+        }
+        int configCacheTtl = config != null ? config.getInt("configCacheTtl", 60) : 60;
+        configCacheTtlNanos = TimeUnit.SECONDS.toNanos(Math.max(0, configCacheTtl));
+    }
+
+    /**
+     * Reads the sink-name-key options of the globally configured sinks for every known key and
+     * stores them as sink.name.key
+     */
+    private void putGlobalSinkConfig(Config.Scope config) {
+        for (String sink : ClientUserSyncConfig.fromMap(globalConfig).getSinks()) {
+            for (String key : ClientUserSyncConfig.KEYS) {
+                String value = config.get("sink-" + sink + "-" + key);
+                if (value != null) {
+                    globalConfig.put(ClientUserSyncConfig.SINK_PREFIX + sink + '.' + key, value);
+                }
+            }
         }
     }
 
     @Override
     public void postInit(KeycloakSessionFactory factory) {
+        serviceRegistry = new UserSyncServiceRegistry(factory);
+        factory.register(this::onProviderEvent);
+        replaySpools(factory);
+    }
+
+    /**
+     * Drops the cached configuration of a realm whose client-user-sync attributes changed or that was
+     * removed, after the change has committed
+     */
+    private void onProviderEvent(ProviderEvent event) {
+        if (event instanceof RealmModel.RealmAttributeUpdateEvent) {
+            RealmModel.RealmAttributeUpdateEvent update = (RealmModel.RealmAttributeUpdateEvent) event;
+            if (update.getAttributeName() != null && update.getAttributeName().startsWith(REALM_ATTRIBUTE_PREFIX)) {
+                invalidateRealmAfterCommit(update.getKeycloakSession(), update.getRealm().getId());
+            }
+        } else if (event instanceof RealmModel.RealmRemovedEvent) {
+            RealmModel.RealmRemovedEvent removal = (RealmModel.RealmRemovedEvent) event;
+            invalidateRealmAfterCommit(removal.getKeycloakSession(), removal.getRealm().getId());
+        }
+    }
+
+    /**
+     * Starts the services of realms that left undelivered events in their spool, and of realms in
+     * cluster delivery mode, so replay does not wait for the next event of the realm
+     */
+    private void replaySpools(KeycloakSessionFactory factory) {
+        startIfPending(GLOBAL_REALM_KEY, buildConfigMap(null));
+        try {
+            KeycloakModelUtils.runJobInTransaction(factory, session ->
+                    session.realms().getRealmsStream().forEach(realm -> startIfPending(realm.getId(), buildConfigMap(realm))));
+        } catch (RuntimeException e) {
+            logger.errorf(e, "[ClientUserSync] Failed to replay spooled events on startup");
+        }
+    }
+
+    private void startIfPending(String realmKey, Map<String, String> configMap) {
+        ClientUserSyncConfig config = ClientUserSyncConfig.fromMap(configMap);
+        boolean pending = hasPendingEvents(realmKey, config);
+        for (String sink : config.getSinks()) {
+            ClientUserSyncConfig sinkConfig = ClientUserSyncConfig.fromMap(ClientUserSyncConfig.sinkConfigMap(configMap, sink));
+            pending |= hasPendingEvents(UserSyncServiceRegistry.sinkKey(realmKey, sink), sinkConfig);
+        }
+        if (pending) {
+            serviceRegistry.getService(realmKey, configMap);
+        }
+    }
+
+    private static boolean hasPendingEvents(String journalKey, ClientUserSyncConfig config) {
+        boolean spooled = config.isSpoolEnabled()
+                && WriteAheadSpool.hasSegments(UserSyncServiceRegistry.spoolDirectory(config.getSpoolDirectory(), journalKey));
+        boolean clustered = config.getDeliveryMode() == DeliveryMode.CLUSTER && config.hasDestination();
+        return spooled || clustered;
     }
 
     @Override
     public void close() {
+        realmServices.clear();
+        if (serviceRegistry != null) {
+            serviceRegistry.close();
+        }
     }
 
     @Override
     public String getId() {
         return PROVIDER_ID;
     }
+
+    private static final class CachedRealmService {
+        private final UserSyncService service;
+        private final ClientUserSyncConfig config;
+        private final long expiresAt;
+
+        private CachedRealmService(UserSyncService service, ClientUserSyncConfig config, long expiresAt) {
+            this.service = service;
+            this.config = config;
+            this.expiresAt = expiresAt;
+        }
+
+        private boolean isExpired(long now) {
+            return now - expiresAt >= 0;
+        }
+    }
 }
 
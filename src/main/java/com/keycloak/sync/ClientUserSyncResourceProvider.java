@@ -0,0 +1,112 @@
+package com.keycloak.sync;
+
+import jakarta.ws.rs.DELETE;
+import jakarta.ws.rs.GET;
+import jakarta.ws.rs.NotAuthorizedException;
+import jakarta.ws.rs.POST;
+import jakarta.ws.rs.Path;
+import jakarta.ws.rs.Produces;
+import jakarta.ws.rs.QueryParam;
+import jakarta.ws.rs.core.MediaType;
+import jakarta.ws.rs.core.Response;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.services.managers.AppAuthManager;
+import org.keycloak.services.managers.AuthenticationManager;
+import org.keycloak.services.resource.RealmResourceProvider;
+import org.keycloak.services.resources.admin.AdminAuth;
+import org.keycloak.services.resources.admin.permissions.AdminPermissions;
+
+import java.util.Collections;
+
+/**
+ * Realm resource at /realms/{realm}/client-user-sync. The backfill endpoints start, report and cancel
+ * the realm's backfill job on the node that receives the request; they require a bearer token of the
+ * realm whose user may manage users.
+ */
+public class ClientUserSyncResourceProvider implements RealmResourceProvider {
+
+    private final KeycloakSession session;
+    private final ClientUserSyncResourceProviderFactory factory;
+
+    public ClientUserSyncResourceProvider(KeycloakSession session, ClientUserSyncResourceProviderFactory factory) {
+        this.session = session;
+        this.factory = factory;
+    }
+
+    @Override
+    public Object getResource() {
+        return this;
+    }
+
+    /**
+     * Starts a backfill of all users of the realm
+     *
+     * @param resume continue from the checkpoint of the previous job instead of the first user
+     */
+    @POST
+    @Path("backfill")
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response startBackfill(@QueryParam("resume") boolean resume) {
+        RealmModel realm = requireManageUsers();
+        UserSyncService service = factory.getListenerFactory().getRealmService(realm);
+        if (service == null) {
+            return error(Response.Status.CONFLICT, "No destination configured for realm " + realm.getName());
+        }
+        long total = session.users().getUsersCount(realm);
+        BackfillJob job = factory.startBackfill(realm, service.getConfig(), resume, total);
+        if (job == null) {
+            return error(Response.Status.CONFLICT, "A backfill of realm " + realm.getName() + " is already running");
+        }
+        return Response.accepted(job.getStatus()).build();
+    }
+
+    @GET
+    @Path("backfill")
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response getBackfill() {
+        RealmModel realm = requireManageUsers();
+        BackfillStatus status = factory.getBackfillStatus(realm, factory.getListenerFactory().getRealmConfig(realm));
+        if (status == null) {
+            return error(Response.Status.NOT_FOUND, "No backfill of realm " + realm.getName());
+        }
+        return Response.ok(status).build();
+    }
+
+    @DELETE
+    @Path("backfill")
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response cancelBackfill() {
+        RealmModel realm = requireManageUsers();
+        BackfillJob job = factory.cancelBackfill(realm);
+        if (job == null) {
+            return error(Response.Status.NOT_FOUND, "No backfill of realm " + realm.getName() + " is running");
+        }
+        return Response.accepted(job.getStatus()).build();
+    }
+
+    /**
+     * Authenticates the bearer token against the realm and checks the manage-users permission
+     */
+    private RealmModel requireManageUsers() {
+        RealmModel realm = session.getContext().getRealm();
+        AuthenticationManager.AuthResult auth = new AppAuthManager.BearerTokenAuthenticator(session).authenticate();
+        if (auth == null) {
+            throw new NotAuthorizedException("Bearer");
+        }
+        AdminAuth adminAuth = new AdminAuth(realm, auth.getToken(), auth.getUser(), auth.getClient());
+        AdminPermissions.evaluator(session, realm, adminAuth).users().requireManage();
+        return realm;
+    }
+
+    private static Response error(Response.Status status, String message) {
+        return Response.status(status)
+                .entity(Collections.singletonMap("error", message))
+                .type(MediaType.APPLICATION_JSON)
+                .build();
+    }
+
+    @Override
+    public void close() {
+    }
+}
@@ -0,0 +1,135 @@
+package com.keycloak.sync;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.jboss.logging.Logger;
+import org.keycloak.Config;
+import org.keycloak.events.EventListenerProvider;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.services.resource.RealmResourceProvider;
+import org.keycloak.services.resource.RealmResourceProviderFactory;
+
+import java.nio.file.Path;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Factory of the realm resource that serves /realms/{realm}/client-user-sync. It owns the backfill
+ * jobs of this node, at most one per realm, each running on a thread of its own.
+ */
+public class ClientUserSyncResourceProviderFactory implements RealmResourceProviderFactory {
+
+    private static final Logger logger = Logger.getLogger(ClientUserSyncResourceProviderFactory.class);
+
+    private final ConcurrentMap<String, BackfillJob> backfillJobs = new ConcurrentHashMap<>();
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private KeycloakSessionFactory sessionFactory;
+
+    @Override
+    public RealmResourceProvider create(KeycloakSession session) {
+        return new ClientUserSyncResourceProvider(session, this);
+    }
+
+    /**
+     * Returns the event listener factory that owns the realms' sync services
+     */
+    ClientUserSyncEventListenerProviderFactory getListenerFactory() {
+        return (ClientUserSyncEventListenerProviderFactory) sessionFactory.getProviderFactory(
+                EventListenerProvider.class, ClientUserSyncEventListenerProviderFactory.PROVIDER_ID);
+    }
+
+    /**
+     * Starts a backfill of the realm, from the checkpoint of the previous job when resuming and one
+     * exists. Returns null when a job of the realm is already running.
+     *
+     * @param total number of users in the realm, for progress reporting
+     */
+    BackfillJob startBackfill(RealmModel realm, ClientUserSyncConfig config, boolean resume, long total) {
+        String realmId = realm.getId();
+        Path checkpointFile = BackfillJob.checkpointFile(config, realmId);
+        BackfillJob[] started = new BackfillJob[1];
+        backfillJobs.compute(realmId, (key, existing) -> {
+            if (existing != null && existing.isRunning()) {
+                return existing;
+            }
+            BackfillStatus checkpoint = resume ? BackfillJob.readCheckpoint(checkpointFile, objectMapper) : null;
+            BackfillStatus status = checkpoint != null && checkpoint.getState() != BackfillStatus.State.COMPLETED
+                    ? checkpoint
+                    : newStatus(realmId);
+            status.setTotal(total);
+            started[0] = new BackfillJob(sessionFactory, getListenerFactory()::getRealmService, checkpointFile, objectMapper, status);
+            return started[0];
+        });
+        if (started[0] != null) {
+            Thread thread = new Thread(started[0], "client-user-sync-backfill-" + realm.getName());
+            thread.setDaemon(true);
+            thread.start();
+        }
+        return started[0];
+    }
+
+    private static BackfillStatus newStatus(String realmId) {
+        BackfillStatus status = new BackfillStatus();
+        status.setJobId(UUID.randomUUID().toString());
+        status.setRealmId(realmId);
+        status.setStartedAt(System.currentTimeMillis());
+        return status;
+    }
+
+    /**
+     * Status of the realm's job on this node, or of the checkpoint the last job left; null when there is neither
+     */
+    BackfillStatus getBackfillStatus(RealmModel realm, ClientUserSyncConfig config) {
+        BackfillJob job = backfillJobs.get(realm.getId());
+        if (job != null) {
+            return job.getStatus();
+        }
+        BackfillStatus checkpoint = BackfillJob.readCheckpoint(BackfillJob.checkpointFile(config, realm.getId()), objectMapper);
+        if (checkpoint != null && checkpoint.getState() == BackfillStatus.State.RUNNING) {
+            checkpoint.setState(BackfillStatus.State.INTERRUPTED);
+        }
+        return checkpoint;
+    }
+
+    /**
+     * Cancels the realm's running job; returns it, or null when none is running
+     */
+    BackfillJob cancelBackfill(RealmModel realm) {
+        BackfillJob job = backfillJobs.get(realm.getId());
+        if (job == null || !job.isRunning()) {
+            return null;
+        }
+        job.cancel();
+        return job;
+    }
+
+    @Override
+    public void init(Config.Scope config) {
+    }
+
+    @Override
+    public void postInit(KeycloakSessionFactory factory) {
+        this.sessionFactory = factory;
+    }
+
+    /**
+     * Cancels running jobs; their checkpoints let them be resumed after the restart
+     */
+    @Override
+    public void close() {
+        backfillJobs.values().forEach(job -> {
+            if (job.isRunning()) {
+                logger.infof("[ClientUserSync] Cancelling backfill %s of realm %s", job.getStatus().getJobId(), job.getStatus().getRealmId());
+                job.cancel();
+            }
+        });
+        backfillJobs.clear();
+    }
+
+    @Override
+    public String getId() {
+        return ClientUserSyncEventListenerProviderFactory.PROVIDER_ID;
+    }
+}
@@ -0,0 +1,489 @@
+package com.keycloak.sync;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.infinispan.AdvancedCache;
+import org.infinispan.Cache;
+import org.infinispan.commons.api.CacheContainerAdmin;
+import org.infinispan.commons.util.CloseableIterator;
+import org.infinispan.configuration.cache.CacheMode;
+import org.infinispan.configuration.cache.Configuration;
+import org.infinispan.configuration.cache.ConfigurationBuilder;
+import org.infinispan.context.Flag;
+import org.infinispan.distribution.DistributionManager;
+import org.infinispan.distribution.group.Grouper;
+import org.infinispan.manager.EmbeddedCacheManager;
+import org.infinispan.notifications.Listener;
+import org.infinispan.notifications.cachelistener.annotation.CacheEntryCreated;
+import org.infinispan.notifications.cachelistener.annotation.DataRehashed;
+import org.infinispan.notifications.cachelistener.annotation.TopologyChanged;
+import org.infinispan.notifications.cachelistener.event.CacheEntryCreatedEvent;
+import org.infinispan.notifications.cachelistener.event.DataRehashedEvent;
+import org.infinispan.notifications.cachelistener.event.TopologyChangedEvent;
+import org.jboss.logging.Logger;
+import org.keycloak.connections.infinispan.InfinispanConnectionProvider;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Queue;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+
+/**
+ * Journal that spreads events over the cluster through a distributed Infinispan cache, so that every
+ * event is delivered by exactly one node and survives the loss of the node that received it.
+ * <p>
+ * Every event is one entry, keyed realm/userId/sequence and written with putAsync by whichever node
+ * receives it. The sequence is taken from a counter entry of the user, realm/userId/sequence, which
+ * every node advances with a conditional replace, so a user's keys sort in the order the events
+ * arrived no matter which node received them or how far the node clocks are apart. A counter expires
+ * a day after its last use and then starts again from the clock. A grouper places all entries of a
+ * user, counter included, on the same owners, and only the primary owner delivers them: it indexes the entries it is notified of,
+ * has at most one event per user in flight and removes the entry once the event is acknowledged, so
+ * a user's events are delivered in order. Replay only walks the users with an event to hand out; the
+ * local entries are scanned only after a topology change, when the new primary owner takes over the
+ * users it gained. An event that was in flight on the previous owner may then be delivered twice.
+ * <p>
+ * The primary owner counts the events it owns. Events created once that reaches the capacity are
+ * removed again by the owner and counted as overflow, whichever node received them; events a node
+ * takes over after a topology change are always kept.
+ */
+@Listener(primaryOnly = true)
+public class ClusterEventQueue implements EventJournal {
+
+    private static final Logger logger = Logger.getLogger(ClusterEventQueue.class);
+
+    public static final String CACHE_NAME = "client-user-sync-events";
+    private static final char KEY_SEPARATOR = '/';
+    private static final String SEQUENCE_KEY = "sequence";
+    private static final long SEQUENCE_LIFESPAN_HOURS = 24;
+    private static final int OVERFLOW_LOG_INTERVAL = 1000;
+
+    private final Cache<String, String> cache;
+    private final AdvancedCache<String, String> writeCache;
+    private final String keyPrefix;
+    private final ObjectMapper objectMapper;
+    private final int capacity;
+    private final String nodeSuffix;
+
+    private final ConcurrentMap<String, UserEntries> users = new ConcurrentHashMap<>();
+    private final Queue<String> ready = new ConcurrentLinkedQueue<>();
+    private final Map<UserSyncData, String> inFlightKeys = new ConcurrentHashMap<>();
+    private final Queue<String> overflowed = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger ownedCount = new AtomicInteger();
+    private final AtomicLong overflowCount = new AtomicLong();
+    private volatile boolean reindex = true;
+    private final List<Runnable> replayListeners = new CopyOnWriteArrayList<>();
+
+    /**
+     * @param cache    the shared event cache; every node must use the same cache
+     * @param realmKey realm whose entries this queue appends and replays
+     * @param capacity number of owned events beyond which new events are removed by their owner
+     */
+    public ClusterEventQueue(Cache<String, String> cache, String realmKey, int capacity, ObjectMapper objectMapper) {
+        this.cache = cache;
+        this.writeCache = cache.getAdvancedCache().withFlags(Flag.IGNORE_RETURN_VALUES);
+        this.keyPrefix = (realmKey.isEmpty() ? "global" : realmKey) + KEY_SEPARATOR;
+        this.capacity = capacity;
+        this.objectMapper = objectMapper;
+        this.nodeSuffix = String.format("-%08x", ThreadLocalRandom.current().nextInt());
+        cache.addListener(this);
+    }
+
+    /**
+     * Opens the queue on the cache container Keycloak runs its own caches in, creating the event
+     * cache on all nodes when it does not exist yet
+     */
+    public static ClusterEventQueue open(KeycloakSessionFactory sessionFactory, String realmKey, int owners, int capacity,
+                                         ObjectMapper objectMapper) {
+        EmbeddedCacheManager cacheManager;
+        try (KeycloakSession session = sessionFactory.create()) {
+            InfinispanConnectionProvider connections = session.getProvider(InfinispanConnectionProvider.class);
+            cacheManager = connections.getCache(InfinispanConnectionProvider.WORK_CACHE_NAME).getCacheManager();
+        }
+        return new ClusterEventQueue(getOrCreateCache(cacheManager, owners), realmKey, capacity, objectMapper);
+    }
+
+    public static Cache<String, String> getOrCreateCache(EmbeddedCacheManager cacheManager, int owners) {
+        ConfigurationBuilder builder = new ConfigurationBuilder();
+        if (cacheManager.getCacheManagerConfiguration().isClustered()) {
+            builder.clustering().cacheMode(CacheMode.DIST_SYNC).hash().numOwners(Math.max(1, owners))
+                    .groups().enabled().addGrouper(new UserGrouper());
+        } else {
+            builder.clustering().cacheMode(CacheMode.LOCAL);
+        }
+        Configuration configuration = builder.build();
+        return cacheManager.administration()
+                .withFlags(CacheContainerAdmin.AdminFlag.VOLATILE)
+                .getOrCreateCache(CACHE_NAME, configuration);
+    }
+
+    /**
+     * Groups the entries of a user, realm/userId/sequence, and the user's counter under realm/userId so
+     * they share their owners
+     */
+    public static class UserGrouper implements Grouper<String> {
+
+        @Override
+        public Object computeGroup(String key, Object group) {
+            int end = key.lastIndexOf(KEY_SEPARATOR);
+            return end > 0 ? key.substring(0, end) : group;
+        }
+
+        @Override
+        public Class<String> getKeyType() {
+            return String.class;
+        }
+    }
+
+    /**
+     * Returns the key of the user's next event; events without a user are keyed by their id and
+     * need no counter
+     */
+    private CompletableFuture<String> nextKey(UserSyncData syncData) {
+        if (syncData.getUserId() == null) {
+            return CompletableFuture.completedFuture(keyOf(keyPrefix + syncData.getEventId(), 0));
+        }
+        String user = keyPrefix + syncData.getUserId();
+        return nextSequence(user + KEY_SEPARATOR + SEQUENCE_KEY).thenApply(sequence -> keyOf(user, sequence));
+    }
+
+    /**
+     * Advances the user's counter on its owners, starting from the clock in microseconds when the user
+     * has none, and retries when another node advanced it first
+     */
+    private CompletableFuture<Long> nextSequence(String counterKey) {
+        return cache.getAsync(counterKey).thenCompose(current -> {
+            if (current == null) {
+                long first = System.currentTimeMillis() * 1000;
+                return cache.putIfAbsentAsync(counterKey, Long.toString(first), SEQUENCE_LIFESPAN_HOURS, TimeUnit.HOURS)
+                        .thenCompose(previous -> previous == null ? CompletableFuture.completedFuture(first) : nextSequence(counterKey));
+            }
+            long next = Long.parseLong(current) + 1;
+            return cache.replaceAsync(counterKey, current, Long.toString(next), SEQUENCE_LIFESPAN_HOURS, TimeUnit.HOURS)
+                    .thenCompose(replaced -> replaced ? CompletableFuture.completedFuture(next) : nextSequence(counterKey));
+        });
+    }
+
+    private String keyOf(String user, long sequence) {
+        StringBuilder key = new StringBuilder(user.length() + 32).append(user).append(KEY_SEPARATOR);
+        String hex = Long.toHexString(sequence);
+        for (int i = hex.length(); i < 16; i++) {
+            key.append('0');
+        }
+        return key.append(hex).append(nodeSuffix).toString();
+    }
+
+    private static String userOf(String key) {
+        return key.substring(0, key.lastIndexOf(KEY_SEPARATOR));
+    }
+
+    /**
+     * Whether the key is one of this realm's events rather than another realm's entry or a user's counter
+     */
+    private boolean isEventKey(String key) {
+        return key.startsWith(keyPrefix) && !key.endsWith(KEY_SEPARATOR + SEQUENCE_KEY);
+    }
+
+    /**
+     * Stores the event under its user, wherever the user's entries are owned, and waits until it is stored
+     */
+    @Override
+    public void append(UserSyncData syncData) throws IOException {
+        try {
+            appendAsync(syncData).toCompletableFuture().get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while appending event " + syncData.getEventId(), e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Failed to append event " + syncData.getEventId(), e.getCause());
+        }
+    }
+
+    /**
+     * Stores the event under its user without waiting for the owners to confirm it
+     */
+    @Override
+    public CompletionStage<Void> appendAsync(UserSyncData syncData) {
+        String value;
+        try {
+            value = objectMapper.writeValueAsString(syncData);
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        return nextKey(syncData).thenCompose(key -> writeCache.putAsync(key, value)).thenApply(previous -> null);
+    }
+
+    /**
+     * Indexes a new event this node is the primary owner of, or, once the node owns capacity events,
+     * leaves it to the replay to remove, since the entry is still locked while listeners run
+     */
+    @CacheEntryCreated
+    public void onEntryCreated(CacheEntryCreatedEvent<String, String> event) {
+        if (event.isPre() || !isEventKey(event.getKey())) {
+            return;
+        }
+        if (ownedCount.get() >= capacity) {
+            long overflow = overflowCount.incrementAndGet();
+            if (overflow % OVERFLOW_LOG_INTERVAL == 1) {
+                logger.warnf("[ClientUserSync] Cluster queue of %s holds %d events, removed %d events beyond that so far",
+                        keyPrefix, capacity, overflow);
+            }
+            overflowed.offer(event.getKey());
+            replayListeners.forEach(Runnable::run);
+            return;
+        }
+        index(event.getKey());
+    }
+
+    @TopologyChanged
+    public void onTopologyChanged(TopologyChangedEvent<String, String> event) {
+        if (!event.isPre()) {
+            reindex = true;
+            replayListeners.forEach(Runnable::run);
+        }
+    }
+
+    @DataRehashed
+    public void onDataRehashed(DataRehashedEvent<String, String> event) {
+        if (!event.isPre()) {
+            reindex = true;
+            replayListeners.forEach(Runnable::run);
+        }
+    }
+
+    private void index(String key) {
+        users.compute(userOf(key), (user, entries) -> {
+            if (entries == null) {
+                entries = new UserEntries();
+            }
+            if (entries.keys.add(key)) {
+                ownedCount.incrementAndGet();
+            }
+            markReady(user, entries);
+            return entries;
+        });
+    }
+
+    private void markReady(String user, UserEntries entries) {
+        if (entries.inFlight == null && !entries.queued && !entries.keys.isEmpty()) {
+            entries.queued = true;
+            ready.offer(user);
+            replayListeners.forEach(Runnable::run);
+        }
+    }
+
+    /**
+     * Indexes the entries this node became the primary owner of and forgets those it no longer owns,
+     * except the events it still has in flight
+     */
+    private void reindexOwnedEntries() {
+        AdvancedCache<String, String> localCache = cache.getAdvancedCache().withFlags(Flag.CACHE_MODE_LOCAL, Flag.SKIP_CACHE_LOAD);
+        try (CloseableIterator<String> keys = localCache.keySet().iterator()) {
+            while (keys.hasNext()) {
+                String key = keys.next();
+                if (isEventKey(key) && isPrimary(key)) {
+                    index(key);
+                }
+            }
+        }
+        for (String user : users.keySet()) {
+            users.computeIfPresent(user, (u, entries) -> {
+                Iterator<String> keys = entries.keys.iterator();
+                while (keys.hasNext()) {
+                    String key = keys.next();
+                    if (!key.equals(entries.inFlight) && !isPrimary(key)) {
+                        keys.remove();
+                        ownedCount.decrementAndGet();
+                    }
+                }
+                return entries.keys.isEmpty() && entries.inFlight == null ? null : entries;
+            });
+        }
+    }
+
+    private boolean isPrimary(String key) {
+        DistributionManager distributionManager = cache.getAdvancedCache().getDistributionManager();
+        return distributionManager == null || distributionManager.getCacheTopology().getDistribution(key).isPrimary();
+    }
+
+    /**
+     * Removes a delivered or dropped event from the cache and lets the user's next one go
+     */
+    @Override
+    public void acknowledge(UserSyncData syncData) {
+        String key = inFlightKeys.remove(syncData);
+        if (key == null) {
+            return;
+        }
+        writeCache.removeAsync(key).whenComplete((previous, error) -> {
+            if (error != null) {
+                logger.warnf(error, "[ClientUserSync] Failed to remove event %s from the cluster queue", syncData.getEventId());
+            }
+        });
+        release(key, true);
+    }
+
+    @Override
+    public void abandon(UserSyncData syncData) {
+        String key = inFlightKeys.remove(syncData);
+        if (key != null) {
+            release(key, false);
+        }
+    }
+
+    /**
+     * Ends the user's event in flight, dropping its key when it is done, and queues the user's next event
+     */
+    private void release(String key, boolean done) {
+        users.computeIfPresent(userOf(key), (user, entries) -> {
+            if (key.equals(entries.inFlight)) {
+                entries.inFlight = null;
+            }
+            if (done && entries.keys.remove(key)) {
+                ownedCount.decrementAndGet();
+            }
+            if (entries.keys.isEmpty() && entries.inFlight == null) {
+                return null;
+            }
+            markReady(user, entries);
+            return entries;
+        });
+    }
+
+    @Override
+    public void addReplayListener(Runnable listener) {
+        replayListeners.add(listener);
+    }
+
+    @Override
+    public void removeReplayListener(Runnable listener) {
+        replayListeners.remove(listener);
+    }
+
+    /**
+     * Removes the events that came in beyond the capacity, then feeds the oldest event of every user
+     * this node owns that has no event in flight
+     */
+    @Override
+    public boolean replay(Predicate<UserSyncData> sink) {
+        String removed;
+        while ((removed = overflowed.poll()) != null) {
+            writeCache.removeAsync(removed);
+        }
+        if (reindex) {
+            reindex = false;
+            reindexOwnedEntries();
+        }
+        String user;
+        while ((user = ready.poll()) != null) {
+            String key = claimHead(user);
+            if (key == null) {
+                continue;
+            }
+            String value = cache.get(key);
+            if (value == null) {
+                // Removed by the previous owner before a topology change
+                release(key, true);
+                continue;
+            }
+            UserSyncData syncData;
+            try {
+                syncData = objectMapper.readValue(value, UserSyncData.class);
+            } catch (IOException e) {
+                logger.warnf("[ClientUserSync] Unreadable event %s in the cluster queue, discarding it", key);
+                writeCache.removeAsync(key);
+                release(key, true);
+                continue;
+            }
+            inFlightKeys.put(syncData, key);
+            if (!sink.test(syncData)) {
+                inFlightKeys.remove(syncData);
+                release(key, false);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Marks the user's oldest event as in flight; returns its key, or null when there is nothing to hand out
+     */
+    private String claimHead(String user) {
+        String[] head = new String[1];
+        users.computeIfPresent(user, (u, entries) -> {
+            entries.queued = false;
+            if (entries.inFlight == null && !entries.keys.isEmpty()) {
+                entries.inFlight = entries.keys.first();
+                head[0] = entries.inFlight;
+            }
+            return entries;
+        });
+        return head[0];
+    }
+
+    @Override
+    public boolean isDistributed() {
+        return true;
+    }
+
+    public int getInFlightCount() {
+        return inFlightKeys.size();
+    }
+
+    /**
+     * Number of events this node removed because it already owned capacity events
+     */
+    public long getOverflowCount() {
+        return overflowCount.get();
+    }
+
+    /**
+     * Number of events this node owns, in flight or waiting
+     */
+    public int getOwnedCount() {
+        return ownedCount.get();
+    }
+
+    /**
+     * Forgets the events in flight; they stay in the cache for the next owner. The cache belongs to
+     * the cache container and is left open.
+     */
+    @Override
+    public void close() {
+        cache.removeListener(this);
+        inFlightKeys.clear();
+        overflowed.clear();
+        users.clear();
+        ready.clear();
+        ownedCount.set(0);
+    }
+
+    /**
+     * Keys of one user's events this node owns, oldest first; guarded by the users map
+     */
+    private static final class UserEntries {
+
+        private final NavigableSet<String> keys = new TreeSet<>();
+        private String inFlight;
+        private boolean queued;
+    }
+}
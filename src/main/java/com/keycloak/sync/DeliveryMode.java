@@ -0,0 +1,24 @@
+package com.keycloak.sync;
+
+/**
+ * Which cluster node delivers an event
+ */
+public enum DeliveryMode {
+
+    /** The node that received the event */
+    LOCAL,
+
+    /** The node owning the user's entry in a distributed Infinispan cache, see ClusterEventQueue */
+    CLUSTER;
+
+    public static DeliveryMode fromString(String value, DeliveryMode defaultValue) {
+        if (value == null || value.trim().isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            return DeliveryMode.valueOf(value.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            return defaultValue;
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package com.keycloak.sync;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.jboss.logging.Logger;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * File-backed FIFO used when the dispatch queue overflows with the SPILL policy.
+ * Events are appended as newline-delimited JSON and read back in order; the file is
+ * truncated once fully drained, and anything left over is picked up again after a restart.
+ */
+public class DiskSpillQueue implements Closeable {
+
+    private static final Logger logger = Logger.getLogger(DiskSpillQueue.class);
+    private static final int READ_CHUNK_SIZE = 64 * 1024;
+
+    private final Path file;
+    private final FileChannel channel;
+    private final ObjectMapper objectMapper;
+    private long readPosition;
+    private long writePosition;
+
+    public DiskSpillQueue(Path file, ObjectMapper objectMapper) throws IOException {
+        Files.createDirectories(file.toAbsolutePath().getParent());
+        this.file = file;
+        this.objectMapper = objectMapper;
+        this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.writePosition = channel.size();
+        if (writePosition > 0) {
+            logger.infof("[ClientUserSync] Found %d bytes of spilled events in %s", writePosition, file);
+        }
+    }
+
+    public synchronized void append(UserSyncData syncData) throws IOException {
+        byte[] json = objectMapper.writeValueAsBytes(syncData);
+        ByteBuffer buffer = ByteBuffer.allocate(json.length + 1);
+        buffer.put(json).put((byte) '\n').flip();
+        while (buffer.hasRemaining()) {
+            writePosition += channel.write(buffer, writePosition);
+        }
+    }
+
+    /**
+     * Reads up to maxEvents spilled events in the order they were appended
+     */
+    public synchronized List<UserSyncData> poll(int maxEvents) throws IOException {
+        List<UserSyncData> events = new ArrayList<>();
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        ByteBuffer chunk = ByteBuffer.allocate(READ_CHUNK_SIZE);
+        long position = readPosition;
+        long consumed = readPosition;
+
+        while (events.size() < maxEvents && position < writePosition) {
+            chunk.clear();
+            int read = channel.read(chunk, position);
+            if (read <= 0) {
+                break;
+            }
+            chunk.flip();
+            while (chunk.hasRemaining() && events.size() < maxEvents) {
+                byte b = chunk.get();
+                position++;
+                if (b != '\n') {
+                    line.write(b);
+                    continue;
+                }
+                consumed = position;
+                if (line.size() > 0) {
+                    try {
+                        events.add(objectMapper.readValue(line.toByteArray(), UserSyncData.class));
+                    } catch (IOException e) {
+                        logger.warnf(e, "[ClientUserSync] Skipping unreadable spilled event in %s", file);
+                    }
+                    line.reset();
+                }
+            }
+        }
+
+        readPosition = consumed;
+        if (readPosition >= writePosition) {
+            channel.truncate(0);
+            readPosition = 0;
+            writePosition = 0;
+        }
+        return events;
+    }
+
+    public synchronized boolean isEmpty() {
+        return readPosition >= writePosition;
+    }
+
+    public synchronized long getBacklogBytes() {
+        return writePosition - readPosition;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (readPosition > 0 && readPosition < writePosition) {
+            compact();
+        }
+        channel.force(true);
+        channel.close();
+    }
+
+    /**
+     * Drops the already-consumed prefix so a restart does not replay delivered events
+     */
+    private void compact() throws IOException {
+        long remaining = writePosition - readPosition;
+        ByteBuffer buffer = ByteBuffer.allocate(READ_CHUNK_SIZE);
+        long source = readPosition;
+        long target = 0;
+        while (source < writePosition) {
+            buffer.clear();
+            if (writePosition - source < buffer.capacity()) {
+                buffer.limit((int) (writePosition - source));
+            }
+            int read = channel.read(buffer, source);
+            if (read <= 0) {
+                break;
+            }
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                target += channel.write(buffer, target);
+            }
+            source += read;
+        }
+        channel.truncate(remaining);
+        readPosition = 0;
+        writePosition = remaining;
+    }
+}
@@ -0,0 +1,256 @@
+package com.keycloak.sync;
+
+import org.jboss.logging.Logger;
+import org.keycloak.events.EventType;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Merges bursts of events for the same user into one record before they are queued.
+ * The first event for a realm and user (and client, with coalesceByClient) opens a window of
+ * coalesceWindowMs. Later events of the same type for the same key replace the held event of that
+ * type, so each record passed on when the window closes has the latest profile of its type, plus
+ * eventCount and the first and last timestamps. Events of different types are never merged into one
+ * another; their records are passed on in the order the types first occurred in the window.
+ * Event IDs already seen within the window are dropped as duplicates.
+ * Registrations, account deletions and admin delta records are never merged: they close the window
+ * of their key and are passed on right away, keeping their order after the merged record.
+ */
+public class EventCoalescer {
+
+    private static final Logger logger = Logger.getLogger(EventCoalescer.class);
+    private static final Set<String> UNMERGED_EVENT_TYPES = Set.of(EventType.REGISTER.name(), EventType.DELETE_ACCOUNT.name());
+
+    private final Consumer<UserSyncData> downstream;
+    private final long windowMillis;
+    private final boolean byClient;
+    private final int maxPending;
+    private final ConcurrentMap<String, Window> pending = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Long> seenEventIds = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService scheduler;
+    private final SyncMetrics metrics;
+    private final LongAdder mergedCount = new LongAdder();
+    private final LongAdder duplicateCount = new LongAdder();
+    private volatile boolean running = true;
+
+    /**
+     * @param downstream receives the records once their window closes, usually the dispatcher
+     * @param metrics    counts merged and duplicate events
+     */
+    public EventCoalescer(ClientUserSyncConfig config, String name, Consumer<UserSyncData> downstream, SyncMetrics metrics) {
+        this.downstream = downstream;
+        this.metrics = metrics;
+        this.windowMillis = Math.max(1, config.getCoalesceWindowMs());
+        this.byClient = config.isCoalesceByClient();
+        // Users beyond the queue capacity are not held back, so the window cannot grow without bound
+        this.maxPending = Math.max(1, config.getQueueCapacity());
+
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread thread = new Thread(runnable, "client-user-sync-" + name + "-coalesce");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.setRemoveOnCancelPolicy(true);
+        this.scheduler = executor;
+        scheduler.scheduleAtFixedRate(this::purgeSeenEventIds, windowMillis, windowMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Holds the event in its user's window, or passes it on when it cannot be merged
+     */
+    public void offer(UserSyncData syncData) {
+        if (!running) {
+            downstream.accept(syncData);
+            return;
+        }
+        if (isDuplicate(syncData.getEventId())) {
+            duplicateCount.increment();
+            metrics.count(SyncMetrics.Outcome.DUPLICATE, syncData);
+            logger.debugf("[ClientUserSync] Dropped duplicate event: eventId=%s, userId=%s", syncData.getEventId(), syncData.getUserId());
+            return;
+        }
+        if (syncData.getUserId() == null) {
+            downstream.accept(syncData);
+            return;
+        }
+
+        String key = key(syncData);
+        if (syncData.getChanges() != null || UNMERGED_EVENT_TYPES.contains(syncData.getEventType())) {
+            flush(key);
+            downstream.accept(syncData);
+            return;
+        }
+        if (pending.size() >= maxPending && !pending.containsKey(key)) {
+            downstream.accept(syncData);
+            return;
+        }
+
+        Window[] opened = new Window[1];
+        pending.compute(key, (k, window) -> {
+            if (window == null) {
+                opened[0] = new Window(syncData);
+                return opened[0];
+            }
+            if (window.add(syncData)) {
+                mergedCount.increment();
+                metrics.count(SyncMetrics.Outcome.MERGED, syncData);
+            }
+            return window;
+        });
+        if (opened[0] != null) {
+            Window window = opened[0];
+            try {
+                scheduler.schedule(() -> close(key, window), windowMillis, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                close(key, window);
+            }
+        }
+    }
+
+    private String key(UserSyncData syncData) {
+        String key = UserSnapshotCache.key(syncData.getRealmId(), syncData.getUserId());
+        return byClient ? key + '/' + syncData.getClientId() : key;
+    }
+
+    /**
+     * Records the event ID and reports whether it was already seen within the window
+     */
+    private boolean isDuplicate(String eventId) {
+        if (eventId == null) {
+            return false;
+        }
+        long now = System.currentTimeMillis();
+        Long expiresAt = seenEventIds.putIfAbsent(eventId, now + windowMillis);
+        if (expiresAt == null) {
+            return false;
+        }
+        if (expiresAt > now) {
+            return true;
+        }
+        seenEventIds.put(eventId, now + windowMillis);
+        return false;
+    }
+
+    private void purgeSeenEventIds() {
+        long now = System.currentTimeMillis();
+        seenEventIds.values().removeIf(expiresAt -> expiresAt <= now);
+    }
+
+    /**
+     * Passes on the record of the given window, unless it was already closed early
+     */
+    private void close(String key, Window window) {
+        if (pending.remove(key, window)) {
+            window.toRecords().forEach(downstream);
+        }
+    }
+
+    private void flush(String key) {
+        Window window = pending.remove(key);
+        if (window != null) {
+            window.toRecords().forEach(downstream);
+        }
+    }
+
+    public int getPendingCount() {
+        return pending.size();
+    }
+
+    public long getMergedCount() {
+        return mergedCount.sum();
+    }
+
+    public long getDuplicateCount() {
+        return duplicateCount.sum();
+    }
+
+    /**
+     * Stops holding events back and passes on every open window right away
+     */
+    public void close() {
+        running = false;
+        scheduler.shutdownNow();
+        pending.keySet().forEach(this::flush);
+    }
+
+    /**
+     * Events of one key within one window, by event type in order of first occurrence; only touched
+     * inside ConcurrentHashMap.compute
+     */
+    private static final class Window {
+        private final Map<String, Merged> byType = new LinkedHashMap<>();
+
+        private Window(UserSyncData syncData) {
+            add(syncData);
+        }
+
+        /**
+         * Returns true when the event was merged into an earlier one of its type
+         */
+        private boolean add(UserSyncData syncData) {
+            Merged merged = byType.get(syncData.getEventType());
+            if (merged == null) {
+                byType.put(syncData.getEventType(), new Merged(syncData));
+                return false;
+            }
+            merged.merge(syncData);
+            return true;
+        }
+
+        private List<UserSyncData> toRecords() {
+            List<UserSyncData> records = new ArrayList<>(byType.size());
+            for (Merged merged : byType.values()) {
+                records.add(merged.toRecord());
+            }
+            return records;
+        }
+    }
+
+    /**
+     * Events of one type within a window
+     */
+    private static final class Merged {
+        private UserSyncData latest;
+        private int count;
+        private Long firstTimestamp;
+        private Long lastTimestamp;
+
+        private Merged(UserSyncData syncData) {
+            this.latest = syncData;
+            this.count = 1;
+            this.firstTimestamp = syncData.getTimestamp();
+            this.lastTimestamp = syncData.getTimestamp();
+        }
+
+        private void merge(UserSyncData syncData) {
+            latest = syncData;
+            count++;
+            Long timestamp = syncData.getTimestamp();
+            if (timestamp != null) {
+                firstTimestamp = firstTimestamp == null ? timestamp : Math.min(firstTimestamp, timestamp);
+                lastTimestamp = lastTimestamp == null ? timestamp : Math.max(lastTimestamp, timestamp);
+            }
+        }
+
+        private UserSyncData toRecord() {
+            if (count > 1) {
+                latest.setEventCount(count);
+                latest.setFirstTimestamp(firstTimestamp);
+                latest.setLastTimestamp(lastTimestamp);
+            }
+            return latest;
+        }
+    }
+}
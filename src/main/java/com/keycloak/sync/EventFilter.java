@@ -0,0 +1,199 @@
+package com.keycloak.sync;
+
+import org.keycloak.events.EventType;
+
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Decides which events are synced, compiled once per configuration.
+ * Event types live in EnumSets (a bit test per lookup) and client IDs in an immutable open-addressing
+ * table whose hash multiplier is chosen at build time so that, in the common case, every client ID has
+ * its own slot. Rejecting an event allocates nothing.
+ * eventTypes apply to every allowed client (all clients when clientIds is empty), clientEventTypes add
+ * types for single clients; a client named only in clientEventTypes is allowed for those types.
+ */
+public class EventFilter {
+
+    private static final Set<EventType> DEFAULT_EVENT_TYPES = EnumSet.of(EventType.LOGIN, EventType.REGISTER);
+
+    private final EnumSet<EventType> anyClientTypes;
+    private final EnumSet<EventType> defaultClientTypes;
+    private final ClientTable clients;
+
+    private EventFilter(EnumSet<EventType> anyClientTypes, EnumSet<EventType> defaultClientTypes, ClientTable clients) {
+        this.anyClientTypes = anyClientTypes;
+        this.defaultClientTypes = defaultClientTypes;
+        this.clients = clients;
+    }
+
+    public static EventFilter compile(ClientUserSyncConfig config) {
+        EnumSet<EventType> eventTypes = EnumSet.noneOf(EventType.class);
+        if (config.getEventTypes() == null || config.getEventTypes().isEmpty()) {
+            eventTypes.addAll(DEFAULT_EVENT_TYPES);
+        } else {
+            eventTypes.addAll(config.getEventTypes());
+        }
+        Set<String> clientIds = config.getClientIds() != null ? config.getClientIds() : Collections.emptySet();
+        Map<String, Set<EventType>> clientEventTypes = config.getClientEventTypes() != null
+                ? config.getClientEventTypes()
+                : Collections.emptyMap();
+        boolean allClients = clientIds.isEmpty();
+
+        Map<String, EnumSet<EventType>> rules = new HashMap<>();
+        for (String clientId : clientIds) {
+            rules.put(clientId, EnumSet.copyOf(eventTypes));
+        }
+        clientEventTypes.forEach((clientId, types) -> {
+            EnumSet<EventType> rule = rules.computeIfAbsent(clientId, key -> allClients
+                    ? EnumSet.copyOf(eventTypes)
+                    : EnumSet.noneOf(EventType.class));
+            rule.addAll(types);
+        });
+
+        EnumSet<EventType> anyClientTypes = allClients ? EnumSet.copyOf(eventTypes) : EnumSet.noneOf(EventType.class);
+        rules.values().forEach(anyClientTypes::addAll);
+        EnumSet<EventType> defaultClientTypes = allClients ? eventTypes : EnumSet.noneOf(EventType.class);
+        return new EventFilter(anyClientTypes, defaultClientTypes, ClientTable.build(rules));
+    }
+
+    /**
+     * Combines the filters of several sinks into one that accepts an event when any of them does;
+     * the listener checks it before extracting the event once for all sinks
+     */
+    public static EventFilter union(List<EventFilter> filters) {
+        EnumSet<EventType> anyClientTypes = EnumSet.noneOf(EventType.class);
+        EnumSet<EventType> defaultClientTypes = EnumSet.noneOf(EventType.class);
+        Set<String> clientIds = new HashSet<>();
+        for (EventFilter filter : filters) {
+            anyClientTypes.addAll(filter.anyClientTypes);
+            defaultClientTypes.addAll(filter.defaultClientTypes);
+            filter.clients.collectClientIds(clientIds);
+        }
+
+        Map<String, EnumSet<EventType>> rules = new HashMap<>();
+        for (String clientId : clientIds) {
+            EnumSet<EventType> rule = EnumSet.noneOf(EventType.class);
+            for (EventFilter filter : filters) {
+                EnumSet<EventType> own = filter.clients.get(clientId);
+                rule.addAll(own != null ? own : filter.defaultClientTypes);
+            }
+            rules.put(clientId, rule);
+        }
+        return new EventFilter(anyClientTypes, defaultClientTypes, ClientTable.build(rules));
+    }
+
+    /**
+     * Whether an event of the given type for the given client (which may be null) is synced
+     */
+    public boolean accepts(EventType type, String clientId) {
+        if (type == null || !anyClientTypes.contains(type)) {
+            return false;
+        }
+        EnumSet<EventType> rule = clients.get(clientId);
+        return rule != null ? rule.contains(type) : defaultClientTypes.contains(type);
+    }
+
+    /**
+     * Whether the client is named in clientIds or clientEventTypes
+     */
+    public boolean isListed(String clientId) {
+        return clients.get(clientId) != null;
+    }
+
+    /**
+     * Immutable client ID to rule table with linear probing. The multiplier of the slot hash is
+     * searched at build time for one without collisions, so lookups usually touch a single slot.
+     */
+    private static final class ClientTable {
+
+        private static final int MULTIPLIER_CANDIDATES = 64;
+
+        private final String[] keys;
+        private final EnumSet<EventType>[] values;
+        private final int multiplier;
+        private final int shift;
+        private final int mask;
+
+        private ClientTable(String[] keys, EnumSet<EventType>[] values, int multiplier, int shift) {
+            this.keys = keys;
+            this.values = values;
+            this.multiplier = multiplier;
+            this.shift = shift;
+            this.mask = keys.length - 1;
+        }
+
+        @SuppressWarnings("unchecked")
+        static ClientTable build(Map<String, EnumSet<EventType>> rules) {
+            int bits = Math.max(1, 32 - Integer.numberOfLeadingZeros(Math.max(1, rules.size() * 2 - 1)));
+            int size = 1 << bits;
+            int shift = 32 - bits;
+            int multiplier = findMultiplier(rules.keySet(), size, shift);
+
+            String[] keys = new String[size];
+            EnumSet<EventType>[] values = new EnumSet[size];
+            rules.forEach((clientId, rule) -> {
+                int index = slot(clientId.hashCode(), multiplier, shift);
+                while (keys[index] != null) {
+                    index = (index + 1) & (size - 1);
+                }
+                keys[index] = clientId;
+                values[index] = rule;
+            });
+            return new ClientTable(keys, values, multiplier, shift);
+        }
+
+        private static int findMultiplier(Set<String> clientIds, int size, int shift) {
+            int candidate = 0x9E3779B9;
+            for (int attempt = 0; attempt < MULTIPLIER_CANDIDATES; attempt++) {
+                boolean[] used = new boolean[size];
+                boolean collision = false;
+                for (String clientId : clientIds) {
+                    int index = slot(clientId.hashCode(), candidate, shift);
+                    if (used[index]) {
+                        collision = true;
+                        break;
+                    }
+                    used[index] = true;
+                }
+                if (!collision) {
+                    return candidate;
+                }
+                candidate += 0x61C88646;
+            }
+            return 0x9E3779B9;
+        }
+
+        private static int slot(int hash, int multiplier, int shift) {
+            return (hash * multiplier) >>> shift;
+        }
+
+        EnumSet<EventType> get(String clientId) {
+            if (clientId == null) {
+                return null;
+            }
+            int index = slot(clientId.hashCode(), multiplier, shift);
+            String key;
+            while ((key = keys[index]) != null) {
+                if (key.equals(clientId)) {
+                    return values[index];
+                }
+                index = (index + 1) & mask;
+            }
+            return null;
+        }
+
+        void collectClientIds(Set<String> clientIds) {
+            for (String key : keys) {
+                if (key != null) {
+                    clientIds.add(key);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package com.keycloak.sync;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.function.Predicate;
+
+/**
+ * Durable record of events between acceptance and delivery, shared by successive dispatchers of a realm.
+ * The dispatcher acknowledges events once they are delivered or given up on, abandons the ones it
+ * stops working on, and keeps replaying the journal to pick up events it does not hold in memory.
+ */
+public interface EventJournal extends Closeable {
+
+    /**
+     * Records an accepted event and keeps it pending until acknowledged
+     */
+    void append(UserSyncData syncData) throws IOException;
+
+    /**
+     * Records an accepted event without waiting for a distributed journal to store it; the stage
+     * fails when the event could not be recorded
+     */
+    default CompletionStage<Void> appendAsync(UserSyncData syncData) {
+        try {
+            append(syncData);
+            return CompletableFuture.completedFuture(null);
+        } catch (IOException | RuntimeException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    /**
+     * Marks an event as done, either delivered or deliberately given up on
+     */
+    void acknowledge(UserSyncData syncData);
+
+    /**
+     * Hands back a pending event its sender stopped working on, so the next replay picks it up
+     */
+    void abandon(UserSyncData syncData);
+
+    /**
+     * Feeds pending events that no sender is working on to the sink until it refuses one.
+     * Returns true when everything was fed.
+     */
+    boolean replay(Predicate<UserSyncData> sink);
+
+    /**
+     * Adds a callback run whenever events become available to replay, e.g. abandoned events or those
+     * handed over by a node that left; the dispatcher waits for it instead of polling
+     */
+    void addReplayListener(Runnable listener);
+
+    /**
+     * Removes a callback added by a dispatcher that closed
+     */
+    void removeReplayListener(Runnable listener);
+
+    /**
+     * Whether new events are only appended here rather than also queued on the receiving node,
+     * leaving delivery to the node that replays them
+     */
+    default boolean isDistributed() {
+        return false;
+    }
+}
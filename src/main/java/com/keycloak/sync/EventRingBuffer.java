@@ -0,0 +1,124 @@
+package com.keycloak.sync;
+
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bounded, preallocated multi-producer/multi-consumer ring buffer.
+ * Each slot carries a sequence number so producers and consumers claim slots with a single CAS
+ * and never take a lock. Capacity is rounded up to the next power of two.
+ */
+public class EventRingBuffer<E> {
+
+    private final int capacity;
+    private final int mask;
+    private final Object[] slots;
+    private final AtomicLongArray sequences;
+    private final AtomicLong producerIndex = new AtomicLong();
+    private final AtomicLong consumerIndex = new AtomicLong();
+
+    public EventRingBuffer(int requestedCapacity) {
+        this.capacity = roundUpToPowerOfTwo(Math.max(2, requestedCapacity));
+        this.mask = capacity - 1;
+        this.slots = new Object[capacity];
+        this.sequences = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            sequences.set(i, i);
+        }
+    }
+
+    private static int roundUpToPowerOfTwo(int value) {
+        int highest = Integer.highestOneBit(value);
+        if (highest == value) {
+            return value;
+        }
+        if (highest >= (1 << 30)) {
+            return 1 << 30;
+        }
+        return highest << 1;
+    }
+
+    /**
+     * Adds an element, returning false without waiting when the buffer is full
+     */
+    public boolean offer(E element) {
+        if (element == null) {
+            throw new NullPointerException("element");
+        }
+        long position = producerIndex.get();
+        while (true) {
+            int index = (int) (position & mask);
+            long difference = sequences.get(index) - position;
+            if (difference == 0) {
+                if (producerIndex.compareAndSet(position, position + 1)) {
+                    slots[index] = element;
+                    sequences.set(index, position + 1);
+                    return true;
+                }
+                position = producerIndex.get();
+            } else if (difference < 0) {
+                return false;
+            } else {
+                position = producerIndex.get();
+            }
+        }
+    }
+
+    /**
+     * Removes the oldest element, returning null when the buffer is empty
+     */
+    @SuppressWarnings("unchecked")
+    public E poll() {
+        long position = consumerIndex.get();
+        while (true) {
+            int index = (int) (position & mask);
+            long difference = sequences.get(index) - (position + 1);
+            if (difference == 0) {
+                if (consumerIndex.compareAndSet(position, position + 1)) {
+                    E element = (E) slots[index];
+                    slots[index] = null;
+                    sequences.set(index, position + capacity);
+                    return element;
+                }
+                position = consumerIndex.get();
+            } else if (difference < 0) {
+                return null;
+            } else {
+                position = consumerIndex.get();
+            }
+        }
+    }
+
+    /**
+     * Moves up to maxElements into the target collection, returning how many were moved
+     */
+    public int drainTo(Collection<? super E> target, int maxElements) {
+        int drained = 0;
+        while (drained < maxElements) {
+            E element = poll();
+            if (element == null) {
+                break;
+            }
+            target.add(element);
+            drained++;
+        }
+        return drained;
+    }
+
+    public int size() {
+        long size = producerIndex.get() - consumerIndex.get();
+        if (size < 0) {
+            return 0;
+        }
+        return (int) Math.min(size, capacity);
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+}
@@ -0,0 +1,132 @@
+package com.keycloak.sync;
+
+import org.jboss.logging.Logger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sink that appends events as NDJSON lines to rolling files in fileDirectory, for log shippers and
+ * bulk loaders that pick the files up. Each batch is written into a pooled buffer and appended with a
+ * single channel write, so sender threads only contend for the write itself. A file is rolled over
+ * when the next batch would grow it beyond fileMaxSizeMb or it is older than fileRolloverInterval;
+ * rolled files are forced to disk, the current one on close. An event counts as delivered once it is
+ * in the page cache, so a crash of the machine can lose the last few seconds of the current file.
+ */
+public class FileSyncSink implements SyncSink {
+
+    private static final Logger logger = Logger.getLogger(FileSyncSink.class);
+    private static final String FILE_SUFFIX = ".ndjson";
+    private static final DateTimeFormatter FILE_TIME = DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss").withZone(ZoneOffset.UTC);
+
+    private final Path directory;
+    private final String filePrefix;
+    private final long maxFileBytes;
+    private final long rolloverNanos;
+    private final UserSyncDataWriter writer = new UserSyncDataWriter(PayloadEncoding.JSON);
+    private final PayloadBufferPool bufferPool;
+    private final SyncMetrics metrics;
+    private final Object lock = new Object();
+    private FileChannel channel;
+    private long fileBytes;
+    private long fileOpenedAt;
+    private int fileSequence;
+    private boolean closed;
+
+    public FileSyncSink(ClientUserSyncConfig config, String name, SyncMetrics metrics) {
+        this.directory = Paths.get(config.getFileDirectory());
+        this.filePrefix = name.isEmpty() ? "global" : name.replaceAll("[^A-Za-z0-9._-]", "_");
+        this.maxFileBytes = Math.max(1, config.getFileMaxSizeMb()) * 1024L * 1024L;
+        this.rolloverNanos = config.getFileRolloverInterval() > 0
+                ? TimeUnit.SECONDS.toNanos(config.getFileRolloverInterval())
+                : Long.MAX_VALUE;
+        this.bufferPool = new PayloadBufferPool(Math.max(1, config.getThreadPoolSize()));
+        this.metrics = metrics;
+    }
+
+    @Override
+    public CompletableFuture<SyncResult> send(List<UserSyncData> events) {
+        PayloadBuffer buffer = bufferPool.acquire();
+        try {
+            long start = System.nanoTime();
+            writer.write(events, BatchFormat.NDJSON, buffer);
+            metrics.recordSerialization(System.nanoTime() - start);
+            metrics.recordPayloadSize(buffer.size());
+            append(buffer);
+            return CompletableFuture.completedFuture(SyncResult.DELIVERED);
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        } finally {
+            bufferPool.release(buffer);
+        }
+    }
+
+    private void append(PayloadBuffer buffer) throws IOException {
+        ByteBuffer bytes = ByteBuffer.wrap(buffer.array(), 0, buffer.size());
+        synchronized (lock) {
+            if (closed) {
+                throw new IOException("File sink is closed");
+            }
+            long now = System.nanoTime();
+            if (channel == null || (fileBytes > 0 && (fileBytes + buffer.size() > maxFileBytes || now - fileOpenedAt >= rolloverNanos))) {
+                roll(now);
+            }
+            try {
+                while (bytes.hasRemaining()) {
+                    channel.write(bytes);
+                }
+            } catch (IOException e) {
+                // The file may end in a partial line now; the retried batch goes to a new file
+                closeFile();
+                throw e;
+            }
+            fileBytes += buffer.size();
+        }
+    }
+
+    /**
+     * Closes the current file and opens the next one; a file of the same name left by an earlier
+     * run is appended to
+     */
+    private void roll(long now) throws IOException {
+        closeFile();
+        Files.createDirectories(directory);
+        Path file = directory.resolve(filePrefix + '-' + FILE_TIME.format(Instant.now()) + '-' + fileSequence++ + FILE_SUFFIX);
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        fileBytes = channel.size();
+        fileOpenedAt = now;
+        logger.debugf("[ClientUserSync] Writing events to %s", file);
+    }
+
+    private void closeFile() {
+        if (channel == null) {
+            return;
+        }
+        try {
+            channel.force(false);
+            channel.close();
+        } catch (IOException e) {
+            logger.warnf(e, "[ClientUserSync] Failed to close event file in %s", directory);
+        }
+        channel = null;
+    }
+
+    @Override
+    public void close() {
+        synchronized (lock) {
+            closed = true;
+            closeFile();
+        }
+    }
+}
@@ -0,0 +1,204 @@
+package com.keycloak.sync;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.hc.core5.http.ContentType;
+import org.apache.hc.core5.pool.PoolStats;
+import org.jboss.logging.Logger;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+/**
+ * Sink that POSTs events to the apiEndpoint, one per request or, with batchEnabled, a batch per request.
+ * Bodies are written into pooled buffers, compressed and handed to the transport without copying.
+ */
+public class HttpSyncSink implements SyncSink {
+
+    private static final Logger logger = Logger.getLogger(HttpSyncSink.class);
+
+    private final ClientUserSyncConfig config;
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final UserSyncDataWriter payloadWriter;
+    private final PayloadBufferPool payloadPool;
+    private final PayloadCompressor payloadCompressor;
+    private final ContentType singleContentType;
+    private final ContentType batchContentType;
+    private final HttpTransport transport;
+    private final SyncMetrics metrics;
+
+    /**
+     * @param completionExecutor completes the requests of the async transport
+     */
+    public HttpSyncSink(ClientUserSyncConfig config, String name, SyncMetrics metrics, Executor completionExecutor) {
+        this.config = config;
+        this.metrics = metrics;
+        this.payloadWriter = new UserSyncDataWriter(config.getPayloadEncoding());
+        int outstandingRequests = config.getTransportMode().isBoundedByMaxInFlight()
+                ? config.getMaxInFlight()
+                : config.getThreadPoolSize();
+        this.payloadPool = new PayloadBufferPool(outstandingRequests);
+        this.payloadCompressor = new PayloadCompressor(config.getPayloadCompression(), Math.max(1, config.getThreadPoolSize()));
+        this.singleContentType = ContentType.parse(config.getPayloadEncoding().getContentType());
+        this.batchContentType = ContentType.parse(config.getPayloadEncoding().getBatchContentType(config.getBatchFormat()));
+        this.transport = HttpTransport.create(config, name, completionExecutor);
+    }
+
+    @Override
+    public CompletableFuture<SyncResult> send(List<UserSyncData> events) {
+        try {
+            if (!config.isBatchEnabled()) {
+                return sendToExternalApi(events.get(0)).thenApply(ignored -> SyncResult.DELIVERED);
+            }
+            return sendBatchToExternalApi(events);
+        } catch (IOException e) {
+            // Serialization failures are not the endpoint's fault and retrying cannot fix them
+            return CompletableFuture.failedFuture(new UncheckedIOException(e));
+        }
+    }
+
+    /**
+     * Posts the body and returns the payload buffer to the pool once the request is finished
+     */
+    private CompletableFuture<SyncResponse> post(PayloadBuffer payload, ContentType contentType) {
+        long start = System.nanoTime();
+        return transport.post(payload, contentType).whenComplete((response, error) -> {
+            payloadPool.release(payload);
+            metrics.recordRequest(response != null ? response.getStatusCode() : 0, System.nanoTime() - start);
+        });
+    }
+
+    /**
+     * Sends data to external API
+     */
+    private CompletableFuture<Void> sendToExternalApi(UserSyncData syncData) throws IOException {
+        PayloadBuffer payload = payloadPool.acquire();
+        long start = System.nanoTime();
+        try {
+            payloadWriter.write(syncData, payload);
+            payload = payloadCompressor.compress(payload, payloadPool);
+            metrics.recordSerialization(System.nanoTime() - start);
+        } catch (IOException e) {
+            payloadPool.release(payload);
+            throw e;
+        }
+        metrics.recordPayloadSize(payload.size());
+
+        return post(payload, singleContentType).thenAccept(response -> {
+            int statusCode = response.getStatusCode();
+
+            if (response.isSuccessful()) {
+                logger.debugf("Successfully synced user data: userId=%s, statusCode=%d",
+                        syncData.getUserId(), statusCode);
+            } else {
+                throw new SyncException(response);
+            }
+        });
+    }
+
+    /**
+     * Sends several events in one request and completes with the events the API reported as failed
+     */
+    private CompletableFuture<SyncResult> sendBatchToExternalApi(List<UserSyncData> events) throws IOException {
+        BatchFormat format = config.getBatchFormat();
+        PayloadBuffer payload = payloadPool.acquire();
+        long start = System.nanoTime();
+        try {
+            payloadWriter.write(events, format, payload);
+            payload = payloadCompressor.compress(payload, payloadPool);
+            metrics.recordSerialization(System.nanoTime() - start);
+        } catch (IOException e) {
+            payloadPool.release(payload);
+            throw e;
+        }
+        metrics.recordPayloadSize(payload.size());
+
+        return post(payload, batchContentType).thenApply(response -> {
+            int statusCode = response.getStatusCode();
+
+            if (!response.isSuccessful()) {
+                throw new SyncException(response);
+            }
+            logger.debugf("Successfully synced batch: events=%d, statusCode=%d", events.size(), statusCode);
+            return readResults(events, response.getBody());
+        });
+    }
+
+    /**
+     * Reads per-item results from a batch response. The body may be an array of results or an object
+     * with a "results" array; each result names its eventId and reports failure through
+     * "success": false or a non-2xx "status". A body without results means every event was accepted.
+     * Items failing with a non-retryable status are returned as rejected, other failures as pending.
+     * A failure that names no event of the batch fails the whole batch, since any of its events may
+     * be the one that was not accepted.
+     */
+    private SyncResult readResults(List<UserSyncData> events, String body) {
+        if (body == null || body.trim().isEmpty()) {
+            return SyncResult.DELIVERED;
+        }
+        JsonNode results;
+        try {
+            JsonNode root = objectMapper.readTree(body);
+            results = root.isArray() ? root : root.path("results");
+        } catch (IOException e) {
+            logger.debugf("Batch response is not JSON, treating all events as accepted");
+            return SyncResult.DELIVERED;
+        }
+        if (!results.isArray() || results.size() == 0) {
+            return SyncResult.DELIVERED;
+        }
+
+        Map<String, UserSyncData> byId = new HashMap<>(events.size() * 2);
+        for (UserSyncData event : events) {
+            byId.put(event.getEventId(), event);
+        }
+        List<UserSyncData> pending = new ArrayList<>();
+        List<UserSyncData> rejected = new ArrayList<>();
+        Set<String> reported = new HashSet<>();
+        for (JsonNode result : results) {
+            int status = result.path("status").asInt(200);
+            boolean failed = (result.has("success") && !result.path("success").asBoolean(true))
+                    || status < 200 || status >= 300;
+            if (!failed) {
+                continue;
+            }
+            String eventId = result.hasNonNull("eventId") ? result.path("eventId").asText() : null;
+            UserSyncData event = eventId != null ? byId.get(eventId) : null;
+            if (event == null) {
+                logger.warnf("API reported a failure without a known eventId, retrying all %d events of the batch", events.size());
+                return SyncResult.retryAll(events);
+            }
+            if (!reported.add(eventId)) {
+                continue;
+            }
+            if (result.has("status") && !RetryPolicy.isRetryableStatus(status)) {
+                rejected.add(event);
+            } else {
+                pending.add(event);
+            }
+        }
+        if (!rejected.isEmpty()) {
+            logger.errorf("API permanently rejected %d events in batch, first eventId: %s", rejected.size(), rejected.get(0).getEventId());
+        }
+        return pending.isEmpty() && rejected.isEmpty() ? SyncResult.DELIVERED : new SyncResult(pending, rejected);
+    }
+
+    @Override
+    public PoolStats getPoolStats() {
+        return transport.getPoolStats();
+    }
+
+    @Override
+    public void close() throws IOException {
+        payloadCompressor.close();
+        transport.close();
+    }
+}
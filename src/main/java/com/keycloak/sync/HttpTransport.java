@@ -0,0 +1,85 @@
+package com.keycloak.sync;
+
+import org.apache.hc.client5.http.config.ConnectionConfig;
+import org.apache.hc.core5.http.ContentType;
+import org.apache.hc.core5.http.Header;
+import org.apache.hc.core5.http.message.BasicHeader;
+import org.apache.hc.core5.pool.PoolStats;
+import org.apache.hc.core5.util.TimeValue;
+import org.apache.hc.core5.util.Timeout;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+/**
+ * Sends request bodies to the configured external API endpoint
+ */
+public interface HttpTransport extends Closeable {
+
+    /**
+     * POSTs the written bytes of the body to the endpoint without copying them. The caller must not
+     * reuse the buffer until the future is complete. The future completes with the response for any
+     * status code and completes exceptionally only on I/O errors.
+     */
+    CompletableFuture<SyncResponse> post(PayloadBuffer body, ContentType contentType);
+
+    /**
+     * Leased, pending and available connections of the underlying connection pool
+     */
+    PoolStats getPoolStats();
+
+    /**
+     * @param completionExecutor completes the futures of a transport whose responses arrive on I/O threads
+     */
+    static HttpTransport create(ClientUserSyncConfig config, String name, Executor completionExecutor) {
+        if (config.getTransportMode() == TransportMode.ASYNC) {
+            return new AsyncHttpTransport(config, name, completionExecutor);
+        }
+        if (config.getTransportMode() == TransportMode.VIRTUAL) {
+            return VirtualThreadHttpTransport.create(config, name);
+        }
+        return new ClassicHttpTransport(config);
+    }
+
+    /**
+     * Connection settings shared by the classic and async pools
+     */
+    static ConnectionConfig connectionConfig(ClientUserSyncConfig config) {
+        ConnectionConfig.Builder builder = ConnectionConfig.custom()
+                .setConnectTimeout(Timeout.ofSeconds(config.getConnectionTimeout()))
+                .setValidateAfterInactivity(TimeValue.ofMilliseconds(config.getValidateAfterInactivityMs()));
+        if (config.getConnectionTtl() > 0) {
+            builder.setTimeToLive(TimeValue.ofSeconds(config.getConnectionTtl()));
+        }
+        return builder.build();
+    }
+
+    /**
+     * Builds the static request headers (custom headers, authorization and content encoding) once per configuration
+     */
+    static List<Header> requestHeaders(ClientUserSyncConfig config) {
+        List<Header> headers = new ArrayList<>();
+        headers.add(new BasicHeader("Accept", "application/json"));
+
+        if (config.getApiHeaders() != null && !config.getApiHeaders().isEmpty()) {
+            config.getApiHeaders().forEach((name, value) -> headers.add(new BasicHeader(name, value)));
+        }
+
+        if (config.getApiToken() != null && !config.getApiToken().trim().isEmpty()) {
+            String authHeader = config.getApiAuthType().equals("Bearer")
+                    ? "Bearer " + config.getApiToken()
+                    : config.getApiToken();
+            headers.add(new BasicHeader("Authorization", authHeader));
+        }
+
+        String contentEncoding = config.getPayloadCompression().getContentEncoding();
+        if (contentEncoding != null) {
+            headers.add(new BasicHeader("Content-Encoding", contentEncoding));
+        }
+        return Collections.unmodifiableList(headers);
+    }
+}
@@ -0,0 +1,234 @@
+package com.keycloak.sync;
+
+import org.apache.kafka.clients.producer.KafkaProducer;
+import org.apache.kafka.clients.producer.Producer;
+import org.apache.kafka.clients.producer.ProducerConfig;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.errors.RetriableException;
+import org.apache.kafka.common.header.Header;
+import org.apache.kafka.common.header.internals.RecordHeader;
+import org.apache.kafka.common.serialization.ByteArraySerializer;
+import org.apache.kafka.common.serialization.StringSerializer;
+import org.jboss.logging.Logger;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Sink that produces one record per event to kafkaTopic, keyed by userId so that a user's events land
+ * in one partition in order. Batching, linger and compression are the producer's (kafkaBatchSize,
+ * kafkaLingerMs, kafkaCompression); payloadCompression does not apply. A batch completes once every
+ * record was acknowledged according to kafkaAcks.
+ * <p>
+ * The producer is created on the first send, and again after a failed attempt, so a cluster that is
+ * unreachable at startup only delays delivery. Tests can pass their own Producer, such as Kafka's
+ * MockProducer or one connected to an embedded broker.
+ */
+public class KafkaSyncSink implements SyncSink {
+
+    private static final Logger logger = Logger.getLogger(KafkaSyncSink.class);
+
+    private final ClientUserSyncConfig config;
+    private final String name;
+    private final String topic;
+    private final List<Header> headers;
+    private final UserSyncDataWriter writer;
+    private final PayloadBufferPool bufferPool;
+    private final SyncMetrics metrics;
+    private final LogSampler failureLog;
+    private volatile Producer<String, byte[]> producer;
+
+    public KafkaSyncSink(ClientUserSyncConfig config, String name, SyncMetrics metrics) {
+        this(config, name, metrics, null);
+    }
+
+    /**
+     * @param producer producer to send through, or null to create one from the configuration
+     */
+    public KafkaSyncSink(ClientUserSyncConfig config, String name, SyncMetrics metrics, Producer<String, byte[]> producer) {
+        this.config = config;
+        this.name = name;
+        this.topic = config.getKafkaTopic();
+        this.headers = Collections.singletonList(new RecordHeader("content-type",
+                config.getPayloadEncoding().getContentType().getBytes(StandardCharsets.UTF_8)));
+        this.writer = new UserSyncDataWriter(config.getPayloadEncoding());
+        this.bufferPool = new PayloadBufferPool(Math.max(1, config.getThreadPoolSize()));
+        this.metrics = metrics;
+        this.failureLog = LogSampler.forFailures(config);
+        this.producer = producer;
+    }
+
+    /**
+     * Producer settings; kafkaProperties are applied last and may override any of them
+     */
+    static Properties producerProperties(ClientUserSyncConfig config, String name) {
+        Properties properties = new Properties();
+        properties.put(ProducerConfig.BOOTSTRAP_SERVERS_CONFIG, config.getKafkaBootstrapServers());
+        properties.put(ProducerConfig.CLIENT_ID_CONFIG, "client-user-sync-" + (name.isEmpty() ? "global" : name));
+        properties.put(ProducerConfig.ACKS_CONFIG, config.getKafkaAcks());
+        properties.put(ProducerConfig.LINGER_MS_CONFIG, Math.max(0, config.getKafkaLingerMs()));
+        properties.put(ProducerConfig.BATCH_SIZE_CONFIG, Math.max(0, config.getKafkaBatchSize()));
+        properties.put(ProducerConfig.COMPRESSION_TYPE_CONFIG, config.getKafkaCompression());
+        properties.put(ProducerConfig.MAX_BLOCK_MS_CONFIG, config.getConnectionTimeout() * 1000);
+        // The producer retries within delivery.timeout.ms; beyond that the retry policy takes over
+        int requestTimeoutMs = config.getReadTimeout() * 1000;
+        properties.put(ProducerConfig.REQUEST_TIMEOUT_MS_CONFIG, requestTimeoutMs);
+        properties.put(ProducerConfig.DELIVERY_TIMEOUT_MS_CONFIG, requestTimeoutMs + Math.max(0, config.getKafkaLingerMs()));
+        properties.putAll(config.getKafkaProperties());
+        return properties;
+    }
+
+    private Producer<String, byte[]> producer() {
+        Producer<String, byte[]> current = producer;
+        if (current != null) {
+            return current;
+        }
+        synchronized (this) {
+            if (producer == null) {
+                // Kafka loads its plugin classes through the context class loader, which inside Keycloak is not ours
+                Thread thread = Thread.currentThread();
+                ClassLoader previous = thread.getContextClassLoader();
+                thread.setContextClassLoader(KafkaSyncSink.class.getClassLoader());
+                try {
+                    producer = new KafkaProducer<>(producerProperties(config, name), new StringSerializer(), new ByteArraySerializer());
+                } finally {
+                    thread.setContextClassLoader(previous);
+                }
+            }
+            return producer;
+        }
+    }
+
+    @Override
+    public CompletableFuture<SyncResult> send(List<UserSyncData> events) {
+        List<byte[]> values;
+        try {
+            values = serialize(events);
+        } catch (IOException e) {
+            // Serialization failures are not the broker's fault and retrying cannot fix them
+            return CompletableFuture.failedFuture(new UncheckedIOException(e));
+        }
+
+        Producer<String, byte[]> target;
+        try {
+            target = producer();
+        } catch (RuntimeException e) {
+            return CompletableFuture.failedFuture(new IOException("Cannot create Kafka producer for " + config.getKafkaBootstrapServers(), e));
+        }
+
+        BatchResult result = new BatchResult(events);
+        for (int i = 0; i < events.size(); i++) {
+            UserSyncData event = events.get(i);
+            int index = i;
+            ProducerRecord<String, byte[]> record = new ProducerRecord<>(topic, null, key(event), values.get(i), headers);
+            try {
+                target.send(record, (metadata, error) -> result.complete(index, error));
+            } catch (RuntimeException e) {
+                // Thrown without calling back, e.g. when the producer was closed or the thread interrupted
+                for (int rest = i; rest < events.size(); rest++) {
+                    result.complete(rest, e);
+                }
+                break;
+            }
+        }
+        return result.future;
+    }
+
+    private List<byte[]> serialize(List<UserSyncData> events) throws IOException {
+        List<byte[]> values = new ArrayList<>(events.size());
+        PayloadBuffer buffer = bufferPool.acquire();
+        long start = System.nanoTime();
+        int bytes = 0;
+        try {
+            for (UserSyncData event : events) {
+                buffer.reset();
+                writer.write(event, buffer);
+                values.add(buffer.toByteArray());
+                bytes += buffer.size();
+            }
+        } finally {
+            bufferPool.release(buffer);
+        }
+        metrics.recordSerialization(System.nanoTime() - start);
+        metrics.recordPayloadSize(bytes);
+        return values;
+    }
+
+    private static String key(UserSyncData event) {
+        return event.getUserId() != null ? event.getUserId() : event.getEventId();
+    }
+
+    @Override
+    public void close() {
+        Producer<String, byte[]> current = producer;
+        if (current != null) {
+            current.close(Duration.ofSeconds(Math.max(0, config.getShutdownTimeout())));
+        }
+    }
+
+    /**
+     * Acknowledgements of one batch. Completes with the events that failed with a retriable error as
+     * pending and those rejected permanently, e.g. as too large or not authorized, as rejected; or
+     * exceptionally when every event failed the same way: with an IOException to retry the batch, or
+     * with the rejection to drop it.
+     */
+    private final class BatchResult {
+        private final CompletableFuture<SyncResult> future = new CompletableFuture<>();
+        private final List<UserSyncData> events;
+        private final Exception[] errors;
+        private final AtomicInteger remaining;
+
+        private BatchResult(List<UserSyncData> events) {
+            this.events = events;
+            this.errors = new Exception[events.size()];
+            this.remaining = new AtomicInteger(events.size());
+        }
+
+        private void complete(int index, Exception error) {
+            errors[index] = error;
+            // The last decrement sees the errors written before all earlier ones
+            if (remaining.decrementAndGet() == 0) {
+                finish();
+            }
+        }
+
+        private void finish() {
+            List<UserSyncData> retriable = new ArrayList<>();
+            List<UserSyncData> rejected = new ArrayList<>();
+            Exception retriableError = null;
+            Exception rejectedError = null;
+            for (int i = 0; i < errors.length; i++) {
+                Exception error = errors[i];
+                if (error instanceof RetriableException) {
+                    retriable.add(events.get(i));
+                    retriableError = error;
+                } else if (error != null) {
+                    rejected.add(events.get(i));
+                    rejectedError = error;
+                }
+            }
+            if (rejected.size() == events.size()) {
+                future.completeExceptionally(rejectedError);
+                return;
+            }
+            if (!rejected.isEmpty() && failureLog.sample()) {
+                logger.errorf(rejectedError, "[ClientUserSync] Kafka permanently rejected %d events for topic %s", rejected.size(), topic);
+            }
+            if (retriable.size() == events.size()) {
+                future.completeExceptionally(new IOException("Kafka did not acknowledge " + events.size() + " events", retriableError));
+            } else if (retriable.isEmpty() && rejected.isEmpty()) {
+                future.complete(SyncResult.DELIVERED);
+            } else {
+                future.complete(new SyncResult(retriable, rejected));
+            }
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package com.keycloak.sync;
+
+import org.jboss.logging.Logger;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Decides whether a per-event log line is written: a logSampleRate fraction of the calls is
+ * considered, and at most logRateLimit of those per second pass. Callers check sample() before
+ * formatting anything, so suppressed lines cost a random number and a counter, not a string.
+ * The number of lines held back by the rate limit is logged once per second when there were any.
+ */
+public class LogSampler {
+
+    private static final Logger logger = Logger.getLogger(LogSampler.class);
+    private static final long SECOND_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final double sampleRate;
+    private final int ratePerSecond;
+    private final AtomicLong windowStart = new AtomicLong(System.nanoTime());
+    private final AtomicInteger windowCount = new AtomicInteger();
+    private final LongAdder suppressedCount = new LongAdder();
+
+    public LogSampler(double sampleRate, int ratePerSecond) {
+        this.sampleRate = sampleRate;
+        this.ratePerSecond = ratePerSecond;
+    }
+
+    public static LogSampler forEvents(ClientUserSyncConfig config) {
+        return new LogSampler(config.getLogSampleRate(), config.getLogRateLimit());
+    }
+
+    /**
+     * Rate limit only, for failure messages that should not be sampled away
+     */
+    public static LogSampler forFailures(ClientUserSyncConfig config) {
+        return new LogSampler(1.0, config.getLogRateLimit());
+    }
+
+    /**
+     * Returns true when the caller should write its log line
+     */
+    public boolean sample() {
+        if (sampleRate <= 0 || (sampleRate < 1 && ThreadLocalRandom.current().nextDouble() >= sampleRate)) {
+            return false;
+        }
+        if (ratePerSecond <= 0) {
+            return true;
+        }
+        long now = System.nanoTime();
+        long start = windowStart.get();
+        if (now - start >= SECOND_NANOS && windowStart.compareAndSet(start, now)) {
+            windowCount.set(0);
+            long suppressed = suppressedCount.sumThenReset();
+            if (suppressed > 0) {
+                logger.infof("[ClientUserSync] %d log messages suppressed by logRateLimit", suppressed);
+            }
+        }
+        if (windowCount.incrementAndGet() > ratePerSecond) {
+            suppressedCount.increment();
+            return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,191 @@
+package com.keycloak.sync;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Meter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * SyncMetrics backed by Micrometer. All meters are named client.user.sync.* and tagged with the realm and sink;
+ * Keycloak's Prometheus endpoint exports them as client_user_sync_*.
+ * Event counters are tagged with outcome, event type and client and are looked up without allocation
+ * once created; each outcome and type counts at most MAX_CLIENTS clients separately and the rest as
+ * "other", so a realm with many clients cannot grow the registry without bound. Gauges read the bound
+ * service when scraped.
+ */
+class MicrometerSyncMetrics extends SyncMetrics {
+
+    private static final String PREFIX = "client.user.sync.";
+    private static final String NONE = "none";
+    private static final int MAX_CLIENTS = 100;
+    private static final String[] STATUS_CLASSES = {"error", "1xx", "2xx", "3xx", "4xx", "5xx"};
+
+    private final MeterRegistry registry = Metrics.globalRegistry;
+    private final Tags realmTags;
+    private final List<Meter> meters = new CopyOnWriteArrayList<>();
+    private final EventCounters[] eventCounters = new EventCounters[Outcome.values().length];
+    private final Counter retries;
+    private final Timer serialization;
+    private final DistributionSummary payloadSize;
+    private final Timer[] requests = new Timer[STATUS_CLASSES.length];
+    private volatile UserSyncService service;
+
+    MicrometerSyncMetrics(String realmKey, String sink) {
+        this.realmTags = Tags.of("realm", realmKey.isEmpty() ? "global" : realmKey, "sink", sink);
+        for (Outcome outcome : Outcome.values()) {
+            eventCounters[outcome.ordinal()] = new EventCounters(outcome.name().toLowerCase(Locale.ROOT));
+        }
+
+        this.retries = register(Counter.builder(PREFIX + "retries")
+                .description("Batches scheduled for another delivery attempt")
+                .tags(realmTags)
+                .register(registry));
+        this.serialization = register(Timer.builder(PREFIX + "serialization")
+                .description("Time to serialize and compress a request body")
+                .tags(realmTags)
+                .register(registry));
+        this.payloadSize = register(DistributionSummary.builder(PREFIX + "request.size")
+                .description("Size of request bodies as sent, after compression")
+                .baseUnit("bytes")
+                .tags(realmTags)
+                .register(registry));
+        for (int i = 0; i < STATUS_CLASSES.length; i++) {
+            requests[i] = register(Timer.builder(PREFIX + "http.requests")
+                    .description("Requests to the external API by status class")
+                    .tags(realmTags.and("status", STATUS_CLASSES[i]))
+                    .publishPercentileHistogram()
+                    .register(registry));
+        }
+
+        gauge("queue.depth", "Events waiting in the ring buffer", s -> s.getDispatcher().getQueueDepth());
+        gauge("queue.capacity", "Capacity of the ring buffer", s -> s.getDispatcher().getQueueCapacity());
+        gauge("queue.parked", "Events waiting for earlier events of their user", s -> s.getDispatcher().getParkedCount());
+        gauge("retries.pending", "Batches waiting for a retry", s -> s.getDispatcher().getPendingRetries());
+        gauge("spill.backlog.bytes", "Bytes of events spilled to disk", s -> s.getDispatcher().getSpillBacklogBytes());
+        gauge("coalesce.pending", "Users with an open coalescing window",
+                s -> s.getCoalescer() != null ? s.getCoalescer().getPendingCount() : 0);
+        gauge("concurrency.limit", "Current adaptive concurrency limit", UserSyncService::getConcurrencyLimit);
+        gauge("rate.limit", "Current refill rate of the token bucket in requests per second", UserSyncService::getRateLimit);
+        gauge("pool.leased", "HTTP connections in use", s -> s.getPoolStats().getLeased());
+        gauge("pool.available", "Idle HTTP connections", s -> s.getPoolStats().getAvailable());
+        gauge("pool.pending", "Requests waiting for an HTTP connection", s -> s.getPoolStats().getPending());
+        gauge("pool.max", "Maximum HTTP connections", s -> s.getPoolStats().getMax());
+        for (CircuitBreaker.State state : CircuitBreaker.State.values()) {
+            register(Gauge.builder(PREFIX + "circuit.state", this, metrics -> metrics.read(s -> s.getCircuitState() == state ? 1 : 0))
+                    .description("1 for the current circuit breaker state, 0 otherwise")
+                    .tags(realmTags.and("state", state.name().toLowerCase(Locale.ROOT)))
+                    .register(registry));
+        }
+    }
+
+    private void gauge(String name, String description, ToDoubleFunction<UserSyncService> value) {
+        register(Gauge.builder(PREFIX + name, this, metrics -> metrics.read(value))
+                .description(description)
+                .tags(realmTags)
+                .register(registry));
+    }
+
+    private double read(ToDoubleFunction<UserSyncService> value) {
+        UserSyncService current = service;
+        return current != null ? value.applyAsDouble(current) : Double.NaN;
+    }
+
+    private <M extends Meter> M register(M meter) {
+        meters.add(meter);
+        return meter;
+    }
+
+    @Override
+    public synchronized void bind(UserSyncService service) {
+        this.service = service;
+    }
+
+    @Override
+    public synchronized void unbind(UserSyncService service) {
+        if (this.service == service) {
+            this.service = null;
+        }
+    }
+
+    @Override
+    public void count(Outcome outcome, String eventType, String clientId) {
+        eventCounters[outcome.ordinal()].get(eventType, clientId).increment();
+    }
+
+    @Override
+    public void retryScheduled() {
+        retries.increment();
+    }
+
+    @Override
+    public void recordSerialization(long durationNanos) {
+        serialization.record(durationNanos, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public void recordPayloadSize(int bytes) {
+        payloadSize.record(bytes);
+    }
+
+    @Override
+    public void recordRequest(int statusCode, long durationNanos) {
+        int statusClass = statusCode / 100;
+        Timer timer = requests[statusClass >= 1 && statusClass <= 5 ? statusClass : 0];
+        timer.record(durationNanos, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public synchronized void close() {
+        service = null;
+        meters.forEach(registry::remove);
+        meters.clear();
+    }
+
+    /**
+     * Counters of one outcome, by event type and then client
+     */
+    private final class EventCounters {
+        private final String outcome;
+        private final ConcurrentMap<String, ConcurrentMap<String, Counter>> byType = new ConcurrentHashMap<>();
+
+        private EventCounters(String outcome) {
+            this.outcome = outcome;
+        }
+
+        private Counter get(String eventType, String clientId) {
+            String type = eventType != null ? eventType : NONE;
+            String client = clientId != null ? clientId : NONE;
+            ConcurrentMap<String, Counter> byClient = byType.get(type);
+            if (byClient == null) {
+                byClient = byType.computeIfAbsent(type, key -> new ConcurrentHashMap<>());
+            }
+            Counter counter = byClient.get(client);
+            if (counter == null) {
+                if (byClient.size() >= MAX_CLIENTS) {
+                    return byClient.computeIfAbsent(SyncMetrics.OTHER_CLIENT, key -> create(type, key));
+                }
+                counter = byClient.computeIfAbsent(client, key -> create(type, key));
+            }
+            return counter;
+        }
+
+        private Counter create(String type, String client) {
+            return register(Counter.builder(PREFIX + "events")
+                    .description("Events by pipeline outcome")
+                    .tags(realmTags.and("outcome", outcome, "type", type, "client", client))
+                    .register(registry));
+        }
+    }
+}
@@ -0,0 +1,30 @@
+package com.keycloak.sync;
+
+/**
+ * What happens to an event when the dispatch queue is full
+ */
+public enum OverflowPolicy {
+
+    /** Evict the oldest queued event to make room for the new one */
+    DROP_OLDEST,
+
+    /** Reject the new event */
+    DROP_NEWEST,
+
+    /** Wait up to enqueueTimeoutMs for room, then reject the new event */
+    BLOCK,
+
+    /** Append the new event to a spill file on disk and re-queue it once there is room */
+    SPILL;
+
+    public static OverflowPolicy fromString(String value, OverflowPolicy defaultValue) {
+        if (value == null || value.trim().isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            return OverflowPolicy.valueOf(value.trim().toUpperCase().replace('-', '_'));
+        } catch (IllegalArgumentException e) {
+            return defaultValue;
+        }
+    }
+}
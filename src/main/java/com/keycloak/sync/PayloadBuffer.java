@@ -0,0 +1,75 @@
+package com.keycloak.sync;
+
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Growable, unsynchronized byte buffer that request bodies are serialized into.
+ * Unlike ByteArrayOutputStream it exposes its backing array, so the transport can send the
+ * written bytes without copying them, and it is reset and reused through a PayloadBufferPool.
+ */
+public class PayloadBuffer extends OutputStream {
+
+    private byte[] bytes;
+    private int size;
+
+    public PayloadBuffer(int initialCapacity) {
+        this.bytes = new byte[Math.max(16, initialCapacity)];
+    }
+
+    @Override
+    public void write(int b) {
+        ensureCapacity(size + 1);
+        bytes[size++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] source, int offset, int length) {
+        ensureCapacity(size + length);
+        System.arraycopy(source, offset, bytes, size, length);
+        size += length;
+    }
+
+    /**
+     * Grows the backing array to hold at least the given number of bytes, for callers that write into array() directly
+     */
+    void ensureCapacity(int required) {
+        if (required > bytes.length) {
+            bytes = Arrays.copyOf(bytes, Math.max(required, bytes.length << 1));
+        }
+    }
+
+    /**
+     * Backing array; only the first size() bytes are valid
+     */
+    public byte[] array() {
+        return bytes;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int capacity() {
+        return bytes.length;
+    }
+
+    public void reset() {
+        size = 0;
+    }
+
+    /**
+     * Marks the first size bytes of array() as written, after the caller filled them in directly
+     */
+    void setSize(int size) {
+        ensureCapacity(size);
+        this.size = size;
+    }
+
+    /**
+     * Copy of the written bytes
+     */
+    public byte[] toByteArray() {
+        return Arrays.copyOf(bytes, size);
+    }
+}
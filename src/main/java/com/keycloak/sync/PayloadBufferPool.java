@@ -0,0 +1,37 @@
+package com.keycloak.sync;
+
+/**
+ * Recycles PayloadBuffers between requests so steady-state delivery does not allocate a new
+ * body array per event. The pool is a lock-free ring buffer sized to the number of requests that
+ * can be outstanding; buffers that grew beyond MAX_RETAINED_BYTES are left to the garbage collector.
+ */
+public class PayloadBufferPool {
+
+    private static final int INITIAL_BUFFER_SIZE = 1024;
+    private static final int MAX_RETAINED_BYTES = 1024 * 1024;
+
+    private final EventRingBuffer<PayloadBuffer> buffers;
+
+    public PayloadBufferPool(int capacity) {
+        this.buffers = new EventRingBuffer<>(capacity);
+    }
+
+    /**
+     * Returns an empty buffer, reusing a released one when available
+     */
+    public PayloadBuffer acquire() {
+        PayloadBuffer buffer = buffers.poll();
+        return buffer != null ? buffer : new PayloadBuffer(INITIAL_BUFFER_SIZE);
+    }
+
+    /**
+     * Returns a buffer to the pool; it must no longer be read or written by the caller
+     */
+    public void release(PayloadBuffer buffer) {
+        if (buffer.capacity() > MAX_RETAINED_BYTES) {
+            return;
+        }
+        buffer.reset();
+        buffers.offer(buffer);
+    }
+}
@@ -0,0 +1,40 @@
+package com.keycloak.sync;
+
+/**
+ * Compression applied to request bodies, announced with the Content-Encoding header
+ */
+public enum PayloadCompression {
+
+    /** Bodies are sent as serialized */
+    NONE(null),
+
+    /** gzip (RFC 1952), understood by practically every HTTP server and gateway */
+    GZIP("gzip"),
+
+    /** Zstandard (RFC 8878), smaller and cheaper to compress than gzip but not supported everywhere */
+    ZSTD("zstd");
+
+    private final String contentEncoding;
+
+    PayloadCompression(String contentEncoding) {
+        this.contentEncoding = contentEncoding;
+    }
+
+    /**
+     * Value of the Content-Encoding header, or null when bodies are not compressed
+     */
+    public String getContentEncoding() {
+        return contentEncoding;
+    }
+
+    public static PayloadCompression fromString(String value, PayloadCompression defaultValue) {
+        if (value == null || value.trim().isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            return PayloadCompression.valueOf(value.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            return defaultValue;
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package com.keycloak.sync;
+
+import io.airlift.compress.zstd.ZstdCompressor;
+
+import java.io.IOException;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses a serialized request body into a second pooled PayloadBuffer. gzip is written with a
+ * raw Deflater and a hand-made header and trailer, so the Deflaters and their native zlib state are
+ * pooled instead of allocated per request the way GZIPOutputStream does. zstd uses the pure Java
+ * compressor of aircompressor, so no native library has to be loaded into Keycloak.
+ */
+public class PayloadCompressor {
+
+    private static final byte[] GZIP_HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+    private static final int DEFLATE_CHUNK = 8192;
+
+    private final PayloadCompression compression;
+    private final EventRingBuffer<Deflater> deflaters;
+    private final ZstdCompressor zstdCompressor;
+
+    /**
+     * @param poolSize number of Deflaters kept for reuse, usually the number of requests that can be outstanding
+     */
+    public PayloadCompressor(PayloadCompression compression, int poolSize) {
+        this.compression = compression;
+        this.deflaters = compression == PayloadCompression.GZIP ? new EventRingBuffer<>(poolSize) : null;
+        this.zstdCompressor = compression == PayloadCompression.ZSTD ? new ZstdCompressor() : null;
+    }
+
+    public PayloadCompression getCompression() {
+        return compression;
+    }
+
+    /**
+     * Returns the compressed body and releases the given one to the pool. Without compression the
+     * body is returned as is; when compression fails it is left to the caller.
+     */
+    public PayloadBuffer compress(PayloadBuffer body, PayloadBufferPool pool) throws IOException {
+        if (compression == PayloadCompression.NONE) {
+            return body;
+        }
+        PayloadBuffer target = pool.acquire();
+        try {
+            if (compression == PayloadCompression.GZIP) {
+                gzip(body, target);
+            } else {
+                zstd(body, target);
+            }
+        } catch (RuntimeException e) {
+            pool.release(target);
+            throw new IOException("Failed to compress request body with " + compression, e);
+        }
+        pool.release(body);
+        return target;
+    }
+
+    private void gzip(PayloadBuffer body, PayloadBuffer target) {
+        Deflater deflater = deflaters.poll();
+        if (deflater == null) {
+            deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        }
+        try {
+            target.write(GZIP_HEADER, 0, GZIP_HEADER.length);
+            deflater.setInput(body.array(), 0, body.size());
+            deflater.finish();
+            while (!deflater.finished()) {
+                target.ensureCapacity(target.size() + DEFLATE_CHUNK);
+                int written = deflater.deflate(target.array(), target.size(), target.capacity() - target.size());
+                target.setSize(target.size() + written);
+            }
+            CRC32 crc = new CRC32();
+            crc.update(body.array(), 0, body.size());
+            writeIntLittleEndian(target, (int) crc.getValue());
+            writeIntLittleEndian(target, body.size());
+        } finally {
+            deflater.reset();
+            if (!deflaters.offer(deflater)) {
+                deflater.end();
+            }
+        }
+    }
+
+    private void zstd(PayloadBuffer body, PayloadBuffer target) {
+        int maxLength = zstdCompressor.maxCompressedLength(body.size());
+        target.ensureCapacity(maxLength);
+        int length = zstdCompressor.compress(body.array(), 0, body.size(), target.array(), 0, maxLength);
+        target.setSize(length);
+    }
+
+    private static void writeIntLittleEndian(PayloadBuffer target, int value) {
+        target.write(value);
+        target.write(value >>> 8);
+        target.write(value >>> 16);
+        target.write(value >>> 24);
+    }
+
+    /**
+     * Frees the native state of the pooled Deflaters
+     */
+    public void close() {
+        if (deflaters == null) {
+            return;
+        }
+        Deflater deflater;
+        while ((deflater = deflaters.poll()) != null) {
+            deflater.end();
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package com.keycloak.sync;
+
+/**
+ * Encoding of request bodies. The binary encodings keep the JSON data model, field names and
+ * null handling, so any CBOR or Smile decoder on the API side reads the same records.
+ */
+public enum PayloadEncoding {
+
+    /** UTF-8 JSON; batches use the content type of the batch format */
+    JSON("application/json"),
+
+    /** CBOR (RFC 8949); batches are always sent as one array */
+    CBOR("application/cbor"),
+
+    /** Jackson Smile, which sends repeated field names and short string values as back-references; batches are always sent as one array */
+    SMILE("application/x-jackson-smile");
+
+    private final String contentType;
+
+    PayloadEncoding(String contentType) {
+        this.contentType = contentType;
+    }
+
+    public String getContentType() {
+        return contentType;
+    }
+
+    /**
+     * Content type of a batch request body in the given batch format
+     */
+    public String getBatchContentType(BatchFormat format) {
+        return this == JSON ? format.getContentType() : contentType;
+    }
+
+    public static PayloadEncoding fromString(String value, PayloadEncoding defaultValue) {
+        if (value == null || value.trim().isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            return PayloadEncoding.valueOf(value.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            return defaultValue;
+        }
+    }
+}
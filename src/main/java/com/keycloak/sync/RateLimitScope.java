@@ -0,0 +1,24 @@
+package com.keycloak.sync;
+
+/**
+ * Which services share a token bucket, see TokenBucketRateLimiter
+ */
+public enum RateLimitScope {
+
+    /** The realm's own destination and each of its sinks have a bucket of their own */
+    DESTINATION,
+
+    /** All realms and sinks that post to the same apiEndpoint share one bucket, e.g. for a quota per API key */
+    ENDPOINT;
+
+    public static RateLimitScope fromString(String value, RateLimitScope defaultValue) {
+        if (value == null || value.trim().isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            return RateLimitScope.valueOf(value.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            return defaultValue;
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package com.keycloak.sync;
+
+import java.io.IOException;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Decides whether a failed delivery is retried and when. Delays grow exponentially from retryDelay
+ * up to retryMaxDelay with full jitter, a Retry-After from the API takes precedence, and no retry
+ * is scheduled past the per-event retryDeadline.
+ */
+public class RetryPolicy {
+
+    private final boolean enabled;
+    private final int maxRetries;
+    private final long baseDelayMillis;
+    private final long maxDelayMillis;
+    private final long deadlineMillis;
+
+    public RetryPolicy(ClientUserSyncConfig config) {
+        this.enabled = config.isRetryEnabled();
+        this.maxRetries = config.getMaxRetries();
+        this.baseDelayMillis = Math.max(1, config.getRetryDelay() * 1000L);
+        this.maxDelayMillis = Math.max(baseDelayMillis, config.getRetryMaxDelay() * 1000L);
+        this.deadlineMillis = config.getRetryDeadline() * 1000L;
+    }
+
+    /**
+     * Only server errors, throttling, request timeouts and I/O errors are worth retrying
+     */
+    public boolean isRetryable(Throwable error) {
+        if (error instanceof SyncException) {
+            return isRetryableStatus(((SyncException) error).getStatusCode());
+        }
+        return error instanceof IOException;
+    }
+
+    public static boolean isRetryableStatus(int statusCode) {
+        return statusCode >= 500 || statusCode == 429 || statusCode == 408;
+    }
+
+    /**
+     * Returns the delay before the next attempt, or -1 when the batch must not be retried again
+     */
+    public long nextDelayMillis(SyncBatch batch, long retryAfterMillis) {
+        if (!enabled || batch.getAttempt() >= maxRetries) {
+            return -1;
+        }
+
+        long delay;
+        if (retryAfterMillis >= 0) {
+            delay = retryAfterMillis;
+        } else {
+            long ceiling = baseDelayMillis << Math.min(batch.getAttempt(), 30);
+            if (ceiling <= 0 || ceiling > maxDelayMillis) {
+                ceiling = maxDelayMillis;
+            }
+            delay = ThreadLocalRandom.current().nextLong(ceiling + 1);
+        }
+
+        if (deadlineMillis > 0 && System.currentTimeMillis() + delay > batch.getFirstAttemptAt() + deadlineMillis) {
+            return -1;
+        }
+        return delay;
+    }
+}
@@ -0,0 +1,27 @@
+package com.keycloak.sync;
+
+/**
+ * Where a sink delivers its events, see SyncSink
+ */
+public enum SinkType {
+
+    /** POST to apiEndpoint through the configured transportMode */
+    HTTP,
+
+    /** Append NDJSON lines to rolling files in fileDirectory */
+    FILE,
+
+    /** Produce one record per event to kafkaTopic on the kafkaBootstrapServers cluster */
+    KAFKA;
+
+    public static SinkType fromString(String value, SinkType defaultValue) {
+        if (value == null || value.trim().isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            return SinkType.valueOf(value.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            return defaultValue;
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package com.keycloak.sync;
+
+import java.util.List;
+
+/**
+ * Events sent together in one delivery attempt, with the retry state they carry between attempts
+ */
+public class SyncBatch {
+
+    private final List<UserSyncData> events;
+    private final int attempt;
+    private final long firstAttemptAt;
+
+    public SyncBatch(List<UserSyncData> events) {
+        this(events, 0, System.currentTimeMillis());
+    }
+
+    private SyncBatch(List<UserSyncData> events, int attempt, long firstAttemptAt) {
+        this.events = events;
+        this.attempt = attempt;
+        this.firstAttemptAt = firstAttemptAt;
+    }
+
+    /**
+     * Returns the batch for the next attempt, keeping only the events that still need delivery
+     */
+    public SyncBatch retry(List<UserSyncData> pendingEvents) {
+        return new SyncBatch(pendingEvents, attempt + 1, firstAttemptAt);
+    }
+
+    /**
+     * Returns the same attempt with a subset of its events, e.g. after some of them were dropped
+     */
+    public SyncBatch withEvents(List<UserSyncData> remainingEvents) {
+        return new SyncBatch(remainingEvents, attempt, firstAttemptAt);
+    }
+
+    public List<UserSyncData> getEvents() {
+        return events;
+    }
+
+    /**
+     * Number of retries already made; 0 for the first delivery attempt
+     */
+    public int getAttempt() {
+        return attempt;
+    }
+
+    public long getFirstAttemptAt() {
+        return firstAttemptAt;
+    }
+
+    public int size() {
+        return events.size();
+    }
+}
@@ -0,0 +1,876 @@
+package com.keycloak.sync;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.jboss.logging.Logger;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+
+/**
+ * Moves events from Keycloak request threads to the sender threads through a bounded ring buffer.
+ * With perUserOrdering every user with events handed out has a chain: while its events are in flight
+ * or waiting for a retry, the user's later events are parked on the chain instead of being handed
+ * out, and once they are finished the parked events follow in order, one batch at a time. Only that
+ * user waits; the workers keep taking other users' events. Parked events count against
+ * queueCapacity of their own: when that many are parked the workers stop taking new events, so the
+ * buffer fills and the overflow policy applies.
+ * Producers never block longer than enqueueTimeoutMs; when the buffer is full the configured
+ * OverflowPolicy decides which event is dropped or spilled to disk. Spilled events are handed to a
+ * spill writer thread through a second bounded buffer, so request threads never serialize or write
+ * to the spill file; when the writer falls that far behind, further events are dropped.
+ * Workers hand events to the handler in batches of up to batchSize, waiting at most
+ * batchLingerMs for a batch to fill; without batching every event is handled on its own.
+ * Retries wait on a timer rather than on a worker thread and are picked up by the workers
+ * ahead of new events once they are due.
+ * Idle workers spin briefly, then park until a producer, a due retry or a released chain wakes
+ * one of them, so an idle dispatcher uses no CPU; only a spill backlog waiting for the circuit to
+ * close is polled.
+ * With an EventJournal every accepted event is journaled before it is queued and acknowledged once
+ * it is delivered, dropped or spilled; events still pending at shutdown are replayed on the next start.
+ * The journal is replayed continuously, which is also how a ClusterEventQueue hands over the events
+ * this node owns.
+ */
+public class SyncDispatcher {
+
+    private static final Logger logger = Logger.getLogger(SyncDispatcher.class);
+    private static final int SPIN_TRIES = 100;
+    private static final long MAX_IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final long REPLAY_POLL_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final long SPILL_POLL_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private final String name;
+    private final EventRingBuffer<UserSyncData> ringBuffer;
+    private final Queue<SyncBatch> ready = new ConcurrentLinkedQueue<>();
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final ConcurrentMap<Object, Chain> chains;
+    private final ConcurrentMap<UserSyncData, Object> inFlight;
+    /** Held while a worker moves events from the buffer onto their users' chains */
+    private final Object admission = new Object();
+    private final AtomicInteger parkedCount = new AtomicInteger();
+    private final int parkedCapacity;
+    private final OverflowPolicy overflowPolicy;
+    private final long enqueueTimeoutNanos;
+    private final Consumer<SyncBatch> handler;
+    private final int batchSize;
+    private final long batchLingerNanos;
+    private final DiskSpillQueue spillQueue;
+    private final EventRingBuffer<UserSyncData> spillHandoff;
+    private final Thread spillWriter;
+    private final CircuitFallback circuitFallback;
+    private final BooleanSupplier deliveryPermitted;
+    private final EventJournal spool;
+    private final SyncMetrics metrics;
+    private final List<Thread> workers = new ArrayList<>();
+    /** Workers parked for lack of work; each new piece of work wakes one of them */
+    private final Queue<Thread> idleWorkers = new ConcurrentLinkedQueue<>();
+    private final Thread replayer;
+    private final Runnable replayWakeup;
+    private final ScheduledExecutorService retryScheduler;
+    private final Set<SyncBatch> scheduledRetries = ConcurrentHashMap.newKeySet();
+    private final LongAdder enqueuedCount = new LongAdder();
+    private final LongAdder droppedCount = new LongAdder();
+    private final LongAdder spilledCount = new LongAdder();
+    private final LongAdder retryCount = new LongAdder();
+    private final LongAdder divertedCount = new LongAdder();
+    private volatile boolean running = true;
+
+    public SyncDispatcher(ClientUserSyncConfig config, String name, ObjectMapper objectMapper, Consumer<SyncBatch> handler) {
+        this(config, name, objectMapper, handler, () -> true, null);
+    }
+
+    /**
+     * @param deliveryPermitted checked before spilled events are re-queued, so they stay on disk
+     *                          while the external API is known to be unavailable
+     * @param spool             journal for accepted events, or null to keep them in memory only
+     */
+    public SyncDispatcher(ClientUserSyncConfig config, String name, ObjectMapper objectMapper, Consumer<SyncBatch> handler,
+                          BooleanSupplier deliveryPermitted, EventJournal spool) {
+        this(config, name, objectMapper, handler, deliveryPermitted, spool, SyncMetrics.NOOP);
+    }
+
+    /**
+     * @param metrics counts the events dropped by the overflow policy, the circuit fallback or shutdown
+     */
+    public SyncDispatcher(ClientUserSyncConfig config, String name, ObjectMapper objectMapper, Consumer<SyncBatch> handler,
+                          BooleanSupplier deliveryPermitted, EventJournal spool, SyncMetrics metrics) {
+        this.name = name;
+        int workerCount = Math.max(1, config.getThreadPoolSize());
+        this.ringBuffer = new EventRingBuffer<>(Math.max(1, config.getQueueCapacity()));
+        this.chains = config.isPerUserOrdering() ? new ConcurrentHashMap<>() : null;
+        this.inFlight = config.isPerUserOrdering() ? new ConcurrentHashMap<>() : null;
+        this.parkedCapacity = Math.max(1, config.getQueueCapacity());
+        this.overflowPolicy = config.getOverflowPolicy();
+        this.enqueueTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, config.getEnqueueTimeoutMs()));
+        this.handler = handler;
+        this.batchSize = config.isBatchEnabled() ? Math.max(1, config.getBatchSize()) : 1;
+        this.batchLingerNanos = config.isBatchEnabled() ? TimeUnit.MILLISECONDS.toNanos(Math.max(0, config.getBatchLingerMs())) : 0;
+        this.circuitFallback = config.getCircuitFallback();
+        this.deliveryPermitted = deliveryPermitted;
+        this.spool = spool;
+        this.metrics = metrics;
+        boolean spillEnabled = overflowPolicy == OverflowPolicy.SPILL
+                || (config.isCircuitBreakerEnabled() && circuitFallback == CircuitFallback.SPILL);
+        this.spillQueue = spillEnabled ? openSpillQueue(config, name, objectMapper) : null;
+        if (spillQueue != null) {
+            this.spillHandoff = new EventRingBuffer<>(Math.max(1, config.getQueueCapacity()));
+            this.spillWriter = new Thread(this::runSpillWriter, "client-user-sync-" + name + "-spill");
+            spillWriter.setDaemon(true);
+            spillWriter.start();
+        } else {
+            this.spillHandoff = null;
+            this.spillWriter = null;
+        }
+
+        ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread thread = new Thread(runnable, "client-user-sync-" + name + "-retry");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.setRemoveOnCancelPolicy(true);
+        this.retryScheduler = scheduler;
+
+        for (int i = 1; i <= workerCount; i++) {
+            Thread worker = new Thread(this::runWorker, "client-user-sync-" + name + "-" + i);
+            worker.setDaemon(true);
+            workers.add(worker);
+            worker.start();
+        }
+
+        if (spool != null) {
+            this.replayer = new Thread(this::runReplay, "client-user-sync-" + name + "-replay");
+            replayer.setDaemon(true);
+            this.replayWakeup = () -> LockSupport.unpark(replayer);
+            spool.addReplayListener(replayWakeup);
+            replayer.start();
+        } else {
+            this.replayer = null;
+            this.replayWakeup = null;
+        }
+    }
+
+    private static DiskSpillQueue openSpillQueue(ClientUserSyncConfig config, String name, ObjectMapper objectMapper) {
+        String fileName = (name.isEmpty() ? "global" : name.replaceAll("[^A-Za-z0-9._-]", "_")) + ".spill";
+        Path file = Paths.get(config.getSpillDirectory(), fileName);
+        try {
+            return new DiskSpillQueue(file, objectMapper);
+        } catch (IOException e) {
+            logger.errorf(e, "[ClientUserSync] Cannot open spill file %s, overflowing events will be dropped", file);
+            return null;
+        }
+    }
+
+    /**
+     * Enqueues an event, applying the overflow policy when the buffer is full.
+     * Returns false when the event was dropped.
+     */
+    public boolean dispatch(UserSyncData syncData) {
+        if (!running) {
+            droppedCount.increment();
+            metrics.count(SyncMetrics.Outcome.DROPPED, syncData);
+            return false;
+        }
+        journal(syncData);
+        if (ringBuffer.offer(syncData)) {
+            enqueuedCount.increment();
+            wakeWorker();
+            return true;
+        }
+
+        switch (overflowPolicy) {
+            case DROP_OLDEST:
+                for (int attempt = 0; attempt < SPIN_TRIES; attempt++) {
+                    UserSyncData evicted = ringBuffer.poll();
+                    if (evicted != null) {
+                        discard(evicted);
+                    }
+                    if (ringBuffer.offer(syncData)) {
+                        enqueuedCount.increment();
+                        wakeWorker();
+                        return true;
+                    }
+                }
+                break;
+            case BLOCK:
+                long deadline = System.nanoTime() + enqueueTimeoutNanos;
+                while (System.nanoTime() < deadline) {
+                    LockSupport.parkNanos(Math.min(MAX_IDLE_PARK_NANOS, deadline - System.nanoTime()));
+                    if (ringBuffer.offer(syncData)) {
+                        enqueuedCount.increment();
+                        wakeWorker();
+                        return true;
+                    }
+                }
+                break;
+            case SPILL:
+                if (spill(syncData)) {
+                    return true;
+                }
+                break;
+            default:
+                break;
+        }
+
+        discard(syncData);
+        return false;
+    }
+
+    /**
+     * Dispatches an event for a caller that must not wait, such as a cache callback, and passes the
+     * outcome of dispatch() to the callback. Only BLOCK can wait for room; with it, the event is
+     * dispatched on the retry thread instead, where it may hold back due retries for up to
+     * enqueueTimeoutMs.
+     */
+    public void dispatchWithoutWaiting(UserSyncData syncData, Consumer<Boolean> outcome) {
+        if (overflowPolicy != OverflowPolicy.BLOCK) {
+            outcome.accept(dispatch(syncData));
+            return;
+        }
+        try {
+            retryScheduler.execute(() -> outcome.accept(dispatch(syncData)));
+        } catch (RejectedExecutionException e) {
+            // Closed: dispatch() drops the event without waiting
+            outcome.accept(dispatch(syncData));
+        }
+    }
+
+    /**
+     * Key of the event's chain: its user, or the event itself when it has no user
+     */
+    private static Object chainKey(UserSyncData syncData) {
+        if (syncData.getUserId() != null) {
+            return syncData.getUserId();
+        }
+        return syncData.getEventId() != null ? syncData.getEventId() : syncData;
+    }
+
+    private void journal(UserSyncData syncData) {
+        // A distributed journal is appended to by the service; events dispatched here stay on this node
+        if (spool == null || spool.isDistributed()) {
+            return;
+        }
+        try {
+            spool.append(syncData);
+        } catch (IOException e) {
+            logger.debugf("[ClientUserSync] Event %s not journaled: %s", syncData.getEventId(), e.getMessage());
+        }
+    }
+
+    /**
+     * Replays the spool backlog, then waits for the journal to report events abandoned by a replaced
+     * dispatcher or handed over by another node; only a replay cut short by a full buffer is retried on a timer
+     */
+    private void runReplay() {
+        while (running) {
+            if (spool.replay(this::enqueueReplayed)) {
+                LockSupport.park(this);
+            } else {
+                LockSupport.parkNanos(this, REPLAY_POLL_NANOS);
+            }
+        }
+    }
+
+    /**
+     * Re-queues an event replayed from the spool, waiting for room; returns false once the dispatcher stops
+     */
+    private boolean enqueueReplayed(UserSyncData syncData) {
+        while (running) {
+            if (ringBuffer.offer(syncData)) {
+                enqueuedCount.increment();
+                wakeWorker();
+                return true;
+            }
+            LockSupport.parkNanos(MAX_IDLE_PARK_NANOS);
+        }
+        return false;
+    }
+
+    /**
+     * Marks events as finished, whether delivered or given up on, so the spool no longer replays them
+     */
+    public void acknowledge(List<UserSyncData> events) {
+        for (UserSyncData syncData : events) {
+            finished(syncData);
+            if (spool != null) {
+                spool.acknowledge(syncData);
+            }
+        }
+    }
+
+    /**
+     * With per-user ordering, hands out the user's parked events once its last outstanding event is
+     * finished, up to a batch of them; the chain is removed when nothing is parked
+     */
+    private void finished(UserSyncData syncData) {
+        if (inFlight == null) {
+            return;
+        }
+        Object key = inFlight.remove(syncData);
+        if (key == null) {
+            return;
+        }
+        SyncBatch[] released = new SyncBatch[1];
+        chains.computeIfPresent(key, (k, chain) -> {
+            if (--chain.outstanding > 0) {
+                return chain;
+            }
+            if (chain.parked.isEmpty()) {
+                return null;
+            }
+            List<UserSyncData> next = new ArrayList<>(Math.min(batchSize, chain.parked.size()));
+            while (next.size() < batchSize && !chain.parked.isEmpty()) {
+                UserSyncData parked = chain.parked.poll();
+                next.add(parked);
+                inFlight.put(parked, k);
+            }
+            parkedCount.addAndGet(-next.size());
+            chain.outstanding = next.size();
+            chain.batch = next;
+            released[0] = new SyncBatch(next);
+            return chain;
+        });
+        if (released[0] != null) {
+            ready.offer(released[0]);
+            wakeWorker();
+        }
+    }
+
+    /**
+     * With per-user ordering, adds an event taken from the buffer to the batch being filled unless
+     * earlier events of its user are outstanding in another batch; then it is parked on their chain.
+     * Returns whether the event was added.
+     */
+    private boolean admit(UserSyncData syncData, List<UserSyncData> batch) {
+        if (chains == null) {
+            batch.add(syncData);
+            return true;
+        }
+        boolean[] admitted = new boolean[1];
+        chains.compute(chainKey(syncData), (key, chain) -> {
+            if (chain == null) {
+                chain = new Chain();
+            } else if (chain.batch != batch || !chain.parked.isEmpty()) {
+                chain.parked.add(syncData);
+                parkedCount.incrementAndGet();
+                return chain;
+            }
+            chain.outstanding++;
+            chain.batch = batch;
+            inFlight.put(syncData, key);
+            admitted[0] = true;
+            return chain;
+        });
+        if (admitted[0]) {
+            batch.add(syncData);
+        }
+        return admitted[0];
+    }
+
+    private void discard(UserSyncData syncData) {
+        finished(syncData);
+        droppedCount.increment();
+        metrics.count(SyncMetrics.Outcome.DROPPED, syncData);
+        if (spool != null) {
+            spool.acknowledge(syncData);
+        }
+    }
+
+    /**
+     * Hands an event to the spill writer; returns false when spilling is disabled or the writer is too
+     * far behind. Once the dispatcher is closing the event is written right away, since only workers
+     * and close() spill then.
+     */
+    private boolean spill(UserSyncData syncData) {
+        if (spillQueue == null) {
+            return false;
+        }
+        if (!running) {
+            return writeSpilled(syncData);
+        }
+        if (!spillHandoff.offer(syncData)) {
+            return false;
+        }
+        LockSupport.unpark(spillWriter);
+        finished(syncData);
+        return true;
+    }
+
+    /**
+     * Writes the events handed over for spilling until the dispatcher is closed and the hand-off is empty
+     */
+    private void runSpillWriter() {
+        int idleRounds = 0;
+        while (running || !spillHandoff.isEmpty()) {
+            UserSyncData syncData = spillHandoff.poll();
+            if (syncData == null) {
+                // spill() and close() unpark the writer, so it may park for good
+                if (idleRounds++ < SPIN_TRIES) {
+                    Thread.onSpinWait();
+                } else {
+                    LockSupport.park(this);
+                }
+                continue;
+            }
+            idleRounds = 0;
+            if (!writeSpilled(syncData)) {
+                discard(syncData);
+            }
+        }
+    }
+
+    /**
+     * Appends an event to the spill file; the spool no longer needs it once it is there
+     */
+    private boolean writeSpilled(UserSyncData syncData) {
+        try {
+            spillQueue.append(syncData);
+        } catch (IOException e) {
+            logger.errorf(e, "[ClientUserSync] Failed to spill event %s to disk", syncData.getEventId());
+            return false;
+        }
+        spilledCount.increment();
+        finished(syncData);
+        if (spool != null) {
+            spool.acknowledge(syncData);
+        }
+        return true;
+    }
+
+    /**
+     * Schedules a failed batch to be handed back to the workers after the given delay. With per-user
+     * ordering the later events of its users stay parked until the batch is finished.
+     */
+    public void scheduleRetry(SyncBatch batch, long delayMillis) {
+        if (!running) {
+            release(batch.getEvents());
+            return;
+        }
+        retryCount.increment();
+        scheduledRetries.add(batch);
+        retryScheduler.schedule(() -> {
+            if (scheduledRetries.remove(batch)) {
+                ready.offer(batch);
+                wakeWorker();
+            }
+        }, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Takes events the sender could not attempt because the circuit is open, applying the circuit fallback
+     */
+    public void divert(SyncBatch batch) {
+        divertedCount.add(batch.size());
+        if (circuitFallback == CircuitFallback.SPILL) {
+            spillOrDrop(batch);
+        } else {
+            batch.getEvents().forEach(this::discard);
+        }
+    }
+
+    private void spillOrDrop(SyncBatch batch) {
+        for (UserSyncData syncData : batch.getEvents()) {
+            if (!spill(syncData)) {
+                discard(syncData);
+            }
+        }
+    }
+
+    /**
+     * Gives up events this dispatcher can no longer deliver: they stay in the spool for the next replay,
+     * otherwise they are spilled. Returns the number of events that were lost.
+     */
+    public int release(List<UserSyncData> events) {
+        int lost = 0;
+        for (UserSyncData syncData : events) {
+            finished(syncData);
+            if (spool != null) {
+                spool.abandon(syncData);
+            } else if (!spill(syncData)) {
+                droppedCount.increment();
+                metrics.count(SyncMetrics.Outcome.DROPPED, syncData);
+                lost++;
+            }
+        }
+        return lost;
+    }
+
+    /**
+     * Runs a short task on a worker, such as completing a request whose response arrived on an I/O
+     * thread. Runs it on the calling thread once the dispatcher is closed.
+     */
+    public void execute(Runnable task) {
+        if (!running) {
+            task.run();
+            return;
+        }
+        tasks.add(task);
+        wakeWorker();
+    }
+
+    /**
+     * Runs a task, or hands a due retry or a user's released events to the handler, returning false
+     * when none is waiting
+     */
+    private boolean runReady() {
+        Runnable task = tasks.poll();
+        if (task != null) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                logger.errorf(e, "[ClientUserSync] Task failed in dispatcher %s", name);
+            }
+            return true;
+        }
+        SyncBatch batch = ready.poll();
+        if (batch == null) {
+            return false;
+        }
+        handle(batch);
+        return true;
+    }
+
+    private void runWorker() {
+        if (batchSize == 1) {
+            runSingleWorker();
+        } else {
+            runBatchWorker();
+        }
+    }
+
+    private boolean hasWork() {
+        return running || !ringBuffer.isEmpty() || !ready.isEmpty() || !tasks.isEmpty() || parkedCount.get() > 0;
+    }
+
+    private void runSingleWorker() {
+        List<UserSyncData> taken = new ArrayList<>(1);
+        int idleRounds = 0;
+        while (hasWork()) {
+            if (runReady()) {
+                idleRounds = 0;
+                continue;
+            }
+            if (isParkingFull()) {
+                idle(idleRounds++);
+                continue;
+            }
+            List<UserSyncData> events = new ArrayList<>(1);
+            int drained = take(events, taken);
+            if (drained == 0 && refillFromSpill()) {
+                drained = take(events, taken);
+            }
+            if (drained == 0) {
+                idle(idleRounds++);
+                continue;
+            }
+            idleRounds = 0;
+            if (!events.isEmpty()) {
+                handle(new SyncBatch(events));
+            }
+        }
+    }
+
+    private void runBatchWorker() {
+        List<UserSyncData> batch = new ArrayList<>(batchSize);
+        List<UserSyncData> taken = new ArrayList<>(batchSize);
+        long firstEventAt = 0;
+        int idleRounds = 0;
+        while (hasWork() || !batch.isEmpty()) {
+            if (runReady()) {
+                idleRounds = 0;
+                continue;
+            }
+            boolean wasEmpty = batch.isEmpty();
+            int drained = 0;
+            if (!isParkingFull()) {
+                drained = take(batch, taken);
+                if (drained == 0 && wasEmpty && refillFromSpill()) {
+                    drained = take(batch, taken);
+                }
+            }
+            if (batch.isEmpty()) {
+                idle(idleRounds++);
+                continue;
+            }
+            idleRounds = 0;
+            if (wasEmpty) {
+                firstEventAt = System.nanoTime();
+            }
+
+            long lingered = System.nanoTime() - firstEventAt;
+            if (batch.size() >= batchSize || lingered >= batchLingerNanos || !running) {
+                handle(new SyncBatch(batch));
+                batch = new ArrayList<>(batchSize);
+            } else if (drained == 0) {
+                LockSupport.parkNanos(Math.min(MAX_IDLE_PARK_NANOS, batchLingerNanos - lingered));
+            }
+        }
+    }
+
+    /**
+     * Moves events from the buffer into the batch, parking those whose user is outstanding elsewhere;
+     * returns the number of events taken from the buffer. With per-user ordering workers take events
+     * one at a time, otherwise a worker could admit a user's event ahead of an earlier one that
+     * another worker took from the buffer but has not admitted yet.
+     */
+    private int take(List<UserSyncData> batch, List<UserSyncData> taken) {
+        if (chains == null) {
+            return ringBuffer.drainTo(batch, batchSize - batch.size());
+        }
+        synchronized (admission) {
+            int drained = ringBuffer.drainTo(taken, batchSize - batch.size());
+            for (UserSyncData syncData : taken) {
+                admit(syncData, batch);
+            }
+            taken.clear();
+            return drained;
+        }
+    }
+
+    /**
+     * Whether as many events are parked as the buffer holds; the workers then take no new events
+     * until some users' chains have moved on
+     */
+    private boolean isParkingFull() {
+        return chains != null && parkedCount.get() >= parkedCapacity;
+    }
+
+    private void handle(SyncBatch batch) {
+        try {
+            handler.accept(batch);
+        } catch (RuntimeException e) {
+            logger.errorf(e, "[ClientUserSync] Unexpected error delivering %d events", batch.size());
+            // Nothing will finish these events any more, do not hold up their users for them
+            batch.getEvents().forEach(this::finished);
+        }
+    }
+
+    /**
+     * Moves spilled events back into the buffer once it has room for them
+     */
+    private boolean refillFromSpill() {
+        if (spillQueue == null || !running || spillQueue.isEmpty() || !deliveryPermitted.getAsBoolean()) {
+            return false;
+        }
+        int room = ringBuffer.capacity() - ringBuffer.size();
+        if (room < ringBuffer.capacity() / 2) {
+            return false;
+        }
+        try {
+            List<UserSyncData> events = spillQueue.poll(room);
+            for (UserSyncData event : events) {
+                if (!ringBuffer.offer(event)) {
+                    spillQueue.append(event);
+                } else {
+                    wakeWorker();
+                }
+            }
+            return !events.isEmpty();
+        } catch (IOException e) {
+            logger.errorf(e, "[ClientUserSync] Failed to read spilled events");
+            return false;
+        }
+    }
+
+    /**
+     * Spins, then yields, then parks the worker until wakeWorker() picks it. A worker registers as idle
+     * before it checks for work a last time, and producers wake a worker after publishing theirs, so
+     * one of the two always sees the other. With spilled events on disk it only parks for
+     * SPILL_POLL_NANOS, since nothing signals that the circuit closed or the buffer drained.
+     */
+    private void idle(int idleRounds) {
+        if (idleRounds < SPIN_TRIES) {
+            Thread.onSpinWait();
+            return;
+        }
+        if (idleRounds < SPIN_TRIES * 2) {
+            Thread.yield();
+            return;
+        }
+        Thread worker = Thread.currentThread();
+        idleWorkers.offer(worker);
+        if (hasQueuedWork()) {
+            idleWorkers.remove(worker);
+            return;
+        }
+        if (spillQueue != null && !spillQueue.isEmpty()) {
+            LockSupport.parkNanos(this, SPILL_POLL_NANOS);
+        } else {
+            LockSupport.park(this);
+        }
+        idleWorkers.remove(worker);
+    }
+
+    private boolean hasQueuedWork() {
+        return !running || !ready.isEmpty() || !tasks.isEmpty() || (!ringBuffer.isEmpty() && !isParkingFull());
+    }
+
+    /**
+     * Unparks one idle worker, if any; called after an event or batch was made available to the workers
+     */
+    private void wakeWorker() {
+        Thread worker = idleWorkers.poll();
+        if (worker != null) {
+            LockSupport.unpark(worker);
+        }
+    }
+
+    public int getQueueDepth() {
+        return ringBuffer.size();
+    }
+
+    public int getQueueCapacity() {
+        return ringBuffer.capacity();
+    }
+
+    /**
+     * Events waiting for earlier events of their user; only with per-user ordering
+     */
+    public int getParkedCount() {
+        return parkedCount.get();
+    }
+
+    public long getEnqueuedCount() {
+        return enqueuedCount.sum();
+    }
+
+    public long getDroppedCount() {
+        return droppedCount.sum();
+    }
+
+    public long getSpilledCount() {
+        return spilledCount.sum();
+    }
+
+    public long getRetryCount() {
+        return retryCount.sum();
+    }
+
+    public long getDivertedCount() {
+        return divertedCount.sum();
+    }
+
+    public int getPendingRetries() {
+        return scheduledRetries.size() + ready.size();
+    }
+
+    public long getSpillBacklogBytes() {
+        return spillQueue != null ? spillQueue.getBacklogBytes() : 0;
+    }
+
+    /**
+     * Stops accepting events and lets the workers drain the buffer for up to timeoutSeconds.
+     * Retries that are still waiting are not delayed further. Undelivered events stay in the spool
+     * when there is one, and are otherwise written to the spill file if it is enabled.
+     */
+    public void close(long timeoutSeconds) {
+        running = false;
+        retryScheduler.shutdownNow();
+        ready.addAll(scheduledRetries);
+        scheduledRetries.clear();
+        workers.forEach(LockSupport::unpark);
+        if (replayer != null) {
+            spool.removeReplayListener(replayWakeup);
+            LockSupport.unpark(replayer);
+        }
+        if (spillWriter != null) {
+            LockSupport.unpark(spillWriter);
+        }
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(timeoutSeconds);
+        try {
+            for (Thread worker : workers) {
+                long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                if (remaining > 0) {
+                    worker.join(remaining);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        // Completions of requests that were answered after the workers stopped
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            task.run();
+        }
+        int leftOver = releaseParked();
+        SyncBatch batch;
+        while ((batch = ready.poll()) != null) {
+            leftOver += release(batch.getEvents());
+        }
+        List<UserSyncData> queued = new ArrayList<>();
+        ringBuffer.drainTo(queued, ringBuffer.capacity());
+        leftOver += release(queued);
+        if (leftOver > 0) {
+            logger.warnf("[ClientUserSync] Dispatcher %s closed with %d undelivered events", name, leftOver);
+        }
+        workers.forEach(Thread::interrupt);
+
+        if (spillQueue != null) {
+            try {
+                spillWriter.join(Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime())));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            // Left behind by a writer that did not finish in time
+            UserSyncData syncData;
+            while ((syncData = spillHandoff.poll()) != null) {
+                if (!writeSpilled(syncData)) {
+                    discard(syncData);
+                }
+            }
+            try {
+                spillQueue.close();
+            } catch (IOException e) {
+                logger.errorf(e, "[ClientUserSync] Failed to close spill file");
+            }
+        }
+    }
+
+    /**
+     * Gives up the events still parked at shutdown
+     */
+    private int releaseParked() {
+        if (chains == null) {
+            return 0;
+        }
+        List<UserSyncData> parked = new ArrayList<>();
+        for (Object key : chains.keySet()) {
+            chains.computeIfPresent(key, (k, chain) -> {
+                parked.addAll(chain.parked);
+                parkedCount.addAndGet(-chain.parked.size());
+                chain.parked.clear();
+                return chain.outstanding > 0 ? chain : null;
+            });
+        }
+        return release(parked);
+    }
+
+    /**
+     * Events of one user that were handed out and are not finished yet, and the user's later events
+     * parked until they are. Only accessed inside a compute of the chains map.
+     */
+    private static final class Chain {
+        private final ArrayDeque<UserSyncData> parked = new ArrayDeque<>();
+        private int outstanding;
+        // Batch the outstanding events went into; events taken while it is still being filled join it
+        private List<UserSyncData> batch;
+    }
+}
@@ -0,0 +1,27 @@
+package com.keycloak.sync;
+
+/**
+ * Raised when the external API rejects a sync request
+ */
+public class SyncException extends RuntimeException {
+
+    private final int statusCode;
+    private final long retryAfterMillis;
+
+    public SyncException(SyncResponse response) {
+        super(String.format("API returned status code: %d", response.getStatusCode()));
+        this.statusCode = response.getStatusCode();
+        this.retryAfterMillis = response.getRetryAfterMillis();
+    }
+
+    public int getStatusCode() {
+        return statusCode;
+    }
+
+    /**
+     * Delay requested by the API through Retry-After, or -1 when none was sent
+     */
+    public long getRetryAfterMillis() {
+        return retryAfterMillis;
+    }
+}
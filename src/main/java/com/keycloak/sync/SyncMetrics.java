@@ -0,0 +1,106 @@
+package com.keycloak.sync;
+
+import org.jboss.logging.Logger;
+
+import java.util.List;
+
+/**
+ * Instrumentation points of the sync pipeline. This base class records nothing; create() returns
+ * the Micrometer implementation when Micrometer is on the class path, so the extension still runs
+ * on distributions without it.
+ * One instance lives per realm and sink for as long as the registry and outlives the services that
+ * are replaced on configuration changes: counters keep counting and gauges follow the bound service.
+ */
+public class SyncMetrics {
+
+    private static final Logger logger = Logger.getLogger(SyncMetrics.class);
+
+    public static final SyncMetrics NOOP = new SyncMetrics();
+
+    /**
+     * Client tag of events whose client is not named in the configuration, and of clients beyond the
+     * number that get a counter of their own
+     */
+    public static final String OTHER_CLIENT = "other";
+
+    /**
+     * What happened to an event at a stage of the pipeline
+     */
+    public enum Outcome {
+        RECEIVED, FILTERED, MERGED, DUPLICATE, ENQUEUED, DELIVERED, DROPPED
+    }
+
+    protected SyncMetrics() {
+    }
+
+    /**
+     * Creates the metrics of a realm's sink, registered in Micrometer's global registry that Keycloak
+     * exports when metrics are enabled
+     */
+    public static SyncMetrics create(String realmKey, String sink) {
+        try {
+            Class.forName("io.micrometer.core.instrument.Metrics", false, SyncMetrics.class.getClassLoader());
+        } catch (ClassNotFoundException | LinkageError e) {
+            logger.debugf("[ClientUserSync] Micrometer not available, metrics for realm %s are disabled", realmKey);
+            return NOOP;
+        }
+        return new MicrometerSyncMetrics(realmKey, sink);
+    }
+
+    /**
+     * Points the gauges at the service that currently handles the realm
+     */
+    public void bind(UserSyncService service) {
+    }
+
+    /**
+     * Detaches the gauges from a retired service, unless a successor was bound already
+     */
+    public void unbind(UserSyncService service) {
+    }
+
+    public void count(Outcome outcome, String eventType, String clientId) {
+    }
+
+    public void count(Outcome outcome, UserSyncData syncData) {
+        count(outcome, syncData.getEventType(), syncData.getClientId());
+    }
+
+    public void count(Outcome outcome, List<UserSyncData> events) {
+        for (UserSyncData syncData : events) {
+            count(outcome, syncData);
+        }
+    }
+
+    /**
+     * Records a batch that is retried
+     */
+    public void retryScheduled() {
+    }
+
+    /**
+     * Records the time to serialize and compress a request body
+     */
+    public void recordSerialization(long durationNanos) {
+    }
+
+    /**
+     * Records the size of a request body as sent, after compression
+     */
+    public void recordPayloadSize(int bytes) {
+    }
+
+    /**
+     * Records an HTTP request by status class
+     *
+     * @param statusCode the response status, or 0 when no response was received
+     */
+    public void recordRequest(int statusCode, long durationNanos) {
+    }
+
+    /**
+     * Removes the registered meters
+     */
+    public void close() {
+    }
+}
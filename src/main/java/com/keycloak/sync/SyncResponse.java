@@ -0,0 +1,59 @@
+package com.keycloak.sync;
+
+import org.apache.hc.client5.http.utils.DateUtils;
+
+import java.time.Instant;
+
+/**
+ * Status and body of a response from the external API
+ */
+public class SyncResponse {
+
+    private final int statusCode;
+    private final String body;
+    private final long retryAfterMillis;
+
+    public SyncResponse(int statusCode, String body) {
+        this(statusCode, body, -1);
+    }
+
+    public SyncResponse(int statusCode, String body, long retryAfterMillis) {
+        this.statusCode = statusCode;
+        this.body = body;
+        this.retryAfterMillis = retryAfterMillis;
+    }
+
+    /**
+     * Parses a Retry-After header given either as delay-seconds or as an HTTP date
+     */
+    public static long parseRetryAfter(String value) {
+        if (value == null || value.trim().isEmpty()) {
+            return -1;
+        }
+        try {
+            return Math.max(0, Long.parseLong(value.trim()) * 1000L);
+        } catch (NumberFormatException e) {
+            Instant date = DateUtils.parseStandardDate(value.trim());
+            return date != null ? Math.max(0, date.toEpochMilli() - System.currentTimeMillis()) : -1;
+        }
+    }
+
+    public int getStatusCode() {
+        return statusCode;
+    }
+
+    public String getBody() {
+        return body;
+    }
+
+    /**
+     * Delay requested through Retry-After, or -1 when the header was absent
+     */
+    public long getRetryAfterMillis() {
+        return retryAfterMillis;
+    }
+
+    public boolean isSuccessful() {
+        return statusCode >= 200 && statusCode < 300;
+    }
+}
@@ -0,0 +1,49 @@
+package com.keycloak.sync;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Outcome of a send that reached the destination: the events that still need to be delivered and
+ * those the destination rejected permanently. Every other event of the batch was delivered.
+ */
+public class SyncResult {
+
+    public static final SyncResult DELIVERED = new SyncResult(Collections.emptyList(), Collections.emptyList());
+
+    private final List<UserSyncData> pending;
+    private final List<UserSyncData> rejected;
+
+    public SyncResult(List<UserSyncData> pending, List<UserSyncData> rejected) {
+        this.pending = pending;
+        this.rejected = rejected;
+    }
+
+    /**
+     * Result of a batch whose events all need another attempt
+     */
+    public static SyncResult retryAll(List<UserSyncData> events) {
+        return new SyncResult(events, Collections.emptyList());
+    }
+
+    /**
+     * Events that failed with a retryable error
+     */
+    public List<UserSyncData> getPending() {
+        return pending;
+    }
+
+    /**
+     * Events the destination will not accept however often they are sent; they are dropped
+     */
+    public List<UserSyncData> getRejected() {
+        return rejected;
+    }
+
+    /**
+     * Number of events that were not delivered
+     */
+    public int getUndeliveredCount() {
+        return pending.size() + rejected.size();
+    }
+}
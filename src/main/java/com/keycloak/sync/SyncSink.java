@@ -0,0 +1,41 @@
+package com.keycloak.sync;
+
+import org.apache.hc.core5.pool.PoolStats;
+
+import java.io.Closeable;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+/**
+ * Destination that UserSyncService hands batches to. The service keeps the queueing, retries, circuit
+ * breaker and concurrency limit; a sink only writes the events to its destination.
+ * <p>
+ * send() completes with a SyncResult naming the events that still need to be delivered and those the
+ * destination rejected permanently, usually none of either, and completes exceptionally when the batch
+ * as a whole failed. SyncException and IOException failures are retried according to the retry
+ * policy; any other failure drops the batch. Rejected events are dropped; a sink that cannot tell
+ * which events failed reports the whole batch as pending.
+ */
+public interface SyncSink extends Closeable {
+
+    CompletableFuture<SyncResult> send(List<UserSyncData> events);
+
+    /**
+     * Leased, pending and available connections, for sinks with a connection pool
+     */
+    default PoolStats getPoolStats() {
+        return new PoolStats(0, 0, 0, 0);
+    }
+
+    static SyncSink create(ClientUserSyncConfig config, String name, SyncMetrics metrics, Executor completionExecutor) {
+        switch (config.getSinkType()) {
+            case FILE:
+                return new FileSyncSink(config, name, metrics);
+            case KAFKA:
+                return new KafkaSyncSink(config, name, metrics);
+            default:
+                return new HttpSyncSink(config, name, metrics, completionExecutor);
+        }
+    }
+}
@@ -0,0 +1,179 @@
+package com.keycloak.sync;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token bucket that paces the requests to a destination. Tokens are refilled at rateLimit per second
+ * up to rateLimitBurst and every request takes one; senders wait in acquire() while the bucket is
+ * empty, so a burst of events waits in the queue instead of exceeding the API's quota.
+ * <p>
+ * A throttling response (429 or 503) adapts the bucket: no tokens are handed out until its
+ * Retry-After has passed, the tokens saved up are discarded, and the refill rate drops to half the
+ * current rate, then recovers linearly to rateLimit over the following minute. Responses that arrive
+ * within a second of the last throttle only extend the pause, so the requests that were in flight
+ * together lower the rate once. Without a rateLimit the bucket does not pace requests but still
+ * holds every sender back for a Retry-After.
+ * <p>
+ * A bucket shared by several services, see RateLimitScope.ENDPOINT, paces them at the lowest
+ * rateLimit and rateLimitBurst among their configurations, whichever service was configured last.
+ */
+public class TokenBucketRateLimiter {
+
+    private static final double THROTTLE_RATIO = 0.5;
+    private static final double MIN_RATE_RATIO = 0.1;
+    private static final long RECOVERY_NANOS = TimeUnit.SECONDS.toNanos(60);
+    private static final long THROTTLE_HOLD_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final Map<String, ClientUserSyncConfig> configs = new HashMap<>();
+    private double rate;
+    private double burst;
+    private double tokens;
+    private long refilledAt;
+    private long pausedUntil;
+    private boolean throttled;
+    private double throttledRate;
+    private long throttledAt;
+
+    /**
+     * Creates a bucket that does not pace requests until a service configures it; it starts full
+     */
+    public TokenBucketRateLimiter() {
+        long now = System.nanoTime();
+        this.refilledAt = now;
+        this.pausedUntil = now;
+        this.tokens = Double.MAX_VALUE;
+    }
+
+    public TokenBucketRateLimiter(ClientUserSyncConfig config) {
+        this();
+        configure("", config);
+    }
+
+    /**
+     * Applies the configuration of a service using the bucket, replacing the one it had before. A
+     * bucket kept across a configuration change keeps its tokens and throttling state.
+     *
+     * @param owner key of the service, e.g. its realm or sink key
+     */
+    public synchronized void configure(String owner, ClientUserSyncConfig config) {
+        configs.put(owner, config);
+        applyLimits();
+    }
+
+    /**
+     * Stops applying the configuration of a service that no longer uses the bucket
+     */
+    public synchronized void remove(String owner) {
+        if (configs.remove(owner) != null) {
+            applyLimits();
+        }
+    }
+
+    private void applyLimits() {
+        double lowestRate = 0;
+        double lowestBurst = 0;
+        for (ClientUserSyncConfig config : configs.values()) {
+            double configRate = config.getRateLimit();
+            if (configRate <= 0) {
+                continue;
+            }
+            double configBurst = config.getRateLimitBurst() > 0 ? config.getRateLimitBurst() : Math.max(1, configRate);
+            lowestRate = lowestRate > 0 ? Math.min(lowestRate, configRate) : configRate;
+            lowestBurst = lowestBurst > 0 ? Math.min(lowestBurst, configBurst) : configBurst;
+        }
+        rate = lowestRate;
+        burst = lowestBurst > 0 ? lowestBurst : 1;
+        if (rate > 0) {
+            tokens = Math.min(tokens, burst);
+        }
+    }
+
+    /**
+     * Responses that ask the client to slow down
+     */
+    public static boolean isThrottling(int statusCode) {
+        return statusCode == 429 || statusCode == 503;
+    }
+
+    /**
+     * Waits until a request may be sent
+     */
+    public void acquire() throws InterruptedException {
+        long waitNanos;
+        while ((waitNanos = tryAcquire(System.nanoTime())) > 0) {
+            TimeUnit.NANOSECONDS.sleep(waitNanos);
+        }
+    }
+
+    /**
+     * Takes a token if one is available; returns 0 when it did, otherwise the time until one will be
+     */
+    synchronized long tryAcquire(long now) {
+        if (now - pausedUntil < 0) {
+            return pausedUntil - now;
+        }
+        if (rate <= 0) {
+            return 0;
+        }
+        double currentRate = currentRate(now);
+        refill(now, currentRate);
+        if (tokens >= 1) {
+            tokens -= 1;
+            return 0;
+        }
+        return Math.max(1, (long) Math.ceil((1 - tokens) * TimeUnit.SECONDS.toNanos(1) / currentRate));
+    }
+
+    private void refill(long now, double currentRate) {
+        long elapsed = now - refilledAt;
+        if (elapsed > 0) {
+            tokens = Math.min(burst, tokens + currentRate * elapsed / TimeUnit.SECONDS.toNanos(1));
+            refilledAt = now;
+        }
+    }
+
+    private double currentRate(long now) {
+        if (!throttled) {
+            return rate;
+        }
+        long elapsed = now - throttledAt;
+        if (elapsed >= RECOVERY_NANOS) {
+            throttled = false;
+            return rate;
+        }
+        return Math.min(rate, throttledRate + (rate - throttledRate) * elapsed / RECOVERY_NANOS);
+    }
+
+    /**
+     * Records a throttling response
+     *
+     * @param retryAfterMillis delay the API asked for, or -1 when it sent no Retry-After
+     */
+    public synchronized void onThrottled(long retryAfterMillis) {
+        long now = System.nanoTime();
+        if (retryAfterMillis > 0) {
+            long until = now + TimeUnit.MILLISECONDS.toNanos(retryAfterMillis);
+            if (until - pausedUntil > 0) {
+                pausedUntil = until;
+            }
+        }
+        if (rate <= 0 || (throttled && now - throttledAt < THROTTLE_HOLD_NANOS)) {
+            return;
+        }
+        throttledRate = Math.max(rate * MIN_RATE_RATIO, currentRate(now) * THROTTLE_RATIO);
+        throttledAt = now;
+        throttled = true;
+        tokens = 0;
+        // Nothing accrues while paused
+        refilledAt = now - pausedUntil < 0 ? pausedUntil : now;
+    }
+
+    /**
+     * Current refill rate in requests per second, or 0 when requests are not paced
+     */
+    public synchronized double getRate() {
+        return rate > 0 ? currentRate(System.nanoTime()) : 0;
+    }
+}
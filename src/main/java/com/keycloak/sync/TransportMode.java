@@ -0,0 +1,38 @@
+package com.keycloak.sync;
+
+/**
+ * HTTP client implementation used to reach the external API
+ */
+public enum TransportMode {
+
+    /** Blocking httpclient5 classic client; each request occupies a sender thread until it completes */
+    CLASSIC,
+
+    /** Non-blocking httpclient5 async client with optional HTTP/2 multiplexing */
+    ASYNC,
+
+    /**
+     * Blocking httpclient5 classic client with every request on its own virtual thread; needs Java 21
+     * and falls back to CLASSIC on older runtimes
+     */
+    VIRTUAL;
+
+    /**
+     * Whether sender threads hand requests off instead of waiting for them, so that up to maxInFlight
+     * requests rather than threadPoolSize are outstanding
+     */
+    public boolean isBoundedByMaxInFlight() {
+        return this != CLASSIC;
+    }
+
+    public static TransportMode fromString(String value, TransportMode defaultValue) {
+        if (value == null || value.trim().isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            return TransportMode.valueOf(value.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            return defaultValue;
+        }
+    }
+}
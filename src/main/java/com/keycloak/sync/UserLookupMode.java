@@ -0,0 +1,24 @@
+package com.keycloak.sync;
+
+/**
+ * Where the user profile of a synced event is loaded
+ */
+public enum UserLookupMode {
+
+    /** On the Keycloak request thread while the event is processed */
+    INLINE,
+
+    /** On a sender thread just before delivery; the request thread only captures the event fields */
+    DEFERRED;
+
+    public static UserLookupMode fromString(String value, UserLookupMode defaultValue) {
+        if (value == null || value.trim().isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            return UserLookupMode.valueOf(value.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            return defaultValue;
+        }
+    }
+}
@@ -0,0 +1,183 @@
+package com.keycloak.sync;
+
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Supplier;
+
+/**
+ * Loads the profile of the user behind an event, through the user snapshot cache.
+ * In INLINE mode the listener resolves users in the request's own session. In DEFERRED mode the
+ * listener only marks events as profilePending and the sender threads resolve them just before
+ * delivery, looking up cache misses in a transaction of their own.
+ */
+public class UserProfileResolver {
+
+    private final KeycloakSessionFactory sessionFactory;
+    private final UserSnapshotCache cache;
+    private final List<String> additionalAttributes;
+    private final boolean deferred;
+
+    /**
+     * @param sessionFactory used for deferred lookups; without it users are always resolved inline
+     */
+    public UserProfileResolver(ClientUserSyncConfig config, KeycloakSessionFactory sessionFactory) {
+        this.sessionFactory = sessionFactory;
+        this.cache = config.getUserCacheSize() > 0 && config.getUserCacheTtl() > 0
+                ? new UserSnapshotCache(config.getUserCacheSize(), config.getUserCacheTtl())
+                : null;
+        this.additionalAttributes = config.getAdditionalAttributes();
+        this.deferred = config.getUserLookupMode() == UserLookupMode.DEFERRED && sessionFactory != null;
+    }
+
+    public boolean isDeferred() {
+        return deferred;
+    }
+
+    /**
+     * Returns the user's snapshot from the cache or the given session, or null when the user does not exist
+     */
+    public UserSnapshot resolve(KeycloakSession session, RealmModel realm, String userId) {
+        String key = cache != null ? UserSnapshotCache.key(realm.getId(), userId) : null;
+        UserSnapshot snapshot = cache != null ? cache.get(key) : null;
+        return snapshot != null ? snapshot : load(session, realm, userId, key);
+    }
+
+    private UserSnapshot load(KeycloakSession session, RealmModel realm, String userId, String key) {
+        UserModel user = session.users().getUserById(realm, userId);
+        if (user == null) {
+            return null;
+        }
+        UserSnapshot snapshot = UserSnapshot.of(user, additionalAttributes);
+        if (cache != null) {
+            cache.put(key, snapshot);
+        }
+        return snapshot;
+    }
+
+    /**
+     * Fills in the profile of events captured with a deferred lookup. Cache misses are loaded in one
+     * transaction. Returns the events whose realm or user no longer exists; runtime exceptions from
+     * the lookup propagate and leave the events pending.
+     */
+    public List<UserSyncData> resolvePending(List<UserSyncData> events) {
+        List<UserSyncData> misses = null;
+        List<UserSyncData> missing = null;
+        for (UserSyncData event : events) {
+            if (!event.isProfilePending()) {
+                continue;
+            }
+            UserSnapshot snapshot = cache != null ? cache.get(UserSnapshotCache.key(event.getRealmId(), event.getUserId())) : null;
+            SharedLookup shared = event.getSharedLookup();
+            if (snapshot == null && shared != null && shared.isDone()) {
+                // Another sink has looked the user up already
+                snapshot = shared.getSnapshot();
+                if (snapshot == null) {
+                    if (missing == null) {
+                        missing = new ArrayList<>();
+                    }
+                    missing.add(event);
+                    continue;
+                }
+            }
+            if (snapshot != null) {
+                complete(event, snapshot);
+            } else {
+                if (misses == null) {
+                    misses = new ArrayList<>();
+                }
+                misses.add(event);
+            }
+        }
+        if (misses == null || sessionFactory == null) {
+            return missing != null ? missing : Collections.emptyList();
+        }
+
+        List<UserSyncData> pending = misses;
+        List<UserSyncData> notFound = missing != null ? missing : new ArrayList<>();
+        KeycloakModelUtils.runJobInTransaction(sessionFactory, session -> {
+            for (UserSyncData event : pending) {
+                SharedLookup shared = event.getSharedLookup();
+                UserSnapshot snapshot = shared != null
+                        ? shared.load(() -> lookup(session, event))
+                        : lookup(session, event);
+                if (snapshot != null) {
+                    complete(event, snapshot);
+                } else {
+                    notFound.add(event);
+                }
+            }
+        });
+        return notFound;
+    }
+
+    private UserSnapshot lookup(KeycloakSession session, UserSyncData event) {
+        RealmModel realm = session.realms().getRealm(event.getRealmId());
+        return realm != null
+                ? load(session, realm, event.getUserId(), UserSnapshotCache.key(event.getRealmId(), event.getUserId()))
+                : null;
+    }
+
+    private static void complete(UserSyncData event, UserSnapshot snapshot) {
+        snapshot.applyTo(event);
+        event.setProfilePending(false);
+    }
+
+    /**
+     * Returns the cached snapshot of a user without loading it, or null
+     */
+    public UserSnapshot getCached(String realmId, String userId) {
+        if (cache == null || realmId == null || userId == null) {
+            return null;
+        }
+        return cache.get(UserSnapshotCache.key(realmId, userId));
+    }
+
+    /**
+     * Drops the cached snapshot of a user whose profile changed or who was deleted
+     */
+    public void invalidate(String realmId, String userId) {
+        if (cache != null && realmId != null && userId != null) {
+            cache.invalidate(UserSnapshotCache.key(realmId, userId));
+        }
+    }
+
+    public UserSnapshotCache getCache() {
+        return cache;
+    }
+
+    /**
+     * Lookup of one pending event whose copies are queued by several sinks: the first sink to deliver
+     * its copy loads the user, the others apply the same snapshot to their own copy. A lookup that
+     * fails is left to the next sink.
+     */
+    static final class SharedLookup {
+        private boolean done;
+        private UserSnapshot snapshot;
+
+        synchronized boolean isDone() {
+            return done;
+        }
+
+        /**
+         * The loaded snapshot, or null when the user did not exist
+         */
+        synchronized UserSnapshot getSnapshot() {
+            return snapshot;
+        }
+
+        synchronized UserSnapshot load(Supplier<UserSnapshot> loader) {
+            if (!done) {
+                snapshot = loader.get();
+                done = true;
+            }
+            return snapshot;
+        }
+    }
+}
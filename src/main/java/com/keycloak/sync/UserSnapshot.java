@@ -0,0 +1,90 @@
+package com.keycloak.sync;
+
+import org.keycloak.models.UserModel;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Immutable copy of the user profile fields that are synced, taken once from a UserModel
+ * so it can be cached and read outside the Keycloak session that loaded the user
+ */
+public class UserSnapshot {
+
+    private final String userId;
+    private final String username;
+    private final String email;
+    private final String firstName;
+    private final String lastName;
+    private final Map<String, String> attributes;
+
+    private UserSnapshot(String userId, String username, String email, String firstName, String lastName,
+                         Map<String, String> attributes) {
+        this.userId = userId;
+        this.username = username;
+        this.email = email;
+        this.firstName = firstName;
+        this.lastName = lastName;
+        this.attributes = attributes;
+    }
+
+    /**
+     * Copies the profile and the configured additional attributes of a user
+     */
+    public static UserSnapshot of(UserModel user, List<String> additionalAttributes) {
+        Map<String, String> attributes = Collections.emptyMap();
+        if (additionalAttributes != null && !additionalAttributes.isEmpty()) {
+            attributes = new HashMap<>();
+            for (String attribute : additionalAttributes) {
+                String value = user.getFirstAttribute(attribute);
+                if (value != null) {
+                    attributes.put(attribute, value);
+                }
+            }
+            attributes = Collections.unmodifiableMap(attributes);
+        }
+        return new UserSnapshot(user.getId(), user.getUsername(), user.getEmail(), user.getFirstName(),
+                user.getLastName(), attributes);
+    }
+
+    /**
+     * Fills the user fields of an event from this snapshot
+     */
+    public void applyTo(UserSyncData syncData) {
+        syncData.setUserId(userId);
+        syncData.setUsername(username);
+        syncData.setEmail(email);
+        syncData.setFirstName(firstName);
+        syncData.setLastName(lastName);
+        attributes.forEach(syncData::addAttribute);
+    }
+
+    public String getUserId() {
+        return userId;
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    public String getEmail() {
+        return email;
+    }
+
+    public String getFirstName() {
+        return firstName;
+    }
+
+    public String getLastName() {
+        return lastName;
+    }
+
+    /**
+     * Configured additional attributes that have a value
+     */
+    public Map<String, String> getAttributes() {
+        return attributes;
+    }
+}
@@ -0,0 +1,247 @@
+package com.keycloak.sync;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Size- and TTL-bounded cache of user snapshots keyed by realm and user ID, using W-TinyLFU eviction.
+ * New entries land in a small LRU window; an entry leaving the window only replaces the eviction
+ * candidate of the main segmented LRU when a count-min frequency sketch says it is accessed more
+ * often, so a burst of one-off logins cannot flush the users that log in regularly.
+ * Entries expire ttl after they were loaded. Access is serialized on the cache; lookups happen on
+ * sender threads or once per synced event, so contention is low.
+ */
+public class UserSnapshotCache {
+
+    private static final int WINDOW_PERCENT = 1;
+    private static final int PROTECTED_PERCENT = 80;
+
+    private final int maximumSize;
+    private final int windowCapacity;
+    private final int protectedCapacity;
+    private final long ttlNanos;
+    private final FrequencySketch sketch;
+    private final LinkedHashMap<String, Entry> window = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<String, Entry> probation = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<String, Entry> protectedSegment = new LinkedHashMap<>(16, 0.75f, true);
+    private final LongAdder hitCount = new LongAdder();
+    private final LongAdder missCount = new LongAdder();
+
+    public UserSnapshotCache(int maximumSize, long ttlSeconds) {
+        this.maximumSize = Math.max(1, maximumSize);
+        this.windowCapacity = Math.max(1, this.maximumSize * WINDOW_PERCENT / 100);
+        this.protectedCapacity = (this.maximumSize - windowCapacity) * PROTECTED_PERCENT / 100;
+        this.ttlNanos = TimeUnit.SECONDS.toNanos(Math.max(0, ttlSeconds));
+        this.sketch = new FrequencySketch(this.maximumSize);
+    }
+
+    public static String key(String realmId, String userId) {
+        return realmId + '/' + userId;
+    }
+
+    /**
+     * Returns the cached snapshot, or null when it is absent or expired
+     */
+    public synchronized UserSnapshot get(String key) {
+        sketch.increment(key);
+        long now = System.nanoTime();
+
+        Entry entry = window.get(key);
+        if (entry == null) {
+            entry = protectedSegment.get(key);
+        }
+        if (entry == null) {
+            entry = probation.remove(key);
+            if (entry != null) {
+                promote(key, entry);
+            }
+        }
+        if (entry == null) {
+            missCount.increment();
+            return null;
+        }
+        if (now - entry.expiresAt >= 0) {
+            remove(key);
+            missCount.increment();
+            return null;
+        }
+        hitCount.increment();
+        return entry.snapshot;
+    }
+
+    public synchronized void put(String key, UserSnapshot snapshot) {
+        Entry entry = new Entry(snapshot, System.nanoTime() + ttlNanos);
+        if (window.containsKey(key)) {
+            window.put(key, entry);
+            return;
+        }
+        if (protectedSegment.containsKey(key)) {
+            protectedSegment.put(key, entry);
+            return;
+        }
+        if (probation.containsKey(key)) {
+            probation.put(key, entry);
+            return;
+        }
+
+        window.put(key, entry);
+        if (window.size() > windowCapacity) {
+            Map.Entry<String, Entry> candidate = pollEldest(window);
+            admit(candidate.getKey(), candidate.getValue());
+        }
+    }
+
+    public synchronized void invalidate(String key) {
+        remove(key);
+    }
+
+    public synchronized void invalidateAll() {
+        window.clear();
+        probation.clear();
+        protectedSegment.clear();
+    }
+
+    public synchronized int size() {
+        return window.size() + probation.size() + protectedSegment.size();
+    }
+
+    public long getHitCount() {
+        return hitCount.sum();
+    }
+
+    public long getMissCount() {
+        return missCount.sum();
+    }
+
+    private void remove(String key) {
+        if (window.remove(key) == null && probation.remove(key) == null) {
+            protectedSegment.remove(key);
+        }
+    }
+
+    /**
+     * Moves an entry leaving the window into the main segments if it beats the main eviction candidate
+     */
+    private void admit(String key, Entry entry) {
+        if (probation.size() + protectedSegment.size() < maximumSize - windowCapacity) {
+            probation.put(key, entry);
+            return;
+        }
+        Iterator<Map.Entry<String, Entry>> eldest = probation.entrySet().iterator();
+        if (!eldest.hasNext()) {
+            eldest = protectedSegment.entrySet().iterator();
+            if (!eldest.hasNext()) {
+                return;
+            }
+        }
+        Map.Entry<String, Entry> victim = eldest.next();
+        if (sketch.frequency(key) > sketch.frequency(victim.getKey())) {
+            eldest.remove();
+            probation.put(key, entry);
+        }
+    }
+
+    /**
+     * Moves a probation entry that was hit again into the protected segment, demoting the protected
+     * segment's least recently used entry when it is full
+     */
+    private void promote(String key, Entry entry) {
+        protectedSegment.put(key, entry);
+        if (protectedSegment.size() > protectedCapacity) {
+            Map.Entry<String, Entry> demoted = pollEldest(protectedSegment);
+            probation.put(demoted.getKey(), demoted.getValue());
+        }
+    }
+
+    private static Map.Entry<String, Entry> pollEldest(LinkedHashMap<String, Entry> segment) {
+        Iterator<Map.Entry<String, Entry>> iterator = segment.entrySet().iterator();
+        Map.Entry<String, Entry> eldest = iterator.next();
+        Map.Entry<String, Entry> copy = Map.entry(eldest.getKey(), eldest.getValue());
+        iterator.remove();
+        return copy;
+    }
+
+    private static final class Entry {
+        private final UserSnapshot snapshot;
+        private final long expiresAt;
+
+        private Entry(UserSnapshot snapshot, long expiresAt) {
+            this.snapshot = snapshot;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    /**
+     * Count-min sketch of 4-bit counters, four per key, halved after every 10 x maximumSize
+     * increments so old popularity fades
+     */
+    private static final class FrequencySketch {
+
+        private static final long[] SEEDS = {0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+        private static final long RESET_MASK = 0x7777777777777777L;
+
+        private final long[] table;
+        private final int tableMask;
+        private final int sampleSize;
+        private int additions;
+
+        private FrequencySketch(int maximumSize) {
+            int length = Integer.highestOneBit(Math.max(8, maximumSize - 1) << 1);
+            this.table = new long[length];
+            this.tableMask = length - 1;
+            this.sampleSize = 10 * maximumSize;
+        }
+
+        int frequency(String key) {
+            int hash = spread(key.hashCode());
+            int frequency = Integer.MAX_VALUE;
+            for (int i = 0; i < 4; i++) {
+                int index = indexOf(hash, i);
+                int offset = counterOffset(hash, i);
+                frequency = Math.min(frequency, (int) ((table[index] >>> offset) & 0xfL));
+            }
+            return frequency;
+        }
+
+        void increment(String key) {
+            int hash = spread(key.hashCode());
+            boolean added = false;
+            for (int i = 0; i < 4; i++) {
+                int index = indexOf(hash, i);
+                int offset = counterOffset(hash, i);
+                if (((table[index] >>> offset) & 0xfL) != 0xfL) {
+                    table[index] += 1L << offset;
+                    added = true;
+                }
+            }
+            if (added && ++additions >= sampleSize) {
+                reset();
+            }
+        }
+
+        private void reset() {
+            for (int i = 0; i < table.length; i++) {
+                table[i] = (table[i] >>> 1) & RESET_MASK;
+            }
+            additions /= 2;
+        }
+
+        private int indexOf(int hash, int row) {
+            long mixed = (hash + SEEDS[row]) * SEEDS[row];
+            mixed += mixed >>> 32;
+            return ((int) mixed) & tableMask;
+        }
+
+        private static int counterOffset(int hash, int row) {
+            return (((hash >>> (row << 3)) & 3) << 2) + (row << 4);
+        }
+
+        private static int spread(int hash) {
+            hash = ((hash >>> 16) ^ hash) * 0x45d9f3b;
+            return (hash >>> 16) ^ hash;
+        }
+    }
+}
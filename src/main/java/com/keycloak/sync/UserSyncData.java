@@ -1,6 +1,7 @@
 package com.keycloak.sync;
 
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
 
 /**
@@ -21,11 +22,43 @@ public class UserSyncData {
     private Long timestamp;
     private String sessionId;
     private Map<String, String> additionalAttributes;
+    private Map<String, Object> changes;
+    private Integer eventCount;
+    private Long firstTimestamp;
+    private Long lastTimestamp;
+    private boolean profilePending;
+    private UserProfileResolver.SharedLookup sharedLookup;
 
     public UserSyncData() {
         this.additionalAttributes = new HashMap<>();
     }
 
+    /**
+     * Copies a record for another sink; the copy shares only the pending profile lookup
+     */
+    public UserSyncData(UserSyncData other) {
+        this.eventId = other.eventId;
+        this.eventType = other.eventType;
+        this.userId = other.userId;
+        this.username = other.username;
+        this.email = other.email;
+        this.firstName = other.firstName;
+        this.lastName = other.lastName;
+        this.realmId = other.realmId;
+        this.realmName = other.realmName;
+        this.clientId = other.clientId;
+        this.ipAddress = other.ipAddress;
+        this.timestamp = other.timestamp;
+        this.sessionId = other.sessionId;
+        this.additionalAttributes = other.additionalAttributes != null ? new HashMap<>(other.additionalAttributes) : null;
+        this.changes = other.changes != null ? new LinkedHashMap<>(other.changes) : null;
+        this.eventCount = other.eventCount;
+        this.firstTimestamp = other.firstTimestamp;
+        this.lastTimestamp = other.lastTimestamp;
+        this.profilePending = other.profilePending;
+        this.sharedLookup = other.sharedLookup;
+    }
+
     public void addAttribute(String key, String value) {
         this.additionalAttributes.put(key, value);
     }
@@ -141,5 +174,65 @@ public class UserSyncData {
     public void setAdditionalAttributes(Map<String, String> additionalAttributes) {
         this.additionalAttributes = additionalAttributes;
     }
-}
 
+    /**
+     * Changed fields of an admin delta record (see AdminEventMapper); null for user events
+     */
+    public Map<String, Object> getChanges() {
+        return changes;
+    }
+
+    public void setChanges(Map<String, Object> changes) {
+        this.changes = changes;
+    }
+
+    /**
+     * Number of events merged into this record by the coalescing window; null for a single event
+     */
+    public Integer getEventCount() {
+        return eventCount;
+    }
+
+    public void setEventCount(Integer eventCount) {
+        this.eventCount = eventCount;
+    }
+
+    public Long getFirstTimestamp() {
+        return firstTimestamp;
+    }
+
+    public void setFirstTimestamp(Long firstTimestamp) {
+        this.firstTimestamp = firstTimestamp;
+    }
+
+    public Long getLastTimestamp() {
+        return lastTimestamp;
+    }
+
+    public void setLastTimestamp(Long lastTimestamp) {
+        this.lastTimestamp = lastTimestamp;
+    }
+
+    /**
+     * Whether the user profile fields still have to be loaded before delivery (deferred user lookup).
+     * Kept in the spool so replayed events are resolved too; never part of the request body.
+     */
+    public boolean isProfilePending() {
+        return profilePending;
+    }
+
+    public void setProfilePending(boolean profilePending) {
+        this.profilePending = profilePending;
+    }
+
+    /**
+     * Profile lookup shared by the copies of a pending event handed to several sinks; not serialized
+     */
+    UserProfileResolver.SharedLookup getSharedLookup() {
+        return sharedLookup;
+    }
+
+    void setSharedLookup(UserProfileResolver.SharedLookup sharedLookup) {
+        this.sharedLookup = sharedLookup;
+    }
+}
@@ -0,0 +1,218 @@
+package com.keycloak.sync;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.SerializableString;
+import com.fasterxml.jackson.core.StreamWriteFeature;
+import com.fasterxml.jackson.core.io.SerializedString;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileGenerator;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Streams UserSyncData as UTF-8 JSON, or as CBOR or Smile, straight into an output stream.
+ * Fields are written by hand in the same order and with the same names and null handling as
+ * the ObjectMapper bean serializer, so the wire format is unchanged, but without reflection,
+ * without an intermediate String and with field names encoded once up front.
+ * The changes of admin delta records and the counters of coalesced records are written only when
+ * present, so single user event payloads keep their shape; internal pipeline state such as
+ * profilePending is only written to spool records.
+ */
+public class UserSyncDataWriter {
+
+    private static final JsonFactory JSON_FACTORY = JsonFactory.builder()
+            .disable(StreamWriteFeature.AUTO_CLOSE_TARGET)
+            .build();
+    private static final JsonFactory CBOR_FACTORY = CBORFactory.builder()
+            .disable(StreamWriteFeature.AUTO_CLOSE_TARGET)
+            .build();
+    private static final JsonFactory SMILE_FACTORY = SmileFactory.builder()
+            .enable(SmileGenerator.Feature.CHECK_SHARED_STRING_VALUES)
+            .disable(StreamWriteFeature.AUTO_CLOSE_TARGET)
+            .build();
+    private static final SerializableString NDJSON_SEPARATOR = new SerializedString("\n");
+
+    private static final SerializableString EVENT_ID = new SerializedString("eventId");
+    private static final SerializableString EVENT_TYPE = new SerializedString("eventType");
+    private static final SerializableString USER_ID = new SerializedString("userId");
+    private static final SerializableString USERNAME = new SerializedString("username");
+    private static final SerializableString EMAIL = new SerializedString("email");
+    private static final SerializableString FIRST_NAME = new SerializedString("firstName");
+    private static final SerializableString LAST_NAME = new SerializedString("lastName");
+    private static final SerializableString REALM_ID = new SerializedString("realmId");
+    private static final SerializableString REALM_NAME = new SerializedString("realmName");
+    private static final SerializableString CLIENT_ID = new SerializedString("clientId");
+    private static final SerializableString IP_ADDRESS = new SerializedString("ipAddress");
+    private static final SerializableString TIMESTAMP = new SerializedString("timestamp");
+    private static final SerializableString SESSION_ID = new SerializedString("sessionId");
+    private static final SerializableString ADDITIONAL_ATTRIBUTES = new SerializedString("additionalAttributes");
+    private static final SerializableString CHANGES = new SerializedString("changes");
+    private static final SerializableString EVENT_COUNT = new SerializedString("eventCount");
+    private static final SerializableString FIRST_TIMESTAMP = new SerializedString("firstTimestamp");
+    private static final SerializableString LAST_TIMESTAMP = new SerializedString("lastTimestamp");
+    private static final SerializableString PROFILE_PENDING = new SerializedString("profilePending");
+
+    private final JsonFactory factory;
+    private final boolean json;
+
+    public UserSyncDataWriter() {
+        this(PayloadEncoding.JSON);
+    }
+
+    public UserSyncDataWriter(PayloadEncoding encoding) {
+        switch (encoding) {
+            case CBOR:
+                this.factory = CBOR_FACTORY;
+                break;
+            case SMILE:
+                this.factory = SMILE_FACTORY;
+                break;
+            default:
+                this.factory = JSON_FACTORY;
+                break;
+        }
+        this.json = factory == JSON_FACTORY;
+    }
+
+    /**
+     * Writes a single event as one object
+     */
+    public void write(UserSyncData syncData, OutputStream out) throws IOException {
+        try (JsonGenerator generator = factory.createGenerator(out, JsonEncoding.UTF8)) {
+            writeObject(generator, syncData, false);
+        }
+    }
+
+    /**
+     * Writes a single event as a spool record: the object write(UserSyncData, OutputStream) writes,
+     * plus profilePending when it is set, so that a replayed event is still resolved before delivery
+     */
+    public void writeRecord(UserSyncData syncData, OutputStream out) throws IOException {
+        try (JsonGenerator generator = factory.createGenerator(out, JsonEncoding.UTF8)) {
+            writeObject(generator, syncData, true);
+        }
+    }
+
+    /**
+     * Writes the events in the given batch format; the binary encodings always write an array
+     */
+    public void write(List<UserSyncData> events, BatchFormat format, OutputStream out) throws IOException {
+        try (JsonGenerator generator = factory.createGenerator(out, JsonEncoding.UTF8)) {
+            if (format == BatchFormat.JSON_ARRAY || !json) {
+                generator.writeStartArray();
+                for (UserSyncData event : events) {
+                    writeObject(generator, event, false);
+                }
+                generator.writeEndArray();
+                return;
+            }
+            generator.setRootValueSeparator(NDJSON_SEPARATOR);
+            for (UserSyncData event : events) {
+                writeObject(generator, event, false);
+            }
+            generator.writeRaw('\n');
+        }
+    }
+
+    private static void writeObject(JsonGenerator generator, UserSyncData syncData, boolean record) throws IOException {
+        generator.writeStartObject();
+        writeString(generator, EVENT_ID, syncData.getEventId());
+        writeString(generator, EVENT_TYPE, syncData.getEventType());
+        writeString(generator, USER_ID, syncData.getUserId());
+        writeString(generator, USERNAME, syncData.getUsername());
+        writeString(generator, EMAIL, syncData.getEmail());
+        writeString(generator, FIRST_NAME, syncData.getFirstName());
+        writeString(generator, LAST_NAME, syncData.getLastName());
+        writeString(generator, REALM_ID, syncData.getRealmId());
+        writeString(generator, REALM_NAME, syncData.getRealmName());
+        writeString(generator, CLIENT_ID, syncData.getClientId());
+        writeString(generator, IP_ADDRESS, syncData.getIpAddress());
+
+        generator.writeFieldName(TIMESTAMP);
+        Long timestamp = syncData.getTimestamp();
+        if (timestamp != null) {
+            generator.writeNumber(timestamp.longValue());
+        } else {
+            generator.writeNull();
+        }
+
+        writeString(generator, SESSION_ID, syncData.getSessionId());
+
+        generator.writeFieldName(ADDITIONAL_ATTRIBUTES);
+        Map<String, String> attributes = syncData.getAdditionalAttributes();
+        if (attributes != null) {
+            generator.writeStartObject();
+            for (Map.Entry<String, String> attribute : attributes.entrySet()) {
+                generator.writeFieldName(attribute.getKey());
+                generator.writeString(attribute.getValue());
+            }
+            generator.writeEndObject();
+        } else {
+            generator.writeNull();
+        }
+
+        if (syncData.getChanges() != null) {
+            generator.writeFieldName(CHANGES);
+            writeValue(generator, syncData.getChanges());
+        }
+        if (syncData.getEventCount() != null) {
+            generator.writeFieldName(EVENT_COUNT);
+            generator.writeNumber(syncData.getEventCount().intValue());
+            generator.writeFieldName(FIRST_TIMESTAMP);
+            writeValue(generator, syncData.getFirstTimestamp());
+            generator.writeFieldName(LAST_TIMESTAMP);
+            writeValue(generator, syncData.getLastTimestamp());
+        }
+        if (record && syncData.isProfilePending()) {
+            generator.writeFieldName(PROFILE_PENDING);
+            generator.writeBoolean(true);
+        }
+        generator.writeEndObject();
+    }
+
+    /**
+     * Writes the plain values delta records carry: strings, booleans, numbers, lists and nested maps
+     */
+    private static void writeValue(JsonGenerator generator, Object value) throws IOException {
+        if (value == null) {
+            generator.writeNull();
+        } else if (value instanceof String) {
+            generator.writeString((String) value);
+        } else if (value instanceof Boolean) {
+            generator.writeBoolean((Boolean) value);
+        } else if (value instanceof Long || value instanceof Integer) {
+            generator.writeNumber(((Number) value).longValue());
+        } else if (value instanceof Map) {
+            generator.writeStartObject();
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                generator.writeFieldName(String.valueOf(entry.getKey()));
+                writeValue(generator, entry.getValue());
+            }
+            generator.writeEndObject();
+        } else if (value instanceof Collection) {
+            generator.writeStartArray();
+            for (Object element : (Collection<?>) value) {
+                writeValue(generator, element);
+            }
+            generator.writeEndArray();
+        } else {
+            generator.writeString(value.toString());
+        }
+    }
+
+    private static void writeString(JsonGenerator generator, SerializableString name, String value) throws IOException {
+        generator.writeFieldName(name);
+        if (value != null) {
+            generator.writeString(value);
+        } else {
+            generator.writeNull();
+        }
+    }
+}
@@ -1,144 +1,651 @@
 package com.keycloak.sync;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
-import org.apache.hc.client5.http.classic.methods.HttpPost;
-import org.apache.hc.client5.http.config.RequestConfig;
-import org.apache.hc.client5.http.impl.classic.CloseableHttpClient;
-import org.apache.hc.client5.http.impl.classic.CloseableHttpResponse;
-import org.apache.hc.client5.http.impl.classic.HttpClients;
-import org.apache.hc.core5.http.io.entity.StringEntity;
-import org.apache.hc.core5.util.Timeout;
+import org.apache.hc.core5.pool.PoolStats;
 import org.jboss.logging.Logger;
+import org.keycloak.events.EventType;
+import org.keycloak.models.KeycloakSessionFactory;
 
-import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
 
 /**
- * Service for sending user data to external systems via HTTP API
+ * Service for sending user data to external systems through a SyncSink, by default the HTTP API.
+ * A realm with sinks configured has one service per sink next to its own: events are extracted,
+ * coalesced and resolved once by the realm's service and then handed to every sink that accepts
+ * them. Each sink has its own queue, sender threads, retries, circuit breaker and journal, so a slow
+ * or failing sink only holds back its own deliveries.
  */
 public class UserSyncService {
 
     private static final Logger logger = Logger.getLogger(UserSyncService.class);
-    
+
     private final ClientUserSyncConfig config;
+    private final EventFilter eventFilter;
+    private final UserProfileResolver userResolver;
+    private final AdminEventMapper adminEventMapper;
     private final ObjectMapper objectMapper;
-    private final CloseableHttpClient httpClient;
-    private final ExecutorService executorService;
+    private final SyncSink sink;
+    private final String name;
+    private final RetryPolicy retryPolicy;
+    private final CircuitBreaker circuitBreaker;
+    private final AdaptiveConcurrencyLimiter concurrencyLimiter;
+    private final TokenBucketRateLimiter rateLimiter;
+    private final SyncDispatcher dispatcher;
+    private final EventCoalescer coalescer;
+    private final EventJournal clusterQueue;
+    private final SyncMetrics metrics;
+    private final LogSampler eventLog;
+    private final LogSampler failureLog;
+    private final List<UserSyncService> sinks;
+    private final EventFilter listenerFilter;
+    private final boolean adminEventsEnabled;
+    private final AtomicInteger callers = new AtomicInteger();
+    private volatile UserSyncService successor;
 
     public UserSyncService(ClientUserSyncConfig config) {
+        this(config, "default");
+    }
+
+    public UserSyncService(ClientUserSyncConfig config, String name) {
+        this(config, name, null);
+    }
+
+    public UserSyncService(ClientUserSyncConfig config, String name, EventJournal spool) {
+        this(config, name, spool, null);
+    }
+
+    /**
+     * @param spool          write-ahead spool or cluster queue shared by successive services of the same realm, or null
+     * @param sessionFactory used to load user profiles on the sender threads, or null to always load them inline
+     */
+    public UserSyncService(ClientUserSyncConfig config, String name, EventJournal spool, KeycloakSessionFactory sessionFactory) {
+        this(config, name, spool, sessionFactory, SyncMetrics.NOOP);
+    }
+
+    /**
+     * @param metrics metrics of the realm, shared by successive services of the same realm
+     */
+    public UserSyncService(ClientUserSyncConfig config, String name, EventJournal spool, KeycloakSessionFactory sessionFactory,
+                           SyncMetrics metrics) {
+        this(config, name, spool, new UserProfileResolver(config, sessionFactory), metrics, Collections.emptyList());
+    }
+
+    /**
+     * @param userResolver resolver shared with the realm's other sinks, so each user is looked up once
+     * @param sinks        services of the realm's named sinks, owned and closed by this service
+     */
+    public UserSyncService(ClientUserSyncConfig config, String name, EventJournal spool, UserProfileResolver userResolver,
+                           SyncMetrics metrics, List<UserSyncService> sinks) {
+        this(config, name, spool, userResolver, metrics, sinks, new TokenBucketRateLimiter(config));
+    }
+
+    /**
+     * @param rateLimiter token bucket of the destination, kept across configuration changes and
+     *                    possibly shared with other services posting to the same endpoint
+     */
+    public UserSyncService(ClientUserSyncConfig config, String name, EventJournal spool, UserProfileResolver userResolver,
+                           SyncMetrics metrics, List<UserSyncService> sinks, TokenBucketRateLimiter rateLimiter) {
         this.config = config;
+        this.metrics = metrics;
+        this.eventLog = LogSampler.forEvents(config);
+        this.failureLog = LogSampler.forFailures(config);
+        this.eventFilter = EventFilter.compile(config);
+        this.userResolver = userResolver;
+        this.adminEventMapper = new AdminEventMapper(config);
         this.objectMapper = new ObjectMapper();
-        
-        @SuppressWarnings("deprecation")
-        RequestConfig requestConfig = RequestConfig.custom()
-                .setConnectTimeout(Timeout.ofSeconds(config.getConnectionTimeout()))
-                .setResponseTimeout(Timeout.ofSeconds(config.getReadTimeout()))
-                .build();
+        this.sink = SyncSink.create(config, name, metrics, this::completeOnWorker);
+        this.name = name;
+        this.retryPolicy = new RetryPolicy(config);
+        this.circuitBreaker = new CircuitBreaker(config, name);
+        this.concurrencyLimiter = new AdaptiveConcurrencyLimiter(config);
+        this.rateLimiter = rateLimiter;
+
+        this.dispatcher = new SyncDispatcher(config, name, objectMapper, this::deliver, circuitBreaker::isCallPermitted, spool, metrics);
+        this.clusterQueue = spool != null && spool.isDistributed() ? spool : null;
+        this.coalescer = config.isCoalesceEnabled() ? new EventCoalescer(config, name, this::dispatch, metrics) : null;
+        this.sinks = sinks;
+
+        List<EventFilter> filters = new ArrayList<>(sinks.size() + 1);
+        boolean adminEvents = false;
+        if (sinks.isEmpty() || config.hasDestination()) {
+            filters.add(eventFilter);
+            adminEvents = config.isAdminEventsEnabled();
+        }
+        for (UserSyncService sink : sinks) {
+            filters.add(sink.eventFilter);
+            adminEvents |= sink.config.isAdminEventsEnabled();
+        }
+        this.listenerFilter = filters.size() == 1 ? filters.get(0) : EventFilter.union(filters);
+        this.adminEventsEnabled = adminEvents;
+        metrics.bind(this);
+    }
 
-        this.httpClient = HttpClients.custom()
-                .setDefaultRequestConfig(requestConfig)
-                .build();
+    public ClientUserSyncConfig getConfig() {
+        return config;
+    }
 
-        this.executorService = Executors.newFixedThreadPool(config.getThreadPoolSize());
+    public EventFilter getEventFilter() {
+        return eventFilter;
     }
 
     /**
-     * Sends user data to external API endpoint asynchronously
+     * Filter the listener applies before extracting an event: accepts what the realm's endpoint or
+     * any of its sinks accepts
+     */
+    public EventFilter getListenerFilter() {
+        return listenerFilter;
+    }
+
+    /**
+     * Whether the realm's endpoint or any of its sinks syncs admin events
+     */
+    public boolean isAdminEventsEnabled() {
+        return adminEventsEnabled;
+    }
+
+    public List<UserSyncService> getSinks() {
+        return sinks;
+    }
+
+    public UserProfileResolver getUserResolver() {
+        return userResolver;
+    }
+
+    public AdminEventMapper getAdminEventMapper() {
+        return adminEventMapper;
+    }
+
+    public SyncMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Sampler the listener checks before writing per-event log lines
+     */
+    public LogSampler getEventLog() {
+        return eventLog;
+    }
+
+    /**
+     * Rate limit for warnings and errors that can repeat for every event
+     */
+    public LogSampler getFailureLog() {
+        return failureLog;
+    }
+
+    public SyncDispatcher getDispatcher() {
+        return dispatcher;
+    }
+
+    /**
+     * Returns the coalescing stage, or null when coalescing is disabled
+     */
+    public EventCoalescer getCoalescer() {
+        return coalescer;
+    }
+
+    public CircuitBreaker.State getCircuitState() {
+        return circuitBreaker.getState();
+    }
+
+    public int getConcurrencyLimit() {
+        return concurrencyLimiter.getLimit();
+    }
+
+    /**
+     * Current refill rate of the token bucket in requests per second, 0 when requests are not paced
+     */
+    public double getRateLimit() {
+        return rateLimiter.getRate();
+    }
+
+    public PoolStats getPoolStats() {
+        return sink.getPoolStats();
+    }
+
+    /**
+     * Queues user data for asynchronous delivery to the external API endpoint
      */
     public void syncUserData(UserSyncData syncData) {
-        if (config.getApiEndpoint() == null || config.getApiEndpoint().trim().isEmpty()) {
-            logger.warn("API endpoint not configured, skipping sync");
-            return;
+        callers.incrementAndGet();
+        try {
+            UserSyncService next = successor;
+            if (next != null) {
+                next.syncUserData(syncData);
+                return;
+            }
+            if (!config.hasDestination() && sinks.isEmpty()) {
+                logger.warn("No destination configured, skipping sync");
+                return;
+            }
+
+            if (coalescer != null) {
+                coalescer.offer(syncData);
+            } else {
+                dispatch(syncData);
+            }
+        } finally {
+            callers.decrementAndGet();
         }
+    }
 
-        CompletableFuture.runAsync(() -> {
-            try {
-                sendToExternalApi(syncData);
-            } catch (Exception e) {
-                logger.errorf(e, "Failed to sync user data for user: %s", syncData.getUserId());
-                
-                if (config.isRetryEnabled() && config.getMaxRetries() > 0) {
-                    retrySync(syncData, config.getMaxRetries());
+    /**
+     * Queues the events of one committed transaction
+     */
+    public void syncUserData(List<UserSyncData> events) {
+        callers.incrementAndGet();
+        try {
+            UserSyncService next = successor;
+            if (next != null) {
+                next.syncUserData(events);
+                return;
+            }
+            if (!config.hasDestination() && sinks.isEmpty()) {
+                logger.warn("No destination configured, skipping sync");
+                return;
+            }
+
+            for (UserSyncData syncData : events) {
+                if (coalescer != null) {
+                    coalescer.offer(syncData);
+                } else {
+                    dispatch(syncData);
                 }
             }
-        }, executorService);
+        } finally {
+            callers.decrementAndGet();
+        }
+    }
+
+    /**
+     * Queues a record of the backfill job for the realm's own destination and every sink. Backfill
+     * records describe a user rather than an event, so they skip coalescing and the event filters.
+     */
+    public void syncBackfill(UserSyncData syncData) {
+        callers.incrementAndGet();
+        try {
+            UserSyncService next = successor;
+            if (next != null) {
+                next.syncBackfill(syncData);
+                return;
+            }
+            if (sinks.isEmpty()) {
+                enqueue(syncData);
+                return;
+            }
+            if (config.hasDestination()) {
+                enqueue(new UserSyncData(syncData));
+            }
+            for (UserSyncService sink : sinks) {
+                sink.enqueue(new UserSyncData(syncData));
+            }
+        } finally {
+            callers.decrementAndGet();
+        }
+    }
+
+    /**
+     * Whether the backfill job should hold back: a queue of the realm or of one of its sinks is more
+     * than half full or its circuit is open, so more records would only be spilled or push out events
+     */
+    public boolean isBacklogged() {
+        if ((sinks.isEmpty() || config.hasDestination()) && isOwnQueueBacklogged()) {
+            return true;
+        }
+        for (UserSyncService sink : sinks) {
+            if (sink.isOwnQueueBacklogged()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean isOwnQueueBacklogged() {
+        return circuitBreaker.getState() == CircuitBreaker.State.OPEN
+                || dispatcher.getQueueDepth() + dispatcher.getParkedCount() + dispatcher.getPendingRetries()
+                > dispatcher.getQueueCapacity() / 2;
     }
 
     /**
-     * Sends data to external API
+     * Hands an event to the realm's own endpoint and to every sink that accepts it. With more than one
+     * recipient each queues a copy of its own, since a sender thread fills in a deferred profile while
+     * the others may be serializing theirs; the copies share one lookup, so the user is still loaded
+     * once for all of them.
      */
-    private void sendToExternalApi(UserSyncData syncData) throws Exception {
-        String jsonPayload = objectMapper.writeValueAsString(syncData);
-        
-        HttpPost httpPost = new HttpPost(config.getApiEndpoint());
-        httpPost.setHeader("Content-Type", "application/json");
-        httpPost.setHeader("Accept", "application/json");
+    private void dispatch(UserSyncData syncData) {
+        if (sinks.isEmpty()) {
+            enqueue(syncData);
+            return;
+        }
+        if (!config.hasDestination() && sinks.size() == 1) {
+            sinks.get(0).offer(syncData, false);
+            return;
+        }
+        if (syncData.isProfilePending()) {
+            syncData.setSharedLookup(new UserProfileResolver.SharedLookup());
+        }
+        if (config.hasDestination()) {
+            offer(syncData, true);
+        }
+        for (UserSyncService sink : sinks) {
+            sink.offer(syncData, true);
+        }
+    }
 
-        if (config.getApiHeaders() != null && !config.getApiHeaders().isEmpty()) {
-            config.getApiHeaders().forEach(httpPost::setHeader);
+    /**
+     * Queues an event this service's filter accepts; the listener only checked the union of all filters
+     *
+     * @param copy whether to queue a copy, leaving the record to the other recipients
+     */
+    private void offer(UserSyncData syncData, boolean copy) {
+        if (accepts(syncData)) {
+            enqueue(copy ? new UserSyncData(syncData) : syncData);
+        } else {
+            metrics.count(SyncMetrics.Outcome.FILTERED, syncData);
+        }
+    }
+
+    private boolean accepts(UserSyncData syncData) {
+        if (syncData.getChanges() != null) {
+            return config.isAdminEventsEnabled();
+        }
+        if (syncData.getEventType() == null) {
+            return false;
+        }
+        try {
+            return eventFilter.accepts(EventType.valueOf(syncData.getEventType()), syncData.getClientId());
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Queues an event locally, or in cluster mode appends it to the cluster queue for the owner of its
+     * user, which enforces the queue capacity. Events the cluster queue fails to store are queued
+     * locally and subject to the queue capacity and overflow policy; that hand-off runs in the cache's
+     * callback, so it never waits for room itself.
+     */
+    private void enqueue(UserSyncData syncData) {
+        if (clusterQueue != null) {
+            clusterQueue.appendAsync(syncData).whenComplete((ignored, error) -> {
+                if (error == null) {
+                    metrics.count(SyncMetrics.Outcome.ENQUEUED, syncData);
+                    return;
+                }
+                if (failureLog.sample()) {
+                    logger.warnf(error, "Cluster queue unavailable, delivering event %s from this node", syncData.getEventId());
+                }
+                dispatcher.dispatchWithoutWaiting(syncData, queued -> countDispatched(syncData, queued));
+            });
+            return;
         }
+        countDispatched(syncData, dispatcher.dispatch(syncData));
+    }
 
-        if (config.getApiToken() != null && !config.getApiToken().trim().isEmpty()) {
-            String authHeader = config.getApiAuthType().equals("Bearer") 
-                    ? "Bearer " + config.getApiToken()
-                    : config.getApiToken();
-            httpPost.setHeader("Authorization", authHeader);
+    private void countDispatched(UserSyncData syncData, boolean queued) {
+        if (queued) {
+            metrics.count(SyncMetrics.Outcome.ENQUEUED, syncData);
+        } else {
+            logger.debugf("Sync queue full, dropped event: eventId=%s, userId=%s", syncData.getEventId(), syncData.getUserId());
         }
+    }
 
-        httpPost.setEntity(new StringEntity(jsonPayload, StandardCharsets.UTF_8));
+    /**
+     * Completes a request on a dispatcher worker rather than the I/O thread its response arrived on
+     */
+    private void completeOnWorker(Runnable completion) {
+        dispatcher.execute(completion);
+    }
 
-        @SuppressWarnings("deprecation")
-        CloseableHttpResponse response = httpClient.execute(httpPost);
-        try (response) {
-            int statusCode = response.getCode();
-            
-            if (statusCode >= 200 && statusCode < 300) {
-                logger.debugf("Successfully synced user data: userId=%s, statusCode=%d", 
-                        syncData.getUserId(), statusCode);
+    /**
+     * Delivers a batch on a dispatcher worker thread
+     */
+    private void deliver(SyncBatch batch) {
+        SyncBatch resolved = resolvePendingProfiles(batch);
+        if (resolved == null) {
+            return;
+        }
+        send(resolved.getEvents()).whenComplete((result, error) -> onDeliveryComplete(resolved, result, error));
+    }
+
+    /**
+     * Loads the user profile of events captured with a deferred lookup. Events whose user was deleted
+     * in the meantime are dropped; when the lookup itself fails the batch is retried like a failed send.
+     * Returns the batch to send, or null when nothing is left to send now.
+     */
+    private SyncBatch resolvePendingProfiles(SyncBatch batch) {
+        List<UserSyncData> missing;
+        try {
+            missing = userResolver.resolvePending(batch.getEvents());
+        } catch (RuntimeException e) {
+            long delay = retryPolicy.nextDelayMillis(batch, -1);
+            if (delay < 0) {
+                if (failureLog.sample()) {
+                    logger.errorf(e, "Failed to load user profiles, dropping %d events, first userId: %s",
+                            batch.size(), batch.getEvents().get(0).getUserId());
+                }
+                drop(batch.getEvents());
             } else {
-                throw new Exception(String.format("API returned status code: %d", statusCode));
+                if (failureLog.sample()) {
+                    logger.warnf(e, "Failed to load user profiles for %d events, attempt=%d", batch.size(), batch.getAttempt());
+                }
+                scheduleRetry(batch.retry(batch.getEvents()), delay);
+            }
+            return null;
+        }
+        if (missing.isEmpty()) {
+            return batch;
+        }
+
+        if (failureLog.sample()) {
+            logger.warnf("User not found for %d events, dropping them, first userId: %s", missing.size(), missing.get(0).getUserId());
+        }
+        drop(missing);
+        if (missing.size() == batch.size()) {
+            return null;
+        }
+        Set<UserSyncData> dropped = Collections.newSetFromMap(new IdentityHashMap<>());
+        dropped.addAll(missing);
+        List<UserSyncData> remaining = new ArrayList<>(batch.size() - missing.size());
+        for (UserSyncData event : batch.getEvents()) {
+            if (!dropped.contains(event)) {
+                remaining.add(event);
             }
         }
+        return batch.withEvents(remaining);
+    }
+
+    private void onDeliveryComplete(SyncBatch batch, SyncResult result, Throwable error) {
+        List<UserSyncData> pending = error != null ? batch.getEvents() : result.getPending();
+        if (error == null && !result.getRejected().isEmpty()) {
+            drop(result.getRejected());
+        }
+        if (error == null && result.getUndeliveredCount() < batch.size()) {
+            acknowledgeDelivered(batch.getEvents(), result);
+        }
+        if (pending.isEmpty()) {
+            if (batch.getAttempt() > 0 && failureLog.sample()) {
+                logger.infof("Retry successful for user sync: events=%d, attempt=%d", batch.size(), batch.getAttempt());
+            }
+            return;
+        }
+
+        long retryAfterMillis = -1;
+        if (error != null) {
+            Throwable cause = unwrap(error);
+            if (cause instanceof CircuitOpenException) {
+                dispatcher.divert(batch.retry(pending));
+                return;
+            }
+            if (cause instanceof InterruptedException) {
+                // Interrupted by shutdown, the events were not necessarily rejected
+                dispatcher.release(pending);
+                return;
+            }
+            if (!retryPolicy.isRetryable(cause)) {
+                if (failureLog.sample()) {
+                    logger.errorf(cause, "Failed to sync user data, not retryable, dropping %d events, first userId: %s",
+                            pending.size(), pending.get(0).getUserId());
+                }
+                drop(pending);
+                return;
+            }
+            if (cause instanceof SyncException) {
+                retryAfterMillis = ((SyncException) cause).getRetryAfterMillis();
+            }
+            if (failureLog.sample()) {
+                logger.warnf(cause, "Failed to sync user data for %d events, first userId: %s, attempt=%d",
+                        pending.size(), pending.get(0).getUserId(), batch.getAttempt());
+            }
+        } else if (failureLog.sample()) {
+            logger.warnf("API failed %d of %d events in batch, attempt=%d", pending.size(), batch.size(), batch.getAttempt());
+        }
+
+        long delay = retryPolicy.nextDelayMillis(batch, retryAfterMillis);
+        if (delay < 0) {
+            if (config.isRetryEnabled() && failureLog.sample()) {
+                logger.errorf("Retries exhausted for user sync, dropping %d events, first userId: %s",
+                        pending.size(), pending.get(0).getUserId());
+            }
+            drop(pending);
+            return;
+        }
+        scheduleRetry(batch.retry(pending), delay);
+    }
+
+    private void scheduleRetry(SyncBatch batch, long delayMillis) {
+        metrics.retryScheduled();
+        dispatcher.scheduleRetry(batch, delayMillis);
     }
 
     /**
-     * Retry mechanism to resend data if failed
+     * Gives up on events: they are counted as dropped and no longer replayed from the spool
      */
-    private void retrySync(UserSyncData syncData, int remainingRetries) {
-        if (remainingRetries <= 0) {
-            logger.errorf("Max retries reached for user sync: userId=%s", syncData.getUserId());
+    private void drop(List<UserSyncData> events) {
+        metrics.count(SyncMetrics.Outcome.DROPPED, events);
+        dispatcher.acknowledge(events);
+    }
+
+    private void acknowledgeDelivered(List<UserSyncData> events, SyncResult result) {
+        if (result.getUndeliveredCount() == 0) {
+            metrics.count(SyncMetrics.Outcome.DELIVERED, events);
+            dispatcher.acknowledge(events);
             return;
         }
+        Set<UserSyncData> undelivered = Collections.newSetFromMap(new IdentityHashMap<>());
+        undelivered.addAll(result.getPending());
+        undelivered.addAll(result.getRejected());
+        List<UserSyncData> delivered = new ArrayList<>(events.size() - undelivered.size());
+        for (UserSyncData event : events) {
+            if (!undelivered.contains(event)) {
+                delivered.add(event);
+            }
+        }
+        metrics.count(SyncMetrics.Outcome.DELIVERED, delivered);
+        dispatcher.acknowledge(delivered);
+    }
 
-        CompletableFuture.runAsync(() -> {
-            try {
-                Thread.sleep(config.getRetryDelay() * 1000L);
-                sendToExternalApi(syncData);
-                logger.infof("Retry successful for user sync: userId=%s", syncData.getUserId());
-            } catch (Exception e) {
-                logger.warnf(e, "Retry failed for user sync: userId=%s, remainingRetries=%d", 
-                        syncData.getUserId(), remainingRetries - 1);
-                retrySync(syncData, remainingRetries - 1);
+    private static Throwable unwrap(Throwable error) {
+        return error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+    }
+
+    /**
+     * Sends events through the sink, guarded by the circuit breaker and the adaptive concurrency limit
+     * which both record the outcome, once the token bucket allows, and completes with the events that
+     * still need to be delivered and those the destination rejected. Throttling responses slow the
+     * token bucket down.
+     */
+    private CompletableFuture<SyncResult> send(List<UserSyncData> events) {
+        // A token is only taken for a request that will be sent: an open circuit or a full
+        // concurrency limit would otherwise use up tokens that another destination could spend
+        if (!circuitBreaker.tryAcquirePermission()) {
+            return CompletableFuture.failedFuture(new CircuitOpenException(name));
+        }
+        try {
+            concurrencyLimiter.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            circuitBreaker.onResult(false, 0);
+            return CompletableFuture.failedFuture(e);
+        }
+        try {
+            rateLimiter.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            circuitBreaker.onResult(false, 0);
+            concurrencyLimiter.cancel();
+            return CompletableFuture.failedFuture(e);
+        }
+
+        long start = System.nanoTime();
+        CompletableFuture<SyncResult> sent;
+        try {
+            sent = sink.send(events);
+        } catch (RuntimeException e) {
+            sent = CompletableFuture.failedFuture(e);
+        }
+        return sent.whenComplete((result, error) -> {
+            long duration = System.nanoTime() - start;
+            Throwable cause = error != null ? unwrap(error) : null;
+            if (cause instanceof SyncException && TokenBucketRateLimiter.isThrottling(((SyncException) cause).getStatusCode())) {
+                rateLimiter.onThrottled(((SyncException) cause).getRetryAfterMillis());
             }
-        }, executorService);
+            boolean failed = cause != null && retryPolicy.isRetryable(cause);
+            circuitBreaker.onResult(failed, duration);
+            concurrencyLimiter.release(failed, duration);
+        });
+    }
+
+    /**
+     * Hands this service over to the one that replaced it: callers that still hold this service pass
+     * their events on to the successor from now on, and once the calls already under way have
+     * returned, the events queued here are drained and the service is closed. Events not delivered
+     * within the shutdown timeout stay in the shared spool, which the successor replays.
+     */
+    public void retire(UserSyncService successor, Executor closer) {
+        this.successor = successor;
+        while (callers.get() > 0) {
+            LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(100));
+        }
+        close(closer);
     }
 
     /**
-     * Cleanup resources
+     * Cleanup resources, letting queued work finish within the configured shutdown timeout.
+     * Sinks are closed one after the other.
      */
     public void close() {
+        close(Runnable::run);
+    }
+
+    /**
+     * Cleanup resources, letting queued work finish within the configured shutdown timeout.
+     * Sinks are drained in parallel on the given executor, after open coalescing windows were flushed to them.
+     */
+    public void close(Executor closer) {
+        if (coalescer != null) {
+            coalescer.close();
+        }
+        CompletableFuture<?>[] closingSinks = sinks.stream()
+                .map(sink -> CompletableFuture.runAsync(sink::close, closer))
+                .toArray(CompletableFuture[]::new);
+        dispatcher.close(config.getShutdownTimeout());
+        CompletableFuture.allOf(closingSinks).join();
         try {
-            if (httpClient != null) {
-                httpClient.close();
-            }
-            if (executorService != null) {
-                executorService.shutdown();
-            }
+            sink.close();
         } catch (Exception e) {
             logger.errorf(e, "Error closing UserSyncService resources");
         }
+        metrics.unbind(this);
     }
 }
-
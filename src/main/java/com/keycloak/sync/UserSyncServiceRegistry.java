@@ -0,0 +1,292 @@
+package com.keycloak.sync;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.jboss.logging.Logger;
+import org.keycloak.models.KeycloakSessionFactory;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Registry of long-lived UserSyncService instances shared by all providers.
+ * Services are keyed per realm and rebuilt only when the realm configuration changes.
+ * Write-ahead spools are kept per realm as well, so a replaced service hands its undelivered
+ * events to its successor through the spool. In cluster delivery mode the realm's ClusterEventQueue
+ * takes the place of the spool. Metrics are kept per realm too, so counters survive configuration changes,
+ * and so are token buckets, so a slowdown asked for by the API outlasts them as well.
+ * A realm's named sinks get their own spool, cluster queue, metrics and token bucket under the key realm.sink.
+ * A replaced service is drained on a retirement thread of the registry while providers that still
+ * hold it are routed to its successor, and its sinks are closed on retirement threads too.
+ */
+public class UserSyncServiceRegistry {
+
+    private static final Logger logger = Logger.getLogger(UserSyncServiceRegistry.class);
+
+    private final ConcurrentMap<String, RegisteredService> services = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, WriteAheadSpool> spools = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, SyncMetrics> metrics = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, ClusterEventQueue> clusterQueues = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, TokenBucketRateLimiter> rateLimiters = new ConcurrentHashMap<>();
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final KeycloakSessionFactory sessionFactory;
+    private final ExecutorService retirements;
+    private final Executor closer;
+    private final AtomicLong retireTimeoutSeconds = new AtomicLong();
+    private volatile boolean closed;
+
+    public UserSyncServiceRegistry() {
+        this(null);
+    }
+
+    /**
+     * @param sessionFactory handed to the services for deferred user lookups
+     */
+    public UserSyncServiceRegistry(KeycloakSessionFactory sessionFactory) {
+        this.sessionFactory = sessionFactory;
+        AtomicInteger threadCount = new AtomicInteger();
+        this.retirements = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "client-user-sync-retire-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        // Once the registry shut down its threads, services and sinks are closed on the calling thread
+        this.closer = task -> {
+            try {
+                retirements.execute(task);
+            } catch (RejectedExecutionException e) {
+                task.run();
+            }
+        };
+    }
+
+    /**
+     * Returns the service for the given realm, creating or replacing it when the configuration changed.
+     * Returns null when neither the realm nor any of its sinks has a destination: such a realm gets no
+     * queue, threads or journal at all, and a service it had before is retired.
+     */
+    public UserSyncService getService(String realmKey, Map<String, String> configMap) {
+        RegisteredService current = services.get(realmKey);
+        if (current != null && current.configMap.equals(configMap)) {
+            return current.service;
+        }
+        if (closed) {
+            throw new IllegalStateException("UserSyncServiceRegistry is closed");
+        }
+        if (!hasPipeline(configMap)) {
+            RegisteredService removed = services.remove(realmKey);
+            if (removed != null) {
+                logger.infof("[ClientUserSync] No destination left for realm %s, retiring its sync service", realmKey);
+                retire(removed.service, null);
+            }
+            return null;
+        }
+
+        // Built outside the map, which would otherwise hold its bin lock while threads are started and
+        // journals opened; of two threads that raced to build the same configuration, one closes its copy
+        while (true) {
+            RegisteredService candidate = new RegisteredService(configMap, createService(realmKey, configMap));
+            boolean published = current == null
+                    ? services.putIfAbsent(realmKey, candidate) == null
+                    : services.replace(realmKey, current, candidate);
+            if (published) {
+                if (current != null) {
+                    logger.infof("[ClientUserSync] Configuration changed for realm %s, replacing sync service", realmKey);
+                    retire(current.service, candidate.service);
+                }
+                return candidate.service;
+            }
+            closer.execute(() -> candidate.service.close(closer));
+            current = services.get(realmKey);
+            if (current != null && current.configMap.equals(configMap)) {
+                return current.service;
+            }
+        }
+    }
+
+    private UserSyncService createService(String realmKey, Map<String, String> configMap) {
+        ClientUserSyncConfig config = ClientUserSyncConfig.fromMap(configMap);
+        UserProfileResolver userResolver = new UserProfileResolver(config, sessionFactory);
+        List<UserSyncService> sinks = createSinks(realmKey, configMap, config, userResolver);
+        // A realm that only feeds sinks has nothing to journal for its own endpoint
+        EventJournal journal = config.hasDestination() || sinks.isEmpty() ? getJournal(realmKey, config) : null;
+        return new UserSyncService(config, realmKey, journal, userResolver,
+                getMetrics(realmKey, realmKey, ClientUserSyncConfig.DEFAULT_SINK, config), sinks, getRateLimiter(realmKey, config));
+    }
+
+    /**
+     * Whether the realm's own destination or one of its sinks is configured, so there is anything to deliver
+     */
+    public static boolean hasPipeline(Map<String, String> configMap) {
+        ClientUserSyncConfig config = ClientUserSyncConfig.fromMap(configMap);
+        if (config.hasDestination()) {
+            return true;
+        }
+        for (String sink : config.getSinks()) {
+            if (ClientUserSyncConfig.fromMap(ClientUserSyncConfig.sinkConfigMap(configMap, sink)).hasDestination()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Creates the services of the realm's named sinks; sinks without a destination are skipped
+     */
+    private List<UserSyncService> createSinks(String realmKey, Map<String, String> configMap, ClientUserSyncConfig config,
+                                              UserProfileResolver userResolver) {
+        if (config.getSinks().isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<UserSyncService> sinks = new ArrayList<>(config.getSinks().size());
+        for (String sink : config.getSinks()) {
+            ClientUserSyncConfig sinkConfig = ClientUserSyncConfig.fromMap(ClientUserSyncConfig.sinkConfigMap(configMap, sink));
+            if (!sinkConfig.hasDestination()) {
+                logger.warnf("[ClientUserSync] Sink %s of realm %s has no destination, skipping it", sink, realmKey);
+                continue;
+            }
+            String sinkKey = sinkKey(realmKey, sink);
+            sinks.add(new UserSyncService(sinkConfig, sinkKey, getJournal(sinkKey, sinkConfig), userResolver,
+                    getMetrics(sinkKey, realmKey, sink, sinkConfig), Collections.emptyList(), getRateLimiter(sinkKey, sinkConfig)));
+        }
+        return sinks;
+    }
+
+    /**
+     * Key of a sink's spool, cluster queue and metrics; also names its threads
+     */
+    public static String sinkKey(String realmKey, String sink) {
+        return (realmKey.isEmpty() ? "global" : realmKey) + '.' + sink;
+    }
+
+    /**
+     * Returns the cluster queue in cluster delivery mode, falling back to the local spool when the
+     * cluster cache cannot be opened
+     */
+    private EventJournal getJournal(String realmKey, ClientUserSyncConfig config) {
+        if (config.getDeliveryMode() == DeliveryMode.CLUSTER && sessionFactory != null) {
+            ClusterEventQueue queue = clusterQueues.computeIfAbsent(realmKey, key -> {
+                try {
+                    return ClusterEventQueue.open(sessionFactory, key, config.getClusterOwners(), config.getQueueCapacity(), objectMapper);
+                } catch (RuntimeException e) {
+                    logger.errorf(e, "[ClientUserSync] Cannot open the cluster queue, events for realm %s are delivered locally", key);
+                    return null;
+                }
+            });
+            if (queue != null) {
+                return queue;
+            }
+        }
+        return getSpool(realmKey, config);
+    }
+
+    private WriteAheadSpool getSpool(String realmKey, ClientUserSyncConfig config) {
+        if (!config.isSpoolEnabled()) {
+            return null;
+        }
+        return spools.computeIfAbsent(realmKey, key -> {
+            Path directory = spoolDirectory(config.getSpoolDirectory(), key);
+            try {
+                return new WriteAheadSpool(directory, config.getSpoolSegmentSizeBytes(),
+                        config.getSpoolFsyncIntervalMs(), objectMapper);
+            } catch (IOException | RuntimeException e) {
+                logger.errorf(e, "[ClientUserSync] Cannot open spool %s, events for realm %s are kept in memory only", directory, key);
+                return null;
+            }
+        });
+    }
+
+    private SyncMetrics getMetrics(String key, String realmKey, String sink, ClientUserSyncConfig config) {
+        if (!config.isMetricsEnabled()) {
+            return SyncMetrics.NOOP;
+        }
+        return metrics.computeIfAbsent(key, k -> SyncMetrics.create(realmKey, sink));
+    }
+
+    /**
+     * Returns the token bucket of a realm or sink key, or with the ENDPOINT scope the one shared by all
+     * services posting to the same apiEndpoint, which paces them at the lowest of their rates
+     */
+    private TokenBucketRateLimiter getRateLimiter(String key, ClientUserSyncConfig config) {
+        String bucketKey = config.isEndpointRateLimit() ? "endpoint " + config.getApiEndpoint() : key;
+        // The service may have moved from another bucket, whose rate it must no longer lower
+        rateLimiters.forEach((otherKey, other) -> {
+            if (!otherKey.equals(bucketKey)) {
+                other.remove(key);
+            }
+        });
+        TokenBucketRateLimiter rateLimiter = rateLimiters.computeIfAbsent(bucketKey, k -> new TokenBucketRateLimiter());
+        rateLimiter.configure(key, config);
+        return rateLimiter;
+    }
+
+    /**
+     * Directory of the spool for a realm or sink key; the realm-less service uses "global"
+     */
+    public static Path spoolDirectory(String baseDirectory, String realmKey) {
+        String name = realmKey.isEmpty() ? "global" : realmKey.replaceAll("[^A-Za-z0-9._-]", "_");
+        return Paths.get(baseDirectory, name);
+    }
+
+    /**
+     * Drains and closes a service that is no longer referenced by the registry, forwarding the events
+     * of providers that still hold it to its successor
+     */
+    private void retire(UserSyncService service, UserSyncService successor) {
+        retireTimeoutSeconds.accumulateAndGet(service.getConfig().getShutdownTimeout(), Math::max);
+        retirements.execute(() -> service.retire(successor, closer));
+    }
+
+    /**
+     * Closes all registered services, letting queued work finish within the shutdown timeout
+     */
+    public void close() {
+        closed = true;
+        services.values().forEach(registered -> registered.service.close(closer));
+        services.clear();
+        retirements.shutdown();
+        try {
+            if (!retirements.awaitTermination(retireTimeoutSeconds.get() + 1, TimeUnit.SECONDS)) {
+                logger.warn("[ClientUserSync] Replaced sync services did not finish draining before shutdown");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        spools.values().forEach(spool -> {
+            try {
+                spool.close();
+            } catch (IOException e) {
+                logger.errorf(e, "[ClientUserSync] Failed to close spool");
+            }
+        });
+        spools.clear();
+        clusterQueues.values().forEach(ClusterEventQueue::close);
+        clusterQueues.clear();
+        metrics.values().forEach(SyncMetrics::close);
+        metrics.clear();
+        rateLimiters.clear();
+    }
+
+    private static final class RegisteredService {
+        private final Map<String, String> configMap;
+        private final UserSyncService service;
+
+        private RegisteredService(Map<String, String> configMap, UserSyncService service) {
+            this.configMap = configMap;
+            this.service = service;
+        }
+    }
+}
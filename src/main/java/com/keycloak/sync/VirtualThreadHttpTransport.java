@@ -0,0 +1,129 @@
+package com.keycloak.sync;
+
+import org.apache.hc.core5.http.ContentType;
+import org.apache.hc.core5.pool.PoolStats;
+import org.jboss.logging.Logger;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Blocking classic transport with every request on its own virtual thread. Sender threads hand the
+ * request off and move on, so up to maxInFlight requests are outstanding without a platform thread
+ * each; callers wait for a free slot once the limit is reached, like with the async transport.
+ * <p>
+ * A virtual thread blocked inside a synchronized block pins its carrier thread. Nothing on the
+ * request path of this extension holds a monitor: the concurrency limiter and the semaphore use
+ * java.util.concurrent locks. httpclient5 5.2's classic connection pool does not: a request waiting
+ * for a free connection waits inside synchronized code and pins its carrier. The slots are therefore
+ * capped at the pool's connections per route (and in total), so a request always finds a free
+ * connection and the waiting happens on the semaphore instead; raise maxConnectionsPerRoute to use
+ * all of maxInFlight. See the README for checking the rest of the path with jdk.tracePinnedThreads.
+ */
+public class VirtualThreadHttpTransport implements HttpTransport {
+
+    private static final Logger logger = Logger.getLogger(VirtualThreadHttpTransport.class);
+
+    private final ClassicHttpTransport delegate;
+    private final ExecutorService executor;
+    private final Semaphore inFlight;
+    private final int maxInFlight;
+    private final int shutdownTimeout;
+
+    public VirtualThreadHttpTransport(ClientUserSyncConfig config, String name) {
+        this.delegate = new ClassicHttpTransport(config);
+        this.executor = VirtualThreads.newThreadPerTaskExecutor("client-user-sync-" + name + "-vt-");
+        this.maxInFlight = maxInFlight(config);
+        if (maxInFlight < config.getMaxInFlight()) {
+            logger.infof("[ClientUserSync] %s: maxInFlight=%d capped at the %d pooled connections per route with transportMode=VIRTUAL",
+                    name.isEmpty() ? "global configuration" : name, config.getMaxInFlight(), maxInFlight);
+        }
+        this.inFlight = new Semaphore(maxInFlight);
+        this.shutdownTimeout = config.getShutdownTimeout();
+    }
+
+    /**
+     * Requests outstanding at most: maxInFlight, but no more than the pool hands out connections for,
+     * so that no virtual thread waits for a connection inside the pool
+     */
+    static int maxInFlight(ClientUserSyncConfig config) {
+        int connections = Math.min(config.getMaxConnectionsPerRoute(), config.getMaxConnectionsTotal());
+        return Math.max(1, Math.min(config.getMaxInFlight(), connections));
+    }
+
+    /**
+     * Creates the virtual-thread transport, or the classic one when the runtime or the jar has no virtual threads
+     */
+    static HttpTransport create(ClientUserSyncConfig config, String name) {
+        if (VirtualThreads.isSupported()) {
+            return new VirtualThreadHttpTransport(config, name);
+        }
+        logger.warnf("[ClientUserSync] transportMode=VIRTUAL needs Java 21 and a jar built with the java21 profile, "
+                + "using CLASSIC for %s", name.isEmpty() ? "global configuration" : name);
+        return new ClassicHttpTransport(config);
+    }
+
+    @Override
+    public CompletableFuture<SyncResponse> post(PayloadBuffer body, ContentType contentType) {
+        try {
+            inFlight.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return CompletableFuture.failedFuture(e);
+        }
+
+        CompletableFuture<SyncResponse> result = new CompletableFuture<>();
+        try {
+            executor.execute(() -> {
+                CompletableFuture<SyncResponse> response;
+                try {
+                    response = delegate.post(body, contentType);
+                } catch (RuntimeException e) {
+                    response = CompletableFuture.failedFuture(e);
+                } finally {
+                    inFlight.release();
+                }
+                response.whenComplete((value, error) -> {
+                    if (error != null) {
+                        result.completeExceptionally(error);
+                    } else {
+                        result.complete(value);
+                    }
+                });
+            });
+        } catch (RejectedExecutionException e) {
+            inFlight.release();
+            result.completeExceptionally(e);
+        }
+        return result;
+    }
+
+    @Override
+    public PoolStats getPoolStats() {
+        return delegate.getPoolStats();
+    }
+
+    public int getInFlightCount() {
+        return maxInFlight - inFlight.availablePermits();
+    }
+
+    /**
+     * Waits up to the shutdown timeout for outstanding requests before closing the client
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            if (!inFlight.tryAcquire(maxInFlight, shutdownTimeout, TimeUnit.SECONDS)) {
+                logger.warnf("[ClientUserSync] Closing virtual-thread transport with %d requests in flight", getInFlightCount());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        executor.shutdownNow();
+        delegate.close();
+    }
+}
@@ -0,0 +1,27 @@
+package com.keycloak.sync;
+
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Access to virtual threads from code compiled for Java 11. This version reports them as unsupported;
+ * the build's java21 profile compiles src/main/java21 into META-INF/versions/21 of the multi-release
+ * jar, and Java 21 runtimes load that version instead.
+ */
+final class VirtualThreads {
+
+    private VirtualThreads() {
+    }
+
+    static boolean isSupported() {
+        return false;
+    }
+
+    /**
+     * Creates an executor that starts a new virtual thread for every task
+     *
+     * @param namePrefix prefix of the thread names, followed by a counter
+     */
+    static ExecutorService newThreadPerTaskExecutor(String namePrefix) {
+        throw new UnsupportedOperationException("Virtual threads need Java 21 and a build with the java21 profile");
+    }
+}
@@ -0,0 +1,483 @@
+package com.keycloak.sync;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.jboss.logging.Logger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Queue;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Predicate;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of events that have been accepted but not yet delivered, kept in memory-mapped
+ * segment files so that a restart does not lose them.
+ * <p>
+ * Producers serialize the event with UserSyncDataWriter into a pooled buffer and queue it. The
+ * serialization stays on the producer because sender threads change the event afterwards, e.g. when
+ * a deferred profile lookup fills it in, and a flusher serializing it would race with them; file I/O
+ * does not. A flusher thread copies the queued records into the mapped segment and forces dirty
+ * segments to disk every spoolFsyncIntervalMs (group commit), so a crash loses at most that interval of events.
+ * Events acknowledged before the flusher gets to them are not written at all. Each record is framed
+ * as length, CRC32 and JSON payload. Records are identified by their log offset and stay pending
+ * until {@link #acknowledge} is called; the checkpoint file stores the lowest pending offset and
+ * everything from there on is replayed on the next start. Segments entirely below the checkpoint are
+ * deleted. When a few long-retrying events pin the oldest segment, they are copied to the head of
+ * the log so that segment can be reclaimed too.
+ * <p>
+ * Acknowledgements are not logged, so replay is at-least-once: every record above the checkpoint is
+ * replayed, including those acknowledged after the oldest pending one was written, and an event
+ * compacted since the last checkpoint is replayed from both its old and its new position.
+ */
+public class WriteAheadSpool implements EventJournal {
+
+    private static final Logger logger = Logger.getLogger(WriteAheadSpool.class);
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final String CHECKPOINT_FILE = "checkpoint";
+    private static final int HEADER_SIZE = 8;
+    private static final int COMPACTION_MAX_RECORDS = 1024;
+    private static final int BUFFER_POOL_SIZE = 1024;
+    /** Offset of an event that is queued but not yet written */
+    private static final long UNWRITTEN = -1;
+
+    private final Path directory;
+    private final ObjectMapper objectMapper;
+    private final UserSyncDataWriter writer = new UserSyncDataWriter();
+    private final PayloadBufferPool bufferPool = new PayloadBufferPool(BUFFER_POOL_SIZE);
+    private final int segmentSize;
+    private final long fsyncIntervalNanos;
+
+    /** Segment files by base offset; guarded by this */
+    private final NavigableMap<Long, Path> segments = new TreeMap<>();
+    /** Records waiting for the flusher, which owns the active segment and everything below */
+    private final Queue<QueuedRecord> queued = new ConcurrentLinkedQueue<>();
+    private final CRC32 crc = new CRC32();
+    private final PayloadBuffer compactionBuffer = new PayloadBuffer(1024);
+    private final List<MappedByteBuffer> unflushed = new ArrayList<>();
+    private long activeBase;
+    private FileChannel activeChannel;
+    private MappedByteBuffer activeBuffer;
+    private boolean dirty;
+
+    private final ConcurrentSkipListMap<Long, UserSyncData> pending = new ConcurrentSkipListMap<>();
+    private final ConcurrentMap<UserSyncData, Long> offsets = new ConcurrentHashMap<>();
+    private final Queue<UserSyncData> orphaned = new ConcurrentLinkedQueue<>();
+    private final Object replayLock = new Object();
+    private final List<Runnable> replayListeners = new CopyOnWriteArrayList<>();
+    private volatile long replayOffset;
+    private final long replayEnd;
+    private long checkpoint;
+
+    private final Thread flusher;
+    private volatile boolean running = true;
+
+    public WriteAheadSpool(Path directory, int segmentSize, long fsyncIntervalMillis, ObjectMapper objectMapper) throws IOException {
+        Files.createDirectories(directory);
+        this.directory = directory;
+        this.objectMapper = objectMapper;
+        this.segmentSize = segmentSize;
+        this.fsyncIntervalNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, fsyncIntervalMillis));
+
+        long end = 0;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + SEGMENT_SUFFIX)) {
+            for (Path file : files) {
+                String fileName = file.getFileName().toString();
+                long base = Long.parseLong(fileName.substring(0, fileName.length() - SEGMENT_SUFFIX.length()));
+                segments.put(base, file);
+                end = Math.max(end, base + Files.size(file));
+            }
+        }
+        this.checkpoint = readCheckpoint();
+        this.replayOffset = segments.isEmpty() ? end : Math.max(checkpoint, segments.firstKey());
+        this.replayEnd = end;
+        if (replayOffset < replayEnd) {
+            logger.infof("[ClientUserSync] Spool %s has %d bytes of undelivered events to replay", directory, replayEnd - replayOffset);
+        }
+        openSegment(end);
+
+        this.flusher = new Thread(this::runFlusher, "client-user-sync-spool-" + directory.getFileName());
+        this.flusher.setDaemon(true);
+        this.flusher.start();
+    }
+
+    /**
+     * Returns true when the directory holds spool segments from an earlier run
+     */
+    public static boolean hasSegments(Path directory) {
+        if (!Files.isDirectory(directory)) {
+            return false;
+        }
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + SEGMENT_SUFFIX)) {
+            return files.iterator().hasNext();
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Queues the event for the log and keeps it pending until acknowledged; the flusher writes it
+     */
+    @Override
+    public void append(UserSyncData syncData) throws IOException {
+        if (!running) {
+            throw new IOException("Spool is closed");
+        }
+        PayloadBuffer payload = bufferPool.acquire();
+        try {
+            writer.writeRecord(syncData, payload);
+        } catch (IOException | RuntimeException e) {
+            bufferPool.release(payload);
+            throw e;
+        }
+        if (HEADER_SIZE + payload.size() > segmentSize) {
+            int size = payload.size();
+            bufferPool.release(payload);
+            throw new IOException("Event of " + size + " bytes does not fit in a spool segment");
+        }
+        offsets.put(syncData, UNWRITTEN);
+        queued.offer(new QueuedRecord(syncData, payload));
+    }
+
+    /**
+     * Marks an event as done, either delivered or deliberately given up on
+     */
+    @Override
+    public void acknowledge(UserSyncData syncData) {
+        offsets.computeIfPresent(syncData, (event, offset) -> {
+            if (offset != UNWRITTEN) {
+                pending.remove(offset);
+            }
+            return null;
+        });
+    }
+
+    /**
+     * Hands back pending events that their sender stopped working on, so the next replay picks them up
+     */
+    @Override
+    public void abandon(UserSyncData syncData) {
+        if (offsets.containsKey(syncData)) {
+            orphaned.offer(syncData);
+            replayListeners.forEach(Runnable::run);
+        }
+    }
+
+    @Override
+    public void addReplayListener(Runnable listener) {
+        replayListeners.add(listener);
+    }
+
+    @Override
+    public void removeReplayListener(Runnable listener) {
+        replayListeners.remove(listener);
+    }
+
+    /**
+     * Feeds abandoned events, then events left over from the previous run, to the sink until it refuses one.
+     * Returns true when everything was replayed.
+     */
+    @Override
+    public boolean replay(Predicate<UserSyncData> sink) {
+        synchronized (replayLock) {
+            UserSyncData syncData;
+            while ((syncData = orphaned.peek()) != null) {
+                if (!sink.test(syncData)) {
+                    return false;
+                }
+                orphaned.poll();
+            }
+            while (replayOffset < replayEnd) {
+                Map.Entry<Long, Path> segment;
+                Long next;
+                synchronized (this) {
+                    segment = segments.floorEntry(replayOffset);
+                    next = segment != null ? segments.higherKey(segment.getKey()) : null;
+                }
+                if (segment == null) {
+                    replayOffset = replayEnd;
+                    break;
+                }
+                // A segment ends where the next one starts, which is before the end of its zero-filled file
+                long end = next != null ? Math.min(next, replayEnd) : replayEnd;
+                if (!replaySegment(segment.getKey(), segment.getValue(), end, sink)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private boolean replaySegment(long base, Path file, long end, Predicate<UserSyncData> sink) {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = Math.min(channel.size(), end - base);
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            int position = (int) (replayOffset - base);
+            CRC32 crc = new CRC32();
+            while (position + HEADER_SIZE <= size) {
+                int length = buffer.getInt(position);
+                int checksum = buffer.getInt(position + 4);
+                if (length <= 0 || position + HEADER_SIZE + length > size) {
+                    break;
+                }
+                byte[] payload = new byte[length];
+                ((ByteBuffer) buffer.duplicate().position(position + HEADER_SIZE)).get(payload);
+                crc.reset();
+                crc.update(payload);
+                if ((int) crc.getValue() != checksum) {
+                    logger.warnf("[ClientUserSync] Spool segment %s is corrupt at %d, skipping the rest of it", file, position);
+                    break;
+                }
+                long offset = base + position;
+                UserSyncData syncData = objectMapper.readValue(payload, UserSyncData.class);
+                offsets.put(syncData, offset);
+                pending.put(offset, syncData);
+                if (!sink.test(syncData)) {
+                    // Keep it pending; it is fed again by the next replay
+                    offsets.remove(syncData);
+                    pending.remove(offset);
+                    replayOffset = offset;
+                    return false;
+                }
+                position += HEADER_SIZE + length;
+                replayOffset = base + position;
+            }
+        } catch (IOException e) {
+            logger.errorf(e, "[ClientUserSync] Failed to replay spool segment %s", file);
+        }
+        replayOffset = end;
+        return true;
+    }
+
+    public int getPendingCount() {
+        return offsets.size();
+    }
+
+    public synchronized int getSegmentCount() {
+        return segments.size();
+    }
+
+    /**
+     * Copies the queued records into the active segment and registers their offsets as pending.
+     * Runs on the flusher thread only, so a checkpoint never passes a record that is not registered.
+     */
+    private void writeQueued() throws IOException {
+        QueuedRecord record;
+        while ((record = queued.poll()) != null) {
+            try {
+                // Skipped once acknowledged, or when an earlier record of the same event already wrote it
+                Long current = offsets.get(record.syncData);
+                if (current != null && current == UNWRITTEN) {
+                    long offset = write(record.payload);
+                    offsets.computeIfPresent(record.syncData, (event, unwritten) -> {
+                        pending.put(offset, event);
+                        return offset;
+                    });
+                }
+            } finally {
+                bufferPool.release(record.payload);
+            }
+        }
+    }
+
+    private long write(PayloadBuffer payload) throws IOException {
+        int length = payload.size();
+        int recordSize = HEADER_SIZE + length;
+        if (activeBuffer.remaining() < recordSize) {
+            unflushed.add(activeBuffer);
+            openSegment(activeBase + activeBuffer.position());
+        }
+        crc.reset();
+        crc.update(payload.array(), 0, length);
+        long offset = activeBase + activeBuffer.position();
+        activeBuffer.putInt(length).putInt((int) crc.getValue()).put(payload.array(), 0, length);
+        dirty = true;
+        return offset;
+    }
+
+    /**
+     * Starts a new segment at the given offset. Segments are zero-filled, so a zero length marks the end.
+     */
+    private void openSegment(long base) throws IOException {
+        if (activeChannel != null) {
+            activeChannel.close();
+        }
+        Path file = directory.resolve(String.format("%020d%s", base, SEGMENT_SUFFIX));
+        activeChannel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        activeBuffer = activeChannel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        activeBase = base;
+        synchronized (this) {
+            segments.put(base, file);
+        }
+    }
+
+    private void runFlusher() {
+        while (running) {
+            LockSupport.parkNanos(fsyncIntervalNanos);
+            try {
+                writeQueued();
+                flush();
+                compact();
+            } catch (IOException | RuntimeException e) {
+                logger.errorf(e, "[ClientUserSync] Failed to flush spool %s", directory);
+            }
+        }
+    }
+
+    /**
+     * Forces written records to disk, then persists the checkpoint and deletes segments below it
+     */
+    private void flush() throws IOException {
+        for (MappedByteBuffer buffer : unflushed) {
+            buffer.force();
+        }
+        unflushed.clear();
+        if (dirty) {
+            activeBuffer.force();
+            dirty = false;
+        }
+        long writeOffset = activeBase + activeBuffer.position();
+
+        long newCheckpoint = Math.min(writeOffset, replayOffset < replayEnd ? replayOffset : Long.MAX_VALUE);
+        Map.Entry<Long, UserSyncData> oldest = pending.firstEntry();
+        if (oldest != null) {
+            newCheckpoint = Math.min(newCheckpoint, oldest.getKey());
+        }
+        if (newCheckpoint != checkpoint) {
+            writeCheckpoint(newCheckpoint);
+            checkpoint = newCheckpoint;
+            deleteSegmentsBelow(newCheckpoint);
+        }
+    }
+
+    private void deleteSegmentsBelow(long offset) throws IOException {
+        List<Path> reclaimable = new ArrayList<>();
+        synchronized (this) {
+            while (segments.size() > 1) {
+                Map.Entry<Long, Path> first = segments.firstEntry();
+                Long next = segments.higherKey(first.getKey());
+                if (next == null || next > offset || first.getKey() == activeBase) {
+                    break;
+                }
+                segments.pollFirstEntry();
+                reclaimable.add(first.getValue());
+            }
+        }
+        for (Path file : reclaimable) {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    /**
+     * Moves the few events still pending in the oldest segment to the head of the log so it can be deleted
+     */
+    private void compact() throws IOException {
+        long base;
+        long next;
+        synchronized (this) {
+            if (segments.size() < 3 || replayOffset < replayEnd) {
+                return;
+            }
+            base = segments.firstKey();
+            next = segments.higherKey(base);
+        }
+        NavigableMap<Long, UserSyncData> stragglers = pending.subMap(base, true, next, false);
+        int count = 0;
+        for (Long ignored : stragglers.keySet()) {
+            if (++count > COMPACTION_MAX_RECORDS) {
+                return;
+            }
+        }
+        for (Map.Entry<Long, UserSyncData> entry : stragglers.entrySet()) {
+            compactionBuffer.reset();
+            writer.writeRecord(entry.getValue(), compactionBuffer);
+            long newOffset = write(compactionBuffer);
+            offsets.computeIfPresent(entry.getValue(), (event, oldOffset) -> {
+                pending.remove(oldOffset);
+                pending.put(newOffset, event);
+                return newOffset;
+            });
+        }
+        if (count > 0) {
+            logger.debugf("[ClientUserSync] Moved %d pending events out of spool segment %d", count, base);
+        }
+    }
+
+    private long readCheckpoint() {
+        Path file = directory.resolve(CHECKPOINT_FILE);
+        if (!Files.exists(file)) {
+            return 0;
+        }
+        try {
+            byte[] bytes = Files.readAllBytes(file);
+            return bytes.length == Long.BYTES ? ByteBuffer.wrap(bytes).getLong() : 0;
+        } catch (IOException e) {
+            logger.warnf(e, "[ClientUserSync] Cannot read spool checkpoint %s, replaying from the start", file);
+            return 0;
+        }
+    }
+
+    private void writeCheckpoint(long offset) throws IOException {
+        Path temp = directory.resolve(CHECKPOINT_FILE + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.allocate(Long.BYTES).putLong(offset);
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(true);
+        }
+        Files.move(temp, directory.resolve(CHECKPOINT_FILE), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Flushes everything written so far and records the final checkpoint; pending events are replayed on the next start
+     */
+    @Override
+    public void close() throws IOException {
+        running = false;
+        // Not interrupted: that would close the channel the flusher may be mapping a segment with
+        LockSupport.unpark(flusher);
+        try {
+            flusher.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        writeQueued();
+        flush();
+        activeChannel.close();
+        if (!offsets.isEmpty()) {
+            logger.infof("[ClientUserSync] Spool %s closed with %d undelivered events", directory, offsets.size());
+        }
+    }
+
+    private static final class QueuedRecord {
+
+        private final UserSyncData syncData;
+        private final PayloadBuffer payload;
+
+        QueuedRecord(UserSyncData syncData, PayloadBuffer payload) {
+            this.syncData = syncData;
+            this.payload = payload;
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package com.keycloak.sync;
+
+import org.junit.Test;
+import org.keycloak.events.admin.AdminEvent;
+import org.keycloak.events.admin.AuthDetails;
+import org.keycloak.events.admin.OperationType;
+import org.keycloak.events.admin.ResourceType;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class AdminEventMapperTest {
+
+    private static final String USER_REPRESENTATION = "{\"id\": \"user-1\", \"username\": \"jdoe\", \"email\": \"new@example.com\","
+            + " \"firstName\": \"Jane\", \"lastName\": \"Doe\", \"enabled\": true,"
+            + " \"attributes\": {\"department\": [\"sales\"], \"phone\": [\"123\"]}}";
+
+    private final AdminEventMapper mapper = new AdminEventMapper(config());
+    private final RealmModel realm = Fakes.fake(RealmModel.class, "getId", "realm-id", "getName", "realm");
+
+    @Test
+    public void includesOnlyTheFieldsThatDifferFromTheCachedUser() {
+        UserSnapshot previous = snapshot("old@example.com", "engineering");
+
+        UserSyncData record = mapper.map(adminEvent(ResourceType.USER, OperationType.UPDATE, "users/user-1", USER_REPRESENTATION),
+                realm, previous, true);
+
+        assertEquals("ADMIN_USER_UPDATE", record.getEventType());
+        assertEquals("user-1", record.getUserId());
+        assertEquals("realm", record.getRealmName());
+        assertEquals("admin-cli", record.getClientId());
+        assertEquals(Map.of("email", "new@example.com", "additionalAttributes", Map.of("department", "sales")),
+                record.getChanges());
+    }
+
+    @Test
+    public void includesEverySyncedFieldWhenTheUserIsNotCached() {
+        UserSyncData record = mapper.map(adminEvent(ResourceType.USER, OperationType.CREATE, "users/user-1", USER_REPRESENTATION),
+                realm, null, true);
+
+        Map<String, Object> changes = record.getChanges();
+        assertEquals("jdoe", changes.get("username"));
+        assertEquals("new@example.com", changes.get("email"));
+        assertEquals("Jane", changes.get("firstName"));
+        assertEquals("Doe", changes.get("lastName"));
+        assertEquals(Map.of("department", "sales"), changes.get("additionalAttributes"));
+        assertFalse(changes.containsKey("enabled"));
+    }
+
+    @Test
+    public void skipsUpdatesThatChangeNoSyncedField() {
+        UserSnapshot previous = snapshot("new@example.com", "sales");
+
+        assertNull(mapper.map(adminEvent(ResourceType.USER, OperationType.UPDATE, "users/user-1", USER_REPRESENTATION),
+                realm, previous, true));
+    }
+
+    @Test
+    public void recordsOnlyWhichUserChangedWithoutARepresentation() {
+        UserSyncData record = mapper.map(adminEvent(ResourceType.USER, OperationType.UPDATE, "users/user-1", USER_REPRESENTATION),
+                realm, null, false);
+
+        assertEquals("user-1", record.getUserId());
+        assertTrue(record.getChanges().isEmpty());
+    }
+
+    @Test
+    public void mapsGroupMembershipsAndRoleMappings() {
+        UserSyncData membership = mapper.map(adminEvent(ResourceType.GROUP_MEMBERSHIP, OperationType.CREATE,
+                "users/user-1/groups/group-1", "{\"id\": \"group-1\", \"name\": \"admins\", \"path\": \"/staff/admins\"}"),
+                realm, null, true);
+        assertEquals("ADMIN_GROUP_MEMBERSHIP_CREATE", membership.getEventType());
+        assertEquals(Map.of("groupId", "group-1", "groupName", "admins", "groupPath", "/staff/admins"), membership.getChanges());
+
+        UserSyncData roles = mapper.map(adminEvent(ResourceType.REALM_ROLE_MAPPING, OperationType.DELETE,
+                "users/user-1/role-mappings/realm", "[{\"id\": \"r1\", \"name\": \"auditor\"}, {\"id\": \"r2\", \"name\": \"editor\"}]"),
+                realm, null, true);
+        assertEquals("ADMIN_REALM_ROLE_MAPPING_DELETE", roles.getEventType());
+        assertEquals(Map.of("roles", List.of("auditor", "editor")), roles.getChanges());
+    }
+
+    @Test
+    public void supportsOnlyEventsOnAUser() {
+        assertTrue(AdminEventMapper.isSupported(adminEvent(ResourceType.USER, OperationType.DELETE, "users/user-1", null)));
+        assertFalse(AdminEventMapper.isSupported(adminEvent(ResourceType.USER, OperationType.ACTION, "users/user-1/reset-password", null)));
+        assertFalse(AdminEventMapper.isSupported(adminEvent(ResourceType.CLIENT, OperationType.UPDATE, "clients/client-1", null)));
+        assertFalse(AdminEventMapper.isSupported(adminEvent(ResourceType.USER, OperationType.UPDATE, "users/", null)));
+        assertEquals("user-1", AdminEventMapper.userId(adminEvent(ResourceType.GROUP_MEMBERSHIP, OperationType.CREATE,
+                "users/user-1/groups/group-1", null)));
+    }
+
+    @Test
+    public void ignoresAnUnreadableRepresentation() {
+        UserSyncData record = mapper.map(adminEvent(ResourceType.USER, OperationType.CREATE, "users/user-1", "{not json"),
+                realm, null, true);
+
+        assertTrue(record.getChanges().isEmpty());
+    }
+
+    private static ClientUserSyncConfig config() {
+        ClientUserSyncConfig config = new ClientUserSyncConfig();
+        config.setAdditionalAttributes(List.of("department"));
+        return config;
+    }
+
+    private static UserSnapshot snapshot(String email, String department) {
+        UserModel user = Fakes.fake(UserModel.class,
+                "getId", "user-1",
+                "getUsername", "jdoe",
+                "getEmail", email,
+                "getFirstName", "Jane",
+                "getLastName", "Doe",
+                "getFirstAttribute", (Fakes.Answer) args -> "department".equals(args[0]) ? department : null);
+        return UserSnapshot.of(user, List.of("department"));
+    }
+
+    private static AdminEvent adminEvent(ResourceType resourceType, OperationType operationType, String resourcePath,
+                                         String representation) {
+        AdminEvent adminEvent = new AdminEvent();
+        adminEvent.setId("admin-event-1");
+        adminEvent.setRealmId("realm-id");
+        adminEvent.setTime(1_700_000_000_000L);
+        adminEvent.setResourceType(resourceType);
+        adminEvent.setOperationType(operationType);
+        adminEvent.setResourcePath(resourcePath);
+        adminEvent.setRepresentation(representation);
+        AuthDetails authDetails = new AuthDetails();
+        authDetails.setClientId("admin-cli");
+        authDetails.setIpAddress("10.0.0.1");
+        adminEvent.setAuthDetails(authDetails);
+        return adminEvent;
+    }
+}
@@ -0,0 +1,145 @@
+package com.keycloak.sync;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Pages through a realm of fake users, three per page, while users before the checkpoint are added or deleted
+ */
+public class BackfillJobTest {
+
+    private static final int PAGE_SIZE = 3;
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final List<UserModel> users = new CopyOnWriteArrayList<>();
+    private final List<String> queued = new CopyOnWriteArrayList<>();
+    private KeycloakSessionFactory sessionFactory;
+    private UserSyncService service;
+    private Path checkpointFile;
+
+    @Before
+    public void createRealm() throws IOException {
+        for (int i = 1; i <= 7; i++) {
+            users.add(user(i));
+        }
+        RealmModel realm = Fakes.fake(RealmModel.class, "getId", "realm", "getName", "realm");
+        KeycloakSession session = Fakes.fake(KeycloakSession.class,
+                "realms", Fakes.fakeReturnOf(KeycloakSession.class, "realms", "getRealm", realm),
+                "users", Fakes.fakeReturnOf(KeycloakSession.class, "users",
+                        "searchForUserStream", (Fakes.Answer) args -> {
+                            int first = (Integer) args[2];
+                            int max = (Integer) args[3];
+                            List<UserModel> all = new ArrayList<>(users);
+                            return all.subList(Math.min(first, all.size()), Math.min(first + max, all.size())).stream();
+                        }));
+        sessionFactory = Fakes.fake(KeycloakSessionFactory.class, "create", session);
+
+        ClientUserSyncConfig config = new ClientUserSyncConfig();
+        config.setApiEndpoint("http://localhost:1/users");
+        config.setSpoolEnabled(false);
+        config.setShutdownTimeout(1);
+        config.setBackfillPageSize(PAGE_SIZE);
+        config.setBackfillRate(0);
+        service = new UserSyncService(config, "test", null, null, SyncMetrics.NOOP, Collections.emptyList(), null) {
+            @Override
+            public void syncBackfill(UserSyncData syncData) {
+                queued.add(syncData.getUsername());
+            }
+        };
+        checkpointFile = Files.createTempDirectory("backfill-test").resolve("realm.json");
+    }
+
+    @After
+    public void closeService() throws IOException {
+        service.close();
+        Files.deleteIfExists(checkpointFile);
+        Files.deleteIfExists(checkpointFile.getParent());
+    }
+
+    @Test
+    public void readsEveryUserOncePageByPage() {
+        job(status(0, null)).run();
+
+        assertEquals(usernames(1, 7), queued);
+        BackfillStatus checkpoint = BackfillJob.readCheckpoint(checkpointFile, objectMapper);
+        assertEquals(BackfillStatus.State.COMPLETED, checkpoint.getState());
+        assertEquals(7, checkpoint.getOffset());
+        assertEquals("id-7", checkpoint.getLastUserId());
+        assertEquals(7, checkpoint.getQueued());
+    }
+
+    @Test
+    public void resumesAfterTheLastUserReadWhenEarlierUsersWereDeleted() {
+        users.remove(0);
+        users.remove(0);
+
+        job(status(PAGE_SIZE, "id-3")).run();
+
+        assertEquals(usernames(4, 7), queued);
+    }
+
+    @Test
+    public void resumesAfterTheLastUserReadWhenEarlierUsersWereAdded() {
+        for (int i = 0; i < 2 * PAGE_SIZE; i++) {
+            users.add(0, user("new-" + i));
+        }
+
+        job(status(PAGE_SIZE, "id-3")).run();
+
+        assertEquals(usernames(4, 7), queued);
+    }
+
+    @Test
+    public void continuesAtTheOffsetWhenTheLastUserReadIsGone() {
+        users.remove(2);
+
+        job(status(PAGE_SIZE, "id-3")).run();
+
+        assertEquals(usernames(5, 7), queued);
+    }
+
+    private BackfillJob job(BackfillStatus status) {
+        return new BackfillJob(sessionFactory, realm -> service, checkpointFile, objectMapper, status);
+    }
+
+    private static BackfillStatus status(int offset, String lastUserId) {
+        BackfillStatus status = new BackfillStatus();
+        status.setJobId("job");
+        status.setRealmId("realm");
+        status.setOffset(offset);
+        status.setLastUserId(lastUserId);
+        return status;
+    }
+
+    private static List<String> usernames(int from, int to) {
+        List<String> usernames = new ArrayList<>();
+        for (int i = from; i <= to; i++) {
+            usernames.add("user-" + i);
+        }
+        return usernames;
+    }
+
+    private static UserModel user(int index) {
+        return Fakes.fake(UserModel.class, "getId", "id-" + index, "getUsername", "user-" + index);
+    }
+
+    private static UserModel user(String name) {
+        return Fakes.fake(UserModel.class, "getId", "id-" + name, "getUsername", name);
+    }
+}
@@ -0,0 +1,142 @@
+package com.keycloak.sync;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CircuitBreakerTest {
+
+    private static final long FAST = TimeUnit.MILLISECONDS.toNanos(10);
+    private static final long SLOW = TimeUnit.SECONDS.toNanos(10);
+
+    @Test
+    public void staysClosedUntilTheMinimumNumberOfCalls() {
+        CircuitBreaker breaker = breaker(30);
+        for (int i = 0; i < 3; i++) {
+            breaker.onResult(true, FAST);
+        }
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+
+        breaker.onResult(true, FAST);
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertFalse(breaker.tryAcquirePermission());
+        assertFalse(breaker.isCallPermitted());
+    }
+
+    @Test
+    public void opensAtTheFailureRateThreshold() {
+        CircuitBreaker breaker = breaker(30);
+        breaker.onResult(false, FAST);
+        breaker.onResult(false, FAST);
+        breaker.onResult(false, FAST);
+        breaker.onResult(true, FAST);
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+
+        breaker.onResult(true, FAST);
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        breaker.onResult(true, FAST);
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+    }
+
+    @Test
+    public void opensAtTheSlowCallRateThreshold() {
+        CircuitBreaker breaker = breaker(30);
+        for (int i = 0; i < 3; i++) {
+            breaker.onResult(false, SLOW);
+        }
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        breaker.onResult(false, SLOW);
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+    }
+
+    @Test
+    public void forgetsCallsThatLeaveTheWindow() {
+        CircuitBreaker breaker = breaker(30);
+        breaker.onResult(true, FAST);
+        for (int i = 0; i < 20; i++) {
+            breaker.onResult(false, FAST);
+        }
+        // The first failure has left the window of six calls by now
+        for (int i = 0; i < 2; i++) {
+            breaker.onResult(true, FAST);
+        }
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    }
+
+    @Test
+    public void closesAfterSuccessfulTrialCalls() {
+        CircuitBreaker breaker = breaker(0);
+        openCircuit(breaker);
+
+        assertTrue(breaker.isCallPermitted());
+        assertTrue(breaker.tryAcquirePermission());
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        assertTrue(breaker.tryAcquirePermission());
+        assertFalse(breaker.tryAcquirePermission());
+
+        breaker.onResult(false, FAST);
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        breaker.onResult(false, FAST);
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        assertTrue(breaker.tryAcquirePermission());
+    }
+
+    @Test
+    public void reopensWhenATrialCallFails() {
+        CircuitBreaker breaker = breaker(0);
+        openCircuit(breaker);
+
+        assertTrue(breaker.tryAcquirePermission());
+        breaker.onResult(true, FAST);
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+    }
+
+    @Test
+    public void reopensWhenATrialCallIsSlow() {
+        CircuitBreaker breaker = breaker(0);
+        openCircuit(breaker);
+
+        assertTrue(breaker.tryAcquirePermission());
+        breaker.onResult(false, SLOW);
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+    }
+
+    @Test
+    public void permitsEverythingWhenDisabled() {
+        ClientUserSyncConfig config = new ClientUserSyncConfig();
+        CircuitBreaker breaker = new CircuitBreaker(config, "test");
+        for (int i = 0; i < 100; i++) {
+            breaker.onResult(true, SLOW);
+        }
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        assertTrue(breaker.tryAcquirePermission());
+    }
+
+    /**
+     * Window of six calls that opens from four on at 50% failures or 75% slow calls (one second),
+     * with two trial calls
+     */
+    private static CircuitBreaker breaker(int openDurationSeconds) {
+        ClientUserSyncConfig config = new ClientUserSyncConfig();
+        config.setCircuitBreakerEnabled(true);
+        config.setCircuitWindowSize(6);
+        config.setCircuitMinimumCalls(4);
+        config.setCircuitFailureRateThreshold(50);
+        config.setCircuitSlowCallRateThreshold(75);
+        config.setSlowCallDurationMs(1000);
+        config.setCircuitOpenDuration(openDurationSeconds);
+        config.setCircuitHalfOpenCalls(2);
+        return new CircuitBreaker(config, "test");
+    }
+
+    private static void openCircuit(CircuitBreaker breaker) {
+        for (int i = 0; i < 4; i++) {
+            breaker.onResult(true, FAST);
+        }
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+    }
+}
@@ -0,0 +1,138 @@
+package com.keycloak.sync;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.KeycloakTransaction;
+import org.keycloak.models.KeycloakTransactionManager;
+import org.keycloak.models.RealmModel;
+import org.keycloak.provider.ProviderEvent;
+import org.keycloak.provider.ProviderEventListener;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Checks when a realm's cached configuration is dropped after its client-user-sync attributes change
+ */
+public class ClientUserSyncEventListenerProviderFactoryTest {
+
+    private static final String ENDPOINT_ATTRIBUTE = "client-user-sync.apiEndpoint";
+
+    private final ClientUserSyncEventListenerProviderFactory factory = new ClientUserSyncEventListenerProviderFactory();
+    private final Map<String, String> attributes = new HashMap<>();
+    private final List<KeycloakTransaction> afterCompletion = new ArrayList<>();
+    private final List<ProviderEventListener> listeners = new ArrayList<>();
+    private boolean transactionActive;
+    private RealmModel realm;
+    private KeycloakSession session;
+
+    @Before
+    public void startFactory() {
+        attributes.put(ENDPOINT_ATTRIBUTE, "http://localhost:1/old");
+        realm = Fakes.fake(RealmModel.class,
+                "getId", "realm",
+                "getName", "realm",
+                "getAttributes", (Fakes.Answer) args -> new HashMap<>(attributes),
+                "getAttribute", (Fakes.Answer) args -> attributes.get((String) args[0]));
+        KeycloakTransactionManager transactionManager = Fakes.fake(KeycloakTransactionManager.class,
+                "isActive", (Fakes.Answer) args -> transactionActive,
+                "enlistAfterCompletion", (Fakes.Answer) args -> afterCompletion.add((KeycloakTransaction) args[0]));
+        session = Fakes.fake(KeycloakSession.class,
+                "getContext", Fakes.fakeReturnOf(KeycloakSession.class, "getContext", "getRealm", realm),
+                "realms", Fakes.fakeReturnOf(KeycloakSession.class, "realms"),
+                "getTransactionManager", transactionManager);
+        KeycloakSessionFactory sessionFactory = Fakes.fake(KeycloakSessionFactory.class,
+                "create", session,
+                "register", (Fakes.Answer) args -> listeners.add((ProviderEventListener) args[0]));
+
+        factory.init(null);
+        factory.postInit(sessionFactory);
+    }
+
+    @After
+    public void closeFactory() {
+        factory.close();
+    }
+
+    @Test
+    public void keepsTheCachedConfigurationUntilTheUpdateCommits() {
+        UserSyncService before = factory.getRealmService(realm);
+        assertEquals("http://localhost:1/old", factory.getRealmConfig(realm).getApiEndpoint());
+
+        transactionActive = true;
+        updateEndpoint("http://localhost:1/new");
+        assertEquals("http://localhost:1/old", factory.getRealmConfig(realm).getApiEndpoint());
+        assertSame(before, factory.getRealmService(realm));
+
+        commit();
+        assertEquals("http://localhost:1/new", factory.getRealmConfig(realm).getApiEndpoint());
+        assertEquals("http://localhost:1/new", factory.getRealmService(realm).getConfig().getApiEndpoint());
+    }
+
+    @Test
+    public void dropsTheCachedConfigurationRightAwayWithoutATransaction() {
+        assertEquals("http://localhost:1/old", factory.getRealmConfig(realm).getApiEndpoint());
+
+        updateEndpoint("http://localhost:1/new");
+
+        assertEquals("http://localhost:1/new", factory.getRealmConfig(realm).getApiEndpoint());
+    }
+
+    @Test
+    public void ignoresAttributesOfOtherProviders() {
+        UserSyncService before = factory.getRealmService(realm);
+        attributes.put(ENDPOINT_ATTRIBUTE, "http://localhost:1/new");
+
+        fire(updateEvent("displayName"));
+
+        assertSame(before, factory.getRealmService(realm));
+    }
+
+    @Test
+    public void realmWithoutDestinationGetsNoServiceOnceTheRemovalCommits() {
+        factory.getRealmService(realm);
+        transactionActive = true;
+        attributes.remove(ENDPOINT_ATTRIBUTE);
+        fire(updateEvent(ENDPOINT_ATTRIBUTE));
+
+        commit();
+
+        assertNull(factory.getRealmService(realm));
+        assertNull(factory.getRealmConfig(realm).getApiEndpoint());
+    }
+
+    private void updateEndpoint(String endpoint) {
+        attributes.put(ENDPOINT_ATTRIBUTE, endpoint);
+        fire(updateEvent(ENDPOINT_ATTRIBUTE));
+    }
+
+    private ProviderEvent updateEvent(String attributeName) {
+        return Fakes.fake(RealmModel.RealmAttributeUpdateEvent.class,
+                "getRealm", realm,
+                "getKeycloakSession", session,
+                "getAttributeName", attributeName,
+                "getAttributeValue", (Fakes.Answer) args -> attributes.get(attributeName));
+    }
+
+    private void fire(ProviderEvent event) {
+        listeners.forEach(listener -> listener.onEvent(event));
+    }
+
+    private void commit() {
+        transactionActive = false;
+        for (KeycloakTransaction transaction : afterCompletion) {
+            transaction.begin();
+            transaction.commit();
+        }
+        afterCompletion.clear();
+    }
+}
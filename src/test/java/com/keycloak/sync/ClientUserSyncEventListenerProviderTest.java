@@ -0,0 +1,135 @@
+package com.keycloak.sync;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.keycloak.events.Event;
+import org.keycloak.events.EventType;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakTransaction;
+import org.keycloak.models.KeycloakTransactionManager;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that events reach the sync service only once the transaction that raised them commits
+ */
+public class ClientUserSyncEventListenerProviderTest {
+
+    private final List<KeycloakTransaction> afterCompletion = new ArrayList<>();
+    private final List<List<String>> handedOver = new ArrayList<>();
+    private boolean transactionActive;
+    private UserSyncService service;
+    private ClientUserSyncEventListenerProvider listener;
+
+    @Before
+    public void createListener() {
+        RealmModel realm = Fakes.fake(RealmModel.class, "getId", "realm", "getName", "realm");
+        UserModel user = Fakes.fake(UserModel.class, "getId", "user-1", "getUsername", "jdoe");
+        KeycloakTransactionManager transactionManager = Fakes.fake(KeycloakTransactionManager.class,
+                "isActive", (Fakes.Answer) args -> transactionActive,
+                "enlistAfterCompletion", (Fakes.Answer) args -> afterCompletion.add((KeycloakTransaction) args[0]));
+        KeycloakSession session = Fakes.fake(KeycloakSession.class,
+                "realms", Fakes.fakeReturnOf(KeycloakSession.class, "realms", "getRealm", realm),
+                "users", Fakes.fakeReturnOf(KeycloakSession.class, "users", "getUserById", user),
+                "getTransactionManager", transactionManager);
+
+        ClientUserSyncConfig config = new ClientUserSyncConfig();
+        config.setApiEndpoint("http://localhost:1/users");
+        config.setShutdownTimeout(1);
+        service = new UserSyncService(config, "test", null, new UserProfileResolver(config, null), SyncMetrics.NOOP,
+                Collections.emptyList(), null) {
+            @Override
+            public void syncUserData(UserSyncData syncData) {
+                handedOver.add(List.of(syncData.getEventId()));
+            }
+
+            @Override
+            public void syncUserData(List<UserSyncData> events) {
+                List<String> eventIds = new ArrayList<>();
+                events.forEach(event -> eventIds.add(event.getEventId()));
+                handedOver.add(eventIds);
+            }
+        };
+        listener = new ClientUserSyncEventListenerProvider(session, service);
+    }
+
+    @After
+    public void closeService() {
+        service.close();
+    }
+
+    @Test
+    public void handsTheEventsOfATransactionOverTogetherAfterCommit() {
+        transactionActive = true;
+        listener.onEvent(event("e1", EventType.REGISTER));
+        listener.onEvent(event("e2", EventType.LOGIN));
+        assertTrue(handedOver.isEmpty());
+        assertEquals(1, afterCompletion.size());
+
+        complete(true);
+
+        assertEquals(List.of(List.of("e1", "e2")), handedOver);
+    }
+
+    @Test
+    public void discardsTheEventsOfATransactionThatRollsBack() {
+        transactionActive = true;
+        listener.onEvent(event("e1", EventType.REGISTER));
+
+        complete(false);
+
+        assertTrue(handedOver.isEmpty());
+    }
+
+    @Test
+    public void startsANewBatchForTheNextTransaction() {
+        transactionActive = true;
+        listener.onEvent(event("e1", EventType.LOGIN));
+        complete(true);
+        transactionActive = true;
+        listener.onEvent(event("e2", EventType.LOGIN));
+        complete(true);
+
+        assertEquals(List.of(List.of("e1"), List.of("e2")), handedOver);
+    }
+
+    @Test
+    public void handsEventsOverRightAwayWithoutATransaction() {
+        listener.onEvent(event("e1", EventType.LOGIN));
+
+        assertEquals(List.of(List.of("e1")), handedOver);
+        assertTrue(afterCompletion.isEmpty());
+    }
+
+    private void complete(boolean commit) {
+        transactionActive = false;
+        for (KeycloakTransaction transaction : afterCompletion) {
+            transaction.begin();
+            if (commit) {
+                transaction.commit();
+            } else {
+                transaction.rollback();
+            }
+        }
+        afterCompletion.clear();
+    }
+
+    private static Event event(String eventId, EventType type) {
+        Event event = new Event();
+        event.setId(eventId);
+        event.setType(type);
+        event.setRealmId("realm");
+        event.setClientId("app");
+        event.setUserId("user-1");
+        event.setTime(1_700_000_000_000L);
+        return event;
+    }
+}
@@ -0,0 +1,232 @@
+package com.keycloak.sync;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.infinispan.Cache;
+import org.infinispan.configuration.global.GlobalConfigurationBuilder;
+import org.infinispan.distribution.DistributionManager;
+import org.infinispan.manager.DefaultCacheManager;
+import org.infinispan.manager.EmbeddedCacheManager;
+import org.infinispan.remoting.transport.jgroups.JGroupsTransport;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Runs the cluster queue on two embedded cache managers in one JVM, joined through JGroups'
+ * shared loopback transport
+ */
+public class ClusterEventQueueTest {
+
+    private static final int USERS = 20;
+    private static final int EVENTS_PER_USER = 5;
+    private static final long TIMEOUT_MILLIS = 10_000;
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final List<EmbeddedCacheManager> managers = new ArrayList<>();
+
+    @After
+    public void stopNodes() {
+        for (EmbeddedCacheManager manager : managers) {
+            manager.stop();
+        }
+    }
+
+    @Test
+    public void deliversEveryUserFromOneOwnerInTheOrderBothNodesReceivedThem() {
+        ClusterEventQueue nodeA = open(startNode("a"));
+        ClusterEventQueue nodeB = open(startNode("b"));
+        awaitMembers(2);
+        // Every user's events arrive alternately at both nodes
+        for (int i = 0; i < EVENTS_PER_USER; i++) {
+            ClusterEventQueue receiver = i % 2 == 0 ? nodeA : nodeB;
+            for (int user = 0; user < USERS; user++) {
+                receiver.appendAsync(event(user, i)).toCompletableFuture().join();
+            }
+        }
+
+        Map<String, List<String>> delivered = new HashMap<>();
+        Map<String, ClusterEventQueue> deliveredBy = new HashMap<>();
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        int count = 0;
+        while (count < USERS * EVENTS_PER_USER) {
+            for (ClusterEventQueue queue : List.of(nodeA, nodeB)) {
+                for (UserSyncData event : drain(queue)) {
+                    delivered.computeIfAbsent(event.getUserId(), user -> new ArrayList<>()).add(event.getEventId());
+                    ClusterEventQueue owner = deliveredBy.putIfAbsent(event.getUserId(), queue);
+                    assertTrue("user " + event.getUserId() + " delivered by two nodes", owner == null || owner == queue);
+                    queue.acknowledge(event);
+                    count++;
+                }
+            }
+            awaitProgress(deadline);
+        }
+
+        for (int user = 0; user < USERS; user++) {
+            List<String> expected = new ArrayList<>();
+            for (int i = 0; i < EVENTS_PER_USER; i++) {
+                expected.add(eventId(user, i));
+            }
+            assertEquals(expected, delivered.get(userId(user)));
+        }
+        assertTrue(deliveredBy.containsValue(nodeA));
+        assertTrue(deliveredBy.containsValue(nodeB));
+        assertEquals(0, nodeA.getOwnedCount());
+        assertEquals(0, nodeB.getOwnedCount());
+    }
+
+    @Test
+    public void handsOutOneEventPerUserUntilAcknowledged() {
+        ClusterEventQueue nodeA = open(startNode("a"));
+        ClusterEventQueue nodeB = open(startNode("b"));
+        awaitMembers(2);
+        appendAll(nodeB);
+
+        int first = drain(nodeA).size() + drain(nodeB).size();
+
+        assertEquals(USERS, first);
+        assertEquals(0, drain(nodeA).size() + drain(nodeB).size());
+        assertEquals(USERS * EVENTS_PER_USER, nodeA.getOwnedCount() + nodeB.getOwnedCount());
+    }
+
+    @Test
+    public void survivorTakesOverTheUsersOfANodeThatLeaves() {
+        ClusterEventQueue nodeA = open(startNode("a"));
+        EmbeddedCacheManager managerB = startNode("b");
+        ClusterEventQueue nodeB = open(managerB);
+        awaitMembers(2);
+        appendAll(nodeA);
+
+        // B takes the first event of each of its users and stops before acknowledging them
+        List<UserSyncData> inFlightOnB = drain(nodeB);
+        assertFalse(inFlightOnB.isEmpty());
+        nodeB.close();
+        managerB.stop();
+        managers.remove(managerB);
+        awaitMembers(1);
+
+        Set<String> delivered = new HashSet<>();
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (delivered.size() < USERS * EVENTS_PER_USER) {
+            for (UserSyncData event : drain(nodeA)) {
+                delivered.add(event.getEventId());
+                nodeA.acknowledge(event);
+            }
+            awaitProgress(deadline);
+        }
+        for (UserSyncData event : inFlightOnB) {
+            assertTrue(delivered.contains(event.getEventId()));
+        }
+        assertEquals(0, nodeA.getOwnedCount());
+    }
+
+    @Test
+    public void ownerRemovesEventsBeyondItsCapacity() throws Exception {
+        EmbeddedCacheManager manager = new DefaultCacheManager();
+        managers.add(manager);
+        Cache<String, String> cache = ClusterEventQueue.getOrCreateCache(manager, 1);
+        ClusterEventQueue queue = new ClusterEventQueue(cache, "realm", 2, objectMapper);
+
+        queue.append(event(0, 0));
+        queue.append(event(1, 0));
+        queue.append(event(2, 0));
+        assertEquals(2, queue.getOwnedCount());
+        assertEquals(1, queue.getOverflowCount());
+
+        List<UserSyncData> events = drain(queue);
+        assertEquals(List.of(eventId(0, 0), eventId(1, 0)), List.of(events.get(0).getEventId(), events.get(1).getEventId()));
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (cache.values().stream().anyMatch(value -> value.contains(eventId(2, 0)))) {
+            awaitProgress(deadline);
+        }
+
+        queue.acknowledge(events.get(0));
+        queue.append(event(3, 0));
+        assertEquals(2, queue.getOwnedCount());
+        assertEquals(1, queue.getOverflowCount());
+    }
+
+    private EmbeddedCacheManager startNode(String name) {
+        GlobalConfigurationBuilder global = GlobalConfigurationBuilder.defaultClusteredBuilder();
+        global.transport()
+                .clusterName("client-user-sync-test")
+                .nodeName(name)
+                .addProperty(JGroupsTransport.CONFIGURATION_FILE, "jgroups-loopback.xml");
+        EmbeddedCacheManager manager = new DefaultCacheManager(global.build());
+        managers.add(manager);
+        return manager;
+    }
+
+    private ClusterEventQueue open(EmbeddedCacheManager manager) {
+        return new ClusterEventQueue(ClusterEventQueue.getOrCreateCache(manager, 2), "realm", 1000, objectMapper);
+    }
+
+    /**
+     * Waits until every running node sees the given number of members and no rebalance is in progress
+     */
+    private void awaitMembers(int members) {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        for (EmbeddedCacheManager manager : managers) {
+            Cache<String, String> cache = manager.getCache(ClusterEventQueue.CACHE_NAME);
+            DistributionManager distributionManager = cache.getAdvancedCache().getDistributionManager();
+            while (distributionManager.getCacheTopology().getMembers().size() != members
+                    || distributionManager.isRehashInProgress()) {
+                awaitProgress(deadline);
+            }
+        }
+    }
+
+    private static void awaitProgress(long deadline) {
+        if (System.currentTimeMillis() > deadline) {
+            fail("Timed out");
+        }
+        try {
+            Thread.sleep(10);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            fail("Interrupted");
+        }
+    }
+
+    private static void appendAll(ClusterEventQueue queue) {
+        for (int i = 0; i < EVENTS_PER_USER; i++) {
+            for (int user = 0; user < USERS; user++) {
+                queue.appendAsync(event(user, i)).toCompletableFuture().join();
+            }
+        }
+    }
+
+    private static List<UserSyncData> drain(ClusterEventQueue queue) {
+        List<UserSyncData> events = new ArrayList<>();
+        queue.replay(events::add);
+        return events;
+    }
+
+    private static UserSyncData event(int user, int index) {
+        UserSyncData event = new UserSyncData();
+        event.setEventId(eventId(user, index));
+        event.setEventType("LOGIN");
+        event.setUserId(userId(user));
+        event.setRealmId("realm");
+        event.setTimestamp(System.currentTimeMillis());
+        return event;
+    }
+
+    private static String userId(int user) {
+        return "user-" + user;
+    }
+
+    private static String eventId(int user, int index) {
+        return userId(user) + "-" + index;
+    }
+}
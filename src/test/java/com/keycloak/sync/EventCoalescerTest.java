@@ -0,0 +1,188 @@
+package com.keycloak.sync;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+public class EventCoalescerTest {
+
+    private static final long TIMEOUT_MILLIS = 10_000;
+
+    private final List<UserSyncData> passedOn = new CopyOnWriteArrayList<>();
+    private EventCoalescer coalescer;
+
+    @After
+    public void closeCoalescer() {
+        if (coalescer != null) {
+            coalescer.close();
+        }
+    }
+
+    @Test
+    public void mergesABurstForOneUserIntoOneRecord() {
+        open(60_000, false);
+        coalescer.offer(event("e1", "user-1", "LOGIN", 100));
+        coalescer.offer(event("e2", "user-1", "LOGIN", 300));
+        coalescer.offer(event("e3", "user-1", "LOGIN", 200));
+        coalescer.offer(event("e4", "user-2", "LOGIN", 400));
+        assertEquals(0, passedOn.size());
+        assertEquals(2, coalescer.getPendingCount());
+
+        coalescer.close();
+
+        assertEquals(2, passedOn.size());
+        UserSyncData merged = find("user-1");
+        assertEquals("e3", merged.getEventId());
+        assertEquals(Integer.valueOf(3), merged.getEventCount());
+        assertEquals(Long.valueOf(100), merged.getFirstTimestamp());
+        assertEquals(Long.valueOf(300), merged.getLastTimestamp());
+        assertNull(find("user-2").getEventCount());
+        assertEquals(2, coalescer.getMergedCount());
+    }
+
+    @Test
+    public void neverMergesEventsOfDifferentTypes() {
+        open(60_000, false);
+        coalescer.offer(event("e1", "user-1", "LOGIN", 100));
+        coalescer.offer(event("e2", "user-1", "UPDATE_EMAIL", 200));
+        coalescer.offer(event("e3", "user-1", "LOGIN", 300));
+        assertEquals(1, coalescer.getPendingCount());
+
+        coalescer.close();
+
+        assertEquals(2, passedOn.size());
+        assertEquals("e3", passedOn.get(0).getEventId());
+        assertEquals(Integer.valueOf(2), passedOn.get(0).getEventCount());
+        assertEquals("e2", passedOn.get(1).getEventId());
+        assertEquals("UPDATE_EMAIL", passedOn.get(1).getEventType());
+        assertNull(passedOn.get(1).getEventCount());
+        assertEquals(1, coalescer.getMergedCount());
+    }
+
+    @Test
+    public void passesTheRecordOnWhenTheWindowCloses() {
+        open(50, false);
+        coalescer.offer(event("e1", "user-1", "LOGIN", 100));
+        coalescer.offer(event("e2", "user-1", "LOGIN", 200));
+
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (passedOn.isEmpty()) {
+            awaitProgress(deadline);
+        }
+        assertEquals(1, passedOn.size());
+        assertEquals(Integer.valueOf(2), passedOn.get(0).getEventCount());
+        assertEquals(0, coalescer.getPendingCount());
+    }
+
+    @Test
+    public void dropsEventIdsAlreadySeenInTheWindow() {
+        open(60_000, false);
+        coalescer.offer(event("e1", "user-1", "LOGIN", 100));
+        coalescer.offer(event("e1", "user-1", "LOGIN", 100));
+        coalescer.offer(event("e1", "user-2", "LOGIN", 100));
+        coalescer.close();
+
+        assertEquals(1, passedOn.size());
+        assertNull(passedOn.get(0).getEventCount());
+        assertEquals(2, coalescer.getDuplicateCount());
+    }
+
+    @Test
+    public void passesRegistrationsOnAfterTheRecordTheyFollow() {
+        open(60_000, false);
+        coalescer.offer(event("e1", "user-1", "LOGIN", 100));
+        coalescer.offer(event("e2", "user-1", "LOGIN", 200));
+        coalescer.offer(event("e3", "user-1", "REGISTER", 300));
+
+        assertEquals(2, passedOn.size());
+        assertEquals("e2", passedOn.get(0).getEventId());
+        assertEquals(Integer.valueOf(2), passedOn.get(0).getEventCount());
+        assertEquals("e3", passedOn.get(1).getEventId());
+        assertEquals(0, coalescer.getPendingCount());
+    }
+
+    @Test
+    public void neverMergesAdminDeltaRecords() {
+        open(60_000, false);
+        UserSyncData delta = event("e1", "user-1", "UPDATE_PROFILE", 100);
+        delta.setChanges(Map.of("email", "new@example.com"));
+        coalescer.offer(delta);
+        coalescer.offer(event("e2", "user-1", "LOGIN", 200));
+
+        assertEquals(1, passedOn.size());
+        assertEquals("e1", passedOn.get(0).getEventId());
+        assertEquals(1, coalescer.getPendingCount());
+    }
+
+    @Test
+    public void keepsClientsApartWhenCoalescingByClient() {
+        open(60_000, true);
+        UserSyncData first = event("e1", "user-1", "LOGIN", 100);
+        first.setClientId("app-a");
+        UserSyncData second = event("e2", "user-1", "LOGIN", 200);
+        second.setClientId("app-b");
+        coalescer.offer(first);
+        coalescer.offer(second);
+
+        assertEquals(2, coalescer.getPendingCount());
+        coalescer.close();
+        assertEquals(2, passedOn.size());
+        assertEquals(0, coalescer.getMergedCount());
+    }
+
+    @Test
+    public void passesEventsStraightOnOnceClosed() {
+        open(60_000, false);
+        coalescer.close();
+        coalescer.offer(event("e1", "user-1", "LOGIN", 100));
+        coalescer.offer(event("e1", "user-1", "LOGIN", 100));
+
+        assertEquals(2, passedOn.size());
+    }
+
+    private void open(int windowMs, boolean byClient) {
+        ClientUserSyncConfig config = new ClientUserSyncConfig();
+        config.setCoalesceEnabled(true);
+        config.setCoalesceWindowMs(windowMs);
+        config.setCoalesceByClient(byClient);
+        coalescer = new EventCoalescer(config, "test", passedOn::add, SyncMetrics.NOOP);
+    }
+
+    private UserSyncData find(String userId) {
+        for (UserSyncData record : passedOn) {
+            if (userId.equals(record.getUserId())) {
+                return record;
+            }
+        }
+        throw new AssertionError("No record for " + userId);
+    }
+
+    private static void awaitProgress(long deadline) {
+        if (System.currentTimeMillis() > deadline) {
+            fail("Timed out");
+        }
+        try {
+            Thread.sleep(10);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            fail("Interrupted");
+        }
+    }
+
+    private static UserSyncData event(String eventId, String userId, String eventType, long timestamp) {
+        UserSyncData event = new UserSyncData();
+        event.setEventId(eventId);
+        event.setEventType(eventType);
+        event.setUserId(userId);
+        event.setRealmId("realm");
+        event.setTimestamp(timestamp);
+        return event;
+    }
+}
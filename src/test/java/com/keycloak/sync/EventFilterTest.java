@@ -0,0 +1,145 @@
+package com.keycloak.sync;
+
+import org.junit.Test;
+import org.keycloak.events.EventType;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the compiled filter against the checks the event listener used to run on every event,
+ * shouldProcessEvent and shouldProcessClient, extended by the per-client types of clientEventTypes
+ */
+public class EventFilterTest {
+
+    private static final int CONFIGURATIONS = 500;
+    private static final List<String> CLIENTS = Arrays.asList("app-0", "app-1", "app-2", "app-3", "app-4", "app-5", "app-6", "app-7");
+    private static final EventType[] TYPES = EventType.values();
+
+    private final Random random = new Random(42);
+
+    @Test
+    public void acceptsWhatTheListenerChecksAccepted() {
+        for (int i = 0; i < CONFIGURATIONS; i++) {
+            ClientUserSyncConfig config = randomConfig();
+            EventFilter filter = EventFilter.compile(config);
+            for (EventType type : TYPES) {
+                for (String clientId : candidateClients()) {
+                    assertEquals(describe(config, type, clientId), reference(config, type, clientId), filter.accepts(type, clientId));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void defaultsToRegistrationsAndLoginsFromAnyClient() {
+        EventFilter filter = EventFilter.compile(new ClientUserSyncConfig());
+        assertTrue(filter.accepts(EventType.REGISTER, "app-0"));
+        assertTrue(filter.accepts(EventType.LOGIN, null));
+        assertFalse(filter.accepts(EventType.LOGOUT, "app-0"));
+        assertFalse(filter.accepts(null, "app-0"));
+    }
+
+    @Test
+    public void unionAcceptsWhatAnyOfItsFiltersAccepts() {
+        for (int i = 0; i < CONFIGURATIONS; i++) {
+            List<EventFilter> filters = new ArrayList<>();
+            for (int f = 1 + random.nextInt(3); f > 0; f--) {
+                filters.add(EventFilter.compile(randomConfig()));
+            }
+            EventFilter union = EventFilter.union(filters);
+            for (EventType type : TYPES) {
+                for (String clientId : candidateClients()) {
+                    boolean expected = false;
+                    for (EventFilter filter : filters) {
+                        expected |= filter.accepts(type, clientId);
+                    }
+                    assertEquals(type + " from " + clientId, expected, union.accepts(type, clientId));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void listsClientsNamedInEitherSetting() {
+        ClientUserSyncConfig config = new ClientUserSyncConfig();
+        config.getClientIds().add("app-0");
+        config.getClientEventTypes().put("app-1", Set.of(EventType.LOGOUT));
+        EventFilter filter = EventFilter.compile(config);
+
+        assertTrue(filter.isListed("app-0"));
+        assertTrue(filter.isListed("app-1"));
+        assertFalse(filter.isListed("app-2"));
+        assertFalse(filter.isListed(null));
+    }
+
+    private static boolean reference(ClientUserSyncConfig config, EventType type, String clientId) {
+        Set<EventType> eventTypes = config.getEventTypes();
+        boolean typeAllowed = eventTypes.isEmpty()
+                ? type == EventType.REGISTER || type == EventType.LOGIN
+                : eventTypes.contains(type);
+        boolean clientAllowed = config.getClientIds().isEmpty() || config.getClientIds().contains(clientId);
+        if (typeAllowed && clientAllowed) {
+            return true;
+        }
+        Set<EventType> clientTypes = clientId != null ? config.getClientEventTypes().get(clientId) : null;
+        return clientTypes != null && clientTypes.contains(type);
+    }
+
+    private ClientUserSyncConfig randomConfig() {
+        ClientUserSyncConfig config = new ClientUserSyncConfig();
+        if (random.nextBoolean()) {
+            config.getEventTypes().addAll(randomTypes());
+        }
+        if (random.nextBoolean()) {
+            config.getClientIds().addAll(randomClients());
+        }
+        if (random.nextBoolean()) {
+            Map<String, Set<EventType>> clientEventTypes = new HashMap<>();
+            for (String clientId : randomClients()) {
+                clientEventTypes.put(clientId, randomTypes());
+            }
+            config.setClientEventTypes(clientEventTypes);
+        }
+        return config;
+    }
+
+    private Set<EventType> randomTypes() {
+        Set<EventType> types = new HashSet<>();
+        for (int i = 1 + random.nextInt(4); i > 0; i--) {
+            // Biased towards the defaults so that they overlap with the configured sets
+            types.add(random.nextBoolean() ? (random.nextBoolean() ? EventType.LOGIN : EventType.REGISTER) : TYPES[random.nextInt(TYPES.length)]);
+        }
+        return types;
+    }
+
+    private Set<String> randomClients() {
+        Set<String> clients = new HashSet<>();
+        for (int i = 1 + random.nextInt(4); i > 0; i--) {
+            clients.add(CLIENTS.get(random.nextInt(CLIENTS.size())));
+        }
+        return clients;
+    }
+
+    private static List<String> candidateClients() {
+        List<String> clients = new ArrayList<>(CLIENTS);
+        clients.add("unlisted");
+        clients.add(null);
+        return clients;
+    }
+
+    private static String describe(ClientUserSyncConfig config, EventType type, String clientId) {
+        return type + " from " + clientId + " with eventTypes=" + config.getEventTypes() + ", clientIds=" + config.getClientIds()
+                + ", clientEventTypes=" + config.getClientEventTypes();
+    }
+}
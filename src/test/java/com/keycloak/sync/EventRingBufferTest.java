@@ -0,0 +1,74 @@
+package com.keycloak.sync;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class EventRingBufferTest {
+
+    @Test
+    public void roundsCapacityUpToAPowerOfTwo() {
+        assertEquals(8, new EventRingBuffer<String>(5).capacity());
+        assertEquals(8, new EventRingBuffer<String>(8).capacity());
+        assertEquals(2, new EventRingBuffer<String>(0).capacity());
+    }
+
+    @Test
+    public void refusesElementsWhenFullAndKeepsFifoOrder() {
+        EventRingBuffer<Integer> buffer = new EventRingBuffer<>(4);
+        for (int i = 0; i < 4; i++) {
+            assertTrue(buffer.offer(i));
+        }
+        assertFalse(buffer.offer(4));
+        assertEquals(4, buffer.size());
+
+        assertEquals(Integer.valueOf(0), buffer.poll());
+        assertTrue(buffer.offer(4));
+        List<Integer> drained = new ArrayList<>();
+        assertEquals(4, buffer.drainTo(drained, 10));
+        assertEquals(List.of(1, 2, 3, 4), drained);
+        assertNull(buffer.poll());
+        assertTrue(buffer.isEmpty());
+    }
+
+    @Test
+    public void handsEveryElementToExactlyOneConsumer() throws InterruptedException {
+        EventRingBuffer<Integer> buffer = new EventRingBuffer<>(64);
+        int perProducer = 10_000;
+        Thread[] producers = new Thread[4];
+        for (int p = 0; p < producers.length; p++) {
+            int base = p * perProducer;
+            producers[p] = new Thread(() -> {
+                for (int i = 0; i < perProducer; i++) {
+                    while (!buffer.offer(base + i)) {
+                        Thread.yield();
+                    }
+                }
+            });
+            producers[p].start();
+        }
+
+        boolean[] seen = new boolean[producers.length * perProducer];
+        int received = 0;
+        while (received < seen.length) {
+            Integer element = buffer.poll();
+            if (element == null) {
+                Thread.yield();
+                continue;
+            }
+            assertFalse("duplicate " + element, seen[element]);
+            seen[element] = true;
+            received++;
+        }
+        for (Thread producer : producers) {
+            producer.join();
+        }
+        assertTrue(buffer.isEmpty());
+    }
+}
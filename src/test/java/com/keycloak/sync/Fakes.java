@@ -0,0 +1,82 @@
+package com.keycloak.sync;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.stream.Stream;
+
+/**
+ * Proxy-based stand-ins for the Keycloak interfaces the tests need. A fake answers the methods it was
+ * given answers for by name; every other method returns false, zero, an empty stream or null.
+ */
+final class Fakes {
+
+    @FunctionalInterface
+    interface Answer {
+        Object answer(Object[] args) throws Throwable;
+    }
+
+    private Fakes() {
+    }
+
+    /**
+     * @param answers method names and their answers, alternating
+     */
+    static <T> T fake(Class<T> type, Object... answers) {
+        Map<String, Answer> byName = new HashMap<>();
+        for (int i = 0; i < answers.length; i += 2) {
+            Object answer = answers[i + 1];
+            byName.put((String) answers[i], answer instanceof Answer ? (Answer) answer : args -> answer);
+        }
+        return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type}, (proxy, method, args) -> {
+            Object[] arguments = args != null ? args : new Object[0];
+            Answer answer = byName.get(method.getName());
+            if (answer != null) {
+                return answer.answer(arguments);
+            }
+            switch (method.getName()) {
+                case "equals":
+                    return proxy == arguments[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "toString":
+                    return type.getSimpleName() + " fake";
+                default:
+                    return defaultValue(method.getReturnType());
+            }
+        }));
+    }
+
+    /**
+     * Fakes the type a method of another type returns, for types whose name differs between Keycloak versions
+     */
+    static Object fakeReturnOf(Class<?> owner, String methodName, Object... answers) {
+        for (Method method : owner.getMethods()) {
+            if (method.getName().equals(methodName)) {
+                return fake(method.getReturnType(), answers);
+            }
+        }
+        throw new IllegalArgumentException(owner.getSimpleName() + " has no method " + methodName);
+    }
+
+    private static Object defaultValue(Class<?> type) {
+        if (type == boolean.class) {
+            return false;
+        }
+        if (type == int.class) {
+            return 0;
+        }
+        if (type == long.class) {
+            return 0L;
+        }
+        if (type == Stream.class) {
+            return Stream.empty();
+        }
+        if (type == Optional.class) {
+            return Optional.empty();
+        }
+        return null;
+    }
+}
@@ -0,0 +1,189 @@
+package com.keycloak.sync;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Sends batches to a local endpoint that answers with a configurable status and body, and checks how
+ * the sink reads the per-item results
+ */
+public class HttpSyncSinkTest {
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final List<String> requests = new CopyOnWriteArrayList<>();
+    private final List<String> contentTypes = new CopyOnWriteArrayList<>();
+    private volatile int responseStatus = 200;
+    private volatile String responseBody = "";
+    private HttpServer server;
+    private HttpSyncSink sink;
+
+    @Before
+    public void startServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/users", exchange -> {
+            requests.add(new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8));
+            contentTypes.add(exchange.getRequestHeaders().getFirst("Content-Type"));
+            byte[] body = responseBody.getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(responseStatus, body.length == 0 ? -1 : body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.start();
+    }
+
+    @After
+    public void stopServer() throws IOException {
+        if (sink != null) {
+            sink.close();
+        }
+        server.stop(0);
+    }
+
+    @Test
+    public void postsTheBatchAsOneJsonArray() throws IOException {
+        open(BatchFormat.JSON_ARRAY);
+        List<UserSyncData> events = events(3);
+
+        assertSame(SyncResult.DELIVERED, sink.send(events).join());
+
+        assertEquals(1, requests.size());
+        JsonNode body = objectMapper.readTree(requests.get(0));
+        assertTrue(body.isArray());
+        assertEquals(3, body.size());
+        for (int i = 0; i < 3; i++) {
+            assertEquals("e" + i, body.get(i).path("eventId").asText());
+        }
+        assertTrue(contentTypes.get(0).startsWith("application/json"));
+    }
+
+    @Test
+    public void postsOneLinePerEventAsNdjson() throws IOException {
+        open(BatchFormat.NDJSON);
+
+        sink.send(events(3)).join();
+
+        String[] lines = requests.get(0).trim().split("\n");
+        assertEquals(3, lines.length);
+        assertEquals("e2", objectMapper.readTree(lines[2]).path("eventId").asText());
+        assertTrue(contentTypes.get(0).startsWith("application/x-ndjson"));
+    }
+
+    @Test
+    public void splitsPerItemFailuresIntoPendingAndRejected() {
+        open(BatchFormat.JSON_ARRAY);
+        List<UserSyncData> events = events(3);
+        responseBody = "{\"results\": ["
+                + "{\"eventId\": \"e0\", \"status\": 503},"
+                + "{\"eventId\": \"e1\", \"status\": 400},"
+                + "{\"eventId\": \"e2\", \"success\": true}]}";
+
+        SyncResult result = sink.send(events).join();
+
+        assertEquals(List.of(events.get(0)), result.getPending());
+        assertEquals(List.of(events.get(1)), result.getRejected());
+        assertEquals(2, result.getUndeliveredCount());
+    }
+
+    @Test
+    public void retriesFailuresWithoutAStatus() {
+        open(BatchFormat.JSON_ARRAY);
+        List<UserSyncData> events = events(2);
+        responseBody = "[{\"eventId\": \"e1\", \"success\": false}, {\"eventId\": \"e1\", \"success\": false}]";
+
+        SyncResult result = sink.send(events).join();
+
+        assertEquals(List.of(events.get(1)), result.getPending());
+        assertTrue(result.getRejected().isEmpty());
+    }
+
+    @Test
+    public void retriesTheWholeBatchWhenAFailureNamesNoEventOfIt() {
+        open(BatchFormat.JSON_ARRAY);
+        List<UserSyncData> events = events(3);
+        responseBody = "[{\"eventId\": \"e0\", \"success\": true}, {\"eventId\": \"other\", \"status\": 500}]";
+
+        SyncResult result = sink.send(events).join();
+
+        assertEquals(events, result.getPending());
+        assertTrue(result.getRejected().isEmpty());
+    }
+
+    @Test
+    public void treatsABodyWithoutResultsAsDelivered() {
+        open(BatchFormat.JSON_ARRAY);
+
+        responseBody = "";
+        assertSame(SyncResult.DELIVERED, sink.send(events(2)).join());
+        responseBody = "accepted";
+        assertSame(SyncResult.DELIVERED, sink.send(events(2)).join());
+        responseBody = "{\"received\": 2}";
+        assertSame(SyncResult.DELIVERED, sink.send(events(2)).join());
+    }
+
+    @Test
+    public void failsTheWholeBatchOnAnErrorStatus() {
+        open(BatchFormat.JSON_ARRAY);
+        responseStatus = 503;
+
+        try {
+            sink.send(events(2)).join();
+            fail("Batch was accepted");
+        } catch (CompletionException e) {
+            assertTrue(e.getCause() instanceof SyncException);
+            assertEquals(503, ((SyncException) e.getCause()).getStatusCode());
+        }
+    }
+
+    @Test
+    public void retryAllKeepsEveryEventPending() {
+        List<UserSyncData> events = events(3);
+
+        SyncResult result = SyncResult.retryAll(events);
+
+        assertEquals(events, result.getPending());
+        assertTrue(result.getRejected().isEmpty());
+        assertEquals(3, result.getUndeliveredCount());
+    }
+
+    private void open(BatchFormat format) {
+        ClientUserSyncConfig config = new ClientUserSyncConfig();
+        config.setApiEndpoint("http://127.0.0.1:" + server.getAddress().getPort() + "/users");
+        config.setBatchEnabled(true);
+        config.setBatchFormat(format);
+        sink = new HttpSyncSink(config, "test", SyncMetrics.NOOP, Runnable::run);
+    }
+
+    private static List<UserSyncData> events(int count) {
+        List<UserSyncData> events = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            UserSyncData event = new UserSyncData();
+            event.setEventId("e" + i);
+            event.setEventType("LOGIN");
+            event.setUserId("user-" + i);
+            event.setRealmId("realm");
+            event.setTimestamp(1_700_000_000_000L + i);
+            events.add(event);
+        }
+        return events;
+    }
+}
@@ -0,0 +1,125 @@
+package com.keycloak.sync;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.kafka.clients.producer.MockProducer;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.errors.RecordTooLargeException;
+import org.apache.kafka.common.errors.TimeoutException;
+import org.apache.kafka.common.serialization.ByteArraySerializer;
+import org.apache.kafka.common.serialization.StringSerializer;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class KafkaSyncSinkTest {
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    @Test
+    public void sendsOneRecordPerEventKeyedByUser() throws Exception {
+        MockProducer<String, byte[]> producer = new MockProducer<>(true, new StringSerializer(), new ByteArraySerializer());
+        KafkaSyncSink sink = sink(producer);
+        UserSyncData anonymous = event("e3", null);
+
+        SyncResult result = sink.send(List.of(event("e1", "user-1"), event("e2", "user-2"), anonymous)).get();
+
+        assertSame(SyncResult.DELIVERED, result);
+        List<ProducerRecord<String, byte[]>> records = producer.history();
+        assertEquals(3, records.size());
+        assertEquals("user-1", records.get(0).key());
+        assertEquals("user-2", records.get(1).key());
+        assertEquals("e3", records.get(2).key());
+        for (ProducerRecord<String, byte[]> record : records) {
+            assertEquals("user-sync", record.topic());
+            assertEquals(PayloadEncoding.JSON.getContentType(),
+                    new String(record.headers().lastHeader("content-type").value(), StandardCharsets.UTF_8));
+        }
+        assertEquals("e2", objectMapper.readValue(records.get(1).value(), UserSyncData.class).getEventId());
+    }
+
+    @Test
+    public void returnsRetriableAndRejectedEventsSeparately() throws Exception {
+        MockProducer<String, byte[]> producer = new MockProducer<>(false, new StringSerializer(), new ByteArraySerializer());
+        UserSyncData delivered = event("e1", "user-1");
+        UserSyncData timedOut = event("e2", "user-2");
+        UserSyncData tooLarge = event("e3", "user-3");
+
+        CompletableFuture<SyncResult> future = sink(producer).send(List.of(delivered, timedOut, tooLarge));
+        assertFalse(future.isDone());
+        assertTrue(producer.completeNext());
+        assertTrue(producer.errorNext(new TimeoutException("no ack")));
+        assertTrue(producer.errorNext(new RecordTooLargeException("too large")));
+
+        SyncResult result = future.get();
+        assertEquals(List.of(timedOut), result.getPending());
+        assertEquals(List.of(tooLarge), result.getRejected());
+    }
+
+    @Test
+    public void failsWithAnIOExceptionWhenNoEventWasAcknowledged() throws Exception {
+        MockProducer<String, byte[]> producer = new MockProducer<>(false, new StringSerializer(), new ByteArraySerializer());
+
+        CompletableFuture<SyncResult> future = sink(producer).send(List.of(event("e1", "user-1"), event("e2", "user-2")));
+        producer.errorNext(new TimeoutException("no ack"));
+        producer.errorNext(new TimeoutException("no ack"));
+
+        assertTrue(failure(future) instanceof IOException);
+    }
+
+    @Test
+    public void failsWithTheRejectionWhenEveryEventWasRejected() throws Exception {
+        MockProducer<String, byte[]> producer = new MockProducer<>(false, new StringSerializer(), new ByteArraySerializer());
+
+        CompletableFuture<SyncResult> future = sink(producer).send(List.of(event("e1", "user-1")));
+        producer.errorNext(new RecordTooLargeException("too large"));
+
+        assertTrue(failure(future) instanceof RecordTooLargeException);
+    }
+
+    @Test
+    public void failsTheRestOfTheBatchWhenTheProducerIsClosed() throws Exception {
+        MockProducer<String, byte[]> producer = new MockProducer<>(true, new StringSerializer(), new ByteArraySerializer());
+        producer.close();
+
+        CompletableFuture<SyncResult> future = sink(producer).send(List.of(event("e1", "user-1"), event("e2", "user-2")));
+
+        assertTrue(future.isDone());
+        assertTrue(future.isCompletedExceptionally());
+    }
+
+    private static KafkaSyncSink sink(MockProducer<String, byte[]> producer) {
+        ClientUserSyncConfig config = new ClientUserSyncConfig();
+        config.setKafkaTopic("user-sync");
+        return new KafkaSyncSink(config, "test", SyncMetrics.NOOP, producer);
+    }
+
+    private static Throwable failure(CompletableFuture<SyncResult> future) throws InterruptedException {
+        try {
+            future.get();
+            fail("Completed normally");
+            return null;
+        } catch (ExecutionException e) {
+            return e.getCause();
+        }
+    }
+
+    private static UserSyncData event(String eventId, String userId) {
+        UserSyncData event = new UserSyncData();
+        event.setEventId(eventId);
+        event.setEventType("LOGIN");
+        event.setUserId(userId);
+        event.setRealmId("realm");
+        event.setTimestamp(1_700_000_000_000L);
+        return event;
+    }
+}
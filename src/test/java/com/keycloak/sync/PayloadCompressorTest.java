@@ -0,0 +1,86 @@
+package com.keycloak.sync;
+
+import io.airlift.compress.zstd.ZstdDecompressor;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class PayloadCompressorTest {
+
+    private final PayloadBufferPool pool = new PayloadBufferPool(4);
+
+    @Test
+    public void gzipBodiesInflateToTheOriginal() throws IOException {
+        PayloadCompressor compressor = new PayloadCompressor(PayloadCompression.GZIP, 1);
+        byte[] original = repetitiveBody(50);
+
+        byte[] compressed = compressor.compress(body(original), pool).toByteArray();
+
+        assertTrue(compressed.length < original.length / 5);
+        assertArrayEquals(original, gunzip(compressed));
+        compressor.close();
+    }
+
+    @Test
+    public void reusesDeflatersAcrossBodiesOfAnySize() throws IOException {
+        PayloadCompressor compressor = new PayloadCompressor(PayloadCompression.GZIP, 1);
+        byte[] incompressible = new byte[64 * 1024];
+        new Random(42).nextBytes(incompressible);
+
+        for (byte[] original : new byte[][]{repetitiveBody(1), incompressible, new byte[0], repetitiveBody(500)}) {
+            assertArrayEquals(original, gunzip(compressor.compress(body(original), pool).toByteArray()));
+        }
+        compressor.close();
+    }
+
+    @Test
+    public void zstdBodiesDecompressToTheOriginal() throws IOException {
+        PayloadCompressor compressor = new PayloadCompressor(PayloadCompression.ZSTD, 1);
+        byte[] original = repetitiveBody(50);
+
+        byte[] compressed = compressor.compress(body(original), pool).toByteArray();
+
+        byte[] decompressed = new byte[original.length];
+        int length = new ZstdDecompressor().decompress(compressed, 0, compressed.length, decompressed, 0, decompressed.length);
+        assertArrayEquals(original, Arrays.copyOf(decompressed, length));
+    }
+
+    @Test
+    public void leavesBodiesAloneWithoutCompression() throws IOException {
+        PayloadBuffer body = body(repetitiveBody(1));
+
+        assertSame(body, new PayloadCompressor(PayloadCompression.NONE, 1).compress(body, pool));
+    }
+
+    private static PayloadBuffer body(byte[] content) {
+        PayloadBuffer body = new PayloadBuffer(256);
+        body.write(content, 0, content.length);
+        return body;
+    }
+
+    private static byte[] repetitiveBody(int events) {
+        StringBuilder body = new StringBuilder("[");
+        for (int i = 0; i < events; i++) {
+            body.append(i == 0 ? "" : ",")
+                    .append("{\"eventId\":\"e").append(i)
+                    .append("\",\"eventType\":\"LOGIN\",\"realmName\":\"realm\",\"clientId\":\"app\"}");
+        }
+        return body.append(']').toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static byte[] gunzip(byte[] compressed) throws IOException {
+        try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(compressed))) {
+            return in.readAllBytes();
+        }
+    }
+}
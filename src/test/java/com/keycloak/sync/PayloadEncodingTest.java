@@ -0,0 +1,76 @@
+package com.keycloak.sync;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Writes events in each binary encoding and reads them back with a plain Jackson decoder for it
+ */
+public class PayloadEncodingTest {
+
+    private final ObjectMapper jsonMapper = new ObjectMapper();
+
+    @Test
+    public void cborRecordsReadBackAsTheEvent() throws IOException {
+        assertRoundTrip(PayloadEncoding.CBOR, new CBORFactory());
+    }
+
+    @Test
+    public void smileRecordsReadBackAsTheEvent() throws IOException {
+        assertRoundTrip(PayloadEncoding.SMILE, new SmileFactory());
+    }
+
+    @Test
+    public void binaryBatchesAreOneArrayWhateverTheBatchFormat() throws IOException {
+        UserSyncData second = event();
+        second.setEventId("e2");
+        UserSyncDataWriter writer = new UserSyncDataWriter(PayloadEncoding.CBOR);
+        PayloadBuffer body = new PayloadBuffer(256);
+
+        writer.write(List.of(event(), second), BatchFormat.NDJSON, body);
+
+        List<UserSyncData> events = new ObjectMapper(new CBORFactory())
+                .readValue(body.toByteArray(), new TypeReference<List<UserSyncData>>() { });
+        assertEquals(2, events.size());
+        assertEquals(jsonMapper.valueToTree(second), jsonMapper.valueToTree(events.get(1)));
+        assertEquals("application/cbor", PayloadEncoding.CBOR.getBatchContentType(BatchFormat.NDJSON));
+        assertEquals(BatchFormat.NDJSON.getContentType(), PayloadEncoding.JSON.getBatchContentType(BatchFormat.NDJSON));
+    }
+
+    private void assertRoundTrip(PayloadEncoding encoding, JsonFactory decoder) throws IOException {
+        UserSyncData event = event();
+        PayloadBuffer body = new PayloadBuffer(256);
+
+        new UserSyncDataWriter(encoding).write(event, body);
+
+        UserSyncData read = new ObjectMapper(decoder).readValue(body.toByteArray(), UserSyncData.class);
+        assertEquals(jsonMapper.valueToTree(event), jsonMapper.valueToTree(read));
+    }
+
+    private static UserSyncData event() {
+        UserSyncData event = new UserSyncData();
+        event.setEventId("e1");
+        event.setEventType("UPDATE_PROFILE");
+        event.setUserId("user-1");
+        event.setUsername("jdoe");
+        event.setEmail("jdoe@example.com");
+        event.setFirstName("Zo\u00eb");
+        event.setRealmId("realm-id");
+        event.setRealmName("realm");
+        event.setClientId("app");
+        event.setTimestamp(1_700_000_000_000L);
+        event.getAdditionalAttributes().put("department", "engineering");
+        event.setChanges(Map.of("email", "jdoe@example.com"));
+        return event;
+    }
+}
@@ -0,0 +1,102 @@
+package com.keycloak.sync;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RetryPolicyTest {
+
+    @Test
+    public void retriesOnlyServerErrorsThrottlingTimeoutsAndIoErrors() {
+        RetryPolicy policy = new RetryPolicy(config(10, 3, 60, 0));
+
+        assertTrue(policy.isRetryable(error(500)));
+        assertTrue(policy.isRetryable(error(503)));
+        assertTrue(policy.isRetryable(error(429)));
+        assertTrue(policy.isRetryable(error(408)));
+        assertTrue(policy.isRetryable(new IOException("connection reset")));
+        assertFalse(policy.isRetryable(error(400)));
+        assertFalse(policy.isRetryable(error(401)));
+        assertFalse(policy.isRetryable(error(404)));
+        assertFalse(policy.isRetryable(new IllegalStateException()));
+    }
+
+    @Test
+    public void backoffGrowsExponentiallyWithFullJitterUpToTheCap() {
+        RetryPolicy policy = new RetryPolicy(config(20, 1, 4, 0));
+        SyncBatch batch = batch();
+        long[] ceilings = {1000, 2000, 4000, 4000, 4000};
+        for (long ceiling : ceilings) {
+            long max = 0;
+            for (int i = 0; i < 200; i++) {
+                long delay = policy.nextDelayMillis(batch, -1);
+                assertTrue("delay " + delay + " outside 0.." + ceiling, delay >= 0 && delay <= ceiling);
+                max = Math.max(max, delay);
+            }
+            // Full jitter spreads delays over the whole range
+            assertTrue(max > ceiling / 2);
+            batch = batch.retry(batch.getEvents());
+        }
+    }
+
+    @Test
+    public void retryAfterTakesPrecedenceOverTheBackoff() {
+        RetryPolicy policy = new RetryPolicy(config(10, 1, 4, 0));
+
+        assertEquals(30_000, policy.nextDelayMillis(batch(), 30_000));
+        assertEquals(0, policy.nextDelayMillis(batch(), 0));
+    }
+
+    @Test
+    public void stopsAfterMaxRetries() {
+        RetryPolicy policy = new RetryPolicy(config(2, 1, 4, 0));
+        SyncBatch batch = batch();
+
+        assertTrue(policy.nextDelayMillis(batch, -1) >= 0);
+        batch = batch.retry(batch.getEvents());
+        assertTrue(policy.nextDelayMillis(batch, -1) >= 0);
+        batch = batch.retry(batch.getEvents());
+        assertEquals(-1, policy.nextDelayMillis(batch, -1));
+    }
+
+    @Test
+    public void schedulesNoRetryPastTheDeadline() {
+        RetryPolicy policy = new RetryPolicy(config(10, 1, 4, 5));
+
+        assertEquals(4_000, policy.nextDelayMillis(batch(), 4_000));
+        assertEquals(-1, policy.nextDelayMillis(batch(), 6_000));
+    }
+
+    @Test
+    public void neverRetriesWhenDisabled() {
+        ClientUserSyncConfig config = config(10, 1, 4, 0);
+        config.setRetryEnabled(false);
+
+        assertEquals(-1, new RetryPolicy(config).nextDelayMillis(batch(), -1));
+    }
+
+    private static ClientUserSyncConfig config(int maxRetries, int retryDelay, int retryMaxDelay, int retryDeadline) {
+        ClientUserSyncConfig config = new ClientUserSyncConfig();
+        config.setMaxRetries(maxRetries);
+        config.setRetryDelay(retryDelay);
+        config.setRetryMaxDelay(retryMaxDelay);
+        config.setRetryDeadline(retryDeadline);
+        return config;
+    }
+
+    private static SyncException error(int statusCode) {
+        return new SyncException(new SyncResponse(statusCode, ""));
+    }
+
+    private static SyncBatch batch() {
+        UserSyncData event = new UserSyncData();
+        event.setEventId("e1");
+        event.setUserId("user-1");
+        return new SyncBatch(List.of(event));
+    }
+}
@@ -0,0 +1,171 @@
+package com.keycloak.sync;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that with perUserOrdering a user's events are handed out one after the other, while other
+ * users' events keep flowing past a user that is waiting
+ */
+public class SyncDispatcherOrderingTest {
+
+    private static final long TIMEOUT_MILLIS = 10_000;
+
+    private final BlockingQueue<SyncBatch> handed = new LinkedBlockingQueue<>();
+    private SyncDispatcher dispatcher;
+
+    @After
+    public void closeDispatcher() {
+        if (dispatcher != null) {
+            dispatcher.close(1);
+        }
+    }
+
+    @Test
+    public void parksOnlyTheUserWaitingForAnEarlierEvent() throws InterruptedException {
+        dispatcher = new SyncDispatcher(config(2, 1), "test", new ObjectMapper(), handed::add);
+
+        assertTrue(dispatcher.dispatch(event("user-1", 1)));
+        SyncBatch first = next();
+        assertTrue(dispatcher.dispatch(event("user-1", 2)));
+        assertTrue(dispatcher.dispatch(event("user-2", 1)));
+
+        assertEquals(List.of("user-2:1"), eventIds(next()));
+        assertNull(handed.poll(50, TimeUnit.MILLISECONDS));
+        assertEquals(1, dispatcher.getParkedCount());
+
+        dispatcher.acknowledge(first.getEvents());
+        assertEquals(List.of("user-1:2"), eventIds(next()));
+        assertEquals(0, dispatcher.getParkedCount());
+    }
+
+    @Test
+    public void laterEventsWaitForTheRetryOfAnEarlierOne() throws InterruptedException {
+        dispatcher = new SyncDispatcher(config(2, 1), "test", new ObjectMapper(), handed::add);
+
+        assertTrue(dispatcher.dispatch(event("user-1", 1)));
+        SyncBatch failed = next();
+        assertTrue(dispatcher.dispatch(event("user-1", 2)));
+        dispatcher.scheduleRetry(failed, 20);
+
+        SyncBatch retried = next();
+        assertEquals(List.of("user-1:1"), eventIds(retried));
+        assertNull(handed.poll(50, TimeUnit.MILLISECONDS));
+
+        dispatcher.acknowledge(retried.getEvents());
+        assertEquals(List.of("user-1:2"), eventIds(next()));
+    }
+
+    @Test
+    public void releasesParkedEventsABatchAtATime() throws InterruptedException {
+        dispatcher = new SyncDispatcher(config(1, 2), "test", new ObjectMapper(), handed::add);
+
+        assertTrue(dispatcher.dispatch(event("user-1", 1)));
+        SyncBatch first = next();
+        for (int sequence = 2; sequence <= 4; sequence++) {
+            assertTrue(dispatcher.dispatch(event("user-1", sequence)));
+        }
+        awaitParked(3);
+
+        dispatcher.acknowledge(first.getEvents());
+        SyncBatch second = next();
+        assertEquals(List.of("user-1:2", "user-1:3"), eventIds(second));
+        dispatcher.acknowledge(second.getEvents());
+        assertEquals(List.of("user-1:4"), eventIds(next()));
+    }
+
+    @Test
+    public void keepsEachUsersEventsInOrderAcrossWorkers() throws InterruptedException {
+        int users = 5;
+        int eventsPerUser = 200;
+        Map<String, List<Integer>> delivered = new HashMap<>();
+        AtomicInteger count = new AtomicInteger();
+        dispatcher = new SyncDispatcher(config(4, 8), "test", new ObjectMapper(), batch -> {
+            synchronized (delivered) {
+                for (UserSyncData event : batch.getEvents()) {
+                    delivered.computeIfAbsent(event.getUserId(), user -> new ArrayList<>())
+                            .add(Integer.parseInt(event.getEventId().substring(event.getEventId().indexOf(':') + 1)));
+                }
+            }
+            dispatcher.acknowledge(batch.getEvents());
+            count.addAndGet(batch.size());
+        });
+
+        for (int sequence = 0; sequence < eventsPerUser; sequence++) {
+            for (int user = 0; user < users; user++) {
+                assertTrue(dispatcher.dispatch(event("user-" + user, sequence)));
+            }
+        }
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (count.get() < users * eventsPerUser) {
+            assertTrue("Timed out", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+
+        synchronized (delivered) {
+            assertEquals(users, delivered.size());
+            for (List<Integer> sequences : delivered.values()) {
+                assertEquals(eventsPerUser, sequences.size());
+                for (int i = 0; i < sequences.size(); i++) {
+                    assertEquals(i, (int) sequences.get(i));
+                }
+            }
+        }
+    }
+
+    private static ClientUserSyncConfig config(int workers, int batchSize) {
+        ClientUserSyncConfig config = new ClientUserSyncConfig();
+        config.setPerUserOrdering(true);
+        config.setThreadPoolSize(workers);
+        config.setQueueCapacity(2048);
+        config.setOverflowPolicy(OverflowPolicy.BLOCK);
+        config.setEnqueueTimeoutMs((int) TIMEOUT_MILLIS);
+        config.setBatchEnabled(batchSize > 1);
+        config.setBatchSize(batchSize);
+        config.setBatchLingerMs(1);
+        return config;
+    }
+
+    private SyncBatch next() throws InterruptedException {
+        SyncBatch batch = handed.poll(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        assertNotNull("Timed out", batch);
+        return batch;
+    }
+
+    private void awaitParked(int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (dispatcher.getParkedCount() < count) {
+            assertTrue("Timed out", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    private static List<String> eventIds(SyncBatch batch) {
+        List<String> eventIds = new ArrayList<>();
+        batch.getEvents().forEach(event -> eventIds.add(event.getEventId()));
+        return eventIds;
+    }
+
+    private static UserSyncData event(String userId, int sequence) {
+        UserSyncData event = new UserSyncData();
+        event.setEventId(userId + ":" + sequence);
+        event.setEventType("LOGIN");
+        event.setUserId(userId);
+        return event;
+    }
+}
@@ -0,0 +1,280 @@
+package com.keycloak.sync;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Fills a four-slot buffer behind a single worker that is stuck on the first event, then checks
+ * what each overflow policy does with the events that no longer fit
+ */
+public class SyncDispatcherTest {
+
+    private static final int CAPACITY = 4;
+    private static final long TIMEOUT_MILLIS = 10_000;
+
+    private final List<String> handled = new CopyOnWriteArrayList<>();
+    private final CountDownLatch workerBusy = new CountDownLatch(1);
+    private final CountDownLatch releaseWorker = new CountDownLatch(1);
+    private Path spillDirectory;
+    private SyncDispatcher dispatcher;
+
+    @Before
+    public void createSpillDirectory() throws IOException {
+        spillDirectory = Files.createTempDirectory("dispatcher-test");
+    }
+
+    @After
+    public void closeDispatcher() {
+        releaseWorker.countDown();
+        if (dispatcher != null) {
+            dispatcher.close(1);
+        }
+        File[] files = spillDirectory.toFile().listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        spillDirectory.toFile().delete();
+    }
+
+    @Test
+    public void dropNewestKeepsTheEventsAlreadyQueued() throws InterruptedException {
+        open(OverflowPolicy.DROP_NEWEST, 5);
+        fillBuffer();
+
+        for (int i = CAPACITY + 1; i < 10; i++) {
+            assertFalse(dispatcher.dispatch(event(i)));
+        }
+        releaseWorker.countDown();
+
+        awaitHandled(CAPACITY + 1);
+        assertEquals(List.of("event-0", "event-1", "event-2", "event-3", "event-4"), handled);
+        assertEquals(5, dispatcher.getDroppedCount());
+    }
+
+    @Test
+    public void dropOldestMakesRoomForTheNewestEvents() throws InterruptedException {
+        open(OverflowPolicy.DROP_OLDEST, 5);
+        fillBuffer();
+
+        for (int i = CAPACITY + 1; i < 10; i++) {
+            assertTrue(dispatcher.dispatch(event(i)));
+        }
+        releaseWorker.countDown();
+
+        awaitHandled(CAPACITY + 1);
+        assertEquals(List.of("event-0", "event-6", "event-7", "event-8", "event-9"), handled);
+        assertEquals(5, dispatcher.getDroppedCount());
+    }
+
+    @Test
+    public void blockWaitsForRoomWithinTheEnqueueTimeout() throws InterruptedException {
+        open(OverflowPolicy.BLOCK, (int) TIMEOUT_MILLIS);
+        fillBuffer();
+
+        Thread releaser = new Thread(() -> {
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            releaseWorker.countDown();
+        });
+        releaser.start();
+        for (int i = CAPACITY + 1; i < 10; i++) {
+            assertTrue(dispatcher.dispatch(event(i)));
+        }
+        releaser.join();
+
+        awaitHandled(10);
+        assertEquals(expected(10), handled);
+        assertEquals(0, dispatcher.getDroppedCount());
+    }
+
+    @Test
+    public void blockDropsTheEventOnceTheEnqueueTimeoutPasses() throws InterruptedException {
+        open(OverflowPolicy.BLOCK, 20);
+        fillBuffer();
+
+        long start = System.nanoTime();
+        assertFalse(dispatcher.dispatch(event(CAPACITY + 1)));
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(20));
+        assertEquals(1, dispatcher.getDroppedCount());
+    }
+
+    @Test
+    public void dispatchWithoutWaitingLeavesTheBlockingToTheRetryThread() throws InterruptedException {
+        open(OverflowPolicy.BLOCK, (int) TIMEOUT_MILLIS);
+        fillBuffer();
+
+        CountDownLatch queued = new CountDownLatch(1);
+        long start = System.nanoTime();
+        dispatcher.dispatchWithoutWaiting(event(CAPACITY + 1), accepted -> {
+            if (accepted) {
+                queued.countDown();
+            }
+        });
+        assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(TIMEOUT_MILLIS / 2));
+        releaseWorker.countDown();
+
+        assertTrue(queued.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        awaitHandled(CAPACITY + 2);
+        assertEquals(expected(CAPACITY + 2), handled);
+    }
+
+    @Test
+    public void spillWritesOverflowToDiskAndDeliversItLater() throws InterruptedException {
+        open(OverflowPolicy.SPILL, 5);
+        fillBuffer();
+
+        // No more than the spill hand-off holds, so none can be dropped while the writer catches up
+        for (int i = CAPACITY + 1; i < 2 * CAPACITY; i++) {
+            assertTrue(dispatcher.dispatch(event(i)));
+        }
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (dispatcher.getSpilledCount() < CAPACITY - 1) {
+            awaitProgress(deadline);
+        }
+        releaseWorker.countDown();
+
+        awaitHandled(2 * CAPACITY);
+        assertEquals(new HashSet<>(expected(2 * CAPACITY)), new HashSet<>(handled));
+        assertEquals(0, dispatcher.getDroppedCount());
+    }
+
+    @Test
+    public void idleWorkersParkUntilAnEventArrives() throws InterruptedException {
+        open(OverflowPolicy.DROP_NEWEST, 5);
+        Thread worker = awaitParked("client-user-sync-test-1");
+
+        releaseWorker.countDown();
+        assertTrue(dispatcher.dispatch(event(0)));
+        awaitHandled(1);
+        assertEquals(List.of("event-0"), handled);
+        assertEquals(worker, awaitParked("client-user-sync-test-1"));
+    }
+
+    @Test
+    public void runsTasksOnAWorkerAndInlineOnceClosed() {
+        open(OverflowPolicy.DROP_NEWEST, 5);
+        Thread worker = awaitParked("client-user-sync-test-1");
+
+        List<Thread> ranOn = new CopyOnWriteArrayList<>();
+        dispatcher.execute(() -> ranOn.add(Thread.currentThread()));
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (ranOn.isEmpty()) {
+            awaitProgress(deadline);
+        }
+        assertEquals(worker, ranOn.get(0));
+
+        dispatcher.close(1);
+        dispatcher.execute(() -> ranOn.add(Thread.currentThread()));
+        assertEquals(Thread.currentThread(), ranOn.get(1));
+    }
+
+    private void open(OverflowPolicy policy, int enqueueTimeoutMs) {
+        ClientUserSyncConfig config = new ClientUserSyncConfig();
+        config.setQueueCapacity(CAPACITY);
+        config.setThreadPoolSize(1);
+        config.setOverflowPolicy(policy);
+        config.setEnqueueTimeoutMs(enqueueTimeoutMs);
+        config.setSpillDirectory(spillDirectory.toString());
+        dispatcher = new SyncDispatcher(config, "test", new ObjectMapper(), this::handle);
+    }
+
+    private void handle(SyncBatch batch) {
+        workerBusy.countDown();
+        try {
+            releaseWorker.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        for (UserSyncData event : batch.getEvents()) {
+            handled.add(event.getEventId());
+        }
+    }
+
+    /**
+     * Leaves the worker holding event 0 and the buffer full with events 1 to CAPACITY
+     */
+    private void fillBuffer() throws InterruptedException {
+        assertTrue(dispatcher.dispatch(event(0)));
+        assertTrue(workerBusy.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        for (int i = 1; i <= CAPACITY; i++) {
+            assertTrue(dispatcher.dispatch(event(i)));
+        }
+        assertEquals(CAPACITY, dispatcher.getQueueDepth());
+    }
+
+    /**
+     * Waits until the named thread is parked without a timeout, i.e. not polling for work
+     */
+    private static Thread awaitParked(String threadName) {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (true) {
+            for (Thread thread : Thread.getAllStackTraces().keySet()) {
+                if (thread.getName().equals(threadName) && thread.getState() == Thread.State.WAITING) {
+                    return thread;
+                }
+            }
+            awaitProgress(deadline);
+        }
+    }
+
+    private void awaitHandled(int count) {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (handled.size() < count) {
+            awaitProgress(deadline);
+        }
+    }
+
+    private static void awaitProgress(long deadline) {
+        if (System.currentTimeMillis() > deadline) {
+            fail("Timed out");
+        }
+        try {
+            Thread.sleep(10);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            fail("Interrupted");
+        }
+    }
+
+    private static List<String> expected(int count) {
+        List<String> eventIds = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            eventIds.add("event-" + i);
+        }
+        return eventIds;
+    }
+
+    private static UserSyncData event(int index) {
+        UserSyncData event = new UserSyncData();
+        event.setEventId("event-" + index);
+        event.setEventType("LOGIN");
+        event.setUserId("user-" + index);
+        event.setRealmId("realm");
+        event.setTimestamp(System.currentTimeMillis());
+        return event;
+    }
+}
@@ -0,0 +1,107 @@
+package com.keycloak.sync;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TokenBucketRateLimiterTest {
+
+    private static final long MILLIS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    @Test
+    public void handsOutTheBurstThenPacesAtTheRate() {
+        TokenBucketRateLimiter limiter = new TokenBucketRateLimiter(config(10, 5));
+        long now = System.nanoTime();
+        for (int i = 0; i < 5; i++) {
+            assertEquals(0, limiter.tryAcquire(now));
+        }
+
+        long wait = limiter.tryAcquire(now);
+        assertTrue(wait > 90 * MILLIS && wait <= 100 * MILLIS);
+        assertEquals(0, limiter.tryAcquire(now + 100 * MILLIS));
+        assertTrue(limiter.tryAcquire(now + 100 * MILLIS) > 0);
+    }
+
+    @Test
+    public void refillsNoMoreThanTheBurst() {
+        TokenBucketRateLimiter limiter = new TokenBucketRateLimiter(config(10, 5));
+        long now = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        for (int i = 0; i < 5; i++) {
+            assertEquals(0, limiter.tryAcquire(now));
+        }
+        assertTrue(limiter.tryAcquire(now) > 0);
+    }
+
+    @Test
+    public void burstDefaultsToOneSecondOfRequests() {
+        TokenBucketRateLimiter limiter = new TokenBucketRateLimiter(config(3, 0));
+        long now = System.nanoTime();
+        for (int i = 0; i < 3; i++) {
+            assertEquals(0, limiter.tryAcquire(now));
+        }
+        assertTrue(limiter.tryAcquire(now) > 0);
+    }
+
+    @Test
+    public void throttlingHalvesTheRateOnceAndHonoursRetryAfter() {
+        TokenBucketRateLimiter limiter = new TokenBucketRateLimiter(config(10, 5));
+        limiter.onThrottled(1000);
+        assertEquals(5, limiter.getRate(), 0.1);
+
+        long wait = limiter.tryAcquire(System.nanoTime());
+        assertTrue(wait > 900 * MILLIS && wait <= 1000 * MILLIS);
+
+        // Responses to the requests that were in flight together do not lower it again
+        limiter.onThrottled(-1);
+        assertEquals(5, limiter.getRate(), 0.1);
+    }
+
+    @Test
+    public void pacesASharedBucketAtTheLowestConfiguredRate() {
+        TokenBucketRateLimiter limiter = new TokenBucketRateLimiter();
+        limiter.configure("realm-a", config(10, 10));
+        limiter.configure("realm-b", config(4, 20));
+        assertEquals(4, limiter.getRate(), 0);
+
+        long now = System.nanoTime();
+        for (int i = 0; i < 10; i++) {
+            assertEquals(0, limiter.tryAcquire(now));
+        }
+        assertTrue(limiter.tryAcquire(now) > 0);
+
+        limiter.remove("realm-b");
+        assertEquals(10, limiter.getRate(), 0);
+    }
+
+    @Test
+    public void withoutARateOnlyRetryAfterHoldsRequestsBack() {
+        TokenBucketRateLimiter limiter = new TokenBucketRateLimiter();
+        long now = System.nanoTime();
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(0, limiter.tryAcquire(now));
+        }
+        assertEquals(0, limiter.getRate(), 0);
+
+        limiter.onThrottled(500);
+        assertTrue(limiter.tryAcquire(System.nanoTime()) > 0);
+        assertEquals(0, limiter.tryAcquire(System.nanoTime() + 500 * MILLIS));
+    }
+
+    @Test
+    public void recognisesThrottlingResponses() {
+        assertTrue(TokenBucketRateLimiter.isThrottling(429));
+        assertTrue(TokenBucketRateLimiter.isThrottling(503));
+        assertFalse(TokenBucketRateLimiter.isThrottling(500));
+    }
+
+    private static ClientUserSyncConfig config(double rateLimit, int rateLimitBurst) {
+        ClientUserSyncConfig config = new ClientUserSyncConfig();
+        config.setRateLimit(rateLimit);
+        config.setRateLimitBurst(rateLimitBurst);
+        return config;
+    }
+}
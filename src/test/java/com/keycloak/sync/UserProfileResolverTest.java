@@ -0,0 +1,142 @@
+package com.keycloak.sync;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Resolves events captured with a deferred user lookup against a fake user store that counts its lookups
+ */
+public class UserProfileResolverTest {
+
+    private final Map<String, UserModel> users = new HashMap<>();
+    private final AtomicInteger lookups = new AtomicInteger();
+    private KeycloakSessionFactory sessionFactory;
+    private UserProfileResolver resolver;
+
+    @Before
+    public void createResolver() {
+        users.put("user-1", Fakes.fake(UserModel.class,
+                "getId", "user-1",
+                "getUsername", "jdoe",
+                "getEmail", "jdoe@example.com",
+                "getFirstAttribute", (Fakes.Answer) args -> "department".equals(args[0]) ? "engineering" : null));
+        RealmModel realm = Fakes.fake(RealmModel.class, "getId", "realm");
+        KeycloakSession session = Fakes.fake(KeycloakSession.class,
+                "realms", Fakes.fakeReturnOf(KeycloakSession.class, "realms",
+                        "getRealm", (Fakes.Answer) args -> "realm".equals(args[0]) ? realm : null),
+                "users", Fakes.fakeReturnOf(KeycloakSession.class, "users",
+                        "getUserById", (Fakes.Answer) args -> {
+                            lookups.incrementAndGet();
+                            return users.get((String) args[1]);
+                        }));
+        sessionFactory = Fakes.fake(KeycloakSessionFactory.class, "create", session);
+
+        ClientUserSyncConfig config = new ClientUserSyncConfig();
+        config.setUserLookupMode(UserLookupMode.DEFERRED);
+        config.setUserCacheSize(100);
+        config.setUserCacheTtl(60);
+        config.setAdditionalAttributes(List.of("department"));
+        resolver = new UserProfileResolver(config, sessionFactory);
+    }
+
+    @Test
+    public void fillsInPendingProfilesAndCachesThem() {
+        assertTrue(resolver.isDeferred());
+        UserSyncData event = pending("e1", "realm", "user-1");
+
+        assertTrue(resolver.resolvePending(List.of(event)).isEmpty());
+
+        assertFalse(event.isProfilePending());
+        assertEquals("jdoe", event.getUsername());
+        assertEquals("jdoe@example.com", event.getEmail());
+        assertEquals("engineering", event.getAdditionalAttributes().get("department"));
+        assertEquals(1, lookups.get());
+
+        UserSyncData next = pending("e2", "realm", "user-1");
+        resolver.resolvePending(List.of(next));
+        assertEquals("jdoe", next.getUsername());
+        assertEquals(1, lookups.get());
+    }
+
+    @Test
+    public void looksTheUserUpAgainOnceInvalidated() {
+        resolver.resolvePending(List.of(pending("e1", "realm", "user-1")));
+        resolver.invalidate("realm", "user-1");
+
+        resolver.resolvePending(List.of(pending("e2", "realm", "user-1")));
+
+        assertEquals(2, lookups.get());
+    }
+
+    @Test
+    public void returnsEventsWhoseUserOrRealmIsGone() {
+        UserSyncData known = pending("e1", "realm", "user-1");
+        UserSyncData deletedUser = pending("e2", "realm", "user-2");
+        UserSyncData deletedRealm = pending("e3", "other-realm", "user-1");
+
+        List<UserSyncData> missing = resolver.resolvePending(List.of(known, deletedUser, deletedRealm));
+
+        assertEquals(List.of(deletedUser, deletedRealm), missing);
+        assertFalse(known.isProfilePending());
+        assertTrue(deletedUser.isProfilePending());
+    }
+
+    @Test
+    public void leavesResolvedEventsAlone() {
+        UserSyncData event = new UserSyncData();
+        event.setRealmId("realm");
+        event.setUserId("user-1");
+        event.setUsername("captured");
+
+        assertTrue(resolver.resolvePending(List.of(event)).isEmpty());
+
+        assertEquals("captured", event.getUsername());
+        assertEquals(0, lookups.get());
+    }
+
+    @Test
+    public void copiesForSeveralSinksShareOneLookup() {
+        // Without the cache only the shared lookup keeps the second copy from loading the user again
+        resolver = new UserProfileResolver(withoutCache(), sessionFactory);
+        UserSyncData event = pending("e1", "realm", "user-1");
+        event.setSharedLookup(new UserProfileResolver.SharedLookup());
+        UserSyncData copy = new UserSyncData(event);
+
+        resolver.resolvePending(List.of(event));
+        resolver.resolvePending(List.of(copy));
+
+        assertEquals("jdoe", copy.getUsername());
+        assertFalse(copy.isProfilePending());
+        assertEquals(1, lookups.get());
+    }
+
+    private static ClientUserSyncConfig withoutCache() {
+        ClientUserSyncConfig config = new ClientUserSyncConfig();
+        config.setUserLookupMode(UserLookupMode.DEFERRED);
+        config.setUserCacheSize(0);
+        return config;
+    }
+
+    private static UserSyncData pending(String eventId, String realmId, String userId) {
+        UserSyncData event = new UserSyncData();
+        event.setEventId(eventId);
+        event.setEventType("LOGIN");
+        event.setRealmId(realmId);
+        event.setUserId(userId);
+        event.setProfilePending(true);
+        return event;
+    }
+}
@@ -0,0 +1,94 @@
+package com.keycloak.sync;
+
+import org.junit.Test;
+import org.keycloak.models.UserModel;
+
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class UserSnapshotCacheTest {
+
+    @Test
+    public void servesWhatWasPutAndCountsHitsAndMisses() {
+        UserSnapshotCache cache = new UserSnapshotCache(100, 60);
+        UserSnapshot snapshot = snapshot("user-1");
+
+        assertNull(cache.get(UserSnapshotCache.key("realm", "user-1")));
+        cache.put(UserSnapshotCache.key("realm", "user-1"), snapshot);
+
+        assertSame(snapshot, cache.get(UserSnapshotCache.key("realm", "user-1")));
+        assertNull(cache.get(UserSnapshotCache.key("other-realm", "user-1")));
+        assertEquals(1, cache.getHitCount());
+        assertEquals(2, cache.getMissCount());
+    }
+
+    @Test
+    public void replacesAndInvalidatesEntries() {
+        UserSnapshotCache cache = new UserSnapshotCache(100, 60);
+        cache.put("realm/user-1", snapshot("user-1"));
+        UserSnapshot updated = snapshot("user-1");
+        cache.put("realm/user-1", updated);
+
+        assertSame(updated, cache.get("realm/user-1"));
+        assertEquals(1, cache.size());
+
+        cache.invalidate("realm/user-1");
+        assertNull(cache.get("realm/user-1"));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void expiredEntriesAreMisses() {
+        UserSnapshotCache cache = new UserSnapshotCache(100, 0);
+        cache.put("realm/user-1", snapshot("user-1"));
+
+        assertNull(cache.get("realm/user-1"));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void staysWithinItsMaximumSize() {
+        UserSnapshotCache cache = new UserSnapshotCache(100, 60);
+        for (int i = 0; i < 1000; i++) {
+            cache.put("realm/user-" + i, snapshot("user-" + i));
+            cache.get("realm/user-" + (i / 2));
+        }
+
+        assertTrue(cache.size() <= 100);
+    }
+
+    @Test
+    public void keepsRegularUsersThroughABurstOfOneOffLogins() {
+        UserSnapshotCache cache = new UserSnapshotCache(100, 60);
+        for (int round = 0; round < 5; round++) {
+            for (int i = 0; i < 50; i++) {
+                String key = "realm/regular-" + i;
+                if (cache.get(key) == null) {
+                    cache.put(key, snapshot("regular-" + i));
+                }
+            }
+        }
+        for (int i = 0; i < 1000; i++) {
+            String key = "realm/once-" + i;
+            if (cache.get(key) == null) {
+                cache.put(key, snapshot("once-" + i));
+            }
+        }
+
+        int kept = 0;
+        for (int i = 0; i < 50; i++) {
+            if (cache.get("realm/regular-" + i) != null) {
+                kept++;
+            }
+        }
+        assertTrue("kept " + kept + " of 50 regular users", kept >= 45);
+    }
+
+    private static UserSnapshot snapshot(String userId) {
+        return UserSnapshot.of(Fakes.fake(UserModel.class, "getId", userId, "getUsername", userId), Collections.emptyList());
+    }
+}
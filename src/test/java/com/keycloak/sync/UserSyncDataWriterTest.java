@@ -0,0 +1,145 @@
+package com.keycloak.sync;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the streaming writer against what Jackson's ObjectMapper writes for the same events
+ */
+public class UserSyncDataWriterTest {
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final UserSyncDataWriter writer = new UserSyncDataWriter();
+
+    @Test
+    public void writesWhatObjectMapperWritesForAnEvent() throws IOException {
+        UserSyncData event = event();
+
+        assertEquals(expected(event), objectMapper.readTree(write(event)));
+    }
+
+    @Test
+    public void writesWhatObjectMapperWritesForMergedAndDeltaRecords() throws IOException {
+        UserSyncData event = event();
+        Map<String, Object> changes = new LinkedHashMap<>();
+        changes.put("email", Map.of("old", "old@example.com", "new", "new@example.com"));
+        changes.put("enabled", false);
+        changes.put("groups", List.of("admins", "users"));
+        changes.put("createdTimestamp", 1_700_000_000_000L);
+        event.setChanges(changes);
+        event.setEventCount(3);
+        event.setFirstTimestamp(1_700_000_000_000L);
+        event.setLastTimestamp(1_700_000_000_900L);
+
+        assertEquals(expected(event), objectMapper.readTree(write(event)));
+    }
+
+    @Test
+    public void escapesLikeObjectMapper() throws IOException {
+        UserSyncData event = event();
+        event.setFirstName("Zo\u00eb \"Z\" \\ O'Brien\n\u0001");
+        event.setLastName("\u540d\u524d \ud83d\ude00");
+        event.getAdditionalAttributes().put("department", "R&D </script>");
+
+        assertEquals(expected(event), objectMapper.readTree(write(event)));
+    }
+
+    @Test
+    public void writesProfilePendingOnlyIntoSpoolRecords() throws IOException {
+        UserSyncData event = event();
+        event.setProfilePending(true);
+
+        assertFalse(objectMapper.readTree(write(event)).has("profilePending"));
+        PayloadBuffer record = new PayloadBuffer(256);
+        writer.writeRecord(event, record);
+        UserSyncData read = objectMapper.readValue(record.toByteArray(), UserSyncData.class);
+        assertTrue(read.isProfilePending());
+        assertEquals(event.getEventId(), read.getEventId());
+        assertEquals(event.getAdditionalAttributes(), read.getAdditionalAttributes());
+    }
+
+    @Test
+    public void writesBatchesAsAnArrayOrOneObjectPerLine() throws IOException {
+        UserSyncData first = event();
+        UserSyncData second = event();
+        second.setEventId("e2");
+
+        PayloadBuffer array = new PayloadBuffer(256);
+        writer.write(List.of(first, second), BatchFormat.JSON_ARRAY, array);
+        JsonNode events = objectMapper.readTree(array.toByteArray());
+        assertEquals(2, events.size());
+        assertEquals("e2", events.get(1).path("eventId").asText());
+
+        PayloadBuffer ndjson = new PayloadBuffer(256);
+        writer.write(List.of(first, second), BatchFormat.NDJSON, ndjson);
+        String body = new String(ndjson.toByteArray(), StandardCharsets.UTF_8);
+        assertTrue(body.endsWith("\n"));
+        String[] lines = body.trim().split("\n");
+        assertEquals(2, lines.length);
+        assertEquals(objectMapper.readTree(write(first)), objectMapper.readTree(lines[0]));
+        assertEquals(objectMapper.readTree(write(second)), objectMapper.readTree(lines[1]));
+    }
+
+    @Test
+    public void writesNullsForMissingProfileFields() throws IOException {
+        UserSyncData event = new UserSyncData();
+        event.setEventId("e1");
+        event.setAdditionalAttributes(null);
+
+        JsonNode written = objectMapper.readTree(write(event));
+        assertTrue(written.get("timestamp").isNull());
+        assertTrue(written.get("email").isNull());
+        assertTrue(written.get("additionalAttributes").isNull());
+    }
+
+    /**
+     * What ObjectMapper writes, less the fields the request body leaves out when they are not set
+     */
+    private JsonNode expected(UserSyncData event) {
+        ObjectNode expected = objectMapper.valueToTree(event);
+        expected.remove("profilePending");
+        for (String field : List.of("changes", "eventCount", "firstTimestamp", "lastTimestamp")) {
+            if (expected.get(field).isNull()) {
+                expected.remove(field);
+            }
+        }
+        return expected;
+    }
+
+    private byte[] write(UserSyncData event) throws IOException {
+        PayloadBuffer buffer = new PayloadBuffer(256);
+        writer.write(event, buffer);
+        return buffer.toByteArray();
+    }
+
+    private static UserSyncData event() {
+        UserSyncData event = new UserSyncData();
+        event.setEventId("e1");
+        event.setEventType("LOGIN");
+        event.setUserId("user-1");
+        event.setUsername("jdoe");
+        event.setEmail("jdoe@example.com");
+        event.setFirstName("Jane");
+        event.setLastName("Doe");
+        event.setRealmId("realm-id");
+        event.setRealmName("realm");
+        event.setClientId("app");
+        event.setIpAddress("10.0.0.1");
+        event.setTimestamp(1_700_000_000_000L);
+        event.setSessionId("session-1");
+        event.getAdditionalAttributes().put("department", "engineering");
+        return event;
+    }
+}
@@ -0,0 +1,196 @@
+package com.keycloak.sync;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.After;
+import org.junit.Test;
+import org.keycloak.events.EventType;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Fans events out from a realm's service to its sinks and checks which record each sink queued,
+ * as seen by the sink's metrics
+ */
+public class UserSyncServiceFanOutTest {
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final List<UserSyncService> services = new ArrayList<>();
+
+    @After
+    public void closeServices() {
+        services.forEach(UserSyncService::close);
+    }
+
+    @Test
+    public void givesEverySinkACopyOfItsOwn() {
+        RecordingMetrics crm = new RecordingMetrics();
+        RecordingMetrics analytics = new RecordingMetrics();
+        UserSyncService realm = realm(sink("crm", crm, null), sink("analytics", analytics, null));
+        UserSyncData event = event();
+
+        realm.syncUserData(event);
+
+        UserSyncData crmRecord = crm.single(SyncMetrics.Outcome.ENQUEUED);
+        UserSyncData analyticsRecord = analytics.single(SyncMetrics.Outcome.ENQUEUED);
+        assertNotSame(event, crmRecord);
+        assertNotSame(event, analyticsRecord);
+        assertNotSame(crmRecord, analyticsRecord);
+        assertEquals(objectMapper.valueToTree(event), objectMapper.valueToTree(crmRecord));
+        assertEquals(objectMapper.valueToTree(event), objectMapper.valueToTree(analyticsRecord));
+
+        crmRecord.setUsername("changed");
+        crmRecord.getAdditionalAttributes().put("department", "changed");
+        assertEquals("jdoe", analyticsRecord.getUsername());
+        assertEquals("engineering", analyticsRecord.getAdditionalAttributes().get("department"));
+    }
+
+    @Test
+    public void copiesForTheRealmsOwnEndpointAsWell() {
+        RecordingMetrics own = new RecordingMetrics();
+        RecordingMetrics audit = new RecordingMetrics();
+        UserSyncService realm = service(config(null), "realm", own, List.of(sink("audit", audit, null)));
+        services.add(realm);
+        UserSyncData event = event();
+
+        realm.syncUserData(event);
+
+        assertNotSame(own.single(SyncMetrics.Outcome.ENQUEUED), audit.single(SyncMetrics.Outcome.ENQUEUED));
+    }
+
+    @Test
+    public void handsTheRecordItselfToASingleSink() {
+        RecordingMetrics crm = new RecordingMetrics();
+        UserSyncService realm = realm(sink("crm", crm, null));
+        UserSyncData event = event();
+
+        realm.syncUserData(event);
+
+        assertSame(event, crm.single(SyncMetrics.Outcome.ENQUEUED));
+    }
+
+    @Test
+    public void copiesOfAPendingProfileShareOneLookup() {
+        RecordingMetrics crm = new RecordingMetrics();
+        RecordingMetrics analytics = new RecordingMetrics();
+        UserSyncService realm = realm(sink("crm", crm, null), sink("analytics", analytics, null));
+        UserSyncData event = event();
+        event.setProfilePending(true);
+
+        realm.syncUserData(event);
+
+        UserProfileResolver.SharedLookup lookup = crm.single(SyncMetrics.Outcome.ENQUEUED).getSharedLookup();
+        assertNotNull(lookup);
+        assertSame(lookup, analytics.single(SyncMetrics.Outcome.ENQUEUED).getSharedLookup());
+    }
+
+    @Test
+    public void leavesOutSinksWhoseFilterRejectsTheEvent() {
+        RecordingMetrics crm = new RecordingMetrics();
+        RecordingMetrics registrations = new RecordingMetrics();
+        UserSyncService realm = realm(sink("crm", crm, null),
+                sink("registrations", registrations, Set.of(EventType.REGISTER)));
+
+        realm.syncUserData(event());
+
+        crm.single(SyncMetrics.Outcome.ENQUEUED);
+        registrations.single(SyncMetrics.Outcome.FILTERED);
+        assertTrue(registrations.recorded(SyncMetrics.Outcome.ENQUEUED).isEmpty());
+    }
+
+    @Test
+    public void copiesBackfillRecordsToEverySinkRegardlessOfFilters() {
+        RecordingMetrics crm = new RecordingMetrics();
+        RecordingMetrics registrations = new RecordingMetrics();
+        UserSyncService realm = realm(sink("crm", crm, null),
+                sink("registrations", registrations, Set.of(EventType.REGISTER)));
+        UserSyncData record = event();
+        record.setEventType("BACKFILL");
+
+        realm.syncBackfill(record);
+
+        assertNotSame(crm.single(SyncMetrics.Outcome.ENQUEUED), registrations.single(SyncMetrics.Outcome.ENQUEUED));
+    }
+
+    /**
+     * The service of a realm without an endpoint of its own; it closes its sinks when it is closed
+     */
+    private UserSyncService realm(UserSyncService... sinks) {
+        ClientUserSyncConfig config = new ClientUserSyncConfig();
+        config.setShutdownTimeout(1);
+        UserSyncService realm = service(config, "realm", new RecordingMetrics(), List.of(sinks));
+        services.add(realm);
+        return realm;
+    }
+
+    private static UserSyncService sink(String name, RecordingMetrics metrics, Set<EventType> eventTypes) {
+        return service(config(eventTypes), name, metrics, Collections.emptyList());
+    }
+
+    private static UserSyncService service(ClientUserSyncConfig config, String name, SyncMetrics metrics,
+                                           List<UserSyncService> sinks) {
+        return new UserSyncService(config, name, null, new UserProfileResolver(config, null), metrics, sinks);
+    }
+
+    private static ClientUserSyncConfig config(Set<EventType> eventTypes) {
+        ClientUserSyncConfig config = new ClientUserSyncConfig();
+        config.setApiEndpoint("http://localhost:1/users");
+        config.setMaxRetries(0);
+        config.setShutdownTimeout(1);
+        if (eventTypes != null) {
+            config.setEventTypes(eventTypes);
+        }
+        return config;
+    }
+
+    private static UserSyncData event() {
+        UserSyncData event = new UserSyncData();
+        event.setEventId("e1");
+        event.setEventType("LOGIN");
+        event.setUserId("user-1");
+        event.setUsername("jdoe");
+        event.setRealmId("realm-id");
+        event.setRealmName("realm");
+        event.setClientId("app");
+        event.setTimestamp(1_700_000_000_000L);
+        event.getAdditionalAttributes().put("department", "engineering");
+        return event;
+    }
+
+    private static class RecordingMetrics extends SyncMetrics {
+
+        private final List<Map.Entry<Outcome, UserSyncData>> counted = new CopyOnWriteArrayList<>();
+
+        @Override
+        public void count(Outcome outcome, UserSyncData syncData) {
+            counted.add(new AbstractMap.SimpleImmutableEntry<>(outcome, syncData));
+        }
+
+        List<UserSyncData> recorded(Outcome outcome) {
+            List<UserSyncData> matching = new ArrayList<>();
+            for (Map.Entry<Outcome, UserSyncData> entry : counted) {
+                if (entry.getKey() == outcome) {
+                    matching.add(entry.getValue());
+                }
+            }
+            return matching;
+        }
+
+        UserSyncData single(Outcome outcome) {
+            List<UserSyncData> matching = recorded(outcome);
+            assertEquals(1, matching.size());
+            return matching.get(0);
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package com.keycloak.sync;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Checks how the registry builds, shares and replaces the services of a realm
+ */
+public class UserSyncServiceRegistryTest {
+
+    private final UserSyncServiceRegistry registry = new UserSyncServiceRegistry();
+
+    @After
+    public void closeRegistry() {
+        registry.close();
+    }
+
+    @Test
+    public void concurrentCallersShareOneService() throws Exception {
+        int callers = 8;
+        ExecutorService executor = Executors.newFixedThreadPool(callers);
+        CountDownLatch start = new CountDownLatch(1);
+        try {
+            List<Future<UserSyncService>> results = new ArrayList<>();
+            for (int i = 0; i < callers; i++) {
+                results.add(executor.submit(() -> {
+                    start.await();
+                    return registry.getService("realm", config("http://localhost:1/a"));
+                }));
+            }
+            start.countDown();
+
+            UserSyncService service = results.get(0).get(10, TimeUnit.SECONDS);
+            assertNotNull(service);
+            for (Future<UserSyncService> result : results) {
+                assertSame(service, result.get(10, TimeUnit.SECONDS));
+            }
+            assertSame(service, registry.getService("realm", config("http://localhost:1/a")));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void changedConfigurationReplacesTheService() {
+        UserSyncService first = registry.getService("realm", config("http://localhost:1/a"));
+        UserSyncService second = registry.getService("realm", config("http://localhost:1/b"));
+
+        assertNotSame(first, second);
+        assertEquals("http://localhost:1/b", second.getConfig().getApiEndpoint());
+        assertSame(second, registry.getService("realm", config("http://localhost:1/b")));
+    }
+
+    @Test
+    public void realmWithoutDestinationGetsNoService() {
+        assertNull(registry.getService("realm", new HashMap<>()));
+
+        registry.getService("realm", config("http://localhost:1/a"));
+        assertNull(registry.getService("realm", new HashMap<>()));
+    }
+
+    private static Map<String, String> config(String endpoint) {
+        Map<String, String> config = new HashMap<>();
+        config.put("apiEndpoint", endpoint);
+        config.put("spoolEnabled", "false");
+        config.put("shutdownTimeout", "1");
+        return config;
+    }
+}
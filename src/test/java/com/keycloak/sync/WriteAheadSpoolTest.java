@@ -0,0 +1,206 @@
+package com.keycloak.sync;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class WriteAheadSpoolTest {
+
+    private static final int SEGMENT_SIZE = 64 * 1024;
+    private static final long FSYNC_INTERVAL_MILLIS = 5;
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final List<WriteAheadSpool> spools = new ArrayList<>();
+    private Path directory;
+
+    @Before
+    public void createDirectory() throws IOException {
+        directory = Files.createTempDirectory("spool-test");
+    }
+
+    @After
+    public void deleteDirectory() throws IOException {
+        for (WriteAheadSpool spool : spools) {
+            spool.close();
+        }
+        File[] files = directory.toFile().listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.toFile().delete();
+    }
+
+    @Test
+    public void replaysPendingEventsAfterARestart() throws IOException {
+        WriteAheadSpool spool = open(SEGMENT_SIZE);
+        appendAll(spool, 10);
+        spool.close();
+
+        assertEquals(eventIds(0, 10), replay(open(SEGMENT_SIZE)));
+    }
+
+    @Test
+    public void replaysEventsSpreadOverSeveralSegments() throws IOException {
+        WriteAheadSpool spool = open(1024);
+        appendAll(spool, 70);
+        spool.close();
+
+        WriteAheadSpool reopened = open(1024);
+        assertTrue(reopened.getSegmentCount() > 2);
+        // Compaction may have moved the oldest events to the head of the log, possibly more than once
+        assertEquals(new HashSet<>(eventIds(0, 70)), new HashSet<>(replay(reopened)));
+    }
+
+    @Test
+    public void replaysWhatWasFlushedBeforeACrash() throws IOException, InterruptedException {
+        // Never closed, as if the process had died after the flusher ran
+        WriteAheadSpool crashed = open(SEGMENT_SIZE);
+        appendAll(crashed, 10);
+        Thread.sleep(FSYNC_INTERVAL_MILLIS * 20);
+
+        assertEquals(eventIds(0, 10), replay(open(SEGMENT_SIZE)));
+    }
+
+    @Test
+    public void doesNotReplayAcknowledgedEventsBelowTheOldestPendingOne() throws IOException {
+        WriteAheadSpool spool = open(SEGMENT_SIZE);
+        List<UserSyncData> events = appendAll(spool, 10);
+        for (UserSyncData event : events.subList(0, 4)) {
+            spool.acknowledge(event);
+        }
+        assertEquals(6, spool.getPendingCount());
+        spool.close();
+
+        assertEquals(eventIds(4, 10), replay(open(SEGMENT_SIZE)));
+    }
+
+    @Test
+    public void skipsTheRestOfASegmentAfterACorruptRecord() throws IOException {
+        WriteAheadSpool spool = open(SEGMENT_SIZE);
+        appendAll(spool, 10);
+        spool.close();
+        corruptRecord(3);
+
+        assertEquals(eventIds(0, 3), replay(open(SEGMENT_SIZE)));
+    }
+
+    @Test
+    public void keepsTheProfilePendingFlag() throws IOException {
+        WriteAheadSpool spool = open(SEGMENT_SIZE);
+        UserSyncData event = event(0);
+        event.setProfilePending(true);
+        spool.append(event);
+        spool.close();
+
+        List<UserSyncData> replayed = new ArrayList<>();
+        open(SEGMENT_SIZE).replay(replayed::add);
+        assertEquals(1, replayed.size());
+        assertTrue(replayed.get(0).isProfilePending());
+    }
+
+    @Test
+    public void refusesAppendsOnceClosed() throws IOException {
+        WriteAheadSpool spool = open(SEGMENT_SIZE);
+        spool.close();
+        try {
+            spool.append(event(0));
+            fail("Appended to a closed spool");
+        } catch (IOException expected) {
+            // closed
+        }
+    }
+
+    @Test
+    public void segmentSizeStaysWithinWhatASegmentCanMap() {
+        ClientUserSyncConfig config = ClientUserSyncConfig.fromMap(Map.of("spoolSegmentSizeMb", "4096"));
+        assertEquals(ClientUserSyncConfig.MAX_SPOOL_SEGMENT_SIZE_MB, config.getSpoolSegmentSizeMb());
+        assertTrue(config.getSpoolSegmentSizeBytes() > 0);
+
+        config.setSpoolSegmentSizeMb(0);
+        assertEquals(1024 * 1024, config.getSpoolSegmentSizeBytes());
+    }
+
+    private WriteAheadSpool open(int segmentSize) throws IOException {
+        WriteAheadSpool spool = new WriteAheadSpool(directory, segmentSize, FSYNC_INTERVAL_MILLIS, objectMapper);
+        spools.add(spool);
+        return spool;
+    }
+
+    private static List<UserSyncData> appendAll(WriteAheadSpool spool, int count) throws IOException {
+        List<UserSyncData> events = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            UserSyncData event = event(i);
+            spool.append(event);
+            events.add(event);
+        }
+        return events;
+    }
+
+    private static List<String> replay(WriteAheadSpool spool) {
+        List<String> eventIds = new ArrayList<>();
+        assertTrue(spool.replay(event -> eventIds.add(event.getEventId())));
+        return eventIds;
+    }
+
+    /**
+     * Flips a payload byte of the given record in the first segment, leaving its stored CRC as it was
+     */
+    private void corruptRecord(int index) throws IOException {
+        Path segment;
+        try (Stream<Path> files = Files.list(directory)) {
+            segment = files.filter(file -> file.toString().endsWith(".seg")).sorted().collect(Collectors.toList()).get(0);
+        }
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer header = ByteBuffer.allocate(Integer.BYTES);
+            long position = 0;
+            for (int i = 0; i < index; i++) {
+                header.clear();
+                channel.read(header, position);
+                position += 8 + header.getInt(0);
+            }
+            ByteBuffer payloadByte = ByteBuffer.allocate(1);
+            channel.read(payloadByte, position + 8);
+            payloadByte.put(0, (byte) (payloadByte.get(0) ^ 0x20)).rewind();
+            channel.write(payloadByte, position + 8);
+        }
+    }
+
+    private static List<String> eventIds(int from, int to) {
+        List<String> eventIds = new ArrayList<>();
+        for (int i = from; i < to; i++) {
+            eventIds.add("event-" + i);
+        }
+        return eventIds;
+    }
+
+    private static UserSyncData event(int index) {
+        UserSyncData event = new UserSyncData();
+        event.setEventId("event-" + index);
+        event.setEventType("LOGIN");
+        event.setUserId("user-" + index);
+        event.setRealmId("realm");
+        event.setTimestamp(1_700_000_000_000L + index);
+        return event;
+    }
+}